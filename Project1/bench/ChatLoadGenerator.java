@@ -0,0 +1,737 @@
+/**
+ * Simulates many users of a running chatd, without any GUI, so servers can be sized
+ * before they're deployed. Each simulated user is a headless ChatClient, so it speaks
+ * exactly the protocol that the GUI does. The scenarios are:
+ * chat - users are renamed, paired with "CONNECT TO PEER WITH NAME=" and chat with their peer
+ * connect - users connect, wait to be welcomed and disconnect, over and over, as fast as they can
+ * rename - connected users keep renaming themselves
+ * roster - connected users keep asking for the first page of the connected client names
+ * Except in the connect scenario, every user sends at the same fixed rate, and latency
+ * is measured from when each message was due to be sent rather than when it actually
+ * was, so a server that falls behind can't hide it by slowing the generator down.
+ * Run with "java ChatLoadGenerator <host> <port> chat|connect|rename|roster [-users n]
+ * [-rate messages per user per second] [-size characters] [-seconds s] [-senders threads]".
+ * @author Bennett Sherman, bms113
+ */
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+public class ChatLoadGenerator {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The usage message.
+	 */
+	private static final String USAGE = "Usage: java ChatLoadGenerator <host> <port> chat|connect|rename|roster [-users n]"
+			+ " [-rate messages per user per second] [-size characters] [-seconds s] [-senders threads]";
+
+	/**
+	 * How long to wait for every user to be connected, renamed or paired before giving up.
+	 */
+	private static final long SETUP_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * How long to wait, once sending stops, for the last messages and replies to arrive.
+	 */
+	private static final long DRAIN_TIMEOUT_MILLIS = 2000;
+
+	/**
+	 * What the server sends when it welcomes a client.
+	 */
+	private static final String WELCOME_REPLY = "SVR: You've been given the default name: ";
+
+	/**
+	 * What the server sends when a client's name is changed.
+	 */
+	private static final String RENAMED_REPLY = "SVR: Your username has been set to";
+
+	/**
+	 * What the server sends both clients when they're paired.
+	 */
+	private static final String PAIRED_REPLY = "SVR: You are now connected with";
+
+	/**
+	 * What the server sends when a page of connected client names is asked for.
+	 */
+	private static final String ROSTER_REPLY = "SVR: Clients connected to the server (page";
+
+	/**
+	 * Every line the server sends from itself starts with this.
+	 */
+	private static final String SERVER_PREFIX = "SVR: ";
+
+	/**
+	 * A request waiting for the server's reply. The server replies to each client's
+	 * requests in order, so the oldest waiting request is the one a reply is for.
+	 */
+	private static final class PendingRequest
+	{
+		/**
+		 * When the request was due to be sent, from System.nanoTime().
+		 */
+		private final long dueNanos;
+
+		/**
+		 * What a successful reply starts with.
+		 */
+		private final String expectedReply;
+
+		/**
+		 * @param dueNanos When the request was due to be sent
+		 * @param expectedReply What a successful reply starts with
+		 */
+		PendingRequest(long dueNanos, String expectedReply)
+		{
+			this.dueNanos = dueNanos;
+			this.expectedReply = expectedReply;
+		}
+	}
+
+	/**
+	 * The counts and latencies of one run, shared by every user.
+	 */
+	private static final class Results
+	{
+		/**
+		 * Chat messages or requests sent while measuring.
+		 */
+		private final LongAdder sent = new LongAdder();
+
+		/**
+		 * Chat messages or successful replies received while measuring.
+		 */
+		private final LongAdder received = new LongAdder();
+
+		/**
+		 * Unexpected replies, errors reported by the clients and connections that broke.
+		 */
+		private final LongAdder errors = new LongAdder();
+
+		/**
+		 * Attempts to connect to the server that failed.
+		 */
+		private final LongAdder connectFailures = new LongAdder();
+
+		/**
+		 * End-to-end latency of each chat message or reply received.
+		 */
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		/**
+		 * Set while measuring. Replies and errors outside of that aren't counted.
+		 */
+		private volatile boolean measuring = false;
+
+		/**
+		 * When measuring started and stopped, from System.nanoTime().
+		 */
+		private long measuringStartNanos, measuringEndNanos;
+
+		/**
+		 * Start counting.
+		 */
+		void startMeasuring()
+		{
+			measuringStartNanos = System.nanoTime();
+			measuring = true;
+		}
+
+		/**
+		 * Stop counting.
+		 */
+		void stopMeasuring()
+		{
+			measuring = false;
+			measuringEndNanos = System.nanoTime();
+		}
+
+		/**
+		 * @return How long the measuring went on for, in seconds
+		 */
+		double getMeasuredSeconds()
+		{
+			return (measuringEndNanos - measuringStartNanos) / 1e9;
+		}
+	}
+
+	/**
+	 * One simulated user: a headless ChatClient, plus what it's waiting for from the server.
+	 */
+	private static final class SimulatedUser implements ChatClient.ServerMessageListener
+	{
+		/**
+		 * The client that talks to the server.
+		 */
+		private final ChatClient client;
+
+		/**
+		 * Where everything is counted.
+		 */
+		private final Results results;
+
+		/**
+		 * Requests waiting for the server's reply, oldest first.
+		 */
+		private final ConcurrentLinkedQueue<PendingRequest> pendingRequests = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Counted down once the server welcomes the user.
+		 */
+		private final CountDownLatch welcomed = new CountDownLatch(1);
+
+		/**
+		 * Counted down once for every user in a setup step when this user finishes it. Null between steps.
+		 */
+		private volatile CountDownLatch setupStep;
+
+		/**
+		 * The name this user asks for in the setup, and then uses.
+		 */
+		private final String name;
+
+		/**
+		 * Set once the user says goodbye, after which nothing the user is sent is counted.
+		 */
+		private volatile boolean leaving = false;
+
+		/**
+		 * @param host The server's hostname
+		 * @param port The server's port
+		 * @param name The name to ask for, if the scenario renames users
+		 * @param results Where everything is counted
+		 */
+		SimulatedUser(String host, int port, String name, Results results)
+		{
+			this.client = new ChatClient(host, port, this);
+			this.name = name;
+			this.results = results;
+		}
+
+		/**
+		 * Send a request whose reply is waited for.
+		 * @param request The control message, without "C0NTR0L:"
+		 * @param dueNanos When it was due to be sent
+		 * @param expectedReply What a successful reply starts with
+		 */
+		void sendRequest(String request, long dueNanos, String expectedReply)
+		{
+			pendingRequests.add(new PendingRequest(dueNanos, expectedReply));
+			client.sendMessageToServer(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + request);
+		}
+
+		public void messageReceived(String msg)
+		{
+			if (leaving)
+			{
+				return;
+			}
+			// The greeting ends with the user's default name
+			if (welcomed.getCount() > 0)
+			{
+				if (msg.startsWith(WELCOME_REPLY))
+				{
+					welcomed.countDown();
+				}
+				return;
+			}
+			if (!msg.startsWith(SERVER_PREFIX))
+			{
+				chatMessageReceived(msg);
+				return;
+			}
+
+			PendingRequest request = pendingRequests.poll();
+			if (request == null)
+			{
+				// The peer of a user that asked to pair is told too, without having asked
+				if (msg.startsWith(PAIRED_REPLY))
+				{
+					finishSetupStep();
+				}
+				else if (results.measuring)
+				{
+					results.errors.increment();
+				}
+				return;
+			}
+
+			if (!msg.startsWith(request.expectedReply))
+			{
+				results.errors.increment();
+			}
+			else if (setupStep != null)
+			{
+				finishSetupStep();
+			}
+			else if (results.measuring)
+			{
+				results.latency.record(System.nanoTime() - request.dueNanos);
+				results.received.increment();
+			}
+		}
+
+		/**
+		 * A peer's chat message starts with its name, then ": ", then the time it was due to be sent.
+		 * @param msg The line from the server
+		 */
+		private void chatMessageReceived(String msg)
+		{
+			if (!results.measuring)
+			{
+				return;
+			}
+			int start = msg.indexOf(": ") + 2;
+			int end = msg.indexOf(' ', start);
+			try
+			{
+				long dueNanos = Long.parseLong(msg.substring(start, (end < 0) ? msg.length() : end));
+				results.latency.record(System.nanoTime() - dueNanos);
+				results.received.increment();
+			}
+			catch (NumberFormatException | StringIndexOutOfBoundsException err)
+			{
+				results.errors.increment();
+			}
+		}
+
+		/**
+		 * Count down the current setup step's latch, if there is one.
+		 */
+		private void finishSetupStep()
+		{
+			CountDownLatch step = setupStep;
+			if (step != null)
+			{
+				setupStep = null;
+				step.countDown();
+			}
+		}
+
+		public void errorOccurred(String msg)
+		{
+			if (results.measuring && !leaving)
+			{
+				results.errors.increment();
+			}
+		}
+
+		public void connectionBroken()
+		{
+			if (results.measuring && !leaving)
+			{
+				results.errors.increment();
+			}
+		}
+
+		/**
+		 * Say goodbye to the server.
+		 */
+		void disconnect()
+		{
+			leaving = true;
+			client.sendMessageToServer(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + ServerClientCommon.DISCONNECT_FROM_SERVER);
+		}
+	}
+
+	/**
+	 * What one sender thread sends to the server on behalf of each of its users.
+	 */
+	private interface Workload
+	{
+		/**
+		 * @param user The user sending
+		 * @param dueNanos When the message is due to be sent
+		 */
+		void send(SimulatedUser user, long dueNanos);
+	}
+
+	/**
+	 * The server's hostname.
+	 */
+	private final String host;
+
+	/**
+	 * The server's port.
+	 */
+	private final int port;
+
+	/**
+	 * The number of simulated users.
+	 */
+	private int userCount = 100;
+
+	/**
+	 * How many messages or requests each user sends a second.
+	 */
+	private double ratePerUser = 10;
+
+	/**
+	 * How many characters each chat message has.
+	 */
+	private int messageSize = 64;
+
+	/**
+	 * How long to measure for.
+	 */
+	private double seconds = 10;
+
+	/**
+	 * The number of threads sending for the users.
+	 */
+	private int senderCount = 4;
+
+	/**
+	 * Keeps the names used by this run apart from those of earlier runs against the same server.
+	 */
+	private final String runId = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+
+	/**
+	 * Where everything is counted.
+	 */
+	private final Results results = new Results();
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param host The server's hostname
+	 * @param port The server's port
+	 */
+	private ChatLoadGenerator(String host, int port)
+	{
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Connect every user, and wait for the server to welcome them.
+	 * @return The users
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private SimulatedUser[] connectUsers() throws InterruptedException
+	{
+		SimulatedUser[] users = new SimulatedUser[userCount];
+		for (int i = 0; i < userCount; ++i)
+		{
+			users[i] = new SimulatedUser(host, port, "load" + runId + "_" + i, results);
+			if (!users[i].client.startHeadless())
+			{
+				exitWithError("User " + i + " couldn't connect to " + host + ":" + port);
+			}
+		}
+		for (SimulatedUser user : users)
+		{
+			if (!user.welcomed.await(SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+			{
+				exitWithError("The server didn't welcome every user within " + SETUP_TIMEOUT_SECONDS + "s");
+			}
+		}
+		return users;
+	}
+
+	/**
+	 * Run one setup step for some users, ex: renaming them, and wait for every one to finish it.
+	 * @param users The users taking part
+	 * @param waitingCount How many users must finish; more than users.length if others are told too
+	 * @param step Sends each user's request
+	 * @param description What the step does, for the error message
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private static void runSetupStep(SimulatedUser[] users, int waitingCount, Workload step, String description) throws InterruptedException
+	{
+		CountDownLatch finished = new CountDownLatch(waitingCount);
+		for (SimulatedUser user : users)
+		{
+			user.setupStep = finished;
+		}
+		for (SimulatedUser user : users)
+		{
+			step.send(user, System.nanoTime());
+		}
+		if (!finished.await(SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+		{
+			exitWithError("Only " + (waitingCount - finished.getCount()) + " of " + waitingCount + " users finished "
+					+ description + " within " + SETUP_TIMEOUT_SECONDS + "s");
+		}
+	}
+
+	/**
+	 * Have the sender threads send for every user at the configured rate until the run is over.
+	 * Each thread spreads its users' sends evenly over each period rather than sending in bursts.
+	 * @param users The users
+	 * @param workload What each user sends
+	 * @throws InterruptedException If interrupted while waiting for the threads
+	 */
+	private void sendAtRate(SimulatedUser[] users, Workload workload) throws InterruptedException
+	{
+		long periodNanos = (long) (1e9 / ratePerUser);
+		int threadCount = Math.min(senderCount, users.length);
+		long startNanos = System.nanoTime();
+		long endNanos = startNanos + (long) (seconds * 1e9);
+		Thread[] senders = new Thread[threadCount];
+		for (int t = 0; t < threadCount; ++t)
+		{
+			final int firstUser = t;
+			senders[t] = new Thread(() -> {
+				int slice = (users.length - firstUser + threadCount - 1) / threadCount;
+				for (long round = 0; ; ++round)
+				{
+					for (int j = 0; j < slice; ++j)
+					{
+						long dueNanos = startNanos + round * periodNanos + j * periodNanos / slice;
+						if (dueNanos >= endNanos)
+						{
+							return;
+						}
+						long waitNanos = dueNanos - System.nanoTime();
+						if (waitNanos > 0)
+						{
+							LockSupport.parkNanos(waitNanos);
+						}
+						workload.send(users[firstUser + j * threadCount], dueNanos);
+						results.sent.increment();
+					}
+				}
+			}, "load-sender-" + t);
+			senders[t].start();
+		}
+		for (Thread sender : senders)
+		{
+			sender.join();
+		}
+	}
+
+	/**
+	 * Wait for everything sent to be received, or for DRAIN_TIMEOUT_MILLIS to pass.
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private void drain() throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+		while (results.received.sum() + results.errors.sum() < results.sent.sum() && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * The chat scenario: name and pair the users, then have each chat with its peer.
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private void runChat() throws InterruptedException
+	{
+		// Users are paired off, so there must be an even number of them
+		userCount += userCount % 2;
+		SimulatedUser[] users = connectUsers();
+		runSetupStep(users, users.length, (user, dueNanos) -> user.sendRequest(ServerClientCommon.SET_USERNAME + user.name, dueNanos, RENAMED_REPLY),
+				"renaming");
+
+		// Each even-numbered user asks to pair with the next user. Both are told once they're paired.
+		CountDownLatch paired = new CountDownLatch(users.length);
+		for (SimulatedUser user : users)
+		{
+			user.setupStep = paired;
+		}
+		for (int i = 0; i < users.length; i += 2)
+		{
+			users[i].sendRequest(ServerClientCommon.SET_PEER_NAME + users[i + 1].name, System.nanoTime(), PAIRED_REPLY);
+		}
+		if (!paired.await(SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+		{
+			exitWithError("Only " + (users.length - paired.getCount()) + " of " + users.length + " users were paired within "
+					+ SETUP_TIMEOUT_SECONDS + "s");
+		}
+
+		char[] padding = new char[messageSize];
+		Arrays.fill(padding, 'x');
+		results.startMeasuring();
+		sendAtRate(users, (user, dueNanos) -> {
+			String stamp = Long.toString(dueNanos);
+			int padCount = Math.max(0, messageSize - stamp.length() - 1);
+			user.client.sendMessageToServer(stamp + " " + new String(padding, 0, padCount));
+		});
+		drain();
+		results.stopMeasuring();
+		disconnectAll(users);
+	}
+
+	/**
+	 * A scenario where connected users send one kind of request over and over.
+	 * @param request Makes a user's request
+	 * @param expectedReply What a successful reply starts with
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private void runRequests(BiFunction<SimulatedUser, Long, String> request, String expectedReply) throws InterruptedException
+	{
+		SimulatedUser[] users = connectUsers();
+		results.startMeasuring();
+		sendAtRate(users, (user, dueNanos) -> user.sendRequest(request.apply(user, dueNanos), dueNanos, expectedReply));
+		drain();
+		results.stopMeasuring();
+		disconnectAll(users);
+	}
+
+	/**
+	 * The connect scenario: every user connects, waits to be welcomed and disconnects,
+	 * over and over. Latency is from starting to connect until the welcome arrives.
+	 * @throws InterruptedException If interrupted while waiting for the threads
+	 */
+	private void runConnectStorm() throws InterruptedException
+	{
+		long endNanos = System.nanoTime() + (long) (seconds * 1e9);
+		results.startMeasuring();
+		Thread[] connectors = new Thread[userCount];
+		for (int t = 0; t < userCount; ++t)
+		{
+			connectors[t] = new Thread(() -> {
+				while (System.nanoTime() < endNanos)
+				{
+					long startNanos = System.nanoTime();
+					results.sent.increment();
+					SimulatedUser user = new SimulatedUser(host, port, null, results);
+					if (!user.client.startHeadless())
+					{
+						results.connectFailures.increment();
+						continue;
+					}
+					try
+					{
+						if (user.welcomed.await(SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+						{
+							results.latency.record(System.nanoTime() - startNanos);
+							results.received.increment();
+						}
+						else
+						{
+							results.errors.increment();
+						}
+					}
+					catch (InterruptedException err)
+					{
+						return;
+					}
+					user.disconnect();
+				}
+			}, "load-connector-" + t);
+			connectors[t].start();
+		}
+		for (Thread connector : connectors)
+		{
+			connector.join();
+		}
+		results.stopMeasuring();
+	}
+
+	/**
+	 * Say goodbye to the server for every user, and give it a moment to see them off.
+	 * @param users The users
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private static void disconnectAll(SimulatedUser[] users) throws InterruptedException
+	{
+		for (SimulatedUser user : users)
+		{
+			user.disconnect();
+		}
+		Thread.sleep(200);
+	}
+
+	/**
+	 * Print what was measured.
+	 * @param scenario The scenario run
+	 */
+	private void report(String scenario)
+	{
+		double elapsedSeconds = results.getMeasuredSeconds();
+		LatencyHistogram.Snapshot latency = results.latency.snapshot();
+		System.out.println("scenario=" + scenario + " users=" + userCount + (scenario.equals("connect") ? "" : " rate=" + ratePerUser + "/s per user")
+				+ (scenario.equals("chat") ? " size=" + messageSize : "") + " seconds=" + seconds);
+		System.out.printf("sent %d (%.0f/s); received %d (%.0f/s); errors %d; connect failures %d; unanswered %d%n",
+				results.sent.sum(), results.sent.sum() / elapsedSeconds, results.received.sum(), results.received.sum() / elapsedSeconds,
+				results.errors.sum(), results.connectFailures.sum(),
+				Math.max(0, results.sent.sum() - results.received.sum() - results.errors.sum() - results.connectFailures.sum()));
+		System.out.printf("latency us: mean %d p50 %d p90 %d p99 %d p99.9 %d max %d%n", latency.getMeanNanos() / 1000,
+				latency.getPercentileNanos(0.5) / 1000, latency.getPercentileNanos(0.9) / 1000, latency.getPercentileNanos(0.99) / 1000,
+				latency.getPercentileNanos(0.999) / 1000, latency.getMaxNanos() / 1000);
+	}
+
+	/**
+	 * Print an error and exit.
+	 * @param msg The error
+	 */
+	private static void exitWithError(String msg)
+	{
+		System.err.println(msg);
+		System.exit(-1);
+	}
+
+	/**
+	 * @param args The host, port and scenario, followed by "-option value" pairs
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		if (args.length < 3 || args.length % 2 == 0)
+		{
+			exitWithError(USAGE);
+		}
+		ChatLoadGenerator generator = new ChatLoadGenerator(args[0], Integer.parseInt(args[1]));
+		String scenario = args[2];
+		for (int i = 3; i < args.length; i += 2)
+		{
+			switch (args[i])
+			{
+				case "-users":
+					generator.userCount = Integer.parseInt(args[i + 1]);
+					break;
+				case "-rate":
+					generator.ratePerUser = Double.parseDouble(args[i + 1]);
+					break;
+				case "-size":
+					generator.messageSize = Integer.parseInt(args[i + 1]);
+					break;
+				case "-seconds":
+					generator.seconds = Double.parseDouble(args[i + 1]);
+					break;
+				case "-senders":
+					generator.senderCount = Integer.parseInt(args[i + 1]);
+					break;
+				default:
+					exitWithError("Unknown option \"" + args[i] + "\". " + USAGE);
+			}
+		}
+		if (generator.userCount < 1 || generator.ratePerUser <= 0 || generator.senderCount < 1 || generator.seconds <= 0)
+		{
+			exitWithError("-users, -rate, -senders and -seconds must be positive");
+		}
+
+		switch (scenario)
+		{
+			case "chat":
+				generator.runChat();
+				break;
+			case "connect":
+				generator.runConnectStorm();
+				break;
+			case "rename":
+				generator.runRequests((user, dueNanos) -> ServerClientCommon.SET_USERNAME + user.name + "_" + dueNanos, RENAMED_REPLY);
+				break;
+			case "roster":
+				generator.runRequests((user, dueNanos) -> ServerClientCommon.GET_PAGE_OF_CONNECTED_CLIENTS + "1", ROSTER_REPLY);
+				break;
+			default:
+				exitWithError("Unknown scenario \"" + scenario + "\". " + USAGE);
+		}
+		generator.report(scenario);
+	}
+}
@@ -0,0 +1,497 @@
+/**
+ * Checks a cluster of chatd nodes on one machine. It starts NODE_COUNT ChatServers in this
+ * process, each listening for clients and for the other nodes on free loopback ports, waits
+ * until every node can claim names homed on every other node, then checks that:
+ * names - clients of every node asking for the same name at once: exactly one gets it
+ * pairing - a client can chat with a client of another node, and a client busy with a
+ *           client of a third node is reported as busy
+ * relay - messages sent both ways between nodes arrive complete and in order
+ * rename - a client's new name reaches its peer on another node
+ * leaving - a client that disconnects is reported to its peer on another node, whose
+ *           name is then free to be claimed again, and the peer can chat with someone else
+ * Run with "java ClusterHarness [-engine thread|selector] [-messages n]".
+ * It exits with status 1 if any check fails.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ClusterHarness {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The usage message.
+	 */
+	private static final String USAGE = "Usage: java ClusterHarness [-engine thread|selector] [-messages n]";
+
+	/**
+	 * The number of nodes in the cluster.
+	 */
+	private static final int NODE_COUNT = 3;
+
+	/**
+	 * How long to wait for a reply or for more lines before giving up on them.
+	 */
+	private static final int READ_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * How long the nodes have to link up with each other.
+	 */
+	private static final long CLUSTER_START_MILLIS = 10000;
+
+	/**
+	 * What the server tells a client whose new name was set.
+	 */
+	private static final String NAME_SET_REPLY = "SVR: Your username has been set to";
+
+	/**
+	 * What the server tells a client whose new name someone else has.
+	 */
+	private static final String NAME_TAKEN_REPLY = "SVR: The username";
+
+	/**
+	 * What the server tells both clients once they're chatting.
+	 */
+	private static final String CONNECTED_REPLY = "SVR: You are now connected with";
+
+	/**
+	 * One line-based connection to a node.
+	 */
+	private static final class Connection
+	{
+		private final Socket socket;
+		private final BufferedReader in;
+		private final Writer out;
+
+		/**
+		 * Connect, and wait for the node to give the client its default name.
+		 * @param port The node's client port
+		 * @throws IOException If the connection fails
+		 */
+		Connection(int port) throws IOException
+		{
+			socket = new Socket();
+			socket.connect(new InetSocketAddress("localhost", port));
+			socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+			awaitLine("SVR: You've been given the default name: ");
+		}
+
+		/**
+		 * Send a line.
+		 * @param line The line, without its newline
+		 * @throws IOException If the node can't be written to
+		 */
+		void send(String line) throws IOException
+		{
+			out.write(line);
+			out.write('\n');
+			out.flush();
+		}
+
+		/**
+		 * Send a control message and wait for the reply that starts with expectedReply.
+		 * @param command The control message, without its specifier
+		 * @param expectedReply What the reply starts with
+		 * @return The reply
+		 * @throws IOException If the reply doesn't come
+		 */
+		String request(String command, String expectedReply) throws IOException
+		{
+			send(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + command);
+			return awaitLine(expectedReply);
+		}
+
+		/**
+		 * @param start What the line starts with
+		 * @return The first line, from now, that starts with start
+		 * @throws IOException If the connection ends or no such line comes in time
+		 */
+		String awaitLine(String start) throws IOException
+		{
+			long deadline = System.currentTimeMillis() + READ_TIMEOUT_MILLIS;
+			while (System.currentTimeMillis() < deadline)
+			{
+				String line = in.readLine();
+				if (line == null)
+				{
+					throw new IOException("The node closed the connection while waiting for \"" + start + "\"");
+				}
+				if (line.startsWith(start))
+				{
+					return line;
+				}
+			}
+			throw new IOException("No \"" + start + "\" came from the node");
+		}
+
+		void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException err)
+			{
+				// Nothing left to do with it
+			}
+		}
+	}
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Start the cluster, run every check and print the results.
+	 * @param args See USAGE
+	 */
+	public static void main(String[] args)
+	{
+		ChatServerConfig.ServerEngine engine = ChatServerConfig.ServerEngine.THREAD_PER_CLIENT;
+		int messageCount = 2000;
+		try
+		{
+			for (int i = 0; i < args.length; i += 2)
+			{
+				String value = args[i + 1];
+				switch (args[i])
+				{
+					case "-engine":
+						engine = value.equals("selector") ? ChatServerConfig.ServerEngine.SELECTOR : ChatServerConfig.ServerEngine.THREAD_PER_CLIENT;
+						break;
+					case "-messages":
+						messageCount = Integer.parseInt(value);
+						break;
+					default:
+						throw new IllegalArgumentException("unknown option " + args[i]);
+				}
+			}
+		}
+		catch (IllegalArgumentException | ArrayIndexOutOfBoundsException err)
+		{
+			System.err.println(USAGE);
+			System.exit(-1);
+		}
+
+		boolean allPassed;
+		try
+		{
+			int[] ports = startCluster(engine);
+			awaitCluster(ports);
+			allPassed = checkNames(ports);
+			allPassed &= checkChat(ports, messageCount);
+		}
+		catch (IOException err)
+		{
+			System.out.println("FAIL (" + err.getMessage() + ")");
+			allPassed = false;
+		}
+		System.out.println(allPassed ? "All checks passed" : "Some checks failed");
+		System.exit(allPassed ? 0 : 1);
+	}
+
+	/**
+	 * Have a client of each node ask for the same name at the same moment.
+	 * @param ports Each node's client port
+	 * @return true if exactly one got it
+	 * @throws IOException If the clients couldn't talk to the nodes
+	 */
+	private static boolean checkNames(int[] ports) throws IOException
+	{
+		List<Connection> clients = new ArrayList<>();
+		try
+		{
+			for (int port : ports)
+			{
+				clients.add(new Connection(port));
+			}
+			CountDownLatch start = new CountDownLatch(1);
+			String[] replies = new String[clients.size()];
+			List<Thread> claimers = new ArrayList<>();
+			for (int i = 0; i < clients.size(); ++i)
+			{
+				Connection client = clients.get(i);
+				int index = i;
+				Thread claimer = new Thread(() -> {
+					try
+					{
+						start.await();
+						client.send(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + ServerClientCommon.SET_USERNAME + "contested");
+						replies[index] = client.awaitLine("SVR: ");
+					}
+					catch (IOException | InterruptedException err)
+					{
+						replies[index] = err.toString();
+					}
+				}, "harness-claimer-" + i);
+				claimer.start();
+				claimers.add(claimer);
+			}
+			start.countDown();
+			for (Thread claimer : claimers)
+			{
+				claimer.join();
+			}
+
+			int winners = 0;
+			int losers = 0;
+			for (String reply : replies)
+			{
+				if (reply.startsWith(NAME_SET_REPLY))
+				{
+					++winners;
+				}
+				else if (reply.startsWith(NAME_TAKEN_REPLY) && reply.endsWith("is already in use. Choose another."))
+				{
+					++losers;
+				}
+			}
+			boolean passed = winners == 1 && losers == clients.size() - 1;
+			System.out.println("names: " + (passed ? "PASS" : "FAIL") + " (" + winners + " of " + clients.size() + " clients got the contested name, "
+					+ losers + " were told it's in use)");
+			return passed;
+		}
+		catch (InterruptedException err)
+		{
+			throw new IOException("Interrupted while claiming names");
+		}
+		finally
+		{
+			for (Connection client : clients)
+			{
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * Pair clients of different nodes, chat, rename and disconnect, checking each step.
+	 * @param ports Each node's client port
+	 * @param messageCount The number of messages to send each way
+	 * @return true if every step did what it should
+	 * @throws IOException If the clients couldn't talk to the nodes
+	 */
+	private static boolean checkChat(int[] ports, int messageCount) throws IOException
+	{
+		Connection alice = new Connection(ports[0]);
+		Connection bob = new Connection(ports[1]);
+		Connection carol = new Connection(ports[2]);
+		try
+		{
+			alice.request(ServerClientCommon.SET_USERNAME + "alice", NAME_SET_REPLY);
+			bob.request(ServerClientCommon.SET_USERNAME + "bob", NAME_SET_REPLY);
+			carol.request(ServerClientCommon.SET_USERNAME + "carol", NAME_SET_REPLY);
+
+			// Pairing across nodes, and refusing a client that's busy on another node
+			alice.request(ServerClientCommon.SET_PEER_NAME + "bob", CONNECTED_REPLY + " \"bob\"");
+			bob.awaitLine(CONNECTED_REPLY + " \"alice\"");
+			String busyReply = carol.request(ServerClientCommon.SET_PEER_NAME + "bob", "SVR: The desired client");
+			boolean pairingPassed = busyReply.contains("is chatting with the user \"alice\"");
+			System.out.println("pairing: " + (pairingPassed ? "PASS" : "FAIL") + " (carol was told: " + busyReply + ")");
+
+			// Relaying both ways at once
+			boolean relayPassed = sendAndReceive(alice, "alice", bob, messageCount) & sendAndReceive(bob, "bob", alice, messageCount);
+			System.out.println("relay: " + (relayPassed ? "PASS" : "FAIL") + " (" + messageCount + " messages each way)");
+
+			// Renaming
+			alice.request(ServerClientCommon.SET_USERNAME + "alicia", NAME_SET_REPLY);
+			bob.awaitLine("SVR: Your peer has changed their name to: \"alicia\"");
+			String peerName = bob.request(ServerClientCommon.GET_MY_PEERS_NAME, "SVR: Your peer's name is: ");
+			boolean renamePassed = peerName.endsWith("alicia");
+			System.out.println("rename: " + (renamePassed ? "PASS" : "FAIL") + " (bob was told: " + peerName + ")");
+
+			// Leaving
+			alice.close();
+			bob.awaitLine("SVR: User \"alicia\" has exited the chat.");
+			carol.request(ServerClientCommon.SET_PEER_NAME + "bob", CONNECTED_REPLY + " \"bob\"");
+			bob.awaitLine(CONNECTED_REPLY + " \"carol\"");
+			String reclaim = bob.request(ServerClientCommon.SET_USERNAME + "alicia", "SVR: ");
+			boolean leavingPassed = reclaim.startsWith(NAME_SET_REPLY);
+			System.out.println("leaving: " + (leavingPassed ? "PASS" : "FAIL") + " (bob was told alicia left, then chatted with carol; taking alicia's name: "
+					+ reclaim + ")");
+
+			return pairingPassed && relayPassed && renamePassed && leavingPassed;
+		}
+		finally
+		{
+			alice.close();
+			bob.close();
+			carol.close();
+		}
+	}
+
+	/**
+	 * Send numbered messages from one client to its peer, and check that they all arrive in order.
+	 * @param sender The client sending
+	 * @param senderName The sender's name
+	 * @param receiver Its peer
+	 * @param messageCount The number of messages
+	 * @return true if they all arrived in order
+	 * @throws IOException If the clients couldn't talk to the nodes
+	 */
+	private static boolean sendAndReceive(Connection sender, String senderName, Connection receiver, int messageCount) throws IOException
+	{
+		for (int i = 0; i < messageCount; ++i)
+		{
+			sender.send("message " + i);
+		}
+		String prefix = senderName + ": message ";
+		for (int i = 0; i < messageCount; ++i)
+		{
+			String line = receiver.awaitLine(prefix);
+			if (!line.equals(prefix + i))
+			{
+				System.out.println("Expected \"" + prefix + i + "\" but got \"" + line + "\"");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Start every node of the cluster, each on free ports. They run until this process exits.
+	 * @param engine The nodes' engine
+	 * @return Each node's client port
+	 * @throws IOException If no free ports could be found
+	 */
+	private static int[] startCluster(ChatServerConfig.ServerEngine engine) throws IOException
+	{
+		int[] clientPorts = new int[NODE_COUNT];
+		StringBuilder clusterNodes = new StringBuilder();
+		for (int i = 0; i < NODE_COUNT; ++i)
+		{
+			clientPorts[i] = freePort();
+			clusterNodes.append(i == 0 ? "" : ",").append("127.0.0.1:").append(freePort());
+		}
+
+		for (int i = 0; i < NODE_COUNT; ++i)
+		{
+			ChatServerConfig config = new ChatServerConfig();
+			config.setPortNumber(clientPorts[i]);
+			config.setEngine(engine);
+			config.setEventLoopCount(2);
+			config.setClusterNodes(clusterNodes.toString());
+			config.setNodeId(i);
+			// The relay check sends faster than the default limits allow
+			config.setMessageRateLimit(0);
+			config.setByteRateLimit(0);
+			// The nodes' logs would bury the results
+			config.setLogLevel(ServerLogger.Level.OFF);
+			ChatServer server = new ChatServer(config);
+			Thread serverThread = new Thread(server::startServer, "harness-node-" + i);
+			serverThread.setDaemon(true);
+			serverThread.start();
+		}
+		return clientPorts;
+	}
+
+	/**
+	 * Wait until a client of each node can claim a name homed on every node.
+	 * @param ports Each node's client port
+	 * @throws IOException If the cluster doesn't link up in time
+	 */
+	private static void awaitCluster(int[] ports) throws IOException
+	{
+		long deadline = System.currentTimeMillis() + CLUSTER_START_MILLIS;
+		for (int node = 0; node < ports.length; ++node)
+		{
+			// Wait for it to accept connections
+			Connection client = null;
+			while (client == null)
+			{
+				try
+				{
+					client = new Connection(ports[node]);
+				}
+				catch (IOException err)
+				{
+					if (System.currentTimeMillis() > deadline)
+					{
+						throw new IOException("Node " + node + " didn't start");
+					}
+					sleep(50);
+				}
+			}
+
+			try
+			{
+				for (int home = 0; home < ports.length; ++home)
+				{
+					String name = nameHomedOn(home, "probe-" + node + "-");
+					while (!client.request(ServerClientCommon.SET_USERNAME + name, "SVR: ").startsWith(NAME_SET_REPLY))
+					{
+						if (System.currentTimeMillis() > deadline)
+						{
+							throw new IOException("Node " + node + " couldn't reach node " + home);
+						}
+						sleep(100);
+					}
+				}
+			}
+			finally
+			{
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * @param home A node
+	 * @param prefix What the name starts with
+	 * @return A name whose home is that node, as ClusterNode.homeOf() decides
+	 */
+	private static String nameHomedOn(int home, String prefix)
+	{
+		for (int i = 0;; ++i)
+		{
+			String name = prefix + i;
+			if (Math.floorMod(name.hashCode(), NODE_COUNT) == home)
+			{
+				return name;
+			}
+		}
+	}
+
+	/**
+	 * @return A port nothing is listening on, as of now
+	 * @throws IOException If none could be found
+	 */
+	private static int freePort() throws IOException
+	{
+		try (ServerSocket probe = new ServerSocket(0))
+		{
+			return probe.getLocalPort();
+		}
+	}
+
+	/**
+	 * @param millis How long to sleep
+	 */
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException err)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/**
+ * Measures how fast the server takes on clients during a connect storm, such as every client
+ * reconnecting at once after a network blip, as acceptors and cores are added. For 1, 2, 4 and
+ * so on up to the number of cores (or -max), it starts a ChatServer in this process with that
+ * many acceptors and, for the selector engine, that many event loops. Then many connector
+ * threads connect, wait for the server to give them a default name, and hang up, over and
+ * over, for a few seconds. It reports the clients taken on per second and how long clients
+ * waited for their default name. Note that the connectors run on the same cores as the
+ * server, so the numbers are only comparable between runs on the same machine.
+ * Run with "java ConnectStormBenchmark [-engine thread|selector] [-connectors n] [-seconds s] [-max acceptors]".
+ * @author Bennett Sherman, bms113
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectStormBenchmark {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The usage message.
+	 */
+	private static final String USAGE = "Usage: java ConnectStormBenchmark [-engine thread|selector] [-connectors n] [-seconds s] [-max acceptors]";
+
+	/**
+	 * How long a connector waits for its default name before counting the connection as failed.
+	 */
+	private static final int READ_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * The most connect times each connector keeps for the percentiles.
+	 */
+	private static final int MAX_SAMPLES_PER_CONNECTOR = 100000;
+
+	/**
+	 * What the server tells a client once it has been taken on.
+	 */
+	private static final String DEFAULT_NAME_REPLY = "SVR: You've been given the default name: ";
+
+	/**
+	 * What one connector did during a storm.
+	 */
+	private static final class ConnectorResult
+	{
+		/**
+		 * How long each connection took to get its default name, in nanoseconds.
+		 */
+		final long[] connectNanos = new long[MAX_SAMPLES_PER_CONNECTOR];
+
+		/**
+		 * The number of connections that got their default name.
+		 */
+		int connected;
+	}
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Run a storm against each number of acceptors and print the results.
+	 * @param args See USAGE
+	 */
+	public static void main(String[] args)
+	{
+		ChatServerConfig.ServerEngine engine = ChatServerConfig.ServerEngine.SELECTOR;
+		int connectorCount = 64;
+		int seconds = 5;
+		int maxAcceptors = Math.max(2, Runtime.getRuntime().availableProcessors());
+		try
+		{
+			for (int i = 0; i < args.length; i += 2)
+			{
+				String value = args[i + 1];
+				switch (args[i])
+				{
+					case "-engine":
+						engine = value.equals("selector") ? ChatServerConfig.ServerEngine.SELECTOR : ChatServerConfig.ServerEngine.THREAD_PER_CLIENT;
+						break;
+					case "-connectors":
+						connectorCount = Integer.parseInt(value);
+						break;
+					case "-seconds":
+						seconds = Integer.parseInt(value);
+						break;
+					case "-max":
+						maxAcceptors = Integer.parseInt(value);
+						break;
+					default:
+						throw new IllegalArgumentException("unknown option " + args[i]);
+				}
+			}
+		}
+		catch (IllegalArgumentException | ArrayIndexOutOfBoundsException err)
+		{
+			System.err.println(USAGE);
+			System.exit(-1);
+		}
+
+		System.out.println("Connect storm: " + engine + " engine, " + connectorCount + " connectors, " + seconds + " s each, "
+				+ Runtime.getRuntime().availableProcessors() + " cores");
+		try
+		{
+			for (int acceptors = 1; acceptors <= maxAcceptors; acceptors *= 2)
+			{
+				runStorm(engine, acceptors, connectorCount, seconds);
+			}
+		}
+		catch (IOException | InterruptedException err)
+		{
+			System.out.println("The storm failed: " + err.getMessage());
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Start a server with some number of acceptors, storm it, and print what it managed.
+	 * @param engine The server's engine
+	 * @param acceptors The number of acceptors, and of event loops for the selector engine
+	 * @param connectorCount The number of connector threads
+	 * @param seconds How long the storm lasts
+	 * @throws IOException If the server couldn't be started
+	 * @throws InterruptedException If interrupted while waiting for the connectors
+	 */
+	private static void runStorm(ChatServerConfig.ServerEngine engine, int acceptors, int connectorCount, int seconds)
+			throws IOException, InterruptedException
+	{
+		int port = startServer(engine, acceptors);
+
+		long endNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		AtomicLong failures = new AtomicLong();
+		List<ConnectorResult> results = new ArrayList<>();
+		List<Thread> connectors = new ArrayList<>();
+		for (int i = 0; i < connectorCount; ++i)
+		{
+			ConnectorResult result = new ConnectorResult();
+			results.add(result);
+			Thread connector = new Thread(() -> connectUntil(port, endNanos, result, failures), "storm-connector-" + i);
+			connectors.add(connector);
+		}
+		long startNanos = System.nanoTime();
+		for (Thread connector : connectors)
+		{
+			connector.start();
+		}
+		for (Thread connector : connectors)
+		{
+			connector.join();
+		}
+		double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+		int connected = 0;
+		for (ConnectorResult result : results)
+		{
+			connected += result.connected;
+		}
+		long[] allNanos = new long[Math.min(connected, connectorCount * MAX_SAMPLES_PER_CONNECTOR)];
+		int sampleCount = 0;
+		for (ConnectorResult result : results)
+		{
+			int kept = Math.min(result.connected, MAX_SAMPLES_PER_CONNECTOR);
+			System.arraycopy(result.connectNanos, 0, allNanos, sampleCount, kept);
+			sampleCount += kept;
+		}
+		Arrays.sort(allNanos, 0, sampleCount);
+
+		System.out.printf("acceptors=%d: %.0f clients/s taken on (%d in %.1f s, %d failed); time to default name us p50/p99/max: %s/%s/%s%n",
+				acceptors, connected / elapsedSeconds, connected, elapsedSeconds, failures.get(), percentileMicros(allNanos, sampleCount, 0.5),
+				percentileMicros(allNanos, sampleCount, 0.99), percentileMicros(allNanos, sampleCount, 1.0));
+	}
+
+	/**
+	 * One connector: connect, wait for the default name and hang up, until the storm ends.
+	 * @param port The server's port
+	 * @param endNanos When the storm ends, from System.nanoTime()
+	 * @param result Where to record what happened
+	 * @param failures Counts connections that failed
+	 */
+	private static void connectUntil(int port, long endNanos, ConnectorResult result, AtomicLong failures)
+	{
+		while (System.nanoTime() < endNanos)
+		{
+			long start = System.nanoTime();
+			try (Socket socket = new Socket())
+			{
+				// Hang up with a reset, so the storm doesn't run out of local ports to TIME_WAIT
+				socket.setSoLinger(true, 0);
+				socket.connect(new InetSocketAddress("localhost", port));
+				socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				String line;
+				while ((line = in.readLine()) != null && !line.startsWith(DEFAULT_NAME_REPLY))
+				{
+					// The welcome comes first
+				}
+				if (line == null)
+				{
+					failures.incrementAndGet();
+					continue;
+				}
+			}
+			catch (IOException err)
+			{
+				failures.incrementAndGet();
+				continue;
+			}
+			if (result.connected < MAX_SAMPLES_PER_CONNECTOR)
+			{
+				result.connectNanos[result.connected] = System.nanoTime() - start;
+			}
+			++result.connected;
+		}
+	}
+
+	/**
+	 * @param sorted Some times in nanoseconds, sorted
+	 * @param count The number of times in sorted
+	 * @param percentile The percentile wanted, from 0 to 1
+	 * @return That percentile of the times, in microseconds, or "-" if there are none
+	 */
+	private static String percentileMicros(long[] sorted, int count, double percentile)
+	{
+		if (count == 0)
+		{
+			return "-";
+		}
+		return String.valueOf(TimeUnit.NANOSECONDS.toMicros(sorted[(int) Math.round(percentile * (count - 1))]));
+	}
+
+	/**
+	 * Start a server in this process, on a port nothing else is using. It runs until this process exits.
+	 * @param engine The server's engine
+	 * @param acceptors The number of acceptors, and of event loops for the selector engine
+	 * @return The server's port
+	 * @throws IOException If no port could be found
+	 */
+	private static int startServer(ChatServerConfig.ServerEngine engine, int acceptors) throws IOException
+	{
+		int port;
+		try (ServerSocket probe = new ServerSocket(0))
+		{
+			port = probe.getLocalPort();
+		}
+
+		ChatServerConfig config = new ChatServerConfig();
+		config.setPortNumber(port);
+		config.setEngine(engine);
+		config.setAcceptorCount(acceptors);
+		config.setEventLoopCount(acceptors);
+		// The server's log would bury the results
+		config.setLogLevel(ServerLogger.Level.OFF);
+		ChatServer server = new ChatServer(config);
+		Thread serverThread = new Thread(server::startServer, "storm-server-" + acceptors);
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// Wait for it to accept connections
+		while (true)
+		{
+			try
+			{
+				new Socket("localhost", port).close();
+				return port;
+			}
+			catch (IOException err)
+			{
+				try
+				{
+					Thread.sleep(50);
+				}
+				catch (InterruptedException interrupted)
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the server", interrupted);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * Measures how long the server takes to give a newly connected client a default name
+ * while clients keep connecting and disconnecting, comparing the DefaultNameAllocator
+ * with the probing it replaced (start at the number of connected clients and count up
+ * until a free "DefaultName_<number>" is found).
+ * A fixed number of clients stay connected; each step disconnects a random one and
+ * connects a new one, which is the churn that a busy server sees.
+ * Run with "java DefaultNameChurnBenchmark [connected clients] [seconds per run] [threads]".
+ * @author Bennett Sherman, bms113
+ */
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+public class DefaultNameChurnBenchmark {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * One way of handing out default names, so both versions run the same loop.
+	 */
+	private interface NamingUnderTest
+	{
+		/**
+		 * Give a newly connected participant a default name.
+		 * @param registry The registry to claim the name in
+		 * @param participant The participant
+		 */
+		void assign(ParticipantRegistry<Object> registry, ChatParticipant participant);
+
+		/**
+		 * Disconnect a participant, freeing its name.
+		 * @param registry The registry it's in
+		 * @param participant The participant
+		 */
+		void remove(ParticipantRegistry<Object> registry, ChatParticipant participant);
+	}
+
+	/**
+	 * The way the server worked before.
+	 */
+	private static final class Probing implements NamingUnderTest
+	{
+		public void assign(ParticipantRegistry<Object> registry, ChatParticipant participant)
+		{
+			int nameNumber = registry.size();
+			while (!registry.claimName("DefaultName_" + nameNumber, participant))
+			{
+				++nameNumber;
+			}
+		}
+
+		public void remove(ParticipantRegistry<Object> registry, ChatParticipant participant)
+		{
+			registry.remove(participant);
+		}
+	}
+
+	/**
+	 * The server's current allocator.
+	 */
+	private static final class Allocator implements NamingUnderTest
+	{
+		private final DefaultNameAllocator allocator = new DefaultNameAllocator();
+
+		public void assign(ParticipantRegistry<Object> registry, ChatParticipant participant)
+		{
+			int nameNumber = allocator.acquire();
+			while (!registry.claimName(DefaultNameAllocator.nameFor(nameNumber), participant))
+			{
+				nameNumber = allocator.acquire();
+			}
+			participant.setDefaultNameNumber(nameNumber);
+		}
+
+		public void remove(ParticipantRegistry<Object> registry, ChatParticipant participant)
+		{
+			registry.remove(participant);
+			int nameNumber = participant.takeDefaultNameNumber();
+			if (nameNumber >= 0)
+			{
+				allocator.release(nameNumber);
+			}
+		}
+	}
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Fill a registry with connected clients, then churn them for a while.
+	 * @param naming The naming to measure
+	 * @param connectedCount The number of clients kept connected, split between the threads
+	 * @param threadCount The number of threads
+	 * @param millis How long to churn for
+	 * @return Connect/disconnect pairs per second across all threads
+	 * @throws InterruptedException If interrupted while waiting for the threads
+	 */
+	private static double run(NamingUnderTest naming, int connectedCount, int threadCount, long millis) throws InterruptedException
+	{
+		ParticipantRegistry<Object> registry = new ParticipantRegistry<>();
+		LongAdder churns = new LongAdder();
+		AtomicBoolean running = new AtomicBoolean(true);
+		CountDownLatch ready = new CountDownLatch(threadCount);
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[threadCount];
+
+		for (int t = 0; t < threadCount; ++t)
+		{
+			final long seed = t;
+			threads[t] = new Thread(() -> {
+				Random random = new Random(seed);
+				ChatParticipant[] connected = new ChatParticipant[connectedCount / threadCount];
+				for (int i = 0; i < connected.length; ++i)
+				{
+					connected[i] = new ChatParticipant(null);
+					naming.assign(registry, connected[i]);
+				}
+				ready.countDown();
+				try
+				{
+					start.await();
+				}
+				catch (InterruptedException err)
+				{
+					return;
+				}
+
+				long count = 0;
+				while (running.get())
+				{
+					int i = random.nextInt(connected.length);
+					naming.remove(registry, connected[i]);
+					connected[i] = new ChatParticipant(null);
+					naming.assign(registry, connected[i]);
+					++count;
+				}
+				churns.add(count);
+			});
+			threads[t].start();
+		}
+
+		ready.await();
+		long startTime = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		running.set(false);
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		return churns.sum() / seconds;
+	}
+
+	/**
+	 * @param args Optionally, the number of connected clients, the seconds per run and the thread count
+	 * @throws InterruptedException If interrupted while waiting for the threads
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		int connectedCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		long millis = args.length > 1 ? (long) (Double.parseDouble(args[1]) * 1000) : 3000;
+		int threadCount = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+		System.out.println(connectedCount + " clients connected; " + threadCount + " thread(s); " + (millis / 1000.0) + "s per run");
+		System.out.printf("%-12s %22s%n", "naming", "disconnect+connect/s");
+
+		// Warm up both versions so the results aren't measuring the JIT
+		run(new Probing(), connectedCount, threadCount, millis / 2);
+		run(new Allocator(), connectedCount, threadCount, millis / 2);
+
+		System.out.printf("%-12s %22.0f%n", "probing", run(new Probing(), connectedCount, threadCount, millis));
+		System.out.printf("%-12s %22.0f%n", "allocator", run(new Allocator(), connectedCount, threadCount, millis));
+	}
+}
@@ -0,0 +1,526 @@
+/**
+ * Checks a primary and its hot standby. The primary runs as a separate process, so that it
+ * can be killed; the standby is a ChatServer in this process. The harness connects pairs of
+ * clients to the primary, gives each a name and pairs them, and leaves a few in listen mode.
+ * While the standby is being kept up to date, one pair measures the round trip of a chat
+ * message, with and without the other clients renaming themselves as fast as they can, to
+ * show that replication doesn't slow down relaying. Then the primary is killed, and every
+ * client reconnects to the standby and resumes its session. It passes if:
+ * every client gets its name back, every pair is chatting again, and the standby took over
+ * within TAKEOVER_TIMEOUT_MILLIS of the primary being killed.
+ * Run with "java FailoverHarness [-pairs n] [-listeners n] [-roundtrips n]".
+ * It exits with status 1 if any check fails.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FailoverHarness {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The usage message.
+	 */
+	private static final String USAGE = "Usage: java FailoverHarness [-pairs n] [-listeners n] [-roundtrips n]";
+
+	/**
+	 * How long to wait for a reply or for more lines before giving up on them.
+	 */
+	private static final int READ_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * How long the standby may take to serve clients once the primary is killed.
+	 */
+	private static final long TAKEOVER_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * How long the primary has to start.
+	 */
+	private static final long PRIMARY_START_MILLIS = 10000;
+
+	/**
+	 * The secret the primary and the standby are both given.
+	 */
+	private static final String REPLICATION_SECRET = "failover-harness";
+
+	/**
+	 * What the server tells a client whose session was resumed.
+	 */
+	private static final String RESUMED_REPLY = "SVR: Your session has been resumed. Your username has been set to ";
+
+	/**
+	 * One line-based connection to a server, which knows its session token.
+	 */
+	private static final class Connection
+	{
+		private final Socket socket;
+		private final BufferedReader in;
+		private final Writer out;
+
+		/**
+		 * Connect, and wait for the server to give the client its default name.
+		 * @param port The server's port
+		 * @throws IOException If the connection fails
+		 */
+		Connection(int port) throws IOException
+		{
+			socket = new Socket();
+			socket.connect(new InetSocketAddress("localhost", port));
+			socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+			awaitLine("SVR: You've been given the default name: ");
+		}
+
+		/**
+		 * Send a line.
+		 * @param line The line, without its newline
+		 * @throws IOException If the server can't be written to
+		 */
+		void send(String line) throws IOException
+		{
+			out.write(line);
+			out.write('\n');
+			out.flush();
+		}
+
+		/**
+		 * Send a control message and wait for the reply that starts with expectedReply.
+		 * @param command The control message, without its specifier
+		 * @param expectedReply What the reply starts with
+		 * @return The reply
+		 * @throws IOException If the reply doesn't come
+		 */
+		String request(String command, String expectedReply) throws IOException
+		{
+			send(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + command);
+			return awaitLine(expectedReply);
+		}
+
+		/**
+		 * @param start What the line starts with
+		 * @return The first line, from now, that starts with start
+		 * @throws IOException If the connection ends or no such line comes in time
+		 */
+		String awaitLine(String start) throws IOException
+		{
+			long deadline = System.currentTimeMillis() + READ_TIMEOUT_MILLIS;
+			while (System.currentTimeMillis() < deadline)
+			{
+				String line = in.readLine();
+				if (line == null)
+				{
+					throw new IOException("The server closed the connection while waiting for \"" + start + "\"");
+				}
+				if (line.startsWith(start))
+				{
+					return line;
+				}
+			}
+			throw new IOException("No \"" + start + "\" came from the server");
+		}
+
+		void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException err)
+			{
+				// Nothing left to do with it
+			}
+		}
+	}
+
+	/**
+	 * A client of the harness: its name, its peer's name (null in listen mode), and its session token.
+	 */
+	private static final class Client
+	{
+		final String name;
+		String peerName;
+		String token;
+		Connection connection;
+
+		Client(String name)
+		{
+			this.name = name;
+		}
+	}
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Start the primary and standby, run the checks and print the results.
+	 * @param args See USAGE
+	 */
+	public static void main(String[] args)
+	{
+		int pairCount = 100;
+		int listenerCount = 20;
+		int roundTrips = 2000;
+		try
+		{
+			for (int i = 0; i < args.length; i += 2)
+			{
+				int value = Integer.parseInt(args[i + 1]);
+				switch (args[i])
+				{
+					case "-pairs":
+						pairCount = value;
+						break;
+					case "-listeners":
+						listenerCount = value;
+						break;
+					case "-roundtrips":
+						roundTrips = value;
+						break;
+					default:
+						throw new IllegalArgumentException("unknown option " + args[i]);
+				}
+			}
+		}
+		catch (IllegalArgumentException | ArrayIndexOutOfBoundsException err)
+		{
+			System.err.println(USAGE);
+			System.exit(-1);
+		}
+
+		Process primary = null;
+		List<Client> clients = new ArrayList<>();
+		boolean passed;
+		try
+		{
+			int primaryPort = freePort();
+			int replicationPort = freePort();
+			int standbyPort = freePort();
+			primary = startPrimary(primaryPort, replicationPort);
+			startStandby(standbyPort, replicationPort);
+
+			connectClients(clients, primaryPort, pairCount, listenerCount);
+			measureRelay(clients, roundTrips);
+
+			// Let the last changes reach the standby, then pull the plug
+			Thread.sleep(500);
+			long killedAt = System.nanoTime();
+			primary.destroyForcibly().waitFor();
+			passed = resumeOnStandby(clients, standbyPort, killedAt);
+		}
+		catch (IOException | InterruptedException err)
+		{
+			System.out.println("FAIL (" + err.getMessage() + ")");
+			passed = false;
+		}
+		finally
+		{
+			for (Client client : clients)
+			{
+				if (client.connection != null)
+				{
+					client.connection.close();
+				}
+			}
+			if (primary != null)
+			{
+				primary.destroyForcibly();
+			}
+		}
+		System.out.println(passed ? "All checks passed" : "Some checks failed");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Connect the clients to the primary, name them, pair them, and learn their session tokens.
+	 * @param clients Receives the clients
+	 * @param port The primary's port
+	 * @param pairCount The number of pairs
+	 * @param listenerCount The number of clients left in listen mode
+	 * @throws IOException If the clients couldn't talk to the primary
+	 */
+	private static void connectClients(List<Client> clients, int port, int pairCount, int listenerCount) throws IOException
+	{
+		for (int i = 0; i < 2 * pairCount + listenerCount; ++i)
+		{
+			Client client = new Client("user" + i);
+			client.connection = new Connection(port);
+			client.connection.request(ServerClientCommon.SET_USERNAME + client.name, "SVR: Your username has been set to");
+			client.token = client.connection.request(ServerClientCommon.GET_SESSION_TOKEN, ServerClientCommon.SESSION_TOKEN)
+					.substring(ServerClientCommon.SESSION_TOKEN.length());
+			clients.add(client);
+		}
+		for (int i = 0; i < pairCount; ++i)
+		{
+			Client first = clients.get(2 * i);
+			Client second = clients.get(2 * i + 1);
+			first.connection.request(ServerClientCommon.SET_PEER_NAME + second.name, "SVR: You are now connected with");
+			second.connection.awaitLine("SVR: You are now connected with");
+			first.peerName = second.name;
+			second.peerName = first.name;
+		}
+		System.out.println("Connected " + clients.size() + " clients to the primary: " + pairCount + " pairs, " + listenerCount + " listening");
+	}
+
+	/**
+	 * Measure the round trip of a chat message between the first pair, first on its own and then
+	 * while the listeners rename themselves as fast as they can, each rename being replicated.
+	 * @param clients The clients
+	 * @param roundTrips The number of round trips to time each way
+	 * @throws IOException If the clients couldn't talk to the primary
+	 * @throws InterruptedException If interrupted while stopping the renamers
+	 */
+	private static void measureRelay(List<Client> clients, int roundTrips) throws IOException, InterruptedException
+	{
+		long[] quiet = roundTrips(clients.get(0), clients.get(1), roundTrips);
+
+		AtomicBoolean renaming = new AtomicBoolean(true);
+		List<Thread> renamers = new ArrayList<>();
+		for (Client client : clients)
+		{
+			if (client.peerName != null)
+			{
+				continue;
+			}
+			Thread renamer = new Thread(() -> {
+				try
+				{
+					for (int n = 0; renaming.get(); ++n)
+					{
+						// Each name change is a change for the standby
+						client.connection.request(ServerClientCommon.SET_USERNAME + client.name + ((n % 2 == 0) ? "-renamed" : ""),
+								"SVR: Your username has been set to");
+					}
+					// Leave it with its own name, which is what it resumes with
+					client.connection.request(ServerClientCommon.SET_USERNAME + client.name, "SVR: ");
+				}
+				catch (IOException err)
+				{
+					System.out.println("A renamer failed: " + err.getMessage());
+				}
+			}, "harness-renamer-" + client.name);
+			renamer.start();
+			renamers.add(renamer);
+		}
+		long[] busy = roundTrips(clients.get(0), clients.get(1), roundTrips);
+		renaming.set(false);
+		for (Thread renamer : renamers)
+		{
+			renamer.join();
+		}
+
+		System.out.println("Relay round trip while replicating, us p50/p99: quiet " + percentileMicros(quiet, 0.5) + "/" + percentileMicros(quiet, 0.99)
+				+ ", with " + renamers.size() + " clients renaming " + percentileMicros(busy, 0.5) + "/" + percentileMicros(busy, 0.99));
+	}
+
+	/**
+	 * @param from The client sending
+	 * @param to Its peer, which answers each message
+	 * @param count The number of round trips
+	 * @return How long each round trip took, in nanoseconds
+	 * @throws IOException If the clients couldn't talk to the server
+	 */
+	private static long[] roundTrips(Client from, Client to, int count) throws IOException
+	{
+		long[] nanos = new long[count];
+		for (int i = 0; i < count; ++i)
+		{
+			long start = System.nanoTime();
+			from.connection.send("ping " + i);
+			to.connection.awaitLine(from.name + ": ping " + i);
+			to.connection.send("pong " + i);
+			from.connection.awaitLine(to.name + ": pong " + i);
+			nanos[i] = System.nanoTime() - start;
+		}
+		return nanos;
+	}
+
+	/**
+	 * @param nanos Some times, in nanoseconds
+	 * @param percentile The percentile wanted, from 0 to 1
+	 * @return That percentile of the times, in microseconds
+	 */
+	private static long percentileMicros(long[] nanos, double percentile)
+	{
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		return TimeUnit.NANOSECONDS.toMicros(sorted[(int) Math.min(sorted.length - 1, Math.round(percentile * (sorted.length - 1)))]);
+	}
+
+	/**
+	 * Reconnect every client to the standby and resume its session, then check names and pairs.
+	 * @param clients The clients
+	 * @param port The standby's port
+	 * @param killedAt When the primary was killed, from System.nanoTime()
+	 * @return true if every check passed
+	 * @throws IOException If the clients couldn't talk to the standby
+	 */
+	private static boolean resumeOnStandby(List<Client> clients, int port, long killedAt) throws IOException
+	{
+		// Wait for the standby to take over
+		Connection probe = null;
+		long deadline = System.currentTimeMillis() + TAKEOVER_TIMEOUT_MILLIS;
+		while (probe == null && System.currentTimeMillis() < deadline)
+		{
+			try
+			{
+				probe = new Connection(port);
+			}
+			catch (IOException err)
+			{
+				sleep(10);
+			}
+		}
+		if (probe == null)
+		{
+			System.out.println("takeover: FAIL (the standby didn't take over within " + TAKEOVER_TIMEOUT_MILLIS + " ms)");
+			return false;
+		}
+		long takeoverMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - killedAt);
+		probe.close();
+
+		long resumeStart = System.nanoTime();
+		int namesBack = 0;
+		for (Client client : clients)
+		{
+			client.connection.close();
+			client.connection = new Connection(port);
+			String reply = client.connection.request(ServerClientCommon.RESUME_SESSION + client.token, "SVR: ");
+			if (reply.equals(RESUMED_REPLY + "\"" + client.name + "\""))
+			{
+				++namesBack;
+			}
+		}
+		int pairsBack = 0;
+		for (Client client : clients)
+		{
+			if (client.peerName == null)
+			{
+				continue;
+			}
+			try
+			{
+				client.connection.awaitLine("SVR: You are now connected with \"" + client.peerName + "\"");
+				++pairsBack;
+			}
+			catch (IOException err)
+			{
+				System.out.println(client.name + " wasn't connected with " + client.peerName + " again: " + err.getMessage());
+			}
+		}
+		long resumeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - resumeStart);
+
+		long pairedClients = clients.stream().filter(client -> client.peerName != null).count();
+		boolean passed = namesBack == clients.size() && pairsBack == pairedClients;
+		System.out.println("failover: " + (passed ? "PASS" : "FAIL") + " (the standby took over " + takeoverMillis + " ms after the primary was killed; "
+				+ namesBack + " of " + clients.size() + " clients got their names back and " + pairsBack + " of " + pairedClients
+				+ " paired clients their peers, in " + resumeMillis + " ms)");
+		return passed;
+	}
+
+	/**
+	 * Start the primary as a separate process, using this process's class path.
+	 * @param port The primary's port
+	 * @param replicationPort The port it listens for its standby on
+	 * @return The primary's process
+	 * @throws IOException If it couldn't be started
+	 */
+	private static Process startPrimary(int port, int replicationPort) throws IOException
+	{
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "chatd", "-port", String.valueOf(port),
+				"-replicateport", String.valueOf(replicationPort), "-replicatesecret", REPLICATION_SECRET, "-msgrate", "0", "-byterate", "0", "-controlrate", "0", "-loglevel", "off");
+		builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process primary = builder.start();
+
+		// Wait for it to accept connections
+		long deadline = System.currentTimeMillis() + PRIMARY_START_MILLIS;
+		while (true)
+		{
+			try
+			{
+				new Socket("localhost", port).close();
+				return primary;
+			}
+			catch (IOException err)
+			{
+				if (System.currentTimeMillis() > deadline || !primary.isAlive())
+				{
+					primary.destroyForcibly();
+					throw new IOException("The primary on port " + port + " didn't start");
+				}
+				sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * Start the standby in this process. It runs until this process exits.
+	 * @param port The port it serves clients on once it takes over
+	 * @param replicationPort The port the primary listens for it on
+	 */
+	private static void startStandby(int port, int replicationPort)
+	{
+		ChatServerConfig config = new ChatServerConfig();
+		config.setPortNumber(port);
+		// The primary only listens for its standby on loopback
+		config.setStandbyOf(InetAddress.getLoopbackAddress().getHostAddress() + ":" + replicationPort);
+		config.setReplicationSecret(REPLICATION_SECRET);
+		// The clients all resume at once, far faster than the default limits allow
+		config.setMessageRateLimit(0);
+		config.setByteRateLimit(0);
+		config.setControlRateLimit(0);
+		// The server's log would bury the results
+		config.setLogLevel(ServerLogger.Level.OFF);
+		ChatServer server = new ChatServer(config);
+		Thread serverThread = new Thread(server::startServer, "harness-standby");
+		serverThread.setDaemon(true);
+		serverThread.start();
+	}
+
+	/**
+	 * @return A port nothing is listening on, as of now
+	 * @throws IOException If none could be found
+	 */
+	private static int freePort() throws IOException
+	{
+		try (ServerSocket probe = new ServerSocket(0))
+		{
+			return probe.getLocalPort();
+		}
+	}
+
+	/**
+	 * @param millis How long to sleep
+	 */
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException err)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
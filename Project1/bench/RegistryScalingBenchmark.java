@@ -0,0 +1,244 @@
+/**
+ * Measures how the server's participant registry and lock-free pairing scale with
+ * the number of threads using them at once, compared to the single server-wide
+ * lock plus synchronized Hashtables that they replaced.
+ * Each thread repeatedly renames one of its own participants, pairs and unpairs
+ * two of its own participants, and looks up a name, which is the mix of work that
+ * clients renaming and connecting to each other put on the server.
+ * Run with "java RegistryScalingBenchmark [max threads] [seconds per run]".
+ * By default it runs 1, 2, 4... threads up to twice the number of cores.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RegistryScalingBenchmark {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The number of participants each benchmark thread owns.
+	 */
+	private static final int PARTICIPANTS_PER_THREAD = 64;
+
+	/**
+	 * One way of doing the registry's work, so both versions run the same loop.
+	 */
+	private interface RegistryUnderTest
+	{
+		/**
+		 * @param name The name to give the participant
+		 * @param participant A participant with no name yet
+		 */
+		void claim(String name, ChatParticipant participant);
+
+		/**
+		 * @param participant The participant to rename
+		 * @param newName Its new name
+		 */
+		void rename(ChatParticipant participant, String newName);
+
+		/**
+		 * Pair two listening participants, then put them both back into listen mode.
+		 * @param first One participant
+		 * @param second The other
+		 */
+		void pairAndUnpair(ChatParticipant first, ChatParticipant second);
+
+		/**
+		 * @param name A name
+		 * @return The participant with that name, or null
+		 */
+		ChatParticipant lookup(String name);
+	}
+
+	/**
+	 * The way the server worked before: one ReentrantLock around everything.
+	 */
+	private static final class GlobalLockRegistry implements RegistryUnderTest
+	{
+		private final Hashtable<String, ChatParticipant> nameToParticipant = new Hashtable<>();
+		private final Hashtable<ChatParticipant, ChatParticipant> participantToPeer = new Hashtable<>();
+		private final ReentrantLock criticalServerDataLock = new ReentrantLock();
+
+		public void claim(String name, ChatParticipant participant)
+		{
+			criticalServerDataLock.lock();
+			try
+			{
+				participant.setName(name);
+				nameToParticipant.put(name, participant);
+			}
+			finally
+			{
+				criticalServerDataLock.unlock();
+			}
+		}
+
+		public void rename(ChatParticipant participant, String newName)
+		{
+			criticalServerDataLock.lock();
+			try
+			{
+				if (!nameToParticipant.containsKey(newName))
+				{
+					nameToParticipant.remove(participant.getName());
+					participant.setName(newName);
+					nameToParticipant.put(newName, participant);
+				}
+			}
+			finally
+			{
+				criticalServerDataLock.unlock();
+			}
+		}
+
+		public void pairAndUnpair(ChatParticipant first, ChatParticipant second)
+		{
+			criticalServerDataLock.lock();
+			try
+			{
+				participantToPeer.put(first, second);
+				participantToPeer.put(second, first);
+				participantToPeer.remove(first);
+				participantToPeer.remove(second);
+			}
+			finally
+			{
+				criticalServerDataLock.unlock();
+			}
+		}
+
+		public ChatParticipant lookup(String name)
+		{
+			return nameToParticipant.get(name);
+		}
+	}
+
+	/**
+	 * The server's current registry, with pairing done by ChatParticipant itself.
+	 */
+	private static final class StripedRegistry implements RegistryUnderTest
+	{
+		private final ParticipantRegistry<Object> registry = new ParticipantRegistry<>();
+
+		public void claim(String name, ChatParticipant participant)
+		{
+			registry.claimName(name, participant);
+		}
+
+		public void rename(ChatParticipant participant, String newName)
+		{
+			registry.rename(participant, newName);
+		}
+
+		public void pairAndUnpair(ChatParticipant first, ChatParticipant second)
+		{
+			ChatParticipant.pair(first, second);
+			first.endPairing();
+		}
+
+		public ChatParticipant lookup(String name)
+		{
+			return registry.getParticipant(name);
+		}
+	}
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Run the operation mix on a registry with the given number of threads.
+	 * @param registry The registry to measure
+	 * @param threadCount The number of threads
+	 * @param millis How long to run for
+	 * @return Operations per second across all threads
+	 * @throws InterruptedException If interrupted while waiting for the threads
+	 */
+	private static double run(RegistryUnderTest registry, int threadCount, long millis) throws InterruptedException
+	{
+		LongAdder operations = new LongAdder();
+		AtomicBoolean running = new AtomicBoolean(true);
+		CountDownLatch ready = new CountDownLatch(threadCount);
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[threadCount];
+
+		for (int t = 0; t < threadCount; ++t)
+		{
+			final int threadIndex = t;
+			threads[t] = new Thread(() -> {
+				ChatParticipant[] owned = new ChatParticipant[PARTICIPANTS_PER_THREAD];
+				for (int i = 0; i < owned.length; ++i)
+				{
+					owned[i] = new ChatParticipant(null);
+					registry.claim("T" + threadIndex + "_" + i, owned[i]);
+				}
+				ready.countDown();
+				try
+				{
+					start.await();
+				}
+				catch (InterruptedException err)
+				{
+					return;
+				}
+
+				long count = 0;
+				int generation = 0;
+				while (running.get())
+				{
+					int i = (int) (count % PARTICIPANTS_PER_THREAD);
+					registry.rename(owned[i], "T" + threadIndex + "_" + i + "_" + (++generation));
+					registry.pairAndUnpair(owned[i], owned[(i + 1) % PARTICIPANTS_PER_THREAD]);
+					registry.lookup(owned[(i + 2) % PARTICIPANTS_PER_THREAD].getName());
+					count += 3;
+				}
+				operations.add(count);
+			});
+			threads[t].start();
+		}
+
+		ready.await();
+		long startTime = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		running.set(false);
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		return operations.sum() / seconds;
+	}
+
+	/**
+	 * @param args Optionally, the maximum thread count and the seconds per run
+	 * @throws InterruptedException If interrupted while waiting for the threads
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		int cores = Runtime.getRuntime().availableProcessors();
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 2 * cores;
+		long millis = args.length > 1 ? (long) (Double.parseDouble(args[1]) * 1000) : 2000;
+
+		System.out.println("Cores: " + cores + "; " + (millis / 1000.0) + "s per run; operations are renames, pairings and lookups");
+		System.out.printf("%8s %20s %20s %8s%n", "threads", "global lock ops/s", "striped ops/s", "ratio");
+
+		// Warm up both versions so the first row isn't measuring the JIT
+		run(new GlobalLockRegistry(), 1, millis / 2);
+		run(new StripedRegistry(), 1, millis / 2);
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2)
+		{
+			double global = run(new GlobalLockRegistry(), threads, millis);
+			double striped = run(new StripedRegistry(), threads, millis);
+			System.out.printf("%8d %20.0f %20.0f %8.2f%n", threads, global, striped, striped / global);
+		}
+	}
+}
@@ -0,0 +1,524 @@
+/**
+ * Checks each slow consumer policy against a client that has stopped reading. For each
+ * policy it starts a ChatServer in this process, with a small byte limit and a short grace
+ * period, and connects two clients: a stalled reader, whose socket has a tiny receive buffer
+ * and which reads nothing, and a sender paired with it, which floods it with numbered messages.
+ * Once the flood is over, the stalled reader reads whatever reaches it, and an admin client
+ * reads the server's statistics. Each policy passes if:
+ * dropoldest - the reader got the last message sent, and messages were dropped oldest first
+ * dropnewest - messages were dropped, but never one that was already queued
+ * disconnect - the sender was told its peer left, the reader's connection was closed, and
+ *              the server counted a slow consumer disconnected
+ * The reader must get its messages in order, and the sender must never be held up by the
+ * stalled reader: every policy also fails if the flood takes longer than FLOOD_TIMEOUT_MILLIS.
+ * Note that the kernel's socket buffers take a few megabytes on loopback before the reader
+ * really stalls, so the reader gets far more than the byte limit, and with dropnewest
+ * there are gaps wherever the server caught up for a moment.
+ * Run with "java SlowConsumerHarness [-engine thread|selector] [-messages n] [-size characters]".
+ * It exits with status 1 if any policy fails.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SlowConsumerHarness {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The usage message.
+	 */
+	private static final String USAGE = "Usage: java SlowConsumerHarness [-engine thread|selector] [-messages n] [-size characters]";
+
+	/**
+	 * The servers' byte limit for each client. Small, so the flood is soon over it.
+	 */
+	private static final int SLOW_CONSUMER_BYTES = 64 * 1024;
+
+	/**
+	 * The servers' grace period. The flood is spread over several of these.
+	 */
+	private static final int SLOW_CONSUMER_GRACE_MILLIS = 300;
+
+	/**
+	 * The stalled reader's receive buffer, so the server's writes to it stall almost at once.
+	 */
+	private static final int STALLED_RECEIVE_BUFFER = 4096;
+
+	/**
+	 * How long the flood lasts, so it outlasts the grace period.
+	 */
+	private static final long FLOOD_MILLIS = 2000;
+
+	/**
+	 * The flood fails if the sender is held up for this long.
+	 */
+	private static final long FLOOD_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * How long to wait for a reply or for more lines before giving up on them.
+	 */
+	private static final int READ_TIMEOUT_MILLIS = 2000;
+
+	/**
+	 * The name of the client that may read the servers' statistics.
+	 */
+	private static final String ADMIN_NAME = "harness-admin";
+
+	/**
+	 * What the server tells a client whose peer has left.
+	 */
+	private static final String PEER_LEFT_REPLY = "has exited the chat";
+
+	/**
+	 * Every chat message the stalled reader receives starts with this, followed by the message's number.
+	 */
+	private static final String MESSAGE_PREFIX = "sender: ";
+
+	/**
+	 * One line-based connection to a server.
+	 */
+	private static final class Connection
+	{
+		private final Socket socket;
+		private final BufferedReader in;
+		private final Writer out;
+
+		/**
+		 * Connect, and wait for the server to give the client its default name.
+		 * @param port The server's port
+		 * @param receiveBuffer The socket's receive buffer size, or 0 for the default
+		 * @throws IOException If the connection fails
+		 */
+		Connection(int port, int receiveBuffer) throws IOException
+		{
+			socket = new Socket();
+			if (receiveBuffer > 0)
+			{
+				// Must be set before connecting to limit the window the server sees
+				socket.setReceiveBufferSize(receiveBuffer);
+			}
+			socket.connect(new InetSocketAddress("localhost", port));
+			socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+			awaitLine("SVR: You've been given the default name: ");
+		}
+
+		/**
+		 * Send a line.
+		 * @param line The line, without its newline
+		 * @throws IOException If the server can't be written to
+		 */
+		void send(String line) throws IOException
+		{
+			out.write(line);
+			out.write('\n');
+			out.flush();
+		}
+
+		/**
+		 * Send a control message and wait for the reply that starts with expectedReply.
+		 * @param command The control message, without its specifier
+		 * @param expectedReply What the reply starts with
+		 * @return The reply
+		 * @throws IOException If the reply doesn't come
+		 */
+		String request(String command, String expectedReply) throws IOException
+		{
+			send(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + command);
+			return awaitLine(expectedReply);
+		}
+
+		/**
+		 * @param start What the line starts with
+		 * @return The first line, from now, that starts with start
+		 * @throws IOException If the connection ends or no such line comes in time
+		 */
+		String awaitLine(String start) throws IOException
+		{
+			long deadline = System.currentTimeMillis() + READ_TIMEOUT_MILLIS;
+			while (System.currentTimeMillis() < deadline)
+			{
+				String line = in.readLine();
+				if (line == null)
+				{
+					throw new IOException("The server closed the connection while waiting for \"" + start + "\"");
+				}
+				if (line.startsWith(start))
+				{
+					return line;
+				}
+			}
+			throw new IOException("No \"" + start + "\" came from the server");
+		}
+
+		/**
+		 * @param contains What to look for
+		 * @return true if a line containing it comes before the connection ends or goes quiet
+		 */
+		boolean sawLineContaining(String contains)
+		{
+			try
+			{
+				String line;
+				while ((line = in.readLine()) != null)
+				{
+					if (line.contains(contains))
+					{
+						return true;
+					}
+				}
+			}
+			catch (IOException err)
+			{
+				// Timed out or broken; either way, it didn't come
+			}
+			return false;
+		}
+
+		void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException err)
+			{
+				// Nothing left to do with it
+			}
+		}
+	}
+
+	/**
+	 * What the stalled reader got once it started reading again.
+	 */
+	private static final class Received
+	{
+		/**
+		 * The number of each chat message received, in order.
+		 */
+		final List<Integer> numbers = new ArrayList<>();
+
+		/**
+		 * True if the server closed the connection.
+		 */
+		boolean closedByServer = false;
+
+		/**
+		 * True if a line said the client was disconnected for falling behind.
+		 */
+		boolean toldDisconnected = false;
+
+		/**
+		 * @return true if every number is higher than the one before it
+		 */
+		boolean isInOrder()
+		{
+			for (int i = 1; i < numbers.size(); ++i)
+			{
+				if (numbers.get(i) <= numbers.get(i - 1))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return The last number received, or -1
+		 */
+		int last()
+		{
+			return numbers.isEmpty() ? -1 : numbers.get(numbers.size() - 1);
+		}
+	}
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Run every policy and print the results.
+	 * @param args See USAGE
+	 */
+	public static void main(String[] args)
+	{
+		ChatServerConfig.ServerEngine engine = ChatServerConfig.ServerEngine.THREAD_PER_CLIENT;
+		int messageCount = 20000;
+		int messageSize = 200;
+		try
+		{
+			for (int i = 0; i < args.length; i += 2)
+			{
+				String value = args[i + 1];
+				switch (args[i])
+				{
+					case "-engine":
+						engine = value.equals("selector") ? ChatServerConfig.ServerEngine.SELECTOR : ChatServerConfig.ServerEngine.THREAD_PER_CLIENT;
+						break;
+					case "-messages":
+						messageCount = Integer.parseInt(value);
+						break;
+					case "-size":
+						messageSize = Integer.parseInt(value);
+						break;
+					default:
+						throw new IllegalArgumentException("unknown option " + args[i]);
+				}
+			}
+		}
+		catch (IllegalArgumentException | ArrayIndexOutOfBoundsException err)
+		{
+			System.err.println(USAGE);
+			System.exit(-1);
+		}
+
+		boolean allPassed = true;
+		for (OutboundQueue.SlowConsumerPolicy policy : OutboundQueue.SlowConsumerPolicy.values())
+		{
+			try
+			{
+				allPassed &= runPolicy(engine, policy, messageCount, messageSize);
+			}
+			catch (IOException err)
+			{
+				System.out.println(policy + ": FAIL (" + err.getMessage() + ")");
+				allPassed = false;
+			}
+		}
+		System.out.println(allPassed ? "All policies passed" : "Some policies failed");
+		System.exit(allPassed ? 0 : 1);
+	}
+
+	/**
+	 * Flood a stalled reader on a server using one policy, and check what happened.
+	 * @param engine The server's engine
+	 * @param policy The policy to check
+	 * @param messageCount The number of messages to flood the reader with
+	 * @param messageSize The number of characters in each message
+	 * @return true if the policy did what it should
+	 * @throws IOException If the clients couldn't talk to the server
+	 */
+	private static boolean runPolicy(ChatServerConfig.ServerEngine engine, OutboundQueue.SlowConsumerPolicy policy, int messageCount,
+			int messageSize) throws IOException
+	{
+		int port = startServer(engine, policy);
+
+		Connection stalled = new Connection(port, STALLED_RECEIVE_BUFFER);
+		Connection sender = new Connection(port, 0);
+		Connection admin = new Connection(port, 0);
+		try
+		{
+			stalled.request(ServerClientCommon.SET_USERNAME + "stalled", "SVR: Your username has been set to");
+			sender.request(ServerClientCommon.SET_USERNAME + "sender", "SVR: Your username has been set to");
+			admin.request(ServerClientCommon.SET_USERNAME + ADMIN_NAME, "SVR: Your username has been set to");
+			sender.request(ServerClientCommon.SET_PEER_NAME + "stalled", "SVR: You are now connected with");
+			stalled.awaitLine("SVR: You are now connected with");
+
+			// From here on, the stalled reader reads nothing until the flood is over
+			long floodMillis = flood(sender, messageCount, messageSize);
+			boolean senderToldPeerLeft = (policy == OutboundQueue.SlowConsumerPolicy.DISCONNECT) && sender.sawLineContaining(PEER_LEFT_REPLY);
+			Received received = drain(stalled);
+			String stats = admin.request(ServerClientCommon.GET_SERVER_STATS, "SVR: Server stats: ");
+
+			long droppedOldest = statistic(stats, "outbound messages dropped oldest first");
+			long dropped = statistic(stats, "outbound messages dropped");
+			long slowConsumers = statistic(stats, "slow consumers");
+			long disconnected = statistic(stats, "slow consumers disconnected");
+
+			boolean passed = floodMillis < FLOOD_TIMEOUT_MILLIS && slowConsumers >= 1 && received.isInOrder();
+			switch (policy)
+			{
+				case DROP_OLDEST:
+					passed &= received.last() == messageCount - 1 && received.numbers.size() < messageCount && droppedOldest > 0;
+					break;
+				case DROP_NEWEST:
+					passed &= received.numbers.size() < messageCount && dropped > 0 && droppedOldest == 0;
+					break;
+				default:
+					passed &= senderToldPeerLeft && received.closedByServer && disconnected == 1;
+					break;
+			}
+
+			System.out.println(policy + ": " + (passed ? "PASS" : "FAIL") + " (flood of " + messageCount + " took " + floodMillis + " ms; reader got "
+					+ received.numbers.size() + ", last " + received.last() + (received.isInOrder() ? ", in order" : ", out of order")
+					+ (received.closedByServer ? ", then was disconnected" : "") + (received.toldDisconnected ? " and told why" : "")
+					+ "; sender " + (senderToldPeerLeft ? "was" : "wasn't") + " told its peer left; server: dropped=" + dropped
+					+ ", dropped oldest first=" + droppedOldest + ", slow consumers=" + slowConsumers + ", disconnected=" + disconnected + ")");
+			return passed;
+		}
+		finally
+		{
+			stalled.close();
+			sender.close();
+			admin.close();
+		}
+	}
+
+	/**
+	 * Start a server on a free port, with a small byte limit, a short grace period and the given policy.
+	 * It runs until this process exits.
+	 * @param engine The server's engine
+	 * @param policy The server's slow consumer policy
+	 * @return The server's port
+	 * @throws IOException If no free port could be found
+	 */
+	private static int startServer(ChatServerConfig.ServerEngine engine, OutboundQueue.SlowConsumerPolicy policy) throws IOException
+	{
+		int port;
+		try (ServerSocket probe = new ServerSocket(0))
+		{
+			port = probe.getLocalPort();
+		}
+		ChatServerConfig config = new ChatServerConfig();
+		config.setPortNumber(port);
+		config.setEngine(engine);
+		config.setEventLoopCount(2);
+		config.setSlowConsumerBytes(SLOW_CONSUMER_BYTES);
+		config.setSlowConsumerGraceMillis(SLOW_CONSUMER_GRACE_MILLIS);
+		config.setSlowConsumerPolicy(policy);
+		config.setAdminName(ADMIN_NAME);
+		// The sender floods on purpose, so it mustn't be slowed down by its own rate limit
+		config.setMessageRateLimit(0);
+		config.setByteRateLimit(0);
+		// The server's log would bury the results
+		config.setLogLevel(ServerLogger.Level.OFF);
+		ChatServer server = new ChatServer(config);
+		Thread serverThread = new Thread(server::startServer, "harness-server-" + policy);
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// Wait for it to accept connections
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (true)
+		{
+			try
+			{
+				new Socket("localhost", port).close();
+				return port;
+			}
+			catch (IOException err)
+			{
+				if (System.currentTimeMillis() > deadline)
+				{
+					throw new IOException("The server on port " + port + " didn't start");
+				}
+				sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * Send the numbered messages to the sender's peer, spread over FLOOD_MILLIS.
+	 * @param sender The sender
+	 * @param messageCount The number of messages
+	 * @param messageSize The number of characters in each message
+	 * @return How long it took, in milliseconds
+	 * @throws IOException If the server can't be written to
+	 */
+	private static long flood(Connection sender, int messageCount, int messageSize) throws IOException
+	{
+		StringBuilder padding = new StringBuilder(messageSize);
+		while (padding.length() < messageSize)
+		{
+			padding.append('x');
+		}
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < messageCount; ++i)
+		{
+			sender.send(i + " " + padding);
+			// Keep to the schedule, so the stalled reader is over the limit for longer than the grace period
+			long due = start + FLOOD_MILLIS * (i + 1) / messageCount;
+			long ahead = due - System.currentTimeMillis();
+			if (ahead > 0)
+			{
+				sleep(ahead);
+			}
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * Have the stalled reader read everything that reaches it, until the server closes it or nothing more comes.
+	 * @param stalled The stalled reader
+	 * @return What it got
+	 */
+	private static Received drain(Connection stalled)
+	{
+		Received received = new Received();
+		try
+		{
+			String line;
+			while ((line = stalled.in.readLine()) != null)
+			{
+				if (line.startsWith(MESSAGE_PREFIX))
+				{
+					String number = line.substring(MESSAGE_PREFIX.length(), line.indexOf(' ', MESSAGE_PREFIX.length()));
+					received.numbers.add(Integer.parseInt(number));
+				}
+				else if (line.contains("fell too far behind"))
+				{
+					received.toldDisconnected = true;
+				}
+			}
+			received.closedByServer = true;
+		}
+		catch (SocketTimeoutException err)
+		{
+			// Nothing more is coming
+		}
+		catch (IOException err)
+		{
+			// Reset by the server
+			received.closedByServer = true;
+		}
+		return received;
+	}
+
+	/**
+	 * @param stats The server's statistics, as "name=value" pairs separated by "; "
+	 * @param name The statistic's name
+	 * @return Its value, or -1 if it isn't there
+	 */
+	private static long statistic(String stats, String name)
+	{
+		for (String pair : stats.substring("SVR: Server stats: ".length()).split("; "))
+		{
+			int equals = pair.indexOf('=');
+			if (equals > 0 && pair.substring(0, equals).equals(name))
+			{
+				return Long.parseLong(pair.substring(equals + 1));
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param millis How long to sleep
+	 */
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException err)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * The BroadcastBenchmark's use of the BroadcastChannel, and of an OutboundQueue per
+ * subscriber for comparison. Subscribers are read the way ChatServer's writers read
+ * them: up to 64 messages at a time.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.ArrayList;
+import java.util.List;
+
+import chatbench.BroadcastBenchmark;
+
+public class BroadcastWorkload implements BroadcastBenchmark.Workload {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The most messages a writer takes at once.
+	 */
+	private static final int MAX_MESSAGES_PER_WRITE = 64;
+
+	/**
+	 * The channel's ring capacity, and each subscriber's queue capacity.
+	 */
+	private static final int CAPACITY = 1024;
+
+	/**
+	 * One way of getting messages to every subscriber.
+	 */
+	private interface Delivery
+	{
+		/**
+		 * @param frame A message for every subscriber
+		 */
+		void publish(OutboundFrame frame);
+
+		/**
+		 * Have every subscriber read what it hasn't yet.
+		 * @param batch Reused for each subscriber's messages
+		 * @return The number of messages read
+		 */
+		long readAll(List<OutboundFrame> batch);
+	}
+
+	/**
+	 * The broadcast channel: each message is stored once, and each subscriber has a cursor.
+	 */
+	private static final class Ring implements Delivery
+	{
+		private final BroadcastChannel channel = new BroadcastChannel("bench", new ChatParticipant(null), CAPACITY);
+		private final BroadcastChannel.Subscription[] subscriptions;
+
+		Ring(int subscriberCount)
+		{
+			subscriptions = new BroadcastChannel.Subscription[subscriberCount];
+			for (int i = 0; i < subscriberCount; ++i)
+			{
+				subscriptions[i] = channel.subscribe(() -> {});
+			}
+		}
+
+		public void publish(OutboundFrame frame)
+		{
+			channel.publish(frame);
+		}
+
+		public long readAll(List<OutboundFrame> batch)
+		{
+			long read = 0;
+			for (BroadcastChannel.Subscription subscription : subscriptions)
+			{
+				subscription.poll(batch, MAX_MESSAGES_PER_WRITE);
+				read += batch.size();
+				batch.clear();
+			}
+			return read;
+		}
+	}
+
+	/**
+	 * A copy of each message on every subscriber's own queue.
+	 */
+	private static final class Queues implements Delivery
+	{
+		private final OutboundQueue[] queues;
+
+		Queues(int subscriberCount)
+		{
+			OutboundQueue.WatermarkListener ignored = new OutboundQueue.WatermarkListener()
+			{
+				public void onHighWatermark(int depth)
+				{
+				}
+
+				public void onLowWatermark(int depth)
+				{
+				}
+
+				public void onSlowConsumer(long pendingBytes)
+				{
+				}
+
+				public void onMessagesDropped(OutboundQueue.SlowConsumerPolicy policy, int count)
+				{
+				}
+			};
+			queues = new OutboundQueue[subscriberCount];
+			for (int i = 0; i < subscriberCount; ++i)
+			{
+				queues[i] = new OutboundQueue(CAPACITY, ignored);
+			}
+		}
+
+		public void publish(OutboundFrame frame)
+		{
+			for (OutboundQueue queue : queues)
+			{
+				queue.offer(frame);
+			}
+		}
+
+		public long readAll(List<OutboundFrame> batch)
+		{
+			long read = 0;
+			for (OutboundQueue queue : queues)
+			{
+				read += queue.pollBatch(batch, MAX_MESSAGES_PER_WRITE);
+				batch.clear();
+			}
+			return read;
+		}
+	}
+
+	/**
+	 * The version being measured.
+	 */
+	private Delivery delivery;
+
+	/**
+	 * The message published.
+	 */
+	private OutboundFrame frame;
+
+	/**
+	 * Reused for each subscriber's messages.
+	 */
+	private final List<OutboundFrame> batch = new ArrayList<>(MAX_MESSAGES_PER_WRITE + 1);
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	public void open(String deliveryName, int subscriberCount, int messageLength)
+	{
+		delivery = "queues".equals(deliveryName) ? new Queues(subscriberCount) : new Ring(subscriberCount);
+		StringBuilder message = new StringBuilder(messageLength);
+		for (int i = 0; i < messageLength; ++i)
+		{
+			message.append((char) ('a' + i % 26));
+		}
+		frame = OutboundFrame.encode(message.toString());
+	}
+
+	public long publishAndRead(int messageCount)
+	{
+		for (int i = 0; i < messageCount; ++i)
+		{
+			delivery.publish(frame);
+		}
+		return delivery.readAll(batch);
+	}
+}
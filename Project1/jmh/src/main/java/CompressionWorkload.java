@@ -0,0 +1,135 @@
+/**
+ * The CompressionBenchmark's use of LineCompression: each line is compressed and
+ * decompressed the way BufferedMessageWriter and the server's writers compress it and
+ * the readers on the other end decompress it. The lines are made up once, from a fixed
+ * seed, and there are enough of them that the compressor can't just find the previous
+ * copy of a line in its window.
+ * @author Bennett Sherman, bms113
+ */
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import chatbench.CompressionBenchmark;
+
+public class CompressionWorkload implements CompressionBenchmark.Workload {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The number of different lines sent, in turn.
+	 */
+	private static final int LINE_COUNT = 1024;
+
+	/**
+	 * The words chat lines are made of.
+	 */
+	private static final String[] WORDS = { "the", "build", "is", "failing", "again", "on", "my", "machine", "can", "you",
+			"look", "at", "this", "stack", "trace", "i", "think", "it", "was", "the", "last", "merge", "yes", "no", "maybe",
+			"server", "client", "restart", "lunch", "meeting", "tomorrow", "deploy", "ticket", "thanks", "sure", "ok" };
+
+	/**
+	 * The lines, as the sender would encode them, without their newlines.
+	 */
+	private byte[][] lines;
+
+	/**
+	 * The next line to send.
+	 */
+	private int nextLine = 0;
+
+	/**
+	 * The sender's compressor, or null to send the lines as they are.
+	 */
+	private LineCompression.Compressor compressor;
+
+	/**
+	 * The receiver's decompressor.
+	 */
+	private final LineCompression.Decompressor decompressor = new LineCompression.Decompressor();
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	public void open(String compression, String payload, int lineLength)
+	{
+		Random random = new Random(42);
+		lines = new byte[LINE_COUNT][];
+		for (int i = 0; i < LINE_COUNT; ++i)
+		{
+			StringBuilder line = new StringBuilder(lineLength + 64);
+			while (line.length() < lineLength)
+			{
+				appendPayload(line, payload, random);
+			}
+			line.setLength(lineLength);
+			lines[i] = line.toString().getBytes(StandardCharsets.ISO_8859_1);
+		}
+		// Every line is compressed, since they're all the same length and the threshold is what decides that
+		compressor = "none".equals(compression) ? null : new LineCompression.Compressor(1, Integer.parseInt(compression));
+	}
+
+	public int sendLine()
+	{
+		byte[] line = lines[nextLine];
+		nextLine = (nextLine + 1) % LINE_COUNT;
+		if (compressor == null)
+		{
+			// What the reader does with a line that isn't compressed
+			return new String(line, StandardCharsets.ISO_8859_1).length() + 1;
+		}
+		byte[] compressed = compressor.compress(line, 0, line.length);
+		try
+		{
+			decompressor.decompress(new String(compressed, StandardCharsets.ISO_8859_1));
+		}
+		catch (DataFormatException err)
+		{
+			throw new IllegalStateException(err);
+		}
+		return compressed.length + 1;
+	}
+
+	public int lineBytes()
+	{
+		return lines[0].length + 1;
+	}
+
+	public void close()
+	{
+		if (compressor != null)
+		{
+			compressor.end();
+		}
+		decompressor.end();
+	}
+
+	/**
+	 * @param line Where to add a piece of the payload
+	 * @param payload "chat", "log" or "random"
+	 * @param random Where the payload's variety comes from
+	 */
+	private static void appendPayload(StringBuilder line, String payload, Random random)
+	{
+		switch (payload)
+		{
+			case "log":
+				line.append(String.format("2024-01-%02d %02d:%02d:%02d.%03d %s [worker-%d] c.e.chat.Session - request %08x took %d ms | ",
+						1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+						random.nextInt(8) == 0 ? "WARN" : "INFO", random.nextInt(16), random.nextInt(), random.nextInt(2000)));
+				break;
+			case "random":
+				byte[] noise = new byte[48];
+				random.nextBytes(noise);
+				line.append(Base64.getEncoder().encodeToString(noise));
+				break;
+			default:
+				line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+				break;
+		}
+	}
+}
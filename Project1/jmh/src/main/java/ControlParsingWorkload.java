@@ -0,0 +1,67 @@
+/**
+ * The ControlParsingBenchmark's use of ControlMessageParser, with every command
+ * the server registers.
+ * @author Bennett Sherman, bms113
+ */
+import chatbench.ControlParsingBenchmark;
+
+public class ControlParsingWorkload implements ControlParsingBenchmark.Workload {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The commands that ChatServer registers.
+	 */
+	private static final String[] COMMANDS = { ServerClientCommon.DISCONNECT_FROM_SERVER, ServerClientCommon.SET_USERNAME,
+			ServerClientCommon.SET_PEER_NAME, ServerClientCommon.GET_LIST_OF_CONNECTED_CLIENTS,
+			ServerClientCommon.GET_PAGE_OF_CONNECTED_CLIENTS, ServerClientCommon.GET_MY_NAME,
+			ServerClientCommon.GET_MY_PEERS_NAME, ServerClientCommon.GET_SERVER_STATS };
+
+	/**
+	 * The parser. Its sessions are the workload itself.
+	 */
+	private final ControlMessageParser<ControlParsingWorkload> parser = new ControlMessageParser<>(ControlParsingWorkload::keepArgument);
+
+	/**
+	 * The argument of the last command dispatched.
+	 */
+	private String lastArgument;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 */
+	public ControlParsingWorkload()
+	{
+		for (String command : COMMANDS)
+		{
+			parser.register(command, ControlParsingWorkload::keepArgument);
+		}
+	}
+
+	/**
+	 * The handler of every command.
+	 * @param argument The command's argument
+	 * @return true
+	 */
+	private boolean keepArgument(CharSequence argument)
+	{
+		lastArgument = argument.toString();
+		return true;
+	}
+
+	public String controlLine(String command)
+	{
+		return ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + command;
+	}
+
+	public boolean dispatch(String line)
+	{
+		return line.startsWith(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER) && parser.dispatch(this, line);
+	}
+}
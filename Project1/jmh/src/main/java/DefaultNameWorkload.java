@@ -0,0 +1,102 @@
+/**
+ * The DefaultNameBenchmark's use of the ParticipantRegistry and DefaultNameAllocator.
+ * Naming and freeing follow ChatServer's assignClientDefaultName() and releaseClientDefaultName().
+ * @author Bennett Sherman, bms113
+ */
+import java.util.SplittableRandom;
+
+import chatbench.DefaultNameBenchmark;
+
+public class DefaultNameWorkload implements DefaultNameBenchmark.Workload {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The clients one thread keeps connected.
+	 */
+	private static final class ThreadClients
+	{
+		/**
+		 * The connected clients.
+		 */
+		private final ChatParticipant[] connected;
+
+		/**
+		 * Picks which client disconnects next.
+		 */
+		private final SplittableRandom random;
+
+		/**
+		 * @param clientCount The number of clients
+		 * @param seed Picks which client disconnects next
+		 */
+		ThreadClients(int clientCount, long seed)
+		{
+			this.connected = new ChatParticipant[clientCount];
+			this.random = new SplittableRandom(seed);
+		}
+	}
+
+	/**
+	 * Names every connected client.
+	 */
+	private final ParticipantRegistry<Object> registry = new ParticipantRegistry<>();
+
+	/**
+	 * Hands out default name numbers.
+	 */
+	private final DefaultNameAllocator defaultNameAllocator = new DefaultNameAllocator();
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	public Object connectClients(int clientCount, long seed)
+	{
+		ThreadClients clients = new ThreadClients(clientCount, seed);
+		for (int i = 0; i < clientCount; ++i)
+		{
+			clients.connected[i] = connect();
+		}
+		return clients;
+	}
+
+	public String churn(Object threadClients)
+	{
+		ThreadClients clients = (ThreadClients) threadClients;
+		int i = clients.random.nextInt(clients.connected.length);
+		disconnect(clients.connected[i]);
+		clients.connected[i] = connect();
+		return clients.connected[i].getName();
+	}
+
+	/**
+	 * @return A new client with a default name
+	 */
+	private ChatParticipant connect()
+	{
+		ChatParticipant client = new ChatParticipant(null);
+		int nameNumber = defaultNameAllocator.acquire();
+		while (!registry.claimName(DefaultNameAllocator.nameFor(nameNumber), client))
+		{
+			nameNumber = defaultNameAllocator.acquire();
+		}
+		client.setDefaultNameNumber(nameNumber);
+		return client;
+	}
+
+	/**
+	 * @param client A connected client, whose name is freed
+	 */
+	private void disconnect(ChatParticipant client)
+	{
+		registry.remove(client);
+		int nameNumber = client.takeDefaultNameNumber();
+		if (nameNumber >= 0)
+		{
+			defaultNameAllocator.release(nameNumber);
+		}
+	}
+}
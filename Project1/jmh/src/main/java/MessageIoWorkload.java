@@ -0,0 +1,151 @@
+/**
+ * The MessageIoBenchmark's use of ServerClientCommon's message sending and reading.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import chatbench.MessageIoBenchmark;
+
+public class MessageIoWorkload implements MessageIoBenchmark.Workload {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * An endless stream of the same line, so reading never runs out.
+	 */
+	private static final class RepeatingInputStream extends InputStream
+	{
+		/**
+		 * The line, including its newline.
+		 */
+		private final byte[] line;
+
+		/**
+		 * The next byte of the line to be read.
+		 */
+		private int position = 0;
+
+		/**
+		 * @param line The line to repeat, including its newline
+		 */
+		RepeatingInputStream(byte[] line)
+		{
+			this.line = line;
+		}
+
+		@Override
+		public int read()
+		{
+			byte next = line[position];
+			position = (position + 1) % line.length;
+			return next & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] destination, int offset, int length)
+		{
+			int copied = 0;
+			while (copied < length)
+			{
+				int count = Math.min(length - copied, line.length - position);
+				System.arraycopy(line, position, destination, offset + copied, count);
+				copied += count;
+				position = (position + count) % line.length;
+			}
+			return copied;
+		}
+	}
+
+	/**
+	 * The message sent and read.
+	 */
+	private String message;
+
+	/**
+	 * Writes to a stream that discards everything.
+	 */
+	private BufferedMessageWriter discardingWriter;
+
+	/**
+	 * Reads the message over and over.
+	 */
+	private BufferedReader repeatingReader;
+
+	/**
+	 * The end of the loopback connection that sends.
+	 */
+	private Socket sendingSocket;
+
+	/**
+	 * The end of the loopback connection that reads.
+	 */
+	private Socket readingSocket;
+
+	/**
+	 * Writes to sendingSocket.
+	 */
+	private BufferedMessageWriter loopbackWriter;
+
+	/**
+	 * Reads from readingSocket.
+	 */
+	private BufferedReader loopbackReader;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	public void open(int messageLength) throws IOException
+	{
+		char[] characters = new char[messageLength];
+		Arrays.fill(characters, 'x');
+		message = new String(characters);
+
+		discardingWriter = new BufferedMessageWriter(OutputStream.nullOutputStream());
+		byte[] line = new byte[messageLength + 1];
+		BufferedMessageWriter.encodeInto(message, line, 0);
+		repeatingReader = new BufferedReader(new InputStreamReader(new RepeatingInputStream(line)));
+
+		try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+		{
+			sendingSocket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+			readingSocket = listener.accept();
+		}
+		// Nothing is ever sent back, so without this each small message could wait on a delayed ACK
+		sendingSocket.setTcpNoDelay(true);
+		loopbackWriter = ServerClientCommon.getSocketMessageWriter(sendingSocket, null);
+		loopbackReader = ServerClientCommon.getSocketBufferedReader(readingSocket, null);
+	}
+
+	public void sendInMemory()
+	{
+		ServerClientCommon.sendMessageToWriter(message, discardingWriter, null);
+	}
+
+	public String readInMemory()
+	{
+		return ServerClientCommon.readFromSocket(repeatingReader, null);
+	}
+
+	public String roundTripLoopback()
+	{
+		ServerClientCommon.sendMessageToWriter(message, loopbackWriter, null);
+		return ServerClientCommon.readFromSocket(loopbackReader, null);
+	}
+
+	public void close() throws IOException
+	{
+		sendingSocket.close();
+		readingSocket.close();
+	}
+}
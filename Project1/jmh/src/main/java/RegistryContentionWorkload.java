@@ -0,0 +1,214 @@
+/**
+ * The RegistryContentionBenchmark's use of the ParticipantRegistry and ChatParticipant
+ * pairing, and of the single server-wide lock they replaced.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import chatbench.RegistryContentionBenchmark;
+
+public class RegistryContentionWorkload implements RegistryContentionBenchmark.Workload {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The number of clients each thread owns.
+	 */
+	private static final int CLIENTS_PER_THREAD = 64;
+
+	/**
+	 * One version of the shared client data.
+	 */
+	private interface SharedClientData
+	{
+		/**
+		 * @param name The name to give the client
+		 * @param client A client with no name yet
+		 */
+		void claim(String name, ChatParticipant client);
+
+		/**
+		 * @param client The client to rename
+		 * @param newName Its new name
+		 */
+		void rename(ChatParticipant client, String newName);
+
+		/**
+		 * Pair two listening clients, then put them both back into listen mode.
+		 * @param first One client
+		 * @param second The other
+		 */
+		void pairAndUnpair(ChatParticipant first, ChatParticipant second);
+
+		/**
+		 * @param name A name
+		 * @return The client with that name, or null
+		 */
+		ChatParticipant lookup(String name);
+	}
+
+	/**
+	 * The way the server worked before: one ReentrantLock around everything.
+	 */
+	private static final class GlobalLock implements SharedClientData
+	{
+		private final Hashtable<String, ChatParticipant> nameToParticipant = new Hashtable<>();
+		private final Hashtable<ChatParticipant, ChatParticipant> participantToPeer = new Hashtable<>();
+		private final ReentrantLock criticalServerDataLock = new ReentrantLock();
+
+		public void claim(String name, ChatParticipant client)
+		{
+			criticalServerDataLock.lock();
+			try
+			{
+				client.setName(name);
+				nameToParticipant.put(name, client);
+			}
+			finally
+			{
+				criticalServerDataLock.unlock();
+			}
+		}
+
+		public void rename(ChatParticipant client, String newName)
+		{
+			criticalServerDataLock.lock();
+			try
+			{
+				if (!nameToParticipant.containsKey(newName))
+				{
+					nameToParticipant.remove(client.getName());
+					client.setName(newName);
+					nameToParticipant.put(newName, client);
+				}
+			}
+			finally
+			{
+				criticalServerDataLock.unlock();
+			}
+		}
+
+		public void pairAndUnpair(ChatParticipant first, ChatParticipant second)
+		{
+			criticalServerDataLock.lock();
+			try
+			{
+				participantToPeer.put(first, second);
+				participantToPeer.put(second, first);
+				participantToPeer.remove(first);
+				participantToPeer.remove(second);
+			}
+			finally
+			{
+				criticalServerDataLock.unlock();
+			}
+		}
+
+		public ChatParticipant lookup(String name)
+		{
+			return nameToParticipant.get(name);
+		}
+	}
+
+	/**
+	 * The server's current registry, with pairing done by ChatParticipant itself.
+	 */
+	private static final class Registry implements SharedClientData
+	{
+		private final ParticipantRegistry<Object> registry = new ParticipantRegistry<>();
+
+		public void claim(String name, ChatParticipant client)
+		{
+			registry.claimName(name, client);
+		}
+
+		public void rename(ChatParticipant client, String newName)
+		{
+			registry.rename(client, newName);
+		}
+
+		public void pairAndUnpair(ChatParticipant first, ChatParticipant second)
+		{
+			ChatParticipant.pair(first, second);
+			first.endPairing();
+		}
+
+		public ChatParticipant lookup(String name)
+		{
+			return registry.getParticipant(name);
+		}
+	}
+
+	/**
+	 * The clients one thread owns, and where it is in its round of operations.
+	 */
+	private static final class ThreadClients
+	{
+		/**
+		 * Makes the thread's names unique.
+		 */
+		private final int threadIndex;
+
+		/**
+		 * The clients.
+		 */
+		private final ChatParticipant[] owned = new ChatParticipant[CLIENTS_PER_THREAD];
+
+		/**
+		 * The number of steps taken, which picks the clients for the next step and their new names.
+		 */
+		private int stepCount = 0;
+
+		/**
+		 * @param threadIndex Makes the thread's names unique
+		 */
+		ThreadClients(int threadIndex)
+		{
+			this.threadIndex = threadIndex;
+		}
+	}
+
+	/**
+	 * The version being measured.
+	 */
+	private SharedClientData data;
+
+	/**
+	 * The index given to the next thread.
+	 */
+	private final AtomicInteger nextThreadIndex = new AtomicInteger();
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	public void open(String implementation)
+	{
+		data = "globalLock".equals(implementation) ? new GlobalLock() : new Registry();
+	}
+
+	public Object connectThreadClients()
+	{
+		ThreadClients clients = new ThreadClients(nextThreadIndex.getAndIncrement());
+		for (int i = 0; i < CLIENTS_PER_THREAD; ++i)
+		{
+			clients.owned[i] = new ChatParticipant(null);
+			data.claim("T" + clients.threadIndex + "_" + i, clients.owned[i]);
+		}
+		return clients;
+	}
+
+	public Object step(Object threadClients)
+	{
+		ThreadClients clients = (ThreadClients) threadClients;
+		ChatParticipant[] owned = clients.owned;
+		int i = Math.floorMod(clients.stepCount++, CLIENTS_PER_THREAD);
+		data.rename(owned[i], "T" + clients.threadIndex + "_" + i + "_" + clients.stepCount);
+		data.pairAndUnpair(owned[i], owned[(i + 1) % CLIENTS_PER_THREAD]);
+		return data.lookup(owned[(i + 2) % CLIENTS_PER_THREAD].getName());
+	}
+}
@@ -0,0 +1,42 @@
+package chatbench;
+
+import java.util.Arrays;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks with JMH's usual command line, ex: "java -jar benchmarks.jar MessageIo".
+ * Unless a profiler is chosen with "-prof", the GC profiler is added, so every result comes
+ * with the bytes allocated per operation and the time spent collecting garbage.
+ * @author Bennett Sherman, bms113
+ */
+public final class BenchmarkMain {
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Private constructor, since this class only has static functions.
+	 */
+	private BenchmarkMain()
+	{
+	}
+
+	/**
+	 * @param args JMH's command line options
+	 * @throws Exception If JMH fails
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if (Arrays.asList(args).contains("-prof"))
+		{
+			Main.main(args);
+			return;
+		}
+		String[] withGcProfiler = Arrays.copyOf(args, args.length + 2);
+		withGcProfiler[args.length] = "-prof";
+		withGcProfiler[args.length + 1] = "gc";
+		Main.main(withGcProfiler);
+	}
+}
@@ -0,0 +1,105 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many messages per second one publisher can get to every subscriber
+ * as the number of subscribers grows. Each operation publishes a burst of messages,
+ * then every subscriber's writer takes what it hasn't read yet. "ring" is a
+ * BroadcastChannel, which stores each message once and gives each subscriber a cursor;
+ * "queues" queues every message on every subscriber's OutboundQueue, the way room
+ * messages and relays are sent. Run with "-prof gc" to compare what each allocates.
+ * @author Bennett Sherman, bms113
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The number of messages published before the subscribers read them.
+	 */
+	static final int BURST = 16;
+
+	/**
+	 * What the benchmark needs from the server's classes. Implemented by BroadcastWorkload.
+	 */
+	public interface Workload
+	{
+		/**
+		 * @param delivery "ring" or "queues"
+		 * @param subscriberCount The number of subscribers
+		 * @param messageLength The number of characters in each message
+		 */
+		void open(String delivery, int subscriberCount, int messageLength);
+
+		/**
+		 * Publish messages, then have every subscriber read them.
+		 * @param messageCount The number of messages to publish
+		 * @return The number of messages the subscribers read, in total
+		 */
+		long publishAndRead(int messageCount);
+	}
+
+	/**
+	 * How the messages get to the subscribers.
+	 */
+	@Param({ "ring", "queues" })
+	public String delivery;
+
+	/**
+	 * The number of subscribers.
+	 */
+	@Param({ "10", "1000", "10000" })
+	public int subscriberCount;
+
+	/**
+	 * The workload, using the server's classes.
+	 */
+	private Workload workload;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Create the publisher and subscribers.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		workload = Workloads.create("BroadcastWorkload", Workload.class);
+		workload.open(delivery, subscriberCount, 64);
+	}
+
+	/**
+	 * @return The number of messages the subscribers read
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public long publishAndRead()
+	{
+		return workload.publishAndRead(BURST);
+	}
+}
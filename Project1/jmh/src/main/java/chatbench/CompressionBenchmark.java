@@ -0,0 +1,157 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what compressing long lines costs in CPU and saves in bandwidth. Each operation
+ * sends one line the way a connection that agreed to compress does: the sender's Compressor
+ * compresses it and the receiver's Decompressor turns it back into the line, both keeping
+ * their state from line to line. "none" sends the line as it is. The score is lines per
+ * second; the "lineBytes" and "wireBytes" counters are the bytes per second before and
+ * after compression, so wireBytes / lineBytes is the fraction of the bandwidth still used.
+ * The payloads are chat text, pasted log lines, and random Base64, which barely compresses.
+ * @author Bennett Sherman, bms113
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * What the benchmark needs from the server's classes. Implemented by CompressionWorkload.
+	 */
+	public interface Workload
+	{
+		/**
+		 * @param compression "none", or the deflate level
+		 * @param payload "chat", "log" or "random"
+		 * @param lineLength The number of characters in each line
+		 */
+		void open(String compression, String payload, int lineLength);
+
+		/**
+		 * Send the next line through the compressor and decompressor.
+		 * @return The number of bytes it took on the wire, including the newline
+		 */
+		int sendLine();
+
+		/**
+		 * @return The number of bytes in each line, including the newline
+		 */
+		int lineBytes();
+
+		/**
+		 * Release the compressor and decompressor.
+		 */
+		void close();
+	}
+
+	/**
+	 * The bytes sent, before and after compression. Reported per second, like the score.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bandwidth
+	{
+		/**
+		 * The bytes of the lines sent, as they'd be without compression.
+		 */
+		public long lineBytes;
+
+		/**
+		 * The bytes that went on the wire.
+		 */
+		public long wireBytes;
+
+		/**
+		 * Start counting again for each iteration.
+		 */
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			lineBytes = 0;
+			wireBytes = 0;
+		}
+	}
+
+	/**
+	 * "none", or the deflate level: 1 is the fastest, 9 the smallest, 6 zlib's default.
+	 */
+	@Param({ "none", "1", "6", "9" })
+	public String compression;
+
+	/**
+	 * What the lines hold.
+	 */
+	@Param({ "chat", "log", "random" })
+	public String payload;
+
+	/**
+	 * The number of characters in each line.
+	 */
+	@Param({ "512", "8192" })
+	public int lineLength;
+
+	/**
+	 * The workload, using the server's classes.
+	 */
+	private Workload workload;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Create the lines, compressor and decompressor.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		workload = Workloads.create("CompressionWorkload", Workload.class);
+		workload.open(compression, payload, lineLength);
+	}
+
+	/**
+	 * Release the compressor and decompressor.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		workload.close();
+	}
+
+	/**
+	 * @param bandwidth Counts the bytes before and after compression
+	 * @return The bytes the line took on the wire
+	 */
+	@Benchmark
+	public int sendLine(Bandwidth bandwidth)
+	{
+		int wireBytes = workload.sendLine();
+		bandwidth.lineBytes += workload.lineBytes();
+		bandwidth.wireBytes += wireBytes;
+		return wireBytes;
+	}
+}
@@ -0,0 +1,93 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long the server takes to recognise a line as a control message and pick
+ * its command, which is what ChatServer's handleControlMessage() does before any handler runs.
+ * The handlers only take a copy of their argument, as the name-setting ones do.
+ * @author Bennett Sherman, bms113
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlParsingBenchmark {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * What the benchmark needs from the server's classes. Implemented by ControlParsingWorkload.
+	 */
+	public interface Workload
+	{
+		/**
+		 * @param command A command and its argument, ex: "SET MY NAME=Bennett"
+		 * @return The whole line a client would send for it
+		 */
+		String controlLine(String command);
+
+		/**
+		 * Check that a line is a control message and run the handler of its command.
+		 * @param line A line from a client
+		 * @return The handler's result
+		 */
+		boolean dispatch(String line);
+	}
+
+	/**
+	 * The command sent, with its argument. The last one isn't a command at all.
+	 */
+	@Param({ "SET MY NAME=Bennett", "GET CONNECTED CLIENT NAMES PAGE=2,BEN", "GET MY PEER'S NAME", "NOT A COMMAND" })
+	public String command;
+
+	/**
+	 * The workload, using the server's classes.
+	 */
+	private Workload workload;
+
+	/**
+	 * The line dispatched.
+	 */
+	private String line;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Create the parser and the line.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		workload = Workloads.create("ControlParsingWorkload", Workload.class);
+		line = workload.controlLine(command);
+	}
+
+	/**
+	 * @return The handler's result
+	 */
+	@Benchmark
+	public boolean dispatch()
+	{
+		return workload.dispatch(line);
+	}
+}
@@ -0,0 +1,119 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures giving a newly connected client a default name, the way ChatServer's
+ * assignClientDefaultName() does, while clients keep connecting and disconnecting.
+ * Each operation disconnects one of the thread's clients, freeing its default name,
+ * and connects a new one in its place. Run with "-t" to churn from several threads at once.
+ * @author Bennett Sherman, bms113
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DefaultNameBenchmark {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * What the benchmark needs from the server's classes. Implemented by DefaultNameWorkload.
+	 */
+	public interface Workload
+	{
+		/**
+		 * Connect a thread's share of the clients.
+		 * @param clientCount The number of clients the thread keeps connected
+		 * @param seed Picks which client disconnects next
+		 * @return The thread's clients, passed back to churn()
+		 */
+		Object connectClients(int clientCount, long seed);
+
+		/**
+		 * Disconnect one of the thread's clients and connect a new one.
+		 * @param clients The thread's clients, from connectClients()
+		 * @return The new client's default name
+		 */
+		String churn(Object clients);
+	}
+
+	/**
+	 * The registry and allocator every thread shares.
+	 */
+	@State(Scope.Benchmark)
+	public static class Server
+	{
+		/**
+		 * The workload, using the server's classes.
+		 */
+		Workload workload;
+
+		/**
+		 * Create the registry and allocator.
+		 */
+		@Setup(Level.Trial)
+		public void setUp()
+		{
+			workload = Workloads.create("DefaultNameWorkload", Workload.class);
+		}
+	}
+
+	/**
+	 * The clients one thread keeps connected.
+	 */
+	@State(Scope.Thread)
+	public static class Clients
+	{
+		/**
+		 * The number of clients each thread keeps connected.
+		 */
+		@Param({ "1000", "10000" })
+		public int connectedPerThread;
+
+		/**
+		 * The clients, from Workload.connectClients().
+		 */
+		Object clients;
+
+		/**
+		 * @param server The shared registry and allocator
+		 */
+		@Setup(Level.Trial)
+		public void setUp(Server server)
+		{
+			clients = server.workload.connectClients(connectedPerThread, System.identityHashCode(this));
+		}
+	}
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * @param server The shared registry and allocator
+	 * @param clients This thread's clients
+	 * @return The new client's default name
+	 */
+	@Benchmark
+	public String churn(Server server, Clients clients)
+	{
+		return server.workload.churn(clients.clients);
+	}
+}
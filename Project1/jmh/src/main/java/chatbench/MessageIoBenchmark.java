@@ -0,0 +1,132 @@
+package chatbench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures sending and reading one message the way the server and client do,
+ * with ServerClientCommon.sendMessageToWriter() and readFromSocket(): in memory,
+ * which is only the encoding, buffering and decoding, and over a loopback socket.
+ * @author Bennett Sherman, bms113
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageIoBenchmark {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * What the benchmark needs from the server's classes. Implemented by MessageIoWorkload.
+	 */
+	public interface Workload
+	{
+		/**
+		 * Set up the streams and the loopback connection.
+		 * @param messageLength The number of characters in each message
+		 * @throws IOException If the loopback connection can't be made
+		 */
+		void open(int messageLength) throws IOException;
+
+		/**
+		 * Send one message to a stream that discards it.
+		 */
+		void sendInMemory();
+
+		/**
+		 * @return One message read from a stream that repeats the same line forever
+		 */
+		String readInMemory();
+
+		/**
+		 * @return One message, after sending it through a loopback socket and reading it from the other end
+		 */
+		String roundTripLoopback();
+
+		/**
+		 * Close the loopback connection.
+		 * @throws IOException If closing fails
+		 */
+		void close() throws IOException;
+	}
+
+	/**
+	 * The number of characters in each message.
+	 */
+	@Param({ "16", "256", "4096" })
+	public int messageLength;
+
+	/**
+	 * The workload, using the server's classes.
+	 */
+	private Workload workload;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * @throws IOException If the loopback connection can't be made
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		workload = Workloads.create("MessageIoWorkload", Workload.class);
+		workload.open(messageLength);
+	}
+
+	/**
+	 * @throws IOException If closing the loopback connection fails
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		workload.close();
+	}
+
+	/**
+	 * Encode and write one message.
+	 */
+	@Benchmark
+	public void sendInMemory()
+	{
+		workload.sendInMemory();
+	}
+
+	/**
+	 * @return One decoded message
+	 */
+	@Benchmark
+	public String readInMemory()
+	{
+		return workload.readInMemory();
+	}
+
+	/**
+	 * @return One message, sent and read over loopback
+	 */
+	@Benchmark
+	public String roundTripLoopback()
+	{
+		return workload.roundTripLoopback();
+	}
+}
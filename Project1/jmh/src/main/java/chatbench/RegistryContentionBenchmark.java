@@ -0,0 +1,162 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures contention on the server's shared client data with 1 to 64 threads: each
+ * operation renames one of the thread's clients, pairs and unpairs two of them, and
+ * looks one up by name. "registry" is the server's ParticipantRegistry and lock-free
+ * pairing; "globalLock" is the single criticalServerDataLock plus synchronized
+ * Hashtables that they replaced, kept to compare against.
+ * @author Bennett Sherman, bms113
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryContentionBenchmark {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * What the benchmark needs from the server's classes. Implemented by RegistryContentionWorkload.
+	 */
+	public interface Workload
+	{
+		/**
+		 * @param implementation "registry" or "globalLock"
+		 */
+		void open(String implementation);
+
+		/**
+		 * Give a thread its own named clients.
+		 * @return The thread's clients, passed back to step()
+		 */
+		Object connectThreadClients();
+
+		/**
+		 * Rename one of the thread's clients, pair and unpair two of them, and look one up.
+		 * @param clients The thread's clients, from connectThreadClients()
+		 * @return The client looked up
+		 */
+		Object step(Object clients);
+	}
+
+	/**
+	 * The shared client data every thread uses.
+	 */
+	@State(Scope.Benchmark)
+	public static class Server
+	{
+		/**
+		 * Which version of the shared client data to measure.
+		 */
+		@Param({ "registry", "globalLock" })
+		public String implementation;
+
+		/**
+		 * The workload, using the server's classes.
+		 */
+		Workload workload;
+
+		/**
+		 * Create the shared client data.
+		 */
+		@Setup(Level.Trial)
+		public void setUp()
+		{
+			workload = Workloads.create("RegistryContentionWorkload", Workload.class);
+			workload.open(implementation);
+		}
+	}
+
+	/**
+	 * The clients one thread owns.
+	 */
+	@State(Scope.Thread)
+	public static class Clients
+	{
+		/**
+		 * The clients, from Workload.connectThreadClients().
+		 */
+		Object clients;
+
+		/**
+		 * @param server The shared client data
+		 */
+		@Setup(Level.Trial)
+		public void setUp(Server server)
+		{
+			clients = server.workload.connectThreadClients();
+		}
+	}
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * @param server The shared client data
+	 * @param clients This thread's clients
+	 * @return The client looked up
+	 */
+	@Benchmark
+	@Threads(1)
+	public Object threads01(Server server, Clients clients)
+	{
+		return server.workload.step(clients.clients);
+	}
+
+	/**
+	 * @param server The shared client data
+	 * @param clients This thread's clients
+	 * @return The client looked up
+	 */
+	@Benchmark
+	@Threads(4)
+	public Object threads04(Server server, Clients clients)
+	{
+		return server.workload.step(clients.clients);
+	}
+
+	/**
+	 * @param server The shared client data
+	 * @param clients This thread's clients
+	 * @return The client looked up
+	 */
+	@Benchmark
+	@Threads(16)
+	public Object threads16(Server server, Clients clients)
+	{
+		return server.workload.step(clients.clients);
+	}
+
+	/**
+	 * @param server The shared client data
+	 * @param clients This thread's clients
+	 * @return The client looked up
+	 */
+	@Benchmark
+	@Threads(64)
+	public Object threads64(Server server, Clients clients)
+	{
+		return server.workload.step(clients.clients);
+	}
+}
@@ -0,0 +1,42 @@
+package chatbench;
+
+/**
+ * Creates the workloads that the benchmarks run. JMH only generates code for benchmarks
+ * in a named package, but the server's classes are all in the default package, which a
+ * named package can't refer to. So each benchmark declares what it needs as a nested
+ * Workload interface, and a class in the default package (ex: MessageIoWorkload)
+ * implements it using the server's classes. Only creating the workload takes reflection;
+ * every call after that is an ordinary interface call.
+ * @author Bennett Sherman, bms113
+ */
+final class Workloads {
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Private constructor, since this class only has static functions.
+	 */
+	private Workloads()
+	{
+	}
+
+	/**
+	 * @param className The name of the workload class, in the default package
+	 * @param type The interface it implements
+	 * @param <T> The interface it implements
+	 * @return A new instance of the workload class
+	 */
+	static <T> T create(String className, Class<T> type)
+	{
+		try
+		{
+			return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+		}
+		catch (ReflectiveOperationException err)
+		{
+			throw new IllegalStateException("The workload " + className + " could not be created", err);
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * A one-to-many channel for announcements: one client publishes, and any number of
+ * clients subscribe. Instead of queueing a copy of each message for every subscriber,
+ * the publisher appends each frame once to a bounded ring, and each subscriber's
+ * writer reads the ring at its own cursor. Memory stays the same however many
+ * clients subscribe, and publishing never waits for a subscriber.
+ * The ring never waits for slow subscribers either: once the publisher has lapped
+ * a subscriber's cursor, the messages it skipped are gone, and the subscriber is
+ * told how many it missed before it carries on with the oldest message still in the ring.
+ * Only the publisher's thread may publish or close the channel; subscribing,
+ * unsubscribing and polling are safe from any thread.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+class BroadcastChannel {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * One message in the ring, with its sequence number. Immutable, so a subscriber that reads
+	 * a slot while the publisher is replacing it sees either the old entry or the new one
+	 * whole, and can tell which by its sequence number.
+	 */
+	private static final class Entry
+	{
+		/**
+		 * The number of messages published before this one.
+		 */
+		private final long sequence;
+
+		/**
+		 * The encoded message.
+		 */
+		private final OutboundFrame frame;
+
+		/**
+		 * Constructor.
+		 * @param sequence The number of messages published before this one
+		 * @param frame The encoded message
+		 */
+		private Entry(long sequence, OutboundFrame frame)
+		{
+			this.sequence = sequence;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * One subscriber's place in the ring. Polled only by that subscriber's writer.
+	 */
+	static final class Subscription
+	{
+		/**
+		 * The channel subscribed to.
+		 */
+		private final BroadcastChannel channel;
+
+		/**
+		 * Wakes the subscriber's writer when there's something new to read.
+		 */
+		private final Runnable wakeWriter;
+
+		/**
+		 * Set when the writer has been woken and cleared by the writer before it reads the ring,
+		 * so a publisher only wakes a writer once however many messages it publishes in the meantime.
+		 */
+		private final AtomicBoolean woken = new AtomicBoolean(false);
+
+		/**
+		 * The sequence number of the next message to read. Only touched by the writer.
+		 */
+		private long nextSequence;
+
+		/**
+		 * Constructor.
+		 * @param channel The channel subscribed to
+		 * @param wakeWriter Wakes the subscriber's writer
+		 * @param nextSequence The sequence number of the first message to read
+		 */
+		private Subscription(BroadcastChannel channel, Runnable wakeWriter, long nextSequence)
+		{
+			this.channel = channel;
+			this.wakeWriter = wakeWriter;
+			this.nextSequence = nextSequence;
+		}
+
+		/**
+		 * @return The channel subscribed to
+		 */
+		BroadcastChannel getChannel()
+		{
+			return channel;
+		}
+
+		/**
+		 * Move up to maxMessages unread messages into batch without waiting. If the publisher
+		 * has lapped this subscription, a notice saying how many messages were missed is added first.
+		 * @param batch Receives the messages, oldest first
+		 * @param maxMessages The most messages to take, not counting a missed-messages notice
+		 * @return The number of messages missed, or 0
+		 */
+		long poll(List<OutboundFrame> batch, int maxMessages)
+		{
+			// Clear the flag before reading, so a message published from here on wakes the writer again
+			woken.set(false);
+			long published = channel.publishedCount.get();
+			long missed = 0;
+			int firstAdded = batch.size();
+			int taken = 0;
+			while (taken < maxMessages && nextSequence < published)
+			{
+				Entry entry = channel.ring[(int) nextSequence & channel.mask];
+				if (entry.sequence != nextSequence)
+				{
+					// The publisher has lapped this subscription. Skip to the oldest message still in the ring.
+					published = Math.max(channel.publishedCount.get(), entry.sequence + 1);
+					long oldestKept = published - channel.ring.length;
+					missed += oldestKept - nextSequence;
+					nextSequence = oldestKept;
+					continue;
+				}
+				batch.add(entry.frame);
+				++nextSequence;
+				++taken;
+			}
+
+			if (missed > 0)
+			{
+				batch.add(firstAdded, OutboundFrame.encode("SVR: You missed " + missed + " message(s) on channel \""
+						+ channel.name + "\" because you were reading them too slowly."));
+			}
+			return missed;
+		}
+
+		/**
+		 * @return true if there are messages this subscription hasn't read yet
+		 */
+		boolean hasUnread()
+		{
+			return channel.publishedCount.get() != nextSequence;
+		}
+
+		/**
+		 * @return true if the channel has been closed and every message in it has been read
+		 */
+		boolean isFinished()
+		{
+			return channel.closed && !hasUnread();
+		}
+
+		/**
+		 * Wake the writer, unless it has already been woken and hasn't read the ring since.
+		 */
+		private void wake()
+		{
+			if (!woken.get() && woken.compareAndSet(false, true))
+			{
+				wakeWriter.run();
+			}
+		}
+	}
+
+	/**
+	 * The channel's name.
+	 */
+	private final String name;
+
+	/**
+	 * The only client that may publish to the channel.
+	 */
+	private final ChatParticipant publisher;
+
+	/**
+	 * The most recent messages. The message with sequence number n is at n & mask, and
+	 * stays there until the publisher laps it. Its length is a power of two.
+	 */
+	private final Entry[] ring;
+
+	/**
+	 * ring.length - 1, to turn a sequence number into an index.
+	 */
+	private final int mask;
+
+	/**
+	 * The number of messages ever published. Written only by the publisher, after the
+	 * message is in the ring, so a subscriber that reads n here will find every message
+	 * before n in the ring unless the publisher has since lapped it.
+	 */
+	private final AtomicLong publishedCount = new AtomicLong();
+
+	/**
+	 * Every subscription, woken after each message is published.
+	 */
+	private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Set once the publisher has closed the channel. No more messages are published after that.
+	 */
+	private volatile boolean closed = false;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param name The channel's name
+	 * @param publisher The only client that may publish to the channel
+	 * @param capacity The most messages a subscriber can fall behind by before it misses some. Rounded up to a power of two.
+	 */
+	BroadcastChannel(String name, ChatParticipant publisher, int capacity)
+	{
+		int roundedCapacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.name = name;
+		this.publisher = publisher;
+		this.ring = new Entry[roundedCapacity];
+		this.mask = roundedCapacity - 1;
+	}
+
+	/**
+	 * @return The channel's name
+	 */
+	String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return The only client that may publish to the channel
+	 */
+	ChatParticipant getPublisher()
+	{
+		return publisher;
+	}
+
+	/**
+	 * @return The number of subscribers
+	 */
+	int getSubscriberCount()
+	{
+		return subscriptions.size();
+	}
+
+	/**
+	 * Start reading the channel from the next message published.
+	 * @param wakeWriter Wakes the subscriber's writer when there's something new to read
+	 * @return The subscription, or null if the channel has been closed
+	 */
+	Subscription subscribe(Runnable wakeWriter)
+	{
+		Subscription subscription = new Subscription(this, wakeWriter, publishedCount.get());
+		subscriptions.add(subscription);
+		// If the channel closed in the meantime, close() may not have seen this subscription
+		if (closed)
+		{
+			subscriptions.remove(subscription);
+			return null;
+		}
+		return subscription;
+	}
+
+	/**
+	 * Stop waking a subscription. Its writer should stop polling it.
+	 * @param subscription A subscription to this channel
+	 */
+	void unsubscribe(Subscription subscription)
+	{
+		subscriptions.remove(subscription);
+	}
+
+	/**
+	 * Append a message to the ring and wake every subscriber's writer. Only the publisher's thread may call this.
+	 * @param frame The encoded message
+	 */
+	void publish(OutboundFrame frame)
+	{
+		long sequence = publishedCount.get();
+		ring[(int) sequence & mask] = new Entry(sequence, frame);
+		publishedCount.set(sequence + 1);
+		for (Subscription subscription : subscriptions)
+		{
+			subscription.wake();
+		}
+	}
+
+	/**
+	 * Publish a last message and close the channel. Each subscription is finished once it
+	 * has read the last message. Only the publisher's thread may call this.
+	 * @param lastFrame The last message, ex: a notice that the channel has closed
+	 */
+	void close(OutboundFrame lastFrame)
+	{
+		long sequence = publishedCount.get();
+		ring[(int) sequence & mask] = new Entry(sequence, lastFrame);
+		closed = true;
+		publishedCount.set(sequence + 1);
+		for (Subscription subscription : subscriptions)
+		{
+			subscription.wake();
+		}
+		subscriptions.clear();
+	}
+}
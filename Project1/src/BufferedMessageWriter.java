@@ -0,0 +1,229 @@
+/**
+ * Writes protocol lines to a socket's OutputStream. Each message is encoded,
+ * along with its newline, into a reusable buffer and handed to the socket in a
+ * single write, instead of DataOutputStream.writeBytes() writing it a character
+ * at a time. When several threads send to the same socket at once (ex: a client
+ * receiving a burst of messages from its peer and the server), whichever thread
+ * is writing also picks up every message queued behind it and writes them all
+ * together.
+ * The bytes on the wire are identical to those DataOutputStream.writeBytes() produced:
+ * the low eight bits of each character, followed by '\n', unless the connection has
+ * agreed to compress long lines, in which case they're compressed as they're encoded.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+class BufferedMessageWriter {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The starting size of the reusable buffer. It grows to fit the largest batch written.
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	/**
+	 * The stream that messages are written to, typically a socket's.
+	 */
+	private final OutputStream out;
+
+	/**
+	 * Messages waiting to be written by whichever thread holds writeLock.
+	 */
+	private final ConcurrentLinkedQueue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Held by the one thread currently encoding into buffer and writing to out.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * Messages are encoded into this buffer before being written. Only touched while holding writeLock.
+	 */
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+	/**
+	 * Compresses long messages sent with sendMessage(), or null to send them as they are.
+	 * Only used while holding writeLock, so messages are compressed in the order they're written.
+	 */
+	private volatile LineCompression.Compressor compressor = null;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param out The stream to write messages to
+	 */
+	BufferedMessageWriter(OutputStream out)
+	{
+		this.out = out;
+	}
+
+	/**
+	 * Compress long messages sent with sendMessage() from now on.
+	 * @param compressor The connection's compressor
+	 */
+	void setCompressor(LineCompression.Compressor compressor)
+	{
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Stop compressing and release the compressor's memory. Waits for any write in progress.
+	 */
+	void endCompression()
+	{
+		writeLock.lock();
+		try
+		{
+			if (compressor != null)
+			{
+				compressor.end();
+				compressor = null;
+			}
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Send a message, followed by a newline. If another thread is in the middle of writing
+	 * to this stream, the message is queued and that thread writes it along with its own
+	 * batch, so this call doesn't wait for the socket. Messages sent by one thread are
+	 * always written in the order they were sent.
+	 * @param msgToSend The message to send
+	 * @throws IOException If writing to the stream fails. Only thrown to the thread doing the writing.
+	 */
+	void sendMessage(String msgToSend) throws IOException
+	{
+		pendingMessages.add(msgToSend);
+
+		// Keep going while there's something queued and nobody else is writing it.
+		// Checking again after unlocking catches messages queued by threads which
+		// failed to get the lock just before it was released.
+		while (!pendingMessages.isEmpty() && writeLock.tryLock())
+		{
+			try
+			{
+				writePendingMessages();
+			}
+			finally
+			{
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Write a batch of already encoded messages with a single call.
+	 * For whichever thread is writing a connection's queued messages, which already has them in hand.
+	 * @param batch The frames to send, in order
+	 * @return The number of bytes written
+	 * @throws IOException If writing to the stream fails
+	 */
+	int writeFrames(List<OutboundFrame> batch) throws IOException
+	{
+		writeLock.lock();
+		try
+		{
+			int length = 0;
+			for (OutboundFrame frame : batch)
+			{
+				length += frame.length();
+			}
+			if (length > buffer.length)
+			{
+				buffer = new byte[Math.max(length, buffer.length * 2)];
+			}
+			int offset = 0;
+			for (OutboundFrame frame : batch)
+			{
+				offset = frame.copyTo(buffer, offset);
+			}
+			out.write(buffer, 0, length);
+			out.flush();
+			return length;
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Encode everything queued into the buffer and write it with a single call.
+	 * Must hold writeLock.
+	 * @throws IOException If writing to the stream fails
+	 */
+	private void writePendingMessages() throws IOException
+	{
+		int length = 0;
+		String nextMessage;
+		while ((nextMessage = pendingMessages.poll()) != null)
+		{
+			length = encode(nextMessage, length);
+		}
+		out.write(buffer, 0, length);
+		out.flush();
+	}
+
+	/**
+	 * Append a message and its newline to the buffer, growing it if needed.
+	 * @param msgToSend The message to encode
+	 * @param offset Where in the buffer to encode it
+	 * @return The offset just past the encoded newline
+	 */
+	private int encode(String msgToSend, int offset)
+	{
+		int required = offset + msgToSend.length() + 1;
+		if (required > buffer.length)
+		{
+			buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+		}
+		int end = encodeInto(msgToSend, buffer, offset);
+		if (compressor == null || !compressor.shouldCompress(buffer, offset, msgToSend.length()))
+		{
+			return end;
+		}
+
+		// Replace the encoded message with its compressed form
+		byte[] compressed = compressor.compress(buffer, offset, msgToSend.length());
+		required = offset + compressed.length + 1;
+		if (required > buffer.length)
+		{
+			buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+		}
+		System.arraycopy(compressed, 0, buffer, offset, compressed.length);
+		buffer[offset + compressed.length] = '\n';
+		return required;
+	}
+
+	/**
+	 * Encode a message and its newline the same way DataOutputStream.writeBytes() would.
+	 * @param msgToSend The message to encode
+	 * @param destination Where to encode it. Must have room for msgToSend.length() + 1 bytes past offset.
+	 * @param offset Where in the destination to start
+	 * @return The offset just past the encoded newline
+	 */
+	static int encodeInto(String msgToSend, byte[] destination, int offset)
+	{
+		int length = msgToSend.length();
+		for (int i = 0; i < length; ++i)
+		{
+			destination[offset++] = (byte) msgToSend.charAt(i);
+		}
+		destination[offset++] = '\n';
+		return offset;
+	}
+}
@@ -6,13 +6,16 @@
  */
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
 
 public class ChatClient extends Thread{
 	
@@ -31,9 +34,9 @@ public class ChatClient extends Thread{
 	private String serverHostname;
 	
 	/**
-	 * A TCP socket used to connect to the server.
+	 * A TCP socket used to connect to the server. Replaced if the client reconnects after a failover.
 	 */
-	private Socket socket;
+	private volatile Socket socket;
 
 	/**
 	 * This will be used to specify thread type. Since we'll have one thread
@@ -52,6 +55,81 @@ public class ChatClient extends Thread{
 	 * The GUI used by this client. Null if in command line interface mode.
 	 */
 	private ChatClientGui assocGui;
+	
+	/**
+	 * Receives what a headless client (no GUI or console, ex: a simulated user) is sent.
+	 * Implemented by whatever drives the client, ex: a load generator.
+	 */
+	interface ServerMessageListener
+	{
+		/**
+		 * @param msg A line sent by the server
+		 */
+		void messageReceived(String msg);
+		
+		/**
+		 * @param msg An error the client ran into, ex: the server couldn't be reached
+		 */
+		void errorOccurred(String msg);
+		
+		/**
+		 * The connection to the server has closed.
+		 */
+		void connectionBroken();
+	}
+	
+	/**
+	 * Receives everything from the server when this client is headless. Null otherwise.
+	 */
+	private ServerMessageListener listener;
+	
+	/**
+	 * Sends to the server. Shared by every thread that sends, so lines are
+	 * compressed in the order they're written. Set once connected, and again if the client reconnects.
+	 */
+	private volatile BufferedMessageWriter outToServer;
+	
+	/**
+	 * Set if this client should ask the server to compress long lines.
+	 */
+	private boolean compressionWanted = false;
+	
+	/**
+	 * Set once this client has asked the server to compress. Only used by the server monitoring thread.
+	 */
+	private boolean compressionRequested = false;
+	
+	/**
+	 * Decompresses the server's compressed lines once the server has agreed to compress, null until then.
+	 * Only used by the server monitoring thread.
+	 */
+	private LineCompression.Decompressor decompressor = null;
+	
+	/**
+	 * The servers to reconnect to, in order, if the connection breaks. Empty unless failover was asked for.
+	 */
+	private final List<InetSocketAddress> failoverServers = new ArrayList<>();
+	
+	/**
+	 * What this client resumes its session with after reconnecting, or null if it doesn't know yet.
+	 * Only used by the server monitoring thread.
+	 */
+	private String sessionToken = null;
+	
+	/**
+	 * Set once the user has asked to leave, so that the closed connection isn't reconnected.
+	 */
+	private volatile boolean leaving = false;
+	
+	/**
+	 * How long to keep trying the failover servers after the connection breaks.
+	 */
+	private static final long FAILOVER_TIMEOUT_MILLIS = 30000;
+	
+	/**
+	 * How long to wait after every failover server has been tried before trying them again.
+	 */
+	private static final long FAILOVER_RETRY_MILLIS = 500;
 		
 	///////////////////
 	// FUNCTIONS	 //
@@ -86,6 +164,20 @@ public class ChatClient extends Thread{
 		this.assocGui = null;
 	}
 	
+	/**
+	 * Constructor for a headless client, which is driven by code rather than a user:
+	 * it is started with startHeadless(), sent messages with sendMessageToServer(),
+	 * and hands everything it receives to the listener.
+	 * @param serverHostname Server's hostname
+	 * @param portNumber Server socket's port number
+	 * @param listener Receives what the server sends and any errors
+	 */
+	ChatClient(String serverHostname, int portNumber, ServerMessageListener listener)
+	{
+		this(serverHostname, portNumber);
+		this.listener = listener;
+	}
+	
 	/**
 	 * This function creates a PipedInputStream and connects it to the PipedOutputStream
 	 * parameter. It then uses this input stream to initialize this classes' userInputReader
@@ -124,6 +216,7 @@ public class ChatClient extends Thread{
 		{
 			return;
 		}
+		outToServer = ServerClientCommon.getSocketMessageWriter(socket, this);
 		
 		Thread userInThread = new ConnectedClientThread(ThreadPurpose.USER_INPUT, this);
 		Thread serverMonitorThread = new ConnectedClientThread(ThreadPurpose.SERVER_MONITOR, this);
@@ -147,6 +240,166 @@ public class ChatClient extends Thread{
 		ServerClientCommon.closeSocket(socket, this);
 	}
 	
+	/**
+	 * Starts a headless client: connects to the server and starts the thread that hands
+	 * what the server sends to the listener. There is no user input thread; messages are
+	 * sent with sendMessageToServer() instead. The thread is a daemon, so simulated users
+	 * never keep the JVM running.
+	 * @return true if the server was reached, false otherwise
+	 */
+	boolean startHeadless()
+	{
+		if (!connectToSocket(serverHostname, portNumber))
+		{
+			return false;
+		}
+		outToServer = ServerClientCommon.getSocketMessageWriter(socket, this);
+		Thread serverMonitorThread = new ConnectedClientThread(ThreadPurpose.SERVER_MONITOR, this);
+		serverMonitorThread.setDaemon(true);
+		serverMonitorThread.start();
+		return true;
+	}
+	
+	/**
+	 * Send a message to the server from a headless client. May be called from any thread.
+	 * @param msgToSend The message, without a line terminator
+	 */
+	void sendMessageToServer(String msgToSend)
+	{
+		ServerClientCommon.sendMessageToWriter(msgToSend, outToServer, this);
+	}
+	
+	/**
+	 * Ask the server, once it has welcomed this client, to compress long lines in both directions.
+	 * If it agrees, this client compresses its own long lines too. Must be called before the client is started.
+	 */
+	void requestCompression()
+	{
+		compressionWanted = true;
+	}
+	
+	/**
+	 * If the connection breaks, reconnect to this server and resume the client's session there: the client
+	 * gets back its name, and its peer once that client has resumed too. The servers are tried in the order
+	 * they were added. Must be called before the client is started.
+	 * @param hostname The server's hostname, ex: the server's standby, or the server itself in case it's back
+	 * @param portNumber The server's port
+	 */
+	void addFailoverServer(String hostname, int portNumber)
+	{
+		failoverServers.add(InetSocketAddress.createUnresolved(hostname, portNumber));
+	}
+	
+	/**
+	 * After the connection breaks, try the failover servers until one of them answers, then
+	 * resume this client's session there. Only called by the server monitoring thread.
+	 * @return true if the client is connected again
+	 */
+	private boolean reconnectAfterFailure()
+	{
+		if (failoverServers.isEmpty() || sessionToken == null || leaving)
+		{
+			return false;
+		}
+		displayMessage("\nThe connection to the server has broken. Reconnecting...");
+		long deadline = System.currentTimeMillis() + FAILOVER_TIMEOUT_MILLIS;
+		while (System.currentTimeMillis() < deadline && !leaving)
+		{
+			for (InetSocketAddress server : failoverServers)
+			{
+				Socket newSocket;
+				try
+				{
+					newSocket = new Socket(server.getHostString(), server.getPort());
+				}
+				catch (IOException err)
+				{
+					// Not up (yet); try the next one
+					continue;
+				}
+				// The new connection starts uncompressed, like any other
+				decompressor = null;
+				compressionRequested = false;
+				socket = newSocket;
+				outToServer = ServerClientCommon.getSocketMessageWriter(newSocket, this);
+				displayMessage("Reconnected to " + server.getHostString() + ":" + server.getPort());
+				sendMessageToServer(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + ServerClientCommon.RESUME_SESSION + sessionToken);
+				return true;
+			}
+			try
+			{
+				Thread.sleep(FAILOVER_RETRY_MILLIS);
+			}
+			catch (InterruptedException err)
+			{
+				return false;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Handle a line from the server that's part of agreeing to compress, and decompress compressed lines.
+	 * Only called by the server monitoring thread.
+	 * @param msg A line as the server sent it
+	 * @return The line as it should be shown, or null if it couldn't be decompressed, in which
+	 * 		   case the connection is closed since nothing after it can be decompressed either
+	 */
+	private String handleCompression(String msg)
+	{
+		// Ask once the server has said hello, so every line before the server's reply is uncompressed
+		if (compressionWanted && !compressionRequested && msg.startsWith(ServerClientCommon.WELCOME_MESSAGE))
+		{
+			compressionRequested = true;
+			sendMessageToServer(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + ServerClientCommon.ENABLE_COMPRESSION + LineCompression.DEFLATE);
+		}
+		// The user may have asked by typing the control message, so the reply is honoured either way
+		else if (decompressor == null && msg.equals(ServerClientCommon.COMPRESSION_ENABLED + LineCompression.DEFLATE))
+		{
+			decompressor = new LineCompression.Decompressor();
+			outToServer.setCompressor(new LineCompression.Compressor(LineCompression.DEFAULT_THRESHOLD, LineCompression.DEFAULT_LEVEL));
+		}
+		else if (decompressor != null && LineCompression.Decompressor.isCompressed(msg))
+		{
+			try
+			{
+				return decompressor.decompress(msg);
+			}
+			catch (DataFormatException err)
+			{
+				displayExceptionMessage("A compressed message from the server could not be read. Disconnecting", err);
+				ServerClientCommon.closeSocket(socket, this);
+				return null;
+			}
+		}
+		return msg;
+	}
+	
+	/**
+	 * Release the memory used for compression, once the connection has ended.
+	 * Only called by the server monitoring thread.
+	 */
+	private void endCompression()
+	{
+		if (decompressor != null)
+		{
+			decompressor.end();
+		}
+		if (outToServer != null)
+		{
+			outToServer.endCompression();
+		}
+	}
+	
+	/**
+	 * Close a headless client's connection without saying goodbye to the server,
+	 * as if the client had crashed. The listener is told the connection broke.
+	 */
+	void closeHeadless()
+	{
+		ServerClientCommon.closeSocket(socket, this);
+	}
+	
 	/**
 	 * Updates this class's socket member, which includes connecting to the server.
 	 * @param hostname The hostname of the server to connect to
@@ -181,7 +434,11 @@ public class ChatClient extends Thread{
 	 */
 	void displayExceptionMessage(String msg, Exception err)
 	{
-		if (assocGui == null)
+		if (listener != null)
+		{
+			listener.errorOccurred(msg + ": " + err);
+		}
+		else if (assocGui == null)
 		{
 			ServerClientCommon.printExceptionMsgToConsole(msg, err);
 		}
@@ -198,7 +455,11 @@ public class ChatClient extends Thread{
 	 */
 	void displayErrorMessage(String msg)
 	{
-		if (assocGui == null)
+		if (listener != null)
+		{
+			listener.errorOccurred(msg);
+		}
+		else if (assocGui == null)
 		{
 			System.err.println(msg);
 		}
@@ -220,6 +481,10 @@ public class ChatClient extends Thread{
 		{
 			assocGui.displayTextInHistoryWindow(msg);
 		}
+		else if (listener != null)
+		{
+			listener.messageReceived(msg);
+		}
 		else
 		{
 			System.out.println(msg);
@@ -258,11 +523,6 @@ public class ChatClient extends Thread{
 		 */
 		private BufferedReader inFromServer = null;
 		
-		/**
-		 * Data is sent to the server through this DataOutputStream.
-		 */
-		private DataOutputStream outToServer = null;
-		
 		/**
 		 * The ChatClient that created this thread.
 		 */
@@ -324,6 +584,7 @@ public class ChatClient extends Thread{
 				else if (currentLine.startsWith(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER) && currentLine.contains(ServerClientCommon.DISCONNECT_FROM_SERVER))
 				{
 					// Tell the server the client wants to leave.
+					leaving = true;
 					sendMessageToServer(currentLine);
 					
 					// Stop waiting for user input after this loop run
@@ -350,7 +611,20 @@ public class ChatClient extends Thread{
 				// A null message indicates that the connection was broken
 				if (newMsgFromSocket == null)
 				{
-					displayMessage("\nThe connection to the server has broken. Chat ended");
+					endCompression();
+					if (reconnectAfterFailure())
+					{
+						inFromServer = ServerClientCommon.getSocketBufferedReader(socket, parent);
+						continue;
+					}
+					if (listener != null)
+					{
+						listener.connectionBroken();
+					}
+					else
+					{
+						displayMessage("\nThe connection to the server has broken. Chat ended");
+					}
 					shouldContinue = false;
 					// If the server breaks the connection to the client without the client having requested it,
 					// the user input thread is unaware of the fact that the connection has dropped.
@@ -361,6 +635,27 @@ public class ChatClient extends Thread{
 					}
 					continue;
 				}
+				newMsgFromSocket = handleCompression(newMsgFromSocket);
+				if (newMsgFromSocket == null)
+				{
+					continue;
+				}
+				// Learn the session token without showing it, so the session can be resumed after a failover
+				if (!failoverServers.isEmpty() && newMsgFromSocket.startsWith(ServerClientCommon.WELCOME_MESSAGE))
+				{
+					sendMessageToServer(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + ServerClientCommon.GET_SESSION_TOKEN);
+				}
+				else if (!failoverServers.isEmpty() && newMsgFromSocket.startsWith(ServerClientCommon.SESSION_TOKEN))
+				{
+					sessionToken = newMsgFromSocket.substring(ServerClientCommon.SESSION_TOKEN.length());
+					continue;
+				}
+				// Answer the server's heartbeat without showing it, so an idle user isn't disconnected
+				if (newMsgFromSocket.equals(ServerClientCommon.HEARTBEAT_REQUEST))
+				{
+					sendMessageToServer(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + ServerClientCommon.HEARTBEAT);
+					continue;
+				}
 				// Try to display the message, update the buffer if it can't
 				// yet be shown.
 				displayMessage(newMsgFromSocket);
@@ -389,11 +684,11 @@ public class ChatClient extends Thread{
 		}
 		
 		/**
-		 * Initializes the inFromServer, outToServer, and userInputReader variables
+		 * Initializes the inFromServer and userInputReader variables
 		 * depending on this thread's intended functionality.
-		 * 1.) If this thread is reading user input, outToServer is initialized with a stream used to send
-		 * 	   data to the server. In addition, it will initialize the source of user input,
+		 * 1.) If this thread is reading user input, it will initialize the source of user input,
 		 * 	   be it the GUI or command line depending on which executable the client is using.
+		 * 	   Data is sent to the server through the client's outToServer, which every thread shares.
 		 * 2.) If this thread is reading from the server, inFromServer is initialized with a BufferedReader
 		 * 	   that is used to retrieve data from the server.
 		 */
@@ -401,7 +696,6 @@ public class ChatClient extends Thread{
 		{
 			if (threadPurpose == ThreadPurpose.USER_INPUT)
 			{
-				outToServer =  ServerClientCommon.getSocketDataOutputStream(socket, parent);
 				if (userInputReader == null)
 				{
 					userInputReader = new BufferedReader(new InputStreamReader(System.in));
@@ -414,21 +708,24 @@ public class ChatClient extends Thread{
 		}
 		
 		/**
-		 * A simple wrapper to send data to the server. Writing to a DataOutputStream
+		 * A simple wrapper to send data to the server. Writing to a BufferedMessageWriter
 		 * is common between the client and server (albeit with different streams),
-		 * so the common sendMessageToDataOutputStream is called with the desired
-		 * message and DataOutputStream (in this case, the stream to the server).
+		 * so the common sendMessageToWriter is called with the desired
+		 * message and writer (in this case, the client's writer to the server).
 		 * @param msgToSend The message to send to the server.
 		 */
 		void sendMessageToServer(String msgToSend)
 		{
-			ServerClientCommon.sendMessageToDataOutputStream(msgToSend, outToServer, parent);
+			parent.sendMessageToServer(msgToSend);
 		}
 	}
 	
 	/**
 	 * If the user desires to run this client in command line mode, call the executable
-	 * with the hostname as parameter 0 and the port as parameter 1.
+	 * with the hostname as parameter 0 and the port as parameter 1. The options that may follow are
+	 * "-compress", to ask the server to compress long lines, and any number of "-failover <host:port>",
+	 * the servers to reconnect to and resume the session on if the connection breaks (after
+	 * which the original server is tried too, in case it's back).
 	 * @param args Command line arguments
 	 */
 	public static void main(String[] args)
@@ -441,7 +738,31 @@ public class ChatClient extends Thread{
 		String hostname = args[0];
 		int portNum = Integer.parseInt(args[1]);
 		
-		Thread cc = new ChatClient(hostname, portNum);
+		ChatClient cc = new ChatClient(hostname, portNum);
+		boolean failoverWanted = false;
+		for (int i = 2; i < args.length; ++i)
+		{
+			if (args[i].equals("-compress"))
+			{
+				cc.requestCompression();
+			}
+			else if (args[i].equals("-failover") && i + 1 < args.length && args[i + 1].lastIndexOf(':') > 0)
+			{
+				String failover = args[++i];
+				int colonIndex = failover.lastIndexOf(':');
+				cc.addFailoverServer(failover.substring(0, colonIndex), Integer.parseInt(failover.substring(colonIndex + 1)));
+				failoverWanted = true;
+			}
+			else
+			{
+				System.err.println("Unknown option \"" + args[i] + "\". The options are \"-compress\" and \"-failover <host:port>\".");
+				System.exit(-1);
+			}
+		}
+		if (failoverWanted)
+		{
+			cc.addFailoverServer(hostname, portNum);
+		}
 		cc.run();
 	}
 }
@@ -1,36 +1,139 @@
 /**
  * This class is the representation of a client
- * connected to the ChatServer
+ * connected to the ChatServer. In a cluster, a client connected to another node
+ * is represented by a stand-in while it's chatting with a client of this node:
+ * it has no socket, and it records which node the client is on and its id there.
  * @author Bennett Sherman, bms113
  */
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ChatParticipant {
-	
+
 	///////////////////
 	// CLASS MEMBERS //
 	///////////////////
 	/**
-	 * The socket the server is connected to the client through.
+	 * A chat between two participants. Both participants point at the same Pairing,
+	 * and whether the chat is on is one atomic status shared by both of them, so
+	 * connecting and disconnecting take effect for both sides in a single step.
+	 * A Pairing is PENDING while it is being installed on both participants, then
+	 * either ACTIVE or ENDED. An ENDED pairing is never reused.
+	 */
+	static final class Pairing
+	{
+		/**
+		 * The pairing is being set up; it isn't a chat yet.
+		 */
+		private static final int PENDING = 0;
+
+		/**
+		 * The two participants are chatting.
+		 */
+		private static final int ACTIVE = 1;
+
+		/**
+		 * The chat never started or has ended. Both participants are listeners as far as it's concerned.
+		 */
+		private static final int ENDED = 2;
+
+		/**
+		 * One participant in the chat.
+		 */
+		private final ChatParticipant first;
+
+		/**
+		 * The other participant in the chat.
+		 */
+		private final ChatParticipant second;
+
+		/**
+		 * PENDING, ACTIVE or ENDED.
+		 */
+		private final AtomicInteger status;
+
+		/**
+		 * Constructor.
+		 * @param first One participant
+		 * @param second The other participant
+		 * @param status The starting status
+		 */
+		private Pairing(ChatParticipant first, ChatParticipant second, int status)
+		{
+			this.first = first;
+			this.second = second;
+			this.status = new AtomicInteger(status);
+		}
+
+		/**
+		 * @param participant One of the participants in this pairing
+		 * @return The other one
+		 */
+		private ChatParticipant peerOf(ChatParticipant participant)
+		{
+			return (participant == first) ? second : first;
+		}
+	}
+
+	/**
+	 * Installed in place of a pairing once a participant has left the server, so that nobody can pair with it.
+	 */
+	private static final Pairing LEFT_SERVER = new Pairing(null, null, Pairing.ENDED);
+
+	/**
+	 * Hands out each participant's id.
+	 */
+	private static final AtomicLong nextId = new AtomicLong();
+
+	/**
+	 * Unique to this participant. Pairing always claims the participant with the lower id first,
+	 * which is what keeps two clients connecting to each other at once from waiting on each other forever.
+	 */
+	private final long id = nextId.getAndIncrement();
+
+	/**
+	 * The socket the server is connected to the client through, or null for a stand-in for another node's client.
 	 */
 	private final Socket socket;
-	
+
+	/**
+	 * For a stand-in, the node of the cluster the client is connected to; -1 for this node's own clients.
+	 */
+	private final int nodeId;
+
+	/**
+	 * For a stand-in, the client's id on its own node; -1 for this node's own clients.
+	 */
+	private final long remoteId;
+
 	/**
-	 * The peer of this client. This is the other
-	 * client that this one is talking with, if not null.
+	 * This client's current or most recent pairing, LEFT_SERVER once it has left,
+	 * or null if it has never chatted. The client is talking with the other
+	 * participant of this pairing if the pairing is ACTIVE; otherwise it's a listener.
+	 * Only ever changed by compare-and-set, so no lock is needed to read or change it.
 	 */
-	private ChatParticipant peer = null;
-	
+	private final AtomicReference<Pairing> pairing = new AtomicReference<>(null);
+
 	/**
-	 * The name of this client.
+	 * The name of this client. Volatile since it is read by other clients' sessions
+	 * without holding any lock.
 	 */
-	private String name = "";
-	
+	private volatile String name = "";
+
 	/**
-	 * If this client is a listener or not.
+	 * When this client took its name, in milliseconds since the epoch. A stand-in's is when it was made
+	 * or last renamed. Volatile for the same reason as the name.
 	 */
-	private boolean isInListenMode = true;
-	
+	private volatile long nameTakenMillis = System.currentTimeMillis();
+
+	/**
+	 * The number in this client's default name while it still has that name, -1 otherwise.
+	 * Only used by the thread accepting the client, before its session starts, and then by its session.
+	 */
+	private int defaultNameNumber = -1;
+
 	/////////////////////
 	// CLASS FUNCTIONS //
 	/////////////////////
@@ -41,16 +144,75 @@ public class ChatParticipant {
 	ChatParticipant(Socket socket)
 	{
 		this.socket = socket;
+		this.nodeId = -1;
+		this.remoteId = -1;
+	}
+
+	/**
+	 * Constructor for a stand-in for a client of another node of the cluster.
+	 * @param name The client's name
+	 * @param nodeId The node the client is connected to
+	 * @param remoteId The client's id on that node
+	 */
+	ChatParticipant(String name, int nodeId, long remoteId)
+	{
+		this.socket = null;
+		this.name = name;
+		this.nodeId = nodeId;
+		this.remoteId = remoteId;
+	}
+
+	/**
+	 * @return This client's id, unique on this node
+	 */
+	long getId()
+	{
+		return id;
+	}
+
+	/**
+	 * @return true if this is a stand-in for a client of another node
+	 */
+	boolean isRemote()
+	{
+		return socket == null;
 	}
-	
+
+	/**
+	 * @return The node a stand-in's client is connected to, or -1 for this node's own clients
+	 */
+	int getNodeId()
+	{
+		return nodeId;
+	}
+
+	/**
+	 * @return A stand-in's client's id on its own node, or -1 for this node's own clients
+	 */
+	long getRemoteId()
+	{
+		return remoteId;
+	}
+
+	/**
+	 * @param nodeId A node of the cluster
+	 * @param remoteId A client's id on that node
+	 * @return true if this is a stand-in for that client
+	 */
+	boolean standsInFor(int nodeId, long remoteId)
+	{
+		return isRemote() && this.nodeId == nodeId && this.remoteId == remoteId;
+	}
+
 	/**
 	 * @param name The name to give to this client
 	 */
 	void setName(String name)
 	{
 		this.name = name;
+		this.nameTakenMillis = System.currentTimeMillis();
 	}
-	
+
 	/**
 	 * @return The name of this client
 	 */
@@ -58,23 +220,49 @@ public class ChatParticipant {
 	{
 		return name;
 	}
-	
+
+	/**
+	 * @return When this client took its current name, in milliseconds since the epoch
+	 */
+	long getNameTakenMillis()
+	{
+		return nameTakenMillis;
+	}
+
+	/**
+	 * @param defaultNameNumber The number in the default name this client has just been given
+	 */
+	void setDefaultNameNumber(int defaultNameNumber)
+	{
+		this.defaultNameNumber = defaultNameNumber;
+	}
+
 	/**
-	 * @param newPeer The client that this one has been connected to
+	 * Forget this client's default name number, ex: once it has given up the default name.
+	 * @return The number in this client's default name, or -1 if it was already given up
 	 */
-	void setPeer(ChatParticipant newPeer)
+	int takeDefaultNameNumber()
 	{
-		peer = newPeer;
+		int number = defaultNameNumber;
+		defaultNameNumber = -1;
+		return number;
 	}
-	
+
 	/**
-	 * @return The client that this one is connected to
+	 * Reads the pairing state once, so callers that need both "am I chatting?" and
+	 * "with whom?" should call this once rather than also calling isInListenMode().
+	 * @return The client that this one is connected to, or null if this client is in listen mode
 	 */
 	ChatParticipant getPeer()
 	{
-		return peer;
+		Pairing current = pairing.get();
+		if (current != null && current.status.get() == Pairing.ACTIVE)
+		{
+			return current.peerOf(this);
+		}
+		return null;
 	}
-	
+
 	/**
 	 * @return The socket that the server contacts this client through
 	 */
@@ -82,20 +270,166 @@ public class ChatParticipant {
 	{
 		return socket;
 	}
-	
+
 	/**
 	 * @return true if the client is in listen mode, false otherwise
 	 */
 	boolean isInListenMode()
 	{
-		return isInListenMode;
+		return getPeer() == null;
 	}
-	
+
+	/**
+	 * @return true if this client has disconnected from the server
+	 */
+	boolean hasLeft()
+	{
+		return pairing.get() == LEFT_SERVER;
+	}
+
+	/**
+	 * Connect two listening clients to each other. Either both become each other's
+	 * peer or, if either is already chatting or has left, neither changes.
+	 * @param first One client
+	 * @param second The other client
+	 * @return true if the two are now chatting, false if either wasn't available
+	 */
+	static boolean pair(ChatParticipant first, ChatParticipant second)
+	{
+		if (first == second)
+		{
+			return false;
+		}
+
+		ChatParticipant lower = (first.id < second.id) ? first : second;
+		ChatParticipant higher = (lower == first) ? second : first;
+		Pairing newPairing = new Pairing(first, second, Pairing.PENDING);
+
+		if (!lower.claim(newPairing))
+		{
+			return false;
+		}
+		if (!higher.claim(newPairing))
+		{
+			// Back out; lower goes back to being a listener
+			newPairing.status.set(Pairing.ENDED);
+			lower.pairing.compareAndSet(newPairing, null);
+			return false;
+		}
+
+		// Both point at the new pairing, so this one step starts the chat for both of them
+		newPairing.status.set(Pairing.ACTIVE);
+		return true;
+	}
+
+	/**
+	 * Point this participant at a pending pairing if it's a listener. If another pairing
+	 * is being set up on it, wait for that to finish first; it's only a few steps, none
+	 * of which wait on anything with a higher id, so this always finishes.
+	 * @param newPairing The pending pairing
+	 * @return true if claimed, false if this participant is chatting or has left
+	 */
+	private boolean claim(Pairing newPairing)
+	{
+		while (true)
+		{
+			Pairing current = pairing.get();
+			if (current == LEFT_SERVER)
+			{
+				return false;
+			}
+			if (current != null)
+			{
+				int status = current.status.get();
+				if (status == Pairing.ACTIVE)
+				{
+					return false;
+				}
+				if (status == Pairing.PENDING)
+				{
+					Thread.yield();
+					continue;
+				}
+			}
+			if (pairing.compareAndSet(current, newPairing))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * End this client's chat, putting both it and its peer into listen mode in one step.
+	 * @return The peer this client was chatting with, or null if it was already a listener
+	 */
+	ChatParticipant endPairing()
+	{
+		return endPairingWith(null);
+	}
+
+	/**
+	 * End this client's chat, like endPairing(), but only if it's with a particular peer. For ending a chat
+	 * because of something the peer did, when this client may have moved on to another chat since.
+	 * @param expectedPeer The peer the chat must be with, or null to end the chat whoever it's with
+	 * @return The peer this client was chatting with, or null if it wasn't chatting with expectedPeer
+	 */
+	ChatParticipant endPairingWith(ChatParticipant expectedPeer)
+	{
+		while (true)
+		{
+			Pairing current = pairing.get();
+			if (current == null || current.status.get() != Pairing.ACTIVE)
+			{
+				return null;
+			}
+			if (expectedPeer != null && current.peerOf(this) != expectedPeer)
+			{
+				return null;
+			}
+			if (current.status.compareAndSet(Pairing.ACTIVE, Pairing.ENDED))
+			{
+				ChatParticipant formerPeer = current.peerOf(this);
+				// Not needed for correctness, since an ENDED pairing means listen mode,
+				// but lets the ended pairing be garbage collected
+				formerPeer.pairing.compareAndSet(current, null);
+				pairing.compareAndSet(current, null);
+				return formerPeer;
+			}
+		}
+	}
+
 	/**
-	 * @param newListenState true to put this client into listen mode, false to make it not a listener.
+	 * Record that this client has disconnected from the server, ending its chat if it's in one.
+	 * Nobody can pair with it afterwards.
+	 * @return The peer this client was chatting with, or null if it was a listener
 	 */
-	void setIsInListenMode(boolean newListenState)
+	ChatParticipant leave()
 	{
-		isInListenMode = newListenState;
+		while (true)
+		{
+			Pairing current = pairing.get();
+			if (current == LEFT_SERVER)
+			{
+				return null;
+			}
+			if (current != null && current.status.get() == Pairing.PENDING)
+			{
+				// Someone is connecting to this client right now; let them finish first
+				Thread.yield();
+				continue;
+			}
+			// Once this is swapped in nobody can claim this client, so only the
+			// pairing being replaced can still need ending
+			if (pairing.compareAndSet(current, LEFT_SERVER))
+			{
+				if (current != null && current.status.compareAndSet(Pairing.ACTIVE, Pairing.ENDED))
+				{
+					ChatParticipant formerPeer = current.peerOf(this);
+					formerPeer.pairing.compareAndSet(current, null);
+					return formerPeer;
+				}
+				return null;
+			}
+		}
 	}
 }
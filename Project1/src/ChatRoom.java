@@ -0,0 +1,105 @@
+/**
+ * A named room that any number of clients can join. A message to the room goes to
+ * every member. Members can be added, removed and iterated over from any thread at
+ * once; iterating sees every member that was in the room throughout, and may or may
+ * not see members joining or leaving in the meantime.
+ * @param <S> The type of session that sends to each member
+ * @author Bennett Sherman, bms113
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+class ChatRoom<S> {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The room's name.
+	 */
+	private final String name;
+
+	/**
+	 * Every member, and the session used to send to it.
+	 */
+	private final ConcurrentHashMap<ChatParticipant, S> members = new ConcurrentHashMap<>();
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param name The room's name
+	 */
+	ChatRoom(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * @return The room's name
+	 */
+	String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @param participant A client joining the room
+	 * @param session The session used to send to it
+	 */
+	void addMember(ChatParticipant participant, S session)
+	{
+		members.put(participant, session);
+	}
+
+	/**
+	 * @param participant A client leaving the room
+	 * @return true if it was a member
+	 */
+	boolean removeMember(ChatParticipant participant)
+	{
+		return members.remove(participant) != null;
+	}
+
+	/**
+	 * @return The number of members
+	 */
+	int size()
+	{
+		return members.size();
+	}
+
+	/**
+	 * @return true if nobody is in the room
+	 */
+	boolean isEmpty()
+	{
+		return members.isEmpty();
+	}
+
+	/**
+	 * @param action Run for every member and its session
+	 */
+	void forEachMember(BiConsumer<ChatParticipant, S> action)
+	{
+		members.forEach(action);
+	}
+
+	/**
+	 * @return The names of the members right now
+	 */
+	List<String> getMemberNames()
+	{
+		List<String> names = new ArrayList<>(members.size());
+		for (ChatParticipant member : members.keySet())
+		{
+			names.add(member.getName());
+		}
+		return names;
+	}
+}
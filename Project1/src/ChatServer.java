@@ -5,14 +5,41 @@
  * @author bms113, Bennett Sherman
  */
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Hashtable;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.zip.DataFormatException;
 
 public class ChatServer {
 	
@@ -21,20 +48,192 @@ public class ChatServer {
 	///////////////////
 	
 	/**
-	 * Links names to chat participants.
+	 * Links names to chat participants, and participants to their session (which is how
+	 * the server writes to them). It also provides the striped locks which keep
+	 * renames atomic.
 	 */
-	private Hashtable<String, ChatParticipant> nameToParticipant = new Hashtable<>();
+	private final ParticipantRegistry<ClientSession> registry = new ParticipantRegistry<>();
 	
 	/**
-	 * Links participants to their thread.
+	 * Hands out the numbers in clients' default names.
 	 */
-	private Hashtable<ChatParticipant, ConnectedClientThread> participantToThread = new Hashtable<>();
+	private final DefaultNameAllocator defaultNameAllocator = new DefaultNameAllocator();
 	
 	/**
-	 * The TCP welcoming socket for this server.
+	 * Every chat room with at least one member, and the session of each member.
+	 */
+	private final RoomRegistry<ClientSession> rooms = new RoomRegistry<>();
+	
+	/**
+	 * Every open broadcast channel, by name.
+	 */
+	private final ConcurrentHashMap<String, BroadcastChannel> channels = new ConcurrentHashMap<>();
+	
+	/**
+	 * Keeps messages for names that aren't connected. Null unless a mailbox directory was configured.
+	 */
+	private MailboxStore mailbox;
+	
+	/**
+	 * Keeps the messages relayed between peers. Null unless a history directory was configured.
+	 */
+	private HistoryStore history;
+	
+	/**
+	 * This server's place in a cluster of servers that share names and relay chats between
+	 * their clients. Null unless the server was started as a node of a cluster.
+	 */
+	private ClusterNode cluster;
+	
+	/**
+	 * Keeps a standby server up to date with the clients' names and peers. Null unless a replication port was configured.
+	 */
+	private ReplicationLog replicationLog;
+	
+	/**
+	 * Where session tokens come from. They let a client take back its name after a failover, so they mustn't be guessable.
+	 */
+	private static final SecureRandom SESSION_TOKEN_SOURCE = new SecureRandom();
+	
+	/**
+	 * A client of the primary this server took over from, which hasn't resumed its session yet.
+	 * A placeholder that has already left holds its name, so nobody else can take it or chat with it.
+	 */
+	private static final class ResumableSession
+	{
+		/**
+		 * Holds the client's name.
+		 */
+		final ChatParticipant placeholder;
+		
+		/**
+		 * The session token of the client's peer, or null if it was in listen mode.
+		 */
+		final String peerToken;
+		
+		/**
+		 * The name of the client's peer, or null if it was in listen mode.
+		 */
+		final String peerName;
+		
+		/**
+		 * Constructor.
+		 * @param placeholder Holds the client's name
+		 * @param peerToken The session token of the client's peer, or null if it was in listen mode
+		 * @param peerName The name of the client's peer, or null if it was in listen mode
+		 */
+		ResumableSession(ChatParticipant placeholder, String peerToken, String peerName)
+		{
+			this.placeholder = placeholder;
+			this.peerToken = peerToken;
+			this.peerName = peerName;
+		}
+	}
+	
+	/**
+	 * The primary's clients that may still resume their sessions, by session token.
+	 * Empty unless this server took over from a primary.
+	 */
+	private final ConcurrentHashMap<String, ResumableSession> resumableSessions = new ConcurrentHashMap<>();
+	
+	/**
+	 * Resumed clients waiting for their peer from before the failover to resume too, by both clients' tokens (see rejoinPeer()).
+	 */
+	private final ConcurrentHashMap<String, ChatParticipant> reunions = new ConcurrentHashMap<>();
+	
+	/**
+	 * The number of messages sent for GET HISTORY when the client doesn't say how many.
+	 */
+	private static final int DEFAULT_HISTORY_COUNT = 20;
+	
+	/**
+	 * Checks each session for a client that has gone quiet: sends it heartbeats, and disconnects it
+	 * once the idle timeout passes. Also closes clients the server has disconnected, if their engine
+	 * hasn't closed them by the end of a grace period.
+	 */
+	private TimingWheel reaper;
+	
+	/**
+	 * The length of one tick of the reaper's wheel. Heartbeats and timeouts happen within a tick of when they're due.
+	 */
+	private static final long REAPER_TICK_MILLIS = 100;
+	
+	/**
+	 * The number of slots in the reaper's wheel, so one turn of it is 51.2 seconds.
+	 */
+	private static final int REAPER_SLOT_COUNT = 512;
+	
+	/**
+	 * How long a client the server disconnected has to be closed by its engine before the reaper closes it
+	 * itself, ex: when the client vanished or stopped reading, and what's queued for it can't be written.
+	 */
+	private static final long CLOSE_GRACE_NANOS = TimeUnit.SECONDS.toNanos(10);
+	
+	/**
+	 * The heartbeat, encoded once, since the same frame is queued for every quiet client.
+	 */
+	private static final OutboundFrame HEARTBEAT_FRAME = OutboundFrame.encode(ServerClientCommon.HEARTBEAT_REQUEST);
+	
+	/**
+	 * Sent to a client that went over a rate limit. Encoded once, like the heartbeat.
+	 */
+	private static final OutboundFrame RATE_LIMIT_NOTICE_FRAME = OutboundFrame.encode(
+			"SVR: You're sending too fast, so the server is reading from you more slowly. Nothing you sent was lost.");
+	
+	/**
+	 * The least time between two rate limit notices to the same client, so one that keeps flooding isn't sent one per line.
+	 */
+	private static final long RATE_LIMIT_NOTICE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+	
+	/**
+	 * Picks the handler for each control message. Every command is registered in
+	 * registerControlCommands() when the server is constructed.
+	 */
+	private final ControlMessageParser<ClientSession> controlMessageParser = new ControlMessageParser<>(ClientSession::invalidControlMsgHandler);
+	
+	/**
+	 * The TCP welcoming socket for this server. The first of welcomeSockets.
 	 */
 	private ServerSocket welcomeSocket;
 	
+	/**
+	 * The welcoming socket each acceptor accepts from, by acceptor. They're all the same socket
+	 * unless the OS lets several sockets listen on one port. For the SELECTOR engine each is
+	 * backed by a channel.
+	 */
+	private ServerSocket[] welcomeSockets;
+	
+	/**
+	 * The most connections the OS keeps waiting for each welcoming socket to accept, so a storm
+	 * of clients reconnecting at once is queued rather than refused. The OS may cap it lower.
+	 */
+	private static final int ACCEPT_BACKLOG = 1024;
+	
+	/**
+	 * The startup options for this server.
+	 */
+	private final ChatServerConfig config;
+	
+	/**
+	 * The server's log. Client sessions record lines here instead of printing them.
+	 */
+	private final ServerLogger log;
+	
+	/**
+	 * Counts what the server is doing. Read with GET_SERVER_STATS, over JMX or from the stats file.
+	 */
+	private final ServerMetrics metrics = new ServerMetrics();
+	
+	/**
+	 * The event loops used by the SELECTOR engine. Empty for the thread-per-client engines.
+	 */
+	private SelectorEventLoop[] eventLoops = new SelectorEventLoop[0];
+	
+	/**
+	 * Runs each client's read loop for the thread-per-client engines. Null for the SELECTOR engine.
+	 */
+	private ConnectionExecutor connectionExecutor;
+	
 	/**
 	 * The port number that this server is operating from.
 	 */
@@ -50,14 +249,6 @@ public class ChatServer {
 	 */
 	private String serverHostname;
 	
-	/**
-	 * Used to make sure that neither nameToParticipant and/or participantToThread
-	 * is modified and read or modified and modified by multiple threads at once.
-	 * Also makes sure that multiple threads can't change aspects of ChatParticipants
-	 * at once. It's reentrant to prevent *oops, deadlock* issues.
-	 */
-	private ReentrantLock criticalServerDataLock = new ReentrantLock();
-	
 	/////////////////////
 	// CLASS FUNCTIONS //
 	/////////////////////
@@ -68,679 +259,3504 @@ public class ChatServer {
 	 */
 	public ChatServer(int port)
 	{
+		this.config = new ChatServerConfig();
+		this.config.setPortNumber(port);
 		this.serverPortNumber = port;
+		this.log = new ServerLogger(config);
+		registerControlCommands();
 	}
 	
 	/**
-	 * Starts the server. Its first step is to initialize the welcome socket and determine
-	 * the host's IP and hostname.
+	 * Constructor for the Chat Server.
+	 * @param config The startup options of this server
 	 */
-	public void startServer()
-	{		
-		initWelcomeSocket();
-		
-		setServerIpAndHostname();
-		
-		System.out.println("Server started; IP Address: " + serverIpAddr + "; Port: " + serverPortNumber + "; Hostname: " + serverHostname);
-		
-		// The server will run endlessly
-		while (true)
+	public ChatServer(ChatServerConfig config)
+	{
+		this.config = config;
+		this.serverPortNumber = config.getPortNumber();
+		this.log = new ServerLogger(config);
+		registerControlCommands();
+	}
+	
+	/**
+	 * Make the metrics readable over JMX and, if a stats file was given, start rewriting it periodically.
+	 * The depth of the outbound queues is only added up when the metrics are read.
+	 */
+	private void startMetrics()
+	{
+		metrics.setOutboundQueuedCounter(() -> {
+			long queued = 0;
+			for (ClientSession session : registry.getSessions())
+			{
+				queued += session.outboundQueue.size();
+			}
+			return queued;
+		});
+		metrics.registerMBean(log);
+		if (config.getStatsFile() != null)
 		{
-			// Create a connection socket for the next client to connect
-			// This will block until a new client wants to connect
-			Socket connectionSocket = createConnectionSocket();
-			
-			// Create a new ChatParticipant object to identify the new client
-			ChatParticipant newClient = new ChatParticipant(connectionSocket);
-			
-			// Give the client a default name and store the name/client combo
-			// in nameToParitipant
-			assignClientDefaultName(newClient);
-		
-			// Create a new thread to handle communication with then new client
-			Thread clientThread = new ConnectedClientThread(newClient);
-			
-			// Here we go!
-			clientThread.start();
+			metrics.startPeriodicDump(Paths.get(config.getStatsFile()), config.getStatsIntervalSeconds(), log);
 		}
 	}
 	
 	/**
-	 * Generate a name that is not current in use by any other client.
-	 * It will have the form "DefaultName_<integer>" where the integer
-	 * is the current size of the nameToParticipant hash table.
-	 * If that name is already reserved, increment the integer until
-	 * a free name combo is found.
-	 * The nameToParticipant HashTable will then be updated to account for the new name.
-	 * @param client The ChatParticipant who will have a name assigned
+	 * Tell the control message parser which handler runs each control command.
+	 * A new command in ServerClientCommon only needs a line here.
 	 */
-	private void assignClientDefaultName(ChatParticipant client)
+	private void registerControlCommands()
+	{
+		// When the client wants to end the connection to the server
+		controlMessageParser.register(ServerClientCommon.DISCONNECT_FROM_SERVER, (session, argument) -> session.disconnectControlMsgHandler());
+		// When the client wants to set their username
+		controlMessageParser.register(ServerClientCommon.SET_USERNAME, staysConnected(ClientSession::updateNameControlMsgHandler));
+		// When the client wants to connect to another client
+		controlMessageParser.register(ServerClientCommon.SET_PEER_NAME, staysConnected(ClientSession::setPeerControlMsgHandler));
+		// When the client wants the server to send it the list of connected client names
+		controlMessageParser.register(ServerClientCommon.GET_LIST_OF_CONNECTED_CLIENTS,
+				staysConnected((session, argument) -> session.getListOfConnectedClientsControlMsgHandler()));
+		// When the client wants one page of the list of connected client names, optionally filtered by a prefix
+		controlMessageParser.register(ServerClientCommon.GET_PAGE_OF_CONNECTED_CLIENTS, staysConnected(ClientSession::getPageOfConnectedClientsControlMsgHandler));
+		// When the client wants to know its own name
+		controlMessageParser.register(ServerClientCommon.GET_MY_NAME, staysConnected((session, argument) -> session.getMyNameControlMsgHandler()));
+		// When the client wants to know the name of its peer
+		controlMessageParser.register(ServerClientCommon.GET_MY_PEERS_NAME, staysConnected((session, argument) -> session.getMyPeersNameControlMsgHandler()));
+		// When the administrator wants the server's statistics
+		controlMessageParser.register(ServerClientCommon.GET_SERVER_STATS, staysConnected((session, argument) -> session.getServerStatsControlMsgHandler()));
+		// When the client wants to join, leave, list or send to a chat room
+		controlMessageParser.register(ServerClientCommon.JOIN_ROOM, staysConnected(ClientSession::joinRoomControlMsgHandler));
+		controlMessageParser.register(ServerClientCommon.LEAVE_ROOM, staysConnected(ClientSession::leaveRoomControlMsgHandler));
+		controlMessageParser.register(ServerClientCommon.GET_ROOM_MEMBERS, staysConnected(ClientSession::getRoomMembersControlMsgHandler));
+		controlMessageParser.register(ServerClientCommon.SEND_TO_ROOM, staysConnected(ClientSession::sendToRoomControlMsgHandler));
+		// When the client wants to open, close, subscribe to, unsubscribe from or publish to a broadcast channel
+		controlMessageParser.register(ServerClientCommon.OPEN_CHANNEL, staysConnected(ClientSession::openChannelControlMsgHandler));
+		controlMessageParser.register(ServerClientCommon.CLOSE_CHANNEL, staysConnected(ClientSession::closeChannelControlMsgHandler));
+		controlMessageParser.register(ServerClientCommon.SUBSCRIBE_TO_CHANNEL, staysConnected(ClientSession::subscribeToChannelControlMsgHandler));
+		controlMessageParser.register(ServerClientCommon.UNSUBSCRIBE_FROM_CHANNEL, staysConnected(ClientSession::unsubscribeFromChannelControlMsgHandler));
+		controlMessageParser.register(ServerClientCommon.PUBLISH_TO_CHANNEL, staysConnected(ClientSession::publishToChannelControlMsgHandler));
+		// When the client wants to read back a conversation
+		controlMessageParser.register(ServerClientCommon.GET_HISTORY, staysConnected(ClientSession::getHistoryControlMsgHandler));
+		// When the client wants long lines compressed
+		controlMessageParser.register(ServerClientCommon.ENABLE_COMPRESSION, staysConnected(ClientSession::enableCompressionControlMsgHandler));
+		// When the client wants the token it can resume its session with after a failover, or is resuming one
+		controlMessageParser.register(ServerClientCommon.GET_SESSION_TOKEN, staysConnected((session, argument) -> session.getSessionTokenControlMsgHandler()));
+		controlMessageParser.register(ServerClientCommon.RESUME_SESSION, staysConnected(ClientSession::resumeSessionControlMsgHandler));
+	}
+	
+	/**
+	 * @param handler A control command handler that never ends the connection
+	 * @return The handler in the form the parser takes, always keeping the client connected
+	 */
+	private static ControlMessageParser.CommandHandler<ClientSession> staysConnected(BiConsumer<ClientSession, CharSequence> handler)
+	{
+		return (session, argument) -> {
+			handler.accept(session, argument);
+			return true;
+		};
+	}
+	
+	/**
+	 * If a mailbox directory was configured, read back the messages kept there and start the mailbox's thread.
+	 * The mailbox is synced to disk when the server is stopped.
+	 */
+	private void startMailbox()
 	{
-		criticalServerDataLock.lock();
+		if (config.getMailboxDirectory() == null)
+		{
+			return;
+		}
 		try
 		{
-			int nameNumber = nameToParticipant.size();
-			
-			// Iterate until we find a valid name number
-			while (nameToParticipant.containsKey("DefaultName_" + nameNumber))
-			{
-				++nameNumber;
-			}
-			
-			String newName = "DefaultName_" + nameNumber;
-			
-			// Update their corresponding ChatParticipant with the new name
-			client.setName(newName);
-			
-			// Update the nameToParticipant table to have an entry for the new name
-			// that corresponds to this client's ChatParticipant
-			nameToParticipant.put(newName, client);
+			mailbox = new MailboxStore(Paths.get(config.getMailboxDirectory()), config.getMailboxSegmentSize(), log);
 		}
-		finally
+		catch (IOException | IllegalStateException err)
 		{
-			criticalServerDataLock.unlock();
+			String otherMsg = "The mailbox in \"" + config.getMailboxDirectory() + "\" could not be opened. This is a critical failure,"
+					+ " and the server will now exit.";
+			ServerClientCommon.printExceptionMsgToConsole(otherMsg, err);
+			System.exit(-1);
 		}
+		mailbox.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(mailbox::close, "chatd-mailbox-flush"));
 	}
 	
 	/**
-	 * Set the server IP and hostname member variables.
+	 * If a history directory was configured, start the thread that keeps the messages relayed between peers.
+	 * What it has been given is written out when the server is stopped.
 	 */
-	@SuppressWarnings("static-access")
-	private void setServerIpAndHostname()
+	private void startHistory()
 	{
-		try 
+		if (config.getHistoryDirectory() == null)
 		{
-			 serverIpAddr = welcomeSocket.getInetAddress().getLocalHost().getHostAddress();
-			 serverHostname = welcomeSocket.getInetAddress().getLocalHost().getHostName();
+			return;
 		}
-		catch (UnknownHostException err)
+		try
 		{
-			
-			String otherMsg = "Error determining this host's IP and hostname. This is definitely not a good sign, but the"
-					+ "server will continue execution";
+			history = new HistoryStore(Paths.get(config.getHistoryDirectory()), config.getHistorySegmentSize(), log);
+		}
+		catch (IOException err)
+		{
+			String otherMsg = "The history directory \"" + config.getHistoryDirectory() + "\" could not be created. This is a critical failure,"
+					+ " and the server will now exit.";
 			ServerClientCommon.printExceptionMsgToConsole(otherMsg, err);
+			System.exit(-1);
 		}
+		history.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(history::close, "chatd-history-flush"));
 	}
 	
 	/**
-	 * Initializes the ServerSocket member, and therefore creates
-	 * a port for this server to have clients connect to.
-	 * The port number is specified by the serverPortNumber member
+	 * Start the reaper. If the idle timeout or heartbeats are turned on, each session is added
+	 * to it once connected, and checked whenever its next heartbeat or timeout is due.
+	 */
+	private void startReaper()
+	{
+		reaper = new TimingWheel("chatd-reaper", REAPER_TICK_MILLIS, REAPER_SLOT_COUNT);
+		reaper.start();
+	}
+	
+	/**
+	 * If the server is a node of a cluster, start listening for the other nodes and linking to them.
+	 * Clients may connect before the other nodes are up; names whose home node isn't up yet
+	 * can't be claimed until it is.
 	 */
-	private void initWelcomeSocket()
+	private void startCluster()
 	{
+		if (config.getClusterNodes() == null)
+		{
+			return;
+		}
+		cluster = new ClusterNode(config.getNodeId(), config.getClusterNodes(), log, metrics);
 		try
 		{
-			welcomeSocket = new ServerSocket(serverPortNumber);
+			cluster.start(new ClusterClients());
 		}
 		catch (IOException err)
 		{
-			String otherMsg = "Unable to create the welcome socket on port: " + serverPortNumber + ". This is a critical failure, and the"
-					+ " server will now exit. Try a different port number.";
+			String otherMsg = "Unable to listen for the other nodes of the cluster on " + config.getClusterNodes().get(config.getNodeId())
+					+ ". This is a critical failure, and the server will now exit.";
 			ServerClientCommon.printExceptionMsgToConsole(otherMsg, err);
 			System.exit(-1);
-		} 
+		}
+		log.notice(ServerLogger.Level.INFO, "This server is node " + cluster.getNodeId() + " of a cluster of " + cluster.getNodeCount());
 	}
 	
 	/**
-	 * Creates a connection socket for a client trying to connect to to the server.
-	 * This function will block the server until a client tries to connect.
-	 * @return a connection socket that interfaces with the newly-connected client.
+	 * If a replication port was configured, start listening for a standby, and keep it up to date once it connects.
 	 */
-	private Socket createConnectionSocket()
+	private void startReplication()
 	{
-		Socket connectionSocket = null;
+		if (config.getReplicationPort() == 0)
+		{
+			return;
+		}
+		InetSocketAddress address = new InetSocketAddress(config.getReplicationBindAddress(), config.getReplicationPort());
+		replicationLog = new ReplicationLog(address, config.getReplicationSecret(), log, metrics);
 		try
 		{
-			connectionSocket = welcomeSocket.accept();
+			replicationLog.start(new ReplicatedClients());
 		}
 		catch (IOException err)
 		{
-			String otherMsg = "Error in creating a connection socket for an incoming client.";
+			String otherMsg = "Unable to listen for a standby on " + address + ". This is a critical failure, and the server will now exit.";
 			ServerClientCommon.printExceptionMsgToConsole(otherMsg, err);
+			System.exit(-1);
 		}
-		return connectionSocket;
 	}
 	
-	///////////////////
-	//  INNER CLASS  //
-	///////////////////
+	/**
+	 * Wait until the primary this server stands by for is lost, then hold each of its clients'
+	 * names for the client to resume its session with. A pairing is only kept if both clients had
+	 * each other as their peer, since the two may have been replicated at slightly different times.
+	 * If the primary replaces this standby with another, the server exits instead.
+	 */
+	private void takeOverFromPrimary()
+	{
+		Map<Long, ReplicationLog.ReplicatedClient> primaryClients = new StandbyReplica(config.getStandbyOf(), config.getReplicationSecret(), log).awaitFailover();
+		if (primaryClients == null)
+		{
+			System.err.println("The primary at " + config.getStandbyOf() + " has replaced this standby with another. The server will now exit.");
+			System.exit(-1);
+		}
+		for (ReplicationLog.ReplicatedClient primaryClient : primaryClients.values())
+		{
+			ChatParticipant placeholder = new ChatParticipant((Socket) null);
+			if (!registry.claimName(primaryClient.name, placeholder))
+			{
+				continue;
+			}
+			// Nobody can chat with the name until its client is back
+			placeholder.leave();
+			ReplicationLog.ReplicatedClient peer = primaryClients.get(primaryClient.peerId);
+			boolean paired = peer != null && peer.peerId == primaryClient.id;
+			resumableSessions.put(primaryClient.token, new ResumableSession(placeholder, paired ? peer.token : null, paired ? peer.name : null));
+		}
+	}
 	
 	/**
-	 * This private class represents a thread for each client's connection.
-	 * It's a private nested class, which means it can access all members and
-	 * functions in ChatServer.java, but cannot be accessed from the outside.
+	 * If this server took over from a primary, free the names of the clients that haven't resumed
+	 * their sessions once the grace period is over.
 	 */
-	private class ConnectedClientThread extends Thread
+	private void startResumeGrace()
 	{
-		///////////////////
-		//  MEMBERS      //
-		///////////////////
+		if (resumableSessions.isEmpty())
+		{
+			return;
+		}
+		log.notice(ServerLogger.Level.INFO, resumableSessions.size() + " clients of the primary may resume their sessions in the next "
+				+ config.getResumeGraceSeconds() + " seconds");
+		reaper.schedule(nowNanos -> {
+			int expired = 0;
+			for (String token : resumableSessions.keySet())
+			{
+				// A client resuming at the same moment removes it first, or not at all
+				ResumableSession resumable = resumableSessions.remove(token);
+				if (resumable != null)
+				{
+					registry.remove(resumable.placeholder);
+					++expired;
+				}
+			}
+			// Nobody is left to rejoin the clients still waiting
+			reunions.clear();
+			log.notice(ServerLogger.Level.INFO, expired + " clients of the primary didn't resume their sessions in time; their names are free again");
+			return -1;
+		}, TimeUnit.SECONDS.toNanos(config.getResumeGraceSeconds()));
+	}
+	
+	/**
+	 * Tell the standby, if there is one, that a client's name or peer has changed, or that it has connected or left.
+	 * Never waits.
+	 * @param participant The client
+	 */
+	private void replicate(ChatParticipant participant)
+	{
+		if (replicationLog != null)
+		{
+			replicationLog.changed(participant.getId());
+		}
+	}
+	
+	/**
+	 * @return A new session token
+	 */
+	private static String newSessionToken()
+	{
+		return String.format("%016x", SESSION_TOKEN_SOURCE.nextLong());
+	}
+	
+	/**
+	 * Starts the server. Its first step is to initialize the welcome socket and determine
+	 * the host's IP and hostname. It then serves clients with the engine chosen in the config.
+	 * A standby first waits for its primary to be lost.
+	 */
+	public void startServer()
+	{		
+		// From here on, everything the server logs goes through the logger's thread.
+		// Write out whatever is still waiting when the server is stopped.
+		log.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(log::close, "chatd-logger-flush"));
 		
-		/**
-		 * The ChatParticipant that identifies this connection.
-		 */
-		private ChatParticipant client;
+		if (config.getStandbyOf() != null)
+		{
+			takeOverFromPrimary();
+		}
 		
-		/**
-		 * A BufferedReader which the client writes into and this process (the server)
-		 * reads from.
-		 */
-		private BufferedReader inFromClient;
+		initWelcomeSockets();
 		
-		/**
-		 * A DataOutputStream which this process (the server) writes into
-		 * in order to send the client data.
-		 */
-		private DataOutputStream outToClient;
+		setServerIpAndHostname();
 		
-		///////////////////
-		// FUNCTIONS     //
-		///////////////////
+		System.out.println("Server started; IP Address: " + serverIpAddr + "; Port: " + serverPortNumber + "; Hostname: " + serverHostname
+				+ "; Engine: " + config.getEngine());
+		
+		startMetrics();
+		
+		startMailbox();
+		
+		startHistory();
+		
+		startReaper();
+		
+		startResumeGrace();
+		
+		startReplication();
+		
+		startCluster();
+		
+		if (config.getEngine() == ChatServerConfig.ServerEngine.SELECTOR)
+		{
+			runSelectorEngine();
+		}
+		else if (config.getEngine() == ChatServerConfig.ServerEngine.VIRTUAL_THREAD_PER_CLIENT)
+		{
+			ConnectionExecutor virtualThreads = null;
+			try
+			{
+				virtualThreads = ConnectionExecutor.virtualThreads();
+			}
+			catch (UnsupportedOperationException err)
+			{
+				String otherMsg = "The virtual thread engine is unavailable. This is a critical failure, and the"
+						+ " server will now exit. Use a newer JVM or a different engine.";
+				ServerClientCommon.printExceptionMsgToConsole(otherMsg, err);
+				System.exit(-1);
+			}
+			runThreadPerClientEngine(virtualThreads);
+		}
+		else
+		{
+			runThreadPerClientEngine(ConnectionExecutor.platformThreads());
+		}
+	}
+	
+	/**
+	 * The original engine: each client is handled by its own thread, which blocks
+	 * on reads from that client.
+	 * @param executor Supplies the thread for each client
+	 */
+	private void runThreadPerClientEngine(ConnectionExecutor executor)
+	{
+		connectionExecutor = executor;
+		log.notice(ServerLogger.Level.INFO, "Clients will be served by " + connectionExecutor);
+		
+		runAcceptors(this::acceptIntoThreads);
+	}
+	
+	/**
+	 * One acceptor of the thread-per-client engines: accept clients and start a thread for each.
+	 * @param acceptorIndex Which acceptor this is
+	 */
+	private void acceptIntoThreads(int acceptorIndex)
+	{
+		// The server will run endlessly
+		while (true)
+		{
+			// Create a connection socket for the next client to connect
+			// This will block until a new client wants to connect
+			Socket connectionSocket = createConnectionSocket(welcomeSockets[acceptorIndex]);
+			if (connectionSocket == null)
+			{
+				continue;
+			}
+			
+			// Create a new ChatParticipant object to identify the new client
+			ChatParticipant newClient = new ChatParticipant(connectionSocket);
+			
+			// Give the client a default name and store the name/client combo
+			// in nameToParitipant. In a cluster the client's own thread does it; see runReadLoop().
+			if (cluster == null)
+			{
+				assignClientDefaultName(newClient);
+			}
+		
+			// Start a new thread to handle communication with then new client. Here we go!
+			StreamClientSession session = new StreamClientSession(newClient);
+			connectionExecutor.execute("chatd-client-" + session.clientIpAndSocket, session::runReadLoop);
+		}
+	}
+	
+	/**
+	 * The non-blocking engine: a fixed set of event loops serves every client.
+	 * The acceptors only accept new connections and hand them to the loops.
+	 */
+	private void runSelectorEngine()
+	{
+		startEventLoops();
+		
+		runAcceptors(this::acceptIntoEventLoops);
+	}
+	
+	/**
+	 * One acceptor of the SELECTOR engine: accept clients and hand them round-robin to this
+	 * acceptor's shard of the event loops. Acceptor i feeds loops i, i + acceptors, i + 2 * acceptors
+	 * and so on, so no two acceptors share a loop (unless there are more acceptors than loops)
+	 * and acceptors share nothing while accepting.
+	 * @param acceptorIndex Which acceptor this is
+	 */
+	private void acceptIntoEventLoops(int acceptorIndex)
+	{
+		List<SelectorEventLoop> shard = new ArrayList<>();
+		for (int i = acceptorIndex % eventLoops.length; i < eventLoops.length; i += welcomeSockets.length)
+		{
+			shard.add(eventLoops[i]);
+		}
+		ServerSocketChannel welcomeChannel = welcomeSockets[acceptorIndex].getChannel();
+		
+		int nextLoop = 0;
+		// The server will run endlessly
+		while (true)
+		{
+			// This will block until a new client wants to connect
+			SocketChannel connectionChannel = createConnectionChannel(welcomeChannel);
+			if (connectionChannel == null)
+			{
+				continue;
+			}
+			
+			// Create a new ChatParticipant object to identify the new client
+			ChatParticipant newClient = new ChatParticipant(connectionChannel.socket());
+			
+			SelectorEventLoop loop = shard.get(nextLoop);
+			nextLoop = (nextLoop + 1) % shard.size();
+			
+			// Give the client a default name and store the name/client combo
+			// in nameToParitipant, then hand it to its loop
+			if (cluster == null)
+			{
+				assignClientDefaultName(newClient);
+				loop.register(connectionChannel, new SelectorClientSession(newClient, connectionChannel, loop));
+				continue;
+			}
+			// In a cluster the name is claimed from its home node, which neither this acceptor nor the
+			// loop waits for; the client is handed to the loop once it's named
+			assignClusterDefaultName(newClient).whenComplete((ignored, err) -> {
+				if (err != null)
+				{
+					log.notice(ServerLogger.Level.ERROR, "Unable to give a default name to a client of the cluster: " + err);
+					ServerClientCommon.closeChannel(connectionChannel);
+					return;
+				}
+				loop.register(connectionChannel, new SelectorClientSession(newClient, connectionChannel, loop));
+			});
+		}
+	}
+	
+	/**
+	 * Run every acceptor: the first on this thread, the others on threads of their own.
+	 * Never returns.
+	 * @param acceptor Accepts clients forever, given the index of the acceptor it runs as
+	 */
+	private void runAcceptors(IntConsumer acceptor)
+	{
+		for (int i = 1; i < welcomeSockets.length; ++i)
+		{
+			int acceptorIndex = i;
+			new Thread(() -> acceptor.accept(acceptorIndex), "chatd-acceptor-" + i).start();
+		}
+		acceptor.accept(0);
+	}
+	
+	/**
+	 * Creates and starts the event loops used by the SELECTOR engine.
+	 * The number of loops is taken from the config.
+	 */
+	private void startEventLoops()
+	{
+		eventLoops = new SelectorEventLoop[config.getEventLoopCount()];
+		for (int i = 0; i < eventLoops.length; ++i)
+		{
+			try
+			{
+				eventLoops[i] = new SelectorEventLoop(i);
+			}
+			catch (IOException err)
+			{
+				String otherMsg = "Unable to open a selector for the event loops. This is a critical failure, and the server will now exit.";
+				ServerClientCommon.printExceptionMsgToConsole(otherMsg, err);
+				System.exit(-1);
+			}
+			eventLoops[i].start();
+		}
+	}
+	
+	/**
+	 * Generate a name that is not current in use by any other client.
+	 * It will have the form "DefaultName_<integer>" where the integer
+	 * comes from the defaultNameAllocator: either one given back by a client
+	 * that no longer uses its default name, or one that's never been used.
+	 * The registry will then be updated to account for the new name.
+	 * Naming a client this way takes an atomic counter and a map insert, so acceptors do it,
+	 * which keeps default names in the order clients connected. Not used in a cluster.
+	 * @param client The ChatParticipant who will have a name assigned
+	 */
+	private void assignClientDefaultName(ChatParticipant client)
+	{
+		// Claiming is atomic, so two clients connecting at once can't get the same name.
+		// The only way the claim fails is if a client chose this default name for itself.
+		// That number is then skipped rather than given back, or the next client would hit it again.
+		int nameNumber = acquireDefaultNameNumber();
+		while (!registry.claimName(defaultNameFor(nameNumber), client))
+		{
+			nameNumber = acquireDefaultNameNumber();
+		}
+		client.setDefaultNameNumber(nameNumber);
+	}
+	
+	/**
+	 * @return A number from the defaultNameAllocator whose default name isn't the admin name. If the
+	 * 		   admin name looks like a default name, its number is skipped for good, so no client is
+	 * 		   ever given it without proving it's the administrator.
+	 */
+	private int acquireDefaultNameNumber()
+	{
+		int nameNumber = defaultNameAllocator.acquire();
+		while (defaultNameFor(nameNumber).equals(config.getAdminName()))
+		{
+			nameNumber = defaultNameAllocator.acquire();
+		}
+		return nameNumber;
+	}
+	
+	/**
+	 * assignClientDefaultName() for a node of a cluster, where each default name is first claimed
+	 * from its home node. Never waits: the next number is tried, if need be, on whichever thread
+	 * the home node's answer comes in on.
+	 * @param client The ChatParticipant who will have a name assigned
+	 * @return Completed once the client has its default name
+	 */
+	private CompletableFuture<Void> assignClusterDefaultName(ChatParticipant client)
+	{
+		int nameNumber = acquireDefaultNameNumber();
+		String name = defaultNameFor(nameNumber);
+		return cluster.claim(name).thenCompose(claim -> {
+			if (claimDefaultName(name, claim, client))
+			{
+				client.setDefaultNameNumber(nameNumber);
+				return CompletableFuture.completedFuture(null);
+			}
+			// As in assignClientDefaultName(), the number is skipped
+			return assignClusterDefaultName(client);
+		});
+	}
+	
+	/**
+	 * @param nameNumber A number from the defaultNameAllocator
+	 * @return The default name with that number. In a cluster, each node turns its numbers into
+	 * 		   different names, so two nodes never hand out the same default name.
+	 */
+	private String defaultNameFor(int nameNumber)
+	{
+		if (cluster == null)
+		{
+			return DefaultNameAllocator.nameFor(nameNumber);
+		}
+		return DefaultNameAllocator.nameFor(nameNumber * cluster.getNodeCount() + cluster.getNodeId());
+	}
+	
+	/**
+	 * Give a new client of a cluster a default name, if nobody has it, once the name's home node
+	 * has answered the claim. If that node can't be reached, the name is only claimed on this node;
+	 * no other node hands out this node's default names, so only a client that chose the name
+	 * for itself could have it.
+	 * @param name The default name
+	 * @param claim The home node's answer
+	 * @param client The new client
+	 * @return true if the client now has the name
+	 */
+	private boolean claimDefaultName(String name, ClusterNode.ClaimResult claim, ChatParticipant client)
+	{
+		if (claim == ClusterNode.ClaimResult.TAKEN)
+		{
+			return false;
+		}
+		if (registry.claimName(name, client))
+		{
+			return true;
+		}
+		if (claim == ClusterNode.ClaimResult.CLAIMED)
+		{
+			cluster.release(name);
+		}
+		return false;
+	}
+	
+	/**
+	 * Give a client's default name number back to the allocator, if the client still had it.
+	 * Must only be called once the default name is free in the registry.
+	 * @param client A client that has just given up its name
+	 */
+	private void releaseClientDefaultName(ChatParticipant client)
+	{
+		int nameNumber = client.takeDefaultNameNumber();
+		if (nameNumber >= 0)
+		{
+			defaultNameAllocator.release(nameNumber);
+		}
+	}
+	
+	/**
+	 * Set the server IP and hostname member variables.
+	 */
+	@SuppressWarnings("static-access")
+	private void setServerIpAndHostname()
+	{
+		try 
+		{
+			 serverIpAddr = welcomeSocket.getInetAddress().getLocalHost().getHostAddress();
+			 serverHostname = welcomeSocket.getInetAddress().getLocalHost().getHostName();
+		}
+		catch (UnknownHostException err)
+		{
+			
+			String otherMsg = "Error determining this host's IP and hostname. This is definitely not a good sign, but the"
+					+ "server will continue execution";
+			ServerClientCommon.printExceptionMsgToConsole(otherMsg, err);
+		}
+	}
+	
+	/**
+	 * Initializes the ServerSocket members, and therefore creates
+	 * a port for this server to have clients connect to.
+	 * The port number is specified by the serverPortNumber member.
+	 * With more than one acceptor, each gets a socket of its own on the port if the OS
+	 * allows it (SO_REUSEPORT), and the OS spreads new connections across them.
+	 * Otherwise the acceptors all accept from one socket.
+	 */
+	private void initWelcomeSockets()
+	{
+		welcomeSockets = new ServerSocket[config.getAcceptorCount()];
+		boolean reusePort = (welcomeSockets.length > 1) && reusePortSupported();
+		try
+		{
+			welcomeSockets[0] = openWelcomeSocket(serverPortNumber, reusePort);
+			for (int i = 1; i < welcomeSockets.length; ++i)
+			{
+				// Bound to the first socket's port, in case the OS picked it
+				welcomeSockets[i] = reusePort ? openWelcomeSocket(welcomeSockets[0].getLocalPort(), true) : welcomeSockets[0];
+			}
+		}
+		catch (IOException err)
+		{
+			String otherMsg = "Unable to create the welcome socket on port: " + serverPortNumber + ". This is a critical failure, and the"
+					+ " server will now exit. Try a different port number.";
+			ServerClientCommon.printExceptionMsgToConsole(otherMsg, err);
+			System.exit(-1);
+		}
+		welcomeSocket = welcomeSockets[0];
+		
+		if (welcomeSockets.length > 1)
+		{
+			log.notice(ServerLogger.Level.INFO, welcomeSockets.length + " acceptors are accepting clients, "
+					+ (reusePort ? "each from its own socket" : "from one socket, since this OS can't give each its own"));
+		}
+	}
+	
+	/**
+	 * @param port The port to listen on
+	 * @param reusePort Whether other sockets may listen on the same port
+	 * @return A socket listening on the port. The SELECTOR engine needs it to be backed by a channel.
+	 * @throws IOException If it couldn't listen on the port
+	 */
+	private ServerSocket openWelcomeSocket(int port, boolean reusePort) throws IOException
+	{
+		if (config.getEngine() == ChatServerConfig.ServerEngine.SELECTOR)
+		{
+			// Accepting stays blocking; only the client channels are non-blocking
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			if (reusePort)
+			{
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			channel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+			return channel.socket();
+		}
+		ServerSocket socket = new ServerSocket();
+		if (reusePort)
+		{
+			socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		socket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+		return socket;
+	}
+	
+	/**
+	 * @return true if the OS lets several sockets listen on one port
+	 */
+	private static boolean reusePortSupported()
+	{
+		try (ServerSocket probe = new ServerSocket())
+		{
+			return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		}
+		catch (IOException err)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates a connection socket for a client trying to connect to to the server.
+	 * This function will block the server until a client tries to connect.
+	 * @param welcomeSocket The socket to accept from
+	 * @return a connection socket that interfaces with the newly-connected client.
+	 */
+	private Socket createConnectionSocket(ServerSocket welcomeSocket)
+	{
+		Socket connectionSocket = null;
+		try
+		{
+			connectionSocket = welcomeSocket.accept();
+		}
+		catch (IOException err)
+		{
+			String otherMsg = "Error in creating a connection socket for an incoming client.";
+			ServerClientCommon.printExceptionMsgToConsole(otherMsg, err);
+		}
+		return connectionSocket;
+	}
+	
+	/**
+	 * The SELECTOR engine's equivalent of createConnectionSocket(). This function will
+	 * block the server until a client tries to connect.
+	 * @param welcomeChannel The channel to accept from
+	 * @return a channel that interfaces with the newly-connected client, or null on failure.
+	 */
+	private SocketChannel createConnectionChannel(ServerSocketChannel welcomeChannel)
+	{
+		SocketChannel connectionChannel = null;
+		try
+		{
+			connectionChannel = welcomeChannel.accept();
+		}
+		catch (IOException err)
+		{
+			String otherMsg = "Error in creating a connection channel for an incoming client.";
+			ServerClientCommon.printExceptionMsgToConsole(otherMsg, err);
+		}
+		return connectionChannel;
+	}
+	
+	///////////////////
+	//  INNER CLASS  //
+	///////////////////
+	
+	/**
+	 * This private class holds everything the server knows about one client's connection
+	 * and implements the chat protocol for it: control messages, relaying to the peer and
+	 * echoing in listen mode. How bytes actually reach the client depends on the engine,
+	 * so each engine provides a subclass which writes out the session's OutboundQueue.
+	 * It's a private nested class, which means it can access all members and
+	 * functions in ChatServer.java, but cannot be accessed from the outside.
+	 */
+	private abstract class ClientSession
+	{
+		///////////////////
+		//  MEMBERS      //
+		///////////////////
+		
+		/**
+		 * The ChatParticipant that identifies this connection.
+		 */
+		final ChatParticipant client;
+		
+		/**
+		 * The client's IP and port in the form IP:Port, used when logging.
+		 */
+		final String clientIpAndSocket;
+		
+		/**
+		 * Messages waiting to be written to the client. Any thread may add to it;
+		 * only the one thread writing to this session at the time takes from it.
+		 */
+		final OutboundQueue outboundQueue;
+		
+		/**
+		 * Messages produced while handling the client's current line, sent once it has been handled.
+		 * Only touched by the thread handling this client's lines.
+		 */
+		private final PendingNotifications notifications = new PendingNotifications();
+		
+		/**
+		 * The names of the rooms this client is in. Only touched by the thread handling this client's lines.
+		 */
+		private final Set<String> joinedRooms = new HashSet<>();
+		
+		/**
+		 * The names of the broadcast channels this client opened. Only touched by the thread handling this client's lines.
+		 */
+		private final Set<String> openedChannels = new HashSet<>();
+		
+		/**
+		 * This client's place in each broadcast channel it subscribes to, by channel name. Added to and removed from
+		 * by the thread handling this client's lines; the writer reads each one and drops those whose channel has closed.
+		 */
+		private final Map<String, BroadcastChannel.Subscription> subscriptions = new ConcurrentHashMap<>();
+		
+		/**
+		 * The name, not connected, that this client's chat messages are being kept for, or null.
+		 * Only touched by the thread handling this client's lines.
+		 */
+		private String mailboxRecipient = null;
+		
+		/**
+		 * The name whose kept messages didn't all fit in the outbound queue, so the rest are
+		 * delivered once the queue has been written out, or null if there's none.
+		 */
+		private final AtomicReference<String> mailboxToFinish = new AtomicReference<>();
+		
+		/**
+		 * The reply agreeing to compress, once the client has asked. The writer starts compressing
+		 * with the frame after it, since the client only expects compressed lines after the reply.
+		 */
+		private volatile OutboundFrame compressionStartsAfter = null;
+		
+		/**
+		 * Compresses long lines to the client once it has agreed. Only used by this session's writer.
+		 */
+		private LineCompression.Compressor outboundCompressor = null;
+		
+		/**
+		 * Decompresses the client's compressed lines once it has asked to compress.
+		 * Only used by the thread handling this client's lines.
+		 */
+		private LineCompression.Decompressor inboundDecompressor = null;
+		
+		/**
+		 * When the client's last line was read, from System.nanoTime(). Written by the thread handling
+		 * this client's lines and read by the idle reaper.
+		 */
+		private volatile long lastHeardNanos = System.nanoTime();
+		
+		/**
+		 * When the client was last sent a heartbeat, from System.nanoTime(). Only used by the reaper.
+		 */
+		private long lastHeartbeatNanos = lastHeardNanos;
+		
+		/**
+		 * Limits the client's chat messages per second.
+		 */
+		private final TokenBucket messageRate = new TokenBucket(config.getMessageRateLimit());
+		
+		/**
+		 * Limits the bytes per second the client sends, whatever kind of line they're in.
+		 */
+		private final TokenBucket byteRate = new TokenBucket(config.getByteRateLimit());
+		
+		/**
+		 * Limits the client's control messages per second, apart from chat messages, so asking
+		 * for the roster over and over can't use up the budget for chatting, or the other way around.
+		 */
+		private final TokenBucket controlRate = new TokenBucket(config.getControlRateLimit());
+		
+		/**
+		 * The time, from System.nanoTime(), before which nothing more should be read from the client because
+		 * it's over a rate limit. Only touched by the thread handling this client's lines.
+		 */
+		long readsPausedUntilNanos = System.nanoTime();
+		
+		/**
+		 * What the client resumes its session with if the server fails over to its standby.
+		 * Replaced by the old token when the client resumes a session.
+		 */
+		volatile String sessionToken = newSessionToken();
+		
+		/**
+		 * When the client was last told it's sending too fast, from System.nanoTime().
+		 * Only touched by the thread handling this client's lines.
+		 */
+		private long lastRateLimitNoticeNanos = readsPausedUntilNanos - RATE_LIMIT_NOTICE_INTERVAL_NANOS;
+		
+		///////////////////
+		// FUNCTIONS     //
+		///////////////////
+		
+		/**
+		 * Constructs a new ClientSession
+		 * @param client The client corresponding to this connection
+		 */
+		ClientSession(ChatParticipant client)
+		{
+			this.client = client;
+			// Has the form <IP>:<Port>
+			this.clientIpAndSocket = client.getSocket().getRemoteSocketAddress().toString().substring(1);
+			this.outboundQueue = new OutboundQueue(config.getOutboundQueueCapacity(), config.getSlowConsumerBytes(),
+					TimeUnit.MILLISECONDS.toNanos(config.getSlowConsumerGraceMillis()), config.getSlowConsumerPolicy(), new OutboundQueue.WatermarkListener() {
+				public void onHighWatermark(int depth)
+				{
+					log.log(ServerLogger.Level.WARN, ServerLogger.Category.BACKPRESSURE, ServerLogger.Message.READING_SLOWLY,
+							clientIpAndSocket, client.getName(), null, depth);
+				}
+				
+				public void onLowWatermark(int depth)
+				{
+					log.log(ServerLogger.Level.INFO, ServerLogger.Category.BACKPRESSURE, ServerLogger.Message.CAUGHT_UP,
+							clientIpAndSocket, client.getName(), null, depth);
+				}
+				
+				public void onSlowConsumer(long pendingBytes)
+				{
+					metrics.slowConsumer();
+					OutboundQueue.SlowConsumerPolicy policy = config.getSlowConsumerPolicy();
+					String action = (policy == OutboundQueue.SlowConsumerPolicy.DROP_OLDEST) ? "Its oldest messages are being dropped."
+							: (policy == OutboundQueue.SlowConsumerPolicy.DROP_NEWEST) ? "New messages to it are being dropped."
+							: "It's being disconnected.";
+					log.log(ServerLogger.Level.WARN, ServerLogger.Category.BACKPRESSURE, ServerLogger.Message.SLOW_CONSUMER,
+							clientIpAndSocket, client.getName(), action, pendingBytes);
+					if (policy == OutboundQueue.SlowConsumerPolicy.DISCONNECT)
+					{
+						metrics.slowConsumerDisconnected();
+						// What's queued won't be read in time, so the notice goes to the front
+						outboundQueue.clear();
+						disconnectWithNotice("SVR: You fell too far behind reading messages, so you've been disconnected.");
+					}
+				}
+				
+				public void onMessagesDropped(OutboundQueue.SlowConsumerPolicy policy, int count)
+				{
+					if (policy == OutboundQueue.SlowConsumerPolicy.DROP_OLDEST)
+					{
+						metrics.addOutboundMessagesDroppedOldest(count);
+					}
+					else
+					{
+						metrics.addOutboundMessagesDropped(count);
+					}
+				}
+			});
+		}
+		
+		/**
+		 * Tells the engine's writer for this session that a message has been queued.
+		 * Called on whichever thread queued it.
+		 */
+		abstract void onMessageQueued();
+		
+		/**
+		 * Tells the engine's writer for this session that a channel it subscribes to has a new message.
+		 * Called on the publisher's thread.
+		 */
+		abstract void onBroadcastPublished();
+		
+		/**
+		 * Close the connection to the client once its writer has written
+		 * everything already in the outbound queue.
+		 */
+		abstract void closeConnection();
+		
+		/**
+		 * Disconnect the client as if it had left: clientDisconnectProcess() runs on the thread
+		 * that handles the client's lines. May be called from any thread.
+		 */
+		abstract void disconnectClient();
+		
+		/**
+		 * Close the connection at once, dropping whatever is still queued. Called on the
+		 * reaper's thread if a disconnected client still hasn't been closed after a grace period.
+		 */
+		abstract void forceClose();
+		
+		/**
+		 * Finish handling the client's current line once another node of the cluster has answered.
+		 * Nothing more from the client is handled until the continuation has run, so its lines are
+		 * still handled in order, and the continuation runs on the thread handling the client's lines.
+		 * The client may have left by then. Whatever the continuation sends the client is sent once it's done.
+		 * @param answer The other node's answer
+		 * @param continuation Handles the answer
+		 */
+		abstract <T> void continueAfter(CompletableFuture<T> answer, Consumer<T> continuation);
+		
+		/**
+		 * Disconnect the client, and have the reaper close it if its engine hasn't by the end of the grace period.
+		 * The notice is queued first, so it's sent if the client can still be written to.
+		 * May be called from any thread.
+		 * @param notice The last message to the client
+		 */
+		void disconnectWithNotice(String notice)
+		{
+			enqueueFrame(OutboundFrame.encode(notice));
+			disconnectClient();
+			reaper.schedule(nowNanos -> {
+				if (!client.getSocket().isClosed())
+				{
+					forceClose();
+				}
+				return -1;
+			}, CLOSE_GRACE_NANOS);
+		}
+		
+		/**
+		 * The reaper's check of this session, run whenever its next heartbeat or timeout is due.
+		 * A client that has sent nothing for the heartbeat interval is sent a heartbeat, and one that
+		 * has sent nothing for the idle timeout is disconnected. Called on the reaper's thread.
+		 * @param nowNanos The time, from System.nanoTime()
+		 * @return The nanoseconds until the session should be checked again, or -1 once it's closed
+		 */
+		long checkIdle(long nowNanos)
+		{
+			if (client.getSocket().isClosed())
+			{
+				return -1;
+			}
+			
+			long heardNanos = lastHeardNanos;
+			long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getIdleTimeoutSeconds());
+			long heartbeatNanos = TimeUnit.SECONDS.toNanos(config.getHeartbeatIntervalSeconds());
+			if (idleTimeoutNanos > 0 && nowNanos - heardNanos >= idleTimeoutNanos)
+			{
+				log.log(ServerLogger.Level.INFO, ServerLogger.Category.CONNECTION, ServerLogger.Message.TIMED_OUT,
+						clientIpAndSocket, client.getName(), null, config.getIdleTimeoutSeconds());
+				metrics.idleConnectionClosed();
+				disconnectWithNotice("SVR: You sent nothing for " + config.getIdleTimeoutSeconds() + " seconds, so you've been disconnected.");
+				return -1;
+			}
+			
+			long nextCheckNanos = Long.MAX_VALUE;
+			if (heartbeatNanos > 0)
+			{
+				// Quiet since whichever came last: the client's last line or the last heartbeat
+				long quietSinceNanos = (heardNanos - lastHeartbeatNanos > 0) ? heardNanos : lastHeartbeatNanos;
+				if (nowNanos - quietSinceNanos >= heartbeatNanos)
+				{
+					enqueueFrame(HEARTBEAT_FRAME);
+					metrics.heartbeatSent();
+					lastHeartbeatNanos = nowNanos;
+					quietSinceNanos = nowNanos;
+				}
+				nextCheckNanos = quietSinceNanos + heartbeatNanos - nowNanos;
+			}
+			if (idleTimeoutNanos > 0)
+			{
+				nextCheckNanos = Math.min(nextCheckNanos, heardNanos + idleTimeoutNanos - nowNanos);
+			}
+			return nextCheckNanos;
+		}
+		
+		/**
+		 * Send a message to the client directly whom this session corresponds to.
+		 * The message is held until the current line, connection or disconnection
+		 * has been handled, then sent along with everything else for this client.
+		 * @param msgToSend The message to send
+		 */
+		void sendMessageToClient(String msgToSend)
+		{
+			notifications.add(client, msgToSend);
+		}
+		
+		/**
+		 * Add messages to this client's outbound queue. This never waits on the client's
+		 * socket and may be called from any thread. If the client has fallen so far behind
+		 * that its queue is full, or it's a slow consumer, the slow consumer policy decides
+		 * what's dropped (see OutboundQueue).
+		 * @param framesToSend The encoded messages, in order
+		 * @return The number of messages queued
+		 */
+		int enqueueMessages(List<OutboundFrame> framesToSend)
+		{
+			int queued = outboundQueue.offerAll(framesToSend);
+			if (queued > 0)
+			{
+				onMessageQueued();
+			}
+			return queued;
+		}
+		
+		/**
+		 * Add one encoded message to this client's outbound queue, like enqueueMessages().
+		 * The frame isn't copied, so the same frame can be queued for any number of clients.
+		 * @param frame The encoded message
+		 */
+		void enqueueFrame(OutboundFrame frame)
+		{
+			if (outboundQueue.offer(frame))
+			{
+				onMessageQueued();
+			}
+		}
+		
+		/**
+		 * Take unread messages from the broadcast channels this client subscribes to, and stop
+		 * reading channels that have closed. Only called by this session's writer.
+		 * @param batch Receives the messages
+		 * @param maxMessages The most messages the batch should hold
+		 * @return true if there are unread broadcast messages that didn't fit
+		 */
+		boolean pollSubscriptions(List<OutboundFrame> batch, int maxMessages)
+		{
+			boolean unreadLeft = false;
+			for (BroadcastChannel.Subscription subscription : subscriptions.values())
+			{
+				if (batch.size() < maxMessages)
+				{
+					long missed = subscription.poll(batch, maxMessages - batch.size());
+					if (missed > 0)
+					{
+						metrics.addBroadcastMessagesMissed(missed);
+					}
+				}
+				if (subscription.isFinished())
+				{
+					subscriptions.remove(subscription.getChannel().getName(), subscription);
+				}
+				else if (subscription.hasUnread())
+				{
+					unreadLeft = true;
+				}
+			}
+			return unreadLeft;
+		}
+		
+		/**
+		 * Compress the long messages in a batch about to be written, if the client has agreed to
+		 * compress and the reply saying so has been written. Only called by this session's writer.
+		 * @param batch The frames to be written, in order. Compressed frames replace the originals.
+		 */
+		void compressForClient(List<OutboundFrame> batch)
+		{
+			if (outboundCompressor == null && compressionStartsAfter == null)
+			{
+				return;
+			}
+			for (int i = 0; i < batch.size(); ++i)
+			{
+				OutboundFrame frame = batch.get(i);
+				if (outboundCompressor != null)
+				{
+					OutboundFrame compressed = frame.compressWith(outboundCompressor);
+					if (compressed != frame)
+					{
+						metrics.addCompressionBytesSaved(frame.length() - compressed.length());
+						batch.set(i, compressed);
+					}
+				}
+				else if (frame == compressionStartsAfter)
+				{
+					outboundCompressor = new LineCompression.Compressor(config.getCompressionThreshold(), LineCompression.DEFAULT_LEVEL);
+					compressionStartsAfter = null;
+				}
+			}
+		}
+		
+		/**
+		 * Release the memory used to compress lines to the client. Only called by this session's writer, once it's done.
+		 */
+		void endOutboundCompression()
+		{
+			if (outboundCompressor != null)
+			{
+				outboundCompressor.end();
+				outboundCompressor = null;
+			}
+		}
+		
+		/**
+		 * Send everything held in notifications. Called once the state changes that produced them
+		 * are complete, so sending never happens in the middle of one.
+		 */
+		void deliverNotifications()
+		{
+			notifications.deliverAll((recipient, framesToSend) -> {
+				// A peer on another node of the cluster gets its messages through that node
+				if (recipient.isRemote())
+				{
+					for (OutboundFrame frame : framesToSend)
+					{
+						cluster.relay(recipient.getNodeId(), recipient.getRemoteId(), client.getId(), frame);
+					}
+					return;
+				}
+				// Get the session for the recipient. It's null if the recipient left in the meantime.
+				ClientSession recipientSession = (recipient == client) ? this : registry.getSession(recipient);
+				if (recipientSession != null)
+				{
+					recipientSession.enqueueMessages(framesToSend);
+				}
+			});
+		}
+		
+		/**
+		 * Handles one line received from the client, then sends the messages it produced.
+		 * @param newMessage The line, without its line terminator
+		 * @param lineBytes The bytes the line took on the wire, counting one for its terminator
+		 * @return Whether or not the client should continue; true = continue
+		 * 		   interacting with the client, false = close connection
+		 */
+		boolean processLineFromClient(String newMessage, int lineBytes)
+		{
+			long startNanos = System.nanoTime();
+			lastHeardNanos = startNanos;
+			metrics.addBytesIn(lineBytes);
+			try
+			{
+				if (inboundDecompressor != null && LineCompression.Decompressor.isCompressed(newMessage))
+				{
+					String compressedMessage = newMessage;
+					try
+					{
+						newMessage = inboundDecompressor.decompress(compressedMessage);
+					}
+					catch (DataFormatException err)
+					{
+						// Nothing after this can be decompressed either, so the client has to go
+						log.notice(ServerLogger.Level.WARN, clientIpAndSocket + "(" + client.getName() + ") sent a line that couldn't be decompressed: "
+								+ err.getMessage());
+						return false;
+					}
+					metrics.addCompressionBytesSaved(newMessage.length() - compressedMessage.length());
+				}
+				chargeRateLimits(newMessage, lineBytes, startNanos);
+				return handleLineFromClient(newMessage);
+			}
+			finally
+			{
+				deliverNotifications();
+				metrics.recordHandlerLatency(System.nanoTime() - startNanos);
+			}
+		}
+		
+		/**
+		 * Charge a line to the client's rate limits. The line is still handled, but once the client
+		 * is over a limit, readsPausedUntilNanos is moved to when it'll be back within it, and the
+		 * engine reads nothing more from the client until then. The client is told why, though not
+		 * more than once every RATE_LIMIT_NOTICE_INTERVAL_NANOS.
+		 * @param line The line, decompressed
+		 * @param lineBytes The bytes the line took on the wire
+		 * @param nowNanos The time, from System.nanoTime()
+		 */
+		private void chargeRateLimits(String line, int lineBytes, long nowNanos)
+		{
+			// A heartbeat's answer is a control message, so it never counts as a chat message,
+			// but it's charged like any other line, or answering in a loop would never be slowed down
+			long waitNanos = byteRate.charge(lineBytes, nowNanos);
+			TokenBucket countRate = isControlMessage(line) ? controlRate : messageRate;
+			waitNanos = Math.max(waitNanos, countRate.charge(1, nowNanos));
+			if (waitNanos == 0)
+			{
+				return;
+			}
+			
+			readsPausedUntilNanos = nowNanos + waitNanos;
+			metrics.lineOverRateLimit();
+			if (nowNanos - lastRateLimitNoticeNanos >= RATE_LIMIT_NOTICE_INTERVAL_NANOS)
+			{
+				lastRateLimitNoticeNanos = nowNanos;
+				enqueueFrame(RATE_LIMIT_NOTICE_FRAME);
+				metrics.rateLimitNoticeSent();
+				log.log(ServerLogger.Level.INFO, ServerLogger.Category.BACKPRESSURE, ServerLogger.Message.RATE_LIMITED,
+						clientIpAndSocket, client.getName(), null, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+			}
+		}
+		
+		/**
+		 * @param line A line from the client
+		 * @return Whether the line only answers a heartbeat
+		 */
+		private boolean isHeartbeatAnswer(String line)
+		{
+			return line.equals(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + ServerClientCommon.HEARTBEAT);
+		}
+		
+		/**
+		 * @param line A line from the client
+		 * @return The line, unless it's taking the admin name with the admin secret, which is then left out of it
+		 */
+		private String withoutAdminSecret(String line)
+		{
+			String adminName = config.getAdminName();
+			if (adminName == null || config.getAdminSecret() == null)
+			{
+				return line;
+			}
+			String nameRequest = ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + ServerClientCommon.SET_USERNAME;
+			// Leading whitespace is trimmed off the name when it's handled, so it's skipped here too
+			if (line.startsWith(nameRequest) && line.substring(nameRequest.length()).trim()
+					.startsWith(adminName + ServerClientCommon.ADMIN_SECRET_SEPARATOR))
+			{
+				return nameRequest + adminName + ServerClientCommon.ADMIN_SECRET_SEPARATOR + "<secret>";
+			}
+			return line;
+		}
+		
+		/**
+		 * Handles one line received from the client.
+		 * @param newMessage The line, without its line terminator
+		 * @return Whether or not the client should continue; true = continue
+		 * 		   interacting with the client, false = close connection
+		 */
+		private boolean handleLineFromClient(String newMessage)
+		{
+			// The answer to a heartbeat only shows that the client is there, which processLineFromClient() has noted
+			if (isHeartbeatAnswer(newMessage))
+			{
+				return true;
+			}
+			
+			// Have the server log the message. Chat messages may be sampled, so not every one is logged.
+			ServerLogger.Category category = isControlMessage(newMessage) ? ServerLogger.Category.CONTROL : ServerLogger.Category.CHAT;
+			log.log(ServerLogger.Level.INFO, category, ServerLogger.Message.CLIENT_LINE, clientIpAndSocket, client.getName(), withoutAdminSecret(newMessage), 0);
+			
+			// An exit control message will result in handleControlMessage() returning false,
+			// which will result in disconnect.
+			if (isControlMessage(newMessage))
+			{
+				metrics.controlMessageHandled();
+				return handleControlMessage(newMessage);
+			}
+			
+			// If the client is in listen mode, echo received messages.
+			// If it's not in listen mode (and therefore is connected 
+			// to another client), pass the message to the other client.
+			// The pairing is read once, so the message goes to whoever the peer was at that instant.
+			ChatParticipant peer = client.getPeer();
+			if (peer != null)
+			{
+				sendMessageToParticipant(peer, client.getName() + ": " + newMessage);
+				metrics.messageRelayed();
+				if (history != null)
+				{
+					history.record(client.getName(), peer.getName(), newMessage);
+					metrics.historyMessageRecorded();
+				}
+			}
+			else if (mailboxRecipient != null)
+			{
+				leaveMessageInMailbox(newMessage);
+			}
+			else
+			{
+				echoMessageToClient(newMessage);
+				metrics.messageEchoed();
+			}
+			return true;
+		}
+		
+		/**
+		 * Handles the actions after the last line from the client. Specifically, this terminates the connection to the client
+		 * and its peer (if necessary), removes this client's data from the hash tables, closes the socket
+		 * to the client, and logs that the client has left
+		 */
+		void clientDisconnectProcess()
+		{
+			// End the client's chat, if it's in one, and make sure nobody can pair with it from here on.
+			// If the client was in the middle of chatting when they decided to leave,
+			// let their partner know
+			ChatParticipant formerPeer = client.leave();
+			if (formerPeer != null)
+			{
+				tellFormerPeerChatEnded(formerPeer);
+				replicate(formerPeer);
+			}
+			// Leave every room the client is in, letting the other members know
+			for (String roomName : new ArrayList<>(joinedRooms))
+			{
+				leaveRoom(roomName);
+			}
+			// Close the channels it opened, and stop reading the ones it subscribes to
+			for (String channelName : new ArrayList<>(openedChannels))
+			{
+				closeChannel(channelName);
+			}
+			for (BroadcastChannel.Subscription subscription : subscriptions.values())
+			{
+				subscription.getChannel().unsubscribe(subscription);
+			}
+			subscriptions.clear();
+			deliverNotifications();
+			if (inboundDecompressor != null)
+			{
+				inboundDecompressor.end();
+			}
+			
+			// At this point, the server is disconnecting from the client.
+			// Free its name and forget its session
+			registry.remove(client);
+			replicate(client);
+			if (cluster != null)
+			{
+				cluster.release(client.getName());
+			}
+			releaseClientDefaultName(client);
+			metrics.connectionClosed();
+			
+			// Close the socket that connects the server and client
+			// The server will always be the one to initiate a close
+			// (provided the client didn't exit abnormally)
+			closeConnection();
+			
+			// Log that the client and server are disconnected
+			log.log(ServerLogger.Level.INFO, ServerLogger.Category.CONNECTION, ServerLogger.Message.CLIENT_LEFT,
+					clientIpAndSocket, client.getName(), null, 0);
+		}
+		
+		
+		/**
+		 * Called once the connection to the client is ready to be written to and the client has its
+		 * default name, in order to setup the client connection. It logs a a client has been connected,
+		 * records this ChatParticipant's session in the registry, and greets the client.
+		 */
+		void clientConnectionInitialization()
+		{		
+			// Print to the server's console indicating that a new client has connected
+			log.log(ServerLogger.Level.INFO, ServerLogger.Category.CONNECTION, ServerLogger.Message.CLIENT_CONNECTED,
+					clientIpAndSocket, null, null, 0);
+			
+			// Record this client's session so that others can send to it
+			registry.putSession(client, this);
+			replicate(client);
+			metrics.connectionAccepted();
+			
+			// Introduce yourself to the client
+			sendMessageToClient(ServerClientCommon.WELCOME_MESSAGE + serverIpAddr + "/" + serverHostname + ":" + serverPortNumber);
+			sendMessageToClient("SVR: You've been given the default name: " + client.getName());
+			deliverNotifications();
+			
+			// Have the reaper check on the client once its first heartbeat or timeout is due
+			if (config.getIdleTimeoutSeconds() != 0 || config.getHeartbeatIntervalSeconds() != 0)
+			{
+				int firstCheckSeconds = (config.getHeartbeatIntervalSeconds() == 0) ? config.getIdleTimeoutSeconds()
+						: (config.getIdleTimeoutSeconds() == 0) ? config.getHeartbeatIntervalSeconds()
+						: Math.min(config.getHeartbeatIntervalSeconds(), config.getIdleTimeoutSeconds());
+				reaper.schedule(this::checkIdle, TimeUnit.SECONDS.toNanos(firstCheckSeconds));
+			}
+		}
+		
+		/**
+		 * Sends a message to another client, ex: this client's peer. Like sendMessageToClient(),
+		 * the message is held until the current line has been handled.
+		 * @param participant The client to send to
+		 * @param msgToSend The message, exactly as the client should receive it
+		 */
+		void sendMessageToParticipant(ChatParticipant participant, String msgToSend)
+		{
+			notifications.add(participant, msgToSend);
+		}
+		
+		/**
+		 * Determine if the parameter is a control message. A control message
+		 * starts with the CONTROL_MESSAGE_SPECIFIER string ("C0NTR0L:")
+		 * @param msgLine The string in question
+		 * @return true if the message is a control message, false otherwise
+		 */
+		boolean isControlMessage(String msgLine)
+		{
+			return msgLine.startsWith(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER);
+		}
+		
+		/**
+		 * Performs actions based on control messages. The parser picks the command from the
+		 * start of the message and runs the handler registered for it.
+		 * @param controlMsgLine The line containing the control message
+		 * @return Whether or not the client should continue; true = continue
+		 * 		   interacting with the client, false = close connection
+		 */
+		boolean handleControlMessage(String controlMsgLine)
+		{
+			return controlMessageParser.dispatch(this, controlMsgLine);
+		}
+		
+		/**
+		 * When the client wants to end the connection to the server with a
+		 * DISCONNECT_FROM_SERVER message, say goodbye.
+		 * @return false, so that the connection is closed
+		 */
+		private boolean disconnectControlMsgHandler()
+		{
+			sendMessageToClient("SVR: CLOSING CONNECTION. SEE YOU LATER, " + client.getName());
+			return false;
+		}
+		
+		/**
+		 * The handler for the ENABLE_COMPRESSION ("ENABLE COMPRESSION=") control message. From now on,
+		 * the client's compressed lines are decompressed, and once the reply has been written, long
+		 * lines to the client are compressed.
+		 * @param compressionArg Every character following the "=" sign in the control message: the compression wanted
+		 */
+		void enableCompressionControlMsgHandler(CharSequence compressionArg)
+		{
+			String compression = compressionArg.toString();
+			if (config.getCompressionThreshold() == 0)
+			{
+				sendMessageToClient("SVR: This server doesn't compress.");
+			}
+			else if (!LineCompression.DEFLATE.equals(compression))
+			{
+				sendMessageToClient("SVR: \"" + compression + "\" isn't offered. This server only compresses with \"" + LineCompression.DEFLATE + "\".");
+			}
+			else if (inboundDecompressor != null)
+			{
+				sendMessageToClient("SVR: Compression is already enabled.");
+			}
+			else
+			{
+				inboundDecompressor = new LineCompression.Decompressor();
+				// Queued straight away rather than held with the other notifications, so the writer can recognize it
+				OutboundFrame reply = OutboundFrame.encode(ServerClientCommon.COMPRESSION_ENABLED + LineCompression.DEFLATE);
+				compressionStartsAfter = reply;
+				enqueueFrame(reply);
+				metrics.connectionCompressed();
+			}
+		}
+		
+		/**
+		 * The handler for the GET_SESSION_TOKEN ("GET SESSION TOKEN") control message.
+		 */
+		private void getSessionTokenControlMsgHandler()
+		{
+			sendMessageToClient(ServerClientCommon.SESSION_TOKEN + sessionToken);
+		}
+		
+		/**
+		 * The handler for the RESUME_SESSION ("RESUME SESSION=") control message, sent by a client
+		 * of the primary this server took over from. The client gets back the name it had then,
+		 * and its peer once that client has resumed too. It keeps its old token, so it can resume
+		 * again should this server fail over in turn.
+		 * @param tokenArg Every character following the "=" sign in the control message
+		 */
+		void resumeSessionControlMsgHandler(CharSequence tokenArg)
+		{
+			// Only one client can remove the session, however many try the token at once
+			ResumableSession resumable = resumableSessions.remove(tokenArg.toString().trim());
+			if (resumable == null || !registry.takeOver(resumable.placeholder, client))
+			{
+				sendMessageToClient("SVR: There's no session to resume with that token. It has expired, or was resumed already.");
+				return;
+			}
+			// If that was their default name, another client can have it now
+			releaseClientDefaultName(client);
+			sessionToken = tokenArg.toString().trim();
+			replicate(client);
+			metrics.sessionResumed();
+			sendMessageToClient("SVR: Your session has been resumed. Your username has been set to \"" + client.getName() + "\"");
+			
+			// Hand them anything left for their name while they were away
+			if (mailbox != null)
+			{
+				deliverMailbox(client.getName(), false);
+			}
+			if (resumable.peerToken != null)
+			{
+				rejoinPeer(resumable);
+			}
+		}
+		
+		/**
+		 * Connect a client that has just resumed its session with its peer from before the failover.
+		 * Whichever of the two resumes first waits for the other in listen mode. Both put themselves
+		 * under the same key, so exactly one of them finds the other.
+		 * @param resumable The session the client resumed
+		 */
+		private void rejoinPeer(ResumableSession resumable)
+		{
+			String reunionKey = (sessionToken.compareTo(resumable.peerToken) < 0) ? sessionToken + " " + resumable.peerToken
+					: resumable.peerToken + " " + sessionToken;
+			ChatParticipant waitingPeer = reunions.putIfAbsent(reunionKey, client);
+			if (waitingPeer == null)
+			{
+				sendMessageToClient("SVR: You'll be connected with \"" + resumable.peerName + "\" again once they're back.");
+				return;
+			}
+			reunions.remove(reunionKey, waitingPeer);
+			connectToOtherClient(waitingPeer);
+		}
+		
+		/**
+		 * When the user requests their own name with a
+		 * GET_MY_NAME message, send it to them.
+		 */
+		private void getMyNameControlMsgHandler()
+		{
+			sendMessageToClient("SVR: Your name is: \"" + client.getName() + "\"");
+		}
+		
+		/**
+		 * When the administrator requests the server's statistics with a
+		 * GET_SERVER_STATS message, send them on one line. Anyone else is refused.
+		 */
+		private void getServerStatsControlMsgHandler()
+		{
+			String adminName = config.getAdminName();
+			if (adminName != null && adminName.equals(client.getName()))
+			{
+				sendMessageToClient("SVR: Server stats: " + metrics.format("; "));
+			}
+			else
+			{
+				sendMessageToClient("SVR: Only the server's administrator may request server statistics");
+			}
+		}
+		
+		/**
+		 * The handler for the JOIN_ROOM ("JOIN ROOM=") control message. Adds the client to the room,
+		 * creating it if it's empty, and tells the room's other members.
+		 * @param roomNameArg Every character following the "=" sign in the control message: the room's name
+		 */
+		void joinRoomControlMsgHandler(CharSequence roomNameArg)
+		{
+			String roomName = roomNameArg.toString();
+			if (roomName.trim().isEmpty() || roomName.indexOf(ServerClientCommon.ROOM_NAME_TERMINATOR) >= 0)
+			{
+				sendMessageToClient("SVR: \"" + roomName + "\" is not a valid room name. Room names can't be blank or contain \""
+						+ ServerClientCommon.ROOM_NAME_TERMINATOR + "\".");
+				return;
+			}
+			if (!joinedRooms.add(roomName))
+			{
+				sendMessageToClient("SVR: You're already in room \"" + roomName + "\".");
+				return;
+			}
+			
+			ChatRoom<ClientSession> room = rooms.join(roomName, client, this);
+			sendMessageToClient("SVR: You joined room \"" + roomName + "\", which has " + room.size() + " member(s).");
+			sendToRoom(room, OutboundFrame.encode("SVR: User \"" + client.getName() + "\" has joined room \"" + roomName + "\"."));
+		}
+		
+		/**
+		 * The handler for the LEAVE_ROOM ("LEAVE ROOM=") control message.
+		 * @param roomNameArg Every character following the "=" sign in the control message: the room's name
+		 */
+		void leaveRoomControlMsgHandler(CharSequence roomNameArg)
+		{
+			String roomName = roomNameArg.toString();
+			if (!joinedRooms.contains(roomName))
+			{
+				sendMessageToClient("SVR: You aren't in room \"" + roomName + "\".");
+				return;
+			}
+			leaveRoom(roomName);
+			sendMessageToClient("SVR: You left room \"" + roomName + "\".");
+		}
+		
+		/**
+		 * Take the client out of a room it's in, and tell the room's other members.
+		 * @param roomName The room's name
+		 */
+		private void leaveRoom(String roomName)
+		{
+			joinedRooms.remove(roomName);
+			ChatRoom<ClientSession> room = rooms.leave(roomName, client);
+			if (room != null && !room.isEmpty())
+			{
+				sendToRoom(room, OutboundFrame.encode("SVR: User \"" + client.getName() + "\" has left room \"" + roomName + "\"."));
+			}
+		}
+		
+		/**
+		 * The handler for the GET_ROOM_MEMBERS ("GET ROOM MEMBERS=") control message.
+		 * Sends one page of the names of a room's members.
+		 * @param roomArg Every character following the "=" sign in the control message: the room's name,
+		 * 		  optionally followed by a comma and the page number (ex: "lobby" or "lobby,2")
+		 */
+		void getRoomMembersControlMsgHandler(CharSequence roomArg)
+		{
+			String roomAndPage = roomArg.toString();
+			int commaIndex = roomAndPage.indexOf(ServerClientCommon.ROOM_NAME_TERMINATOR);
+			String roomName = (commaIndex < 0) ? roomAndPage : roomAndPage.substring(0, commaIndex);
+			String pageNumberText = (commaIndex < 0) ? "1" : roomAndPage.substring(commaIndex + 1);
+			
+			int pageNumber;
+			try
+			{
+				pageNumber = Integer.parseInt(pageNumberText.trim());
+			}
+			catch (NumberFormatException err)
+			{
+				sendMessageToClient("SVR: \"" + pageNumberText + "\" is not a valid page number");
+				return;
+			}
+			
+			ChatRoom<ClientSession> room = rooms.getRoom(roomName);
+			if (room == null)
+			{
+				sendMessageToClient("SVR: Nobody is in room \"" + roomName + "\".");
+				return;
+			}
+			RosterSnapshot members = new RosterSnapshot(0, room.getMemberNames(), ServerClientCommon.ROSTER_PAGE_SIZE);
+			int pageCount = members.pageCountMatching("");
+			if (pageNumber < 1 || pageNumber > pageCount)
+			{
+				sendMessageToClient("SVR: There is no page " + pageNumber + ". The members of room \"" + roomName + "\" fill " + pageCount + " page(s).");
+			}
+			else
+			{
+				sendMessageToClient("SVR: Members of room \"" + roomName + "\" (page " + pageNumber + " of " + pageCount + "): " + members.getPage("", pageNumber));
+			}
+		}
+		
+		/**
+		 * The handler for the SEND_TO_ROOM ("SEND TO ROOM=") control message. The message is
+		 * encoded once, and that one frame is queued for every other member of the room.
+		 * @param roomAndMessageArg Every character following the "=" sign in the control message:
+		 * 		  the room's name, a comma, then the message (ex: "lobby,hello everyone")
+		 */
+		void sendToRoomControlMsgHandler(CharSequence roomAndMessageArg)
+		{
+			String roomAndMessage = roomAndMessageArg.toString();
+			int commaIndex = roomAndMessage.indexOf(ServerClientCommon.ROOM_NAME_TERMINATOR);
+			if (commaIndex < 0)
+			{
+				sendMessageToClient("SVR: Room messages have the form <room>" + ServerClientCommon.ROOM_NAME_TERMINATOR + "<message>");
+				return;
+			}
+			String roomName = roomAndMessage.substring(0, commaIndex);
+			if (!joinedRooms.contains(roomName))
+			{
+				sendMessageToClient("SVR: You aren't in room \"" + roomName + "\". Join it before sending to it.");
+				return;
+			}
+			ChatRoom<ClientSession> room = rooms.getRoom(roomName);
+			if (room != null)
+			{
+				metrics.roomMessageSent();
+				sendToRoom(room, OutboundFrame.encode("[" + roomName + "] " + client.getName() + ": " + roomAndMessage.substring(commaIndex + 1)));
+			}
+		}
+		
+		/**
+		 * Queue a frame for every member of a room but this client, once the current line has been handled.
+		 * @param room The room
+		 * @param frame The encoded message, shared by every member's queue
+		 */
+		private void sendToRoom(ChatRoom<ClientSession> room, OutboundFrame frame)
+		{
+			notifications.addFanOut(() -> {
+				long[] deliveries = new long[1];
+				room.forEachMember((member, memberSession) -> {
+					if (member != client)
+					{
+						memberSession.enqueueFrame(frame);
+						++deliveries[0];
+					}
+				});
+				metrics.addRoomDeliveries(deliveries[0]);
+			});
+		}
+		
+		/**
+		 * The handler for the OPEN_CHANNEL ("OPEN CHANNEL=") control message. The client becomes
+		 * the only publisher of a new broadcast channel.
+		 * @param channelNameArg Every character following the "=" sign in the control message: the channel's name
+		 */
+		void openChannelControlMsgHandler(CharSequence channelNameArg)
+		{
+			String channelName = channelNameArg.toString();
+			if (channelName.trim().isEmpty() || channelName.indexOf(ServerClientCommon.CHANNEL_NAME_TERMINATOR) >= 0)
+			{
+				sendMessageToClient("SVR: \"" + channelName + "\" is not a valid channel name. Channel names can't be blank or contain \""
+						+ ServerClientCommon.CHANNEL_NAME_TERMINATOR + "\".");
+				return;
+			}
+			BroadcastChannel channel = new BroadcastChannel(channelName, client, config.getBroadcastRingCapacity());
+			if (channels.putIfAbsent(channelName, channel) != null)
+			{
+				sendMessageToClient("SVR: Channel \"" + channelName + "\" is already open.");
+				return;
+			}
+			openedChannels.add(channelName);
+			sendMessageToClient("SVR: You opened channel \"" + channelName + "\". Only you may publish to it.");
+		}
+		
+		/**
+		 * The handler for the CLOSE_CHANNEL ("CLOSE CHANNEL=") control message.
+		 * @param channelNameArg Every character following the "=" sign in the control message: the channel's name
+		 */
+		void closeChannelControlMsgHandler(CharSequence channelNameArg)
+		{
+			String channelName = channelNameArg.toString();
+			if (!openedChannels.contains(channelName))
+			{
+				sendMessageToClient("SVR: You haven't opened channel \"" + channelName + "\".");
+				return;
+			}
+			closeChannel(channelName);
+			sendMessageToClient("SVR: You closed channel \"" + channelName + "\".");
+		}
+		
+		/**
+		 * Close a channel this client opened, once the current line has been handled. Its subscribers
+		 * are told, and stop reading it once they have read everything published before.
+		 * @param channelName The channel's name
+		 */
+		private void closeChannel(String channelName)
+		{
+			openedChannels.remove(channelName);
+			BroadcastChannel channel = channels.remove(channelName);
+			OutboundFrame closedNotice = OutboundFrame.encode("SVR: Channel \"" + channelName + "\" has been closed.");
+			notifications.addFanOut(() -> channel.close(closedNotice));
+		}
+		
+		/**
+		 * The handler for the SUBSCRIBE_TO_CHANNEL ("SUBSCRIBE TO CHANNEL=") control message.
+		 * The client receives every message published to the channel from now on.
+		 * @param channelNameArg Every character following the "=" sign in the control message: the channel's name
+		 */
+		void subscribeToChannelControlMsgHandler(CharSequence channelNameArg)
+		{
+			String channelName = channelNameArg.toString();
+			BroadcastChannel channel = channels.get(channelName);
+			BroadcastChannel.Subscription current = subscriptions.get(channelName);
+			if (channel != null && current != null && current.getChannel() == channel)
+			{
+				sendMessageToClient("SVR: You're already subscribed to channel \"" + channelName + "\".");
+				return;
+			}
+			BroadcastChannel.Subscription subscription = (channel == null) ? null : channel.subscribe(this::onBroadcastPublished);
+			if (subscription == null)
+			{
+				sendMessageToClient("SVR: There is no channel \"" + channelName + "\".");
+				return;
+			}
+			subscriptions.put(channelName, subscription);
+			sendMessageToClient("SVR: You subscribed to channel \"" + channelName + "\", which has " + channel.getSubscriberCount() + " subscriber(s).");
+		}
+		
+		/**
+		 * The handler for the UNSUBSCRIBE_FROM_CHANNEL ("UNSUBSCRIBE FROM CHANNEL=") control message.
+		 * @param channelNameArg Every character following the "=" sign in the control message: the channel's name
+		 */
+		void unsubscribeFromChannelControlMsgHandler(CharSequence channelNameArg)
+		{
+			String channelName = channelNameArg.toString();
+			BroadcastChannel.Subscription subscription = subscriptions.remove(channelName);
+			if (subscription == null)
+			{
+				sendMessageToClient("SVR: You aren't subscribed to channel \"" + channelName + "\".");
+				return;
+			}
+			subscription.getChannel().unsubscribe(subscription);
+			sendMessageToClient("SVR: You unsubscribed from channel \"" + channelName + "\".");
+		}
+		
+		/**
+		 * The handler for the PUBLISH_TO_CHANNEL ("PUBLISH TO CHANNEL=") control message. The message is
+		 * encoded once and appended to the channel's ring, where every subscriber's writer reads it.
+		 * @param channelAndMessageArg Every character following the "=" sign in the control message:
+		 * 		  the channel's name, a comma, then the message (ex: "news,the server restarts at noon")
+		 */
+		void publishToChannelControlMsgHandler(CharSequence channelAndMessageArg)
+		{
+			String channelAndMessage = channelAndMessageArg.toString();
+			int commaIndex = channelAndMessage.indexOf(ServerClientCommon.CHANNEL_NAME_TERMINATOR);
+			if (commaIndex < 0)
+			{
+				sendMessageToClient("SVR: Channel messages have the form <channel>" + ServerClientCommon.CHANNEL_NAME_TERMINATOR + "<message>");
+				return;
+			}
+			String channelName = channelAndMessage.substring(0, commaIndex);
+			if (!openedChannels.contains(channelName))
+			{
+				sendMessageToClient("SVR: You haven't opened channel \"" + channelName + "\". Only a channel's publisher may publish to it.");
+				return;
+			}
+			BroadcastChannel channel = channels.get(channelName);
+			OutboundFrame frame = OutboundFrame.encode("[" + channelName + " broadcast] " + client.getName() + ": "
+					+ channelAndMessage.substring(commaIndex + 1));
+			metrics.broadcastMessagePublished();
+			// Published from this client's thread, which is what keeps the channel single-producer
+			notifications.addFanOut(() -> channel.publish(frame));
+		}
+		
+		/**
+		 * If none of the registered control messages match the message that the client
+		 * passed (that started with "C0NTR0L:"), tell them that the message was invalid.
+		 * @param controlMsgLine The whole control message
+		 * @return true, since the client and server are to stay connected
+		 */
+		private boolean invalidControlMsgHandler(CharSequence controlMsgLine)
+		{
+			sendMessageToClient("SVR: \"" + controlMsgLine + "\" is not a valid control message");
+			return true;
+		}
+		
+		/**
+		 * When the user requests their peer's name with a
+		 * GET_MY_PEERS_NAME message, send them the desired info.
+		 */
+		private void getMyPeersNameControlMsgHandler()
+		{
+			ChatParticipant peer = client.getPeer();
+			if (peer == null)
+			{
+				sendMessageToClient("SVR: Your are not connected to another user; your peer's name is: " + ServerClientCommon.LISTENER_SPECIFIER);
+			}
+			else
+			{
+				sendMessageToClient("SVR: Your peer's name is: " + peer.getName());
+			}
+		}
+		
+		/**
+		 * Send the requesting client a comma separated list of names of clients connected to this server.
+		 * If there are too many to fit on one page, only the first page is sent, and the client
+		 * is told how many pages there are.
+		 */
+		void getListOfConnectedClientsControlMsgHandler()
+		{
+			// The roster is shared by every client asking until the next connect, rename or disconnect
+			RosterSnapshot roster = registry.getRoster();
+			int pageCount = roster.pageCountMatching("");
+			if (pageCount == 1)
+			{
+				sendMessageToClient("SVR: Clients connected to the server: " + roster.getPage("", 1));
+			}
+			else
+			{
+				sendRosterPage(roster, "", 1);
+			}
+		}
+		
+		/**
+		 * The handler for the GET_PAGE_OF_CONNECTED_CLIENTS ("GET CONNECTED CLIENT NAMES PAGE=") control message.
+		 * Sends one page of the connected clients' names, optionally only those starting with a prefix.
+		 * @param pageArg Every character following the "=" sign in the control message: the page number,
+		 * 		  optionally followed by a comma and the prefix (ex: "2" or "1,Ben")
+		 */
+		void getPageOfConnectedClientsControlMsgHandler(CharSequence pageArg)
+		{
+			// Everything after the first comma is the prefix, which may itself contain commas
+			String pageAndPrefix = pageArg.toString();
+			int commaIndex = pageAndPrefix.indexOf(',');
+			String pageNumberText = (commaIndex < 0) ? pageAndPrefix : pageAndPrefix.substring(0, commaIndex);
+			String prefix = (commaIndex < 0) ? "" : pageAndPrefix.substring(commaIndex + 1);
+			
+			int pageNumber;
+			try
+			{
+				pageNumber = Integer.parseInt(pageNumberText.trim());
+			}
+			catch (NumberFormatException err)
+			{
+				sendMessageToClient("SVR: \"" + pageNumberText + "\" is not a valid page number");
+				return;
+			}
+			
+			sendRosterPage(registry.getRoster(), prefix, pageNumber);
+		}
+		
+		/**
+		 * Send the requesting client one page of the roster, along with which page it is.
+		 * @param roster The roster to send from
+		 * @param prefix Only names starting with this are listed; "" lists every name
+		 * @param pageNumber Which page, starting from 1
+		 */
+		private void sendRosterPage(RosterSnapshot roster, String prefix, int pageNumber)
+		{
+			String whichClients = "Clients connected to the server";
+			if (!prefix.isEmpty())
+			{
+				whichClients += " with names starting with \"" + prefix + "\"";
+			}
+			int pageCount = roster.pageCountMatching(prefix);
+			
+			if (roster.countMatching(prefix) == 0)
+			{
+				sendMessageToClient("SVR: No clients connected to the server have names starting with \"" + prefix + "\"");
+			}
+			else if (pageNumber < 1 || pageNumber > pageCount)
+			{
+				sendMessageToClient("SVR: There is no page " + pageNumber + ". " + whichClients + " fill " + pageCount + " page(s).");
+			}
+			else
+			{
+				sendMessageToClient("SVR: " + whichClients + " (page " + pageNumber + " of " + pageCount + "): " + roster.getPage(prefix, pageNumber));
+			}
+		}
+		
+		/**
+		 * This handles setting a new peer for the client.
+		 * There are quite a number of possible scenarios which can occur
+		 * when the client wants to connect to another client,
+		 * which are documented in the source below.
+		 * @param newPeerNameArg Every character following the "=" sign in the control message (ex: "BEN" from "C0NTR0L:CONNECT TO PEER WITH NAME=BEN")
+		 */
+		void setPeerControlMsgHandler(CharSequence newPeerNameArg)
+		{
+			String newPeerName = newPeerNameArg.toString();
+			// Any change of peer stops keeping messages for an absent client; the cases below may start again
+			mailboxRecipient = null;
+			ChatParticipant desiredPeer = registry.getParticipant(newPeerName);
+			
+			// Nothing is locked here. Each client's pairing is read once, and the decisions below are
+			// made on those snapshots. If another client changes its pairing in the meantime,
+			// ChatParticipant.pair() is what finally decides whether the connection can be made.
+			ChatParticipant currentPeer = client.getPeer();
+			// The desired peer may have left, or given up the name, since it was looked up
+			boolean desiredPeerIsConnected = desiredPeer != null && !desiredPeer.hasLeft() && newPeerName.equals(desiredPeer.getName());
+			
+			// If the client wants to change their peer to their current peer, tell them that they're already connected
+			if (currentPeer != null && newPeerName.equals(currentPeer.getName()))
+			{
+				sendMessageToClient("SVR: You're already chatting with \"" + newPeerName + "\".");
+				return;
+			}
+			// If the client wants to disconnect from their current partner and become a listener given that they're
+			// currently connected to another client.
+			else if (newPeerName.equals(ServerClientCommon.LISTENER_SPECIFIER) && currentPeer != null)
+			{
+				terminateConnectionBetweenThisClientAndItsPeer();
+				sendMessageToClient("SVR: Disconnected with \"" + client.getName() + "\". You are now in listen mode.");
+				return;
+			}
+			// If the client wants to disconnect from their current partner and become a listener given that they're NOT
+			// currently connected to another client.
+			else if(newPeerName.equals(ServerClientCommon.LISTENER_SPECIFIER))
+			{
+				sendMessageToClient("SVR: You are now in listen mode.");
+				return;
+			}
+			
+			// A client that isn't on this server may be on another node of the cluster
+			if (!desiredPeerIsConnected && cluster != null)
+			{
+				continueAfter(cluster.lookup(newPeerName), peerNode -> {
+					if (client.hasLeft())
+					{
+						return;
+					}
+					// The client's chat may have ended while the lookup was answered
+					ChatParticipant peerNow = client.getPeer();
+					if (peerNode == ClusterNode.UNREACHABLE_NODE)
+					{
+						sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" can't be looked up in the cluster right now. Try again later.");
+					}
+					else if (peerNode != ClusterNode.NO_NODE && peerNode != cluster.getNodeId())
+					{
+						connectToClientOnOtherNode(newPeerName, peerNode, peerNow);
+					}
+					else
+					{
+						desiredPeerNotConnected(newPeerName, peerNow);
+					}
+				});
+				return;
+			}
+			
+			if (!desiredPeerIsConnected)
+			{
+				desiredPeerNotConnected(newPeerName, currentPeer);
+				return;
+			}
+			
+			// Given the above checks, desiredPeer must be the ChatParticipant corresponding
+			// to newPeerName connected to the server.
+			ChatParticipant desiredPeersPeer = desiredPeer.getPeer();
+
+			// If the both the desired peer and the caller are connected to other clients, alert the caller and have the caller disconnect
+			// from its current peer.
+			if (desiredPeersPeer != null && currentPeer != null)
+			{
+				sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is chatting with the user \"" +
+										desiredPeersPeer.getName() + "\". Try again later." +
+										"You are now being disconnected from: \"" + currentPeer.getName() + "\"");
+				terminateConnectionBetweenThisClientAndItsPeer();
+			}
+			// If the desired peer is connected to someone but the caller is not. The caller will not be able to connect to the desired peer.
+			else if (desiredPeersPeer != null)
+			{
+				sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is chatting with the user \"" + desiredPeersPeer.getName() + "\". Try again later.");
+			}
+			// If the caller is connected to another client, but the desired peer is not, the caller will have to end its chat
+			// with its current client and then connect to the new desired client.
+			else if (currentPeer != null)
+			{
+				sendMessageToClient("SVR: You are now being disconnected from: \"" + currentPeer.getName() + "\"");
+				terminateConnectionBetweenThisClientAndItsPeer();
+				connectToOtherClient(desiredPeer);
+			}
+			// Neither the caller nor the desired peer are currently connected, so connect the two.
+			else
+			{
+				connectToOtherClient(desiredPeer);
+			}	
+		}
+		
+		/**
+		 * Tell the client that the peer it asked for isn't connected, and keep its messages for
+		 * that name if the server keeps a mailbox.
+		 * @param newPeerName The name of the client it asked for
+		 * @param currentPeer The caller's current peer, or null
+		 */
+		private void desiredPeerNotConnected(String newPeerName, ChatParticipant currentPeer)
+		{
+			// If the desired peer isn't currently connected to the server AND the calling client
+			// currently is chatting with another user.
+			// In this case, tell the client that they can't connect to the desired user
+			// and then disconnect them from their current chat.
+			if (currentPeer != null)
+			{
+				sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is not connected to the server. Try again later." +
+						"You are now being disconnected from \"" + currentPeer.getName() + "\"");
+				terminateConnectionBetweenThisClientAndItsPeer();
+			}
+			// If the desired peer doesn't exist and the client currently isn't connected to anyone
+			else
+			{
+				sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is not connected to the server. Try again later.");
+			}
+			startLeavingMessagesFor(newPeerName);
+		}
+		
+		/**
+		 * Connects this client to the client specified by the parameter. Both clients become
+		 * each other's peer in one step, or, if either has started chatting with someone else
+		 * or left since the caller checked, neither changes and the caller is told to try again.
+		 * @param newPeer The client to connect the caller to
+		 */
+		void connectToOtherClient(ChatParticipant newPeer)
+		{
+			if (ChatParticipant.pair(client, newPeer))
+			{
+				replicate(client);
+				replicate(newPeer);
+				// Inform both clients that they have been connected
+				sendMessageToClient("SVR: You are now connected with \"" + newPeer.getName() + "\"");
+				sendMessageToParticipant(newPeer, "SVR: You are now connected with \"" + client.getName() + "\"");
+			}
+			else
+			{
+				sendMessageToClient("SVR: The desired client, \"" + newPeer.getName() + "\" is no longer available. Try again later.");
+			}
+		}
+		
+		/**
+		 * Connects this client to a client of another node of the cluster. That node decides whether
+		 * its client is free, and if so pairs it with a stand-in for this client; this client is
+		 * then paired with a stand-in for that one. As with a peer on this server, the caller's
+		 * current chat ends whether or not the connection can be made.
+		 * @param newPeerName The name of the client to connect the caller to
+		 * @param peerNode The node it's on
+		 * @param currentPeer The caller's current peer, or null
+		 */
+		private void connectToClientOnOtherNode(String newPeerName, int peerNode, ChatParticipant currentPeer)
+		{
+			String disconnectedNote = (currentPeer == null) ? "" : "You are now being disconnected from: \"" + currentPeer.getName() + "\"";
+			if (currentPeer != null)
+			{
+				terminateConnectionBetweenThisClientAndItsPeer();
+			}
+			
+			continueAfter(cluster.requestPair(peerNode, client.getId(), client.getName(), newPeerName, peerId -> {
+				// This runs before anything the other client sends is read, so none of it arrives before the pairing
+				if (!ChatParticipant.pair(client, new ChatParticipant(newPeerName, peerNode, peerId)))
+				{
+					cluster.unpair(peerNode, peerId, client.getId(), "SVR: User \"" + client.getName() + "\" is no longer available. You are now in listen mode.");
+				}
+			}), result -> tellPairResult(newPeerName, peerNode, result, disconnectedNote));
+		}
+		
+		/**
+		 * Tell the client how its request to chat with a client of another node went.
+		 * @param newPeerName The name of the client it asked for
+		 * @param peerNode The node that client is on
+		 * @param result The other node's answer, or null if it couldn't be asked
+		 * @param disconnectedNote Tells the client its previous chat has ended, or is empty
+		 */
+		private void tellPairResult(String newPeerName, int peerNode, ClusterNode.PairResult result, String disconnectedNote)
+		{
+			if (client.hasLeft())
+			{
+				return;
+			}
+			if (result == null)
+			{
+				sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is on a server that can't be reached right now. Try again later." + disconnectedNote);
+			}
+			else if (result.outcome == ClusterNode.PairResult.Outcome.BUSY)
+			{
+				sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is chatting with the user \"" + result.busyWith + "\". Try again later." + disconnectedNote);
+			}
+			else if (result.outcome == ClusterNode.PairResult.Outcome.GONE)
+			{
+				sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is not connected to the server. Try again later." + disconnectedNote);
+			}
+			else
+			{
+				ChatParticipant peer = client.getPeer();
+				if (!disconnectedNote.isEmpty())
+				{
+					sendMessageToClient("SVR: " + disconnectedNote);
+				}
+				if (peer != null && peer.standsInFor(peerNode, result.peerId))
+				{
+					sendMessageToClient("SVR: You are now connected with \"" + newPeerName + "\"");
+				}
+				else
+				{
+					sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is no longer available. Try again later.");
+				}
+			}
+		}
+		
+		/**
+		 * Called in the event that this thread's client is ending communication
+		 * with its current peer. Both clients are put into listening mode in one step.
+		 */
+		void terminateConnectionBetweenThisClientAndItsPeer()
+		{
+			// The peer may have already ended the chat from its side, in which case there's nobody to tell
+			ChatParticipant formerPeer = client.endPairing();
+			if (formerPeer != null)
+			{
+				// Alert the client's former peer of the termination
+				tellFormerPeerChatEnded(formerPeer);
+				replicate(client);
+				replicate(formerPeer);
+			}
+		}
+		
+		/**
+		 * Tell this client's former peer that their chat is over. A peer on another node of the
+		 * cluster is told by its own node, which ends the chat on its side too.
+		 * @param formerPeer The client this client was chatting with
+		 */
+		private void tellFormerPeerChatEnded(ChatParticipant formerPeer)
+		{
+			String notice = "SVR: User \"" + client.getName() + "\" has exited the chat. You are now in listen mode.";
+			if (formerPeer.isRemote())
+			{
+				cluster.unpair(formerPeer.getNodeId(), formerPeer.getRemoteId(), client.getId(), notice);
+			}
+			else
+			{
+				sendMessageToParticipant(formerPeer, notice);
+			}
+		}
+		
+		/**
+		 * The handler for the SET_USERNAME ("SET MY NAME=") control message.
+		 * This function reserves and sets the new name if it isn't currently held, and then
+		 * un-reserves the client's current name. It then informs the client of the change.
+		 * If the name is already in use, tell the client they can't reserve it.
+		 * Note that if this client is talking to another client, the connection
+		 * will not be broken, but rather the peer will be informed of the change.
+		 * Whitespace only names are not allowed, and whitespace of a name is removed
+		 * from the beginning and end of the string. In otherwords " Ben " = "Ben"
+		 * @param newNameArg Every character following the "=" sign in the control message
+		 */
+		void updateNameControlMsgHandler(CharSequence newNameArg)
+		{
+			// Use .trim() to remove leading or trailing whitespace
+			String requestedName = newNameArg.toString().trim();
+			
+			// The administrator's name is only given to a client that proves it's the administrator
+			String adminName = config.getAdminName();
+			boolean asksForAdminName = adminName != null && !adminName.equals(client.getName())
+					&& (requestedName.equals(adminName) || requestedName.startsWith(adminName + ServerClientCommon.ADMIN_SECRET_SEPARATOR));
+			if (asksForAdminName && !provesAdmin(requestedName.substring(adminName.length())))
+			{
+				sendMessageToClient("SVR: The username \"" + adminName + "\" is kept for the server's administrator. Pick another");
+				return;
+			}
+			String newName = asksForAdminName ? adminName : requestedName;
+			
+			// If the client is trying to set its new name to its current name, inform them.
+			if (newName.equals(client.getName()))
+			{
+				sendMessageToClient("SVR: The username \"" + newName + "\" is your current username.");
+				return;
+			}
+			// If their desired name is reserved
+			if (Arrays.asList(ServerClientCommon.RESERVED_NAMES).contains(newName))
+			{
+				sendMessageToClient("SVR: The username \"" + newName + "\" is reserved. Pick another");
+				return;
+			}
+			// If the desired name is all whitespace, tell the client that it's a no-go
+			if (newName.equals(""))
+			{
+				sendMessageToClient("SVR: Whitespace-only usernames are not permitted. Pick another");
+				return;
+			}
+			
+			// In a cluster, the name is first claimed from its home node, so that no client of another node can have it
+			if (cluster != null)
+			{
+				continueAfter(cluster.claim(newName), claim -> {
+					if (claim == ClusterNode.ClaimResult.CLAIMED && client.hasLeft())
+					{
+						cluster.release(newName);
+					}
+					else if (claim == ClusterNode.ClaimResult.UNREACHABLE)
+					{
+						sendMessageToClient("SVR: The username \"" + newName + "\" can't be checked with the rest of the cluster right now. Try again later.");
+					}
+					else if (claim == ClusterNode.ClaimResult.TAKEN)
+					{
+						sendMessageToClient("SVR: The username \"" + newName + "\" is already in use. Choose another.");
+					}
+					else
+					{
+						takeName(newName);
+					}
+				});
+				return;
+			}
+			takeName(newName);
+		}
+		
+		/**
+		 * Whether a client asking for the admin name has shown it's the administrator: with -adminsecret,
+		 * by sending the secret after the name; without it, by connecting from this machine.
+		 * @param afterName What followed the admin name in the client's request
+		 * @return true if the client may take the admin name
+		 */
+		private boolean provesAdmin(String afterName)
+		{
+			String adminSecret = config.getAdminSecret();
+			if (adminSecret == null)
+			{
+				return afterName.isEmpty() && client.getSocket().getInetAddress().isLoopbackAddress();
+			}
+			// Compared in constant time, so the secret can't be guessed one character at a time
+			byte[] expected = (ServerClientCommon.ADMIN_SECRET_SEPARATOR + adminSecret).getBytes(StandardCharsets.UTF_8);
+			return MessageDigest.isEqual(expected, afterName.getBytes(StandardCharsets.UTF_8));
+		}
+		
+		/**
+		 * Give the client a name that has passed updateNameControlMsgHandler()'s checks and, in a cluster,
+		 * has been claimed from its home node, unless another client of this server has it.
+		 * @param newName The name
+		 */
+		private void takeName(String newName)
+		{
+			// If the desired name isn't currently reserved, then allow the client to reserve it.
+			// The registry frees their current name and takes the new one atomically, only
+			// locking those two names.
+			String oldName = client.getName();
+			if (registry.rename(client, newName))
+			{
+				if (cluster != null)
+				{
+					cluster.release(oldName);
+				}
+				replicate(client);
+				
+				// If that was their default name, another client can have it now
+				releaseClientDefaultName(client);
+				
+				// Tell them that the new name has been set
+				sendMessageToClient("SVR: Your username has been set to \"" + newName + "\"");
+				
+				// Hand them anything left for this name while nobody had it
+				if (mailbox != null)
+				{
+					deliverMailbox(newName, false);
+				}
+				
+				// If the client is chatting with someone else, let them know of the name change,
+				// but don't disconnect from them
+				ChatParticipant peer = client.getPeer();
+				if (peer != null)
+				{
+					sendMessageToParticipant(peer, "SVR: Your peer has changed their name to: \"" + client.getName() + "\".");
+					if (peer.isRemote())
+					{
+						cluster.renamed(peer.getNodeId(), peer.getRemoteId(), client.getId(), newName);
+					}
+				}
+			}
+			// If the name is current in use by someone else, tell the client they can't change take it.
+			else
+			{
+				if (cluster != null)
+				{
+					cluster.release(newName);
+				}
+				sendMessageToClient("SVR: The username \"" + newName + "\" is already in use. Choose another.");
+			}
+		}
+		
+		/**
+		 * If the server keeps a mailbox, keep the client's chat messages from now on for a name that
+		 * isn't connected, until the client picks another peer. The messages are delivered when a
+		 * client next takes that name.
+		 * @param absentName The name of the client that isn't connected
+		 */
+		private void startLeavingMessagesFor(String absentName)
+		{
+			String trimmedName = absentName.trim();
+			if (mailbox == null || trimmedName.isEmpty() || !trimmedName.equals(absentName)
+					|| Arrays.asList(ServerClientCommon.RESERVED_NAMES).contains(absentName))
+			{
+				return;
+			}
+			mailboxRecipient = absentName;
+			sendMessageToClient("SVR: Messages you send now will be kept for \"" + absentName + "\" and delivered when they next take that name."
+					+ " Connect to another peer, or to \"" + ServerClientCommon.LISTENER_SPECIFIER + "\", to stop.");
+		}
+		
+		/**
+		 * Keep a chat message for mailboxRecipient, unless it has connected in the meantime.
+		 * @param text The message
+		 */
+		private void leaveMessageInMailbox(String text)
+		{
+			String recipient = mailboxRecipient;
+			if (registry.getParticipant(recipient) != null)
+			{
+				mailboxRecipient = null;
+				sendMessageToClient("SVR: \"" + recipient + "\" has connected, so your message wasn't kept. Connect to them to chat."
+						+ " You are now in listen mode.");
+				return;
+			}
+			boolean accepted = mailbox.append(client.getName(), recipient, text, () -> {
+				metrics.mailboxMessageRefused();
+				enqueueFrame(OutboundFrame.encode("SVR: The mailbox of \"" + recipient + "\" is full, so your message \"" + text + "\" wasn't kept."));
+			});
+			if (accepted)
+			{
+				metrics.mailboxMessageLeft();
+				sendMessageToClient("SVR: Kept for \"" + recipient + "\": " + text);
+			}
+			else
+			{
+				sendMessageToClient("SVR: Your message is too long to keep for \"" + recipient + "\".");
+			}
+		}
+		
+		/**
+		 * Send the client, in one batch, every message kept for the name it just took.
+		 * If it has taken another name or left by the time the mailbox gets to it, the messages are kept.
+		 * Only as many as fit in its outbound queue are sent, so none are ever dropped by the slow
+		 * consumer policy or sent twice. The mailbox keeps the rest, and they're sent the same way
+		 * once the client has read the first (see onOutboundDrained()).
+		 * @param name The name the client took
+		 * @param more Whether these follow messages that were sent already
+		 */
+		private void deliverMailbox(String name, boolean more)
+		{
+			mailbox.deliver(name, messages -> {
+				if (client.hasLeft() || !name.equals(client.getName()))
+				{
+					return 0;
+				}
+				List<OutboundFrame> frames = new ArrayList<>(messages.size());
+				for (MailboxStore.Message message : messages)
+				{
+					frames.add(OutboundFrame.encode("[Mailbox] " + message.getSender() + ": " + message.getText()));
+				}
+				// Set before queueing, so a writer that empties the queue straight away still finds it
+				mailboxToFinish.set(name);
+				int delivered = outboundQueue.offerWhileRoom(fitting -> mailboxHeading(fitting, messages.size(), more), frames);
+				if (delivered == messages.size())
+				{
+					mailboxToFinish.compareAndSet(name, null);
+				}
+				if (delivered > 0)
+				{
+					onMessageQueued();
+				}
+				metrics.addMailboxMessagesDelivered(delivered);
+				return delivered;
+			});
+		}
+		
+		/**
+		 * @param fitting How many kept messages fit in the outbound queue
+		 * @param kept How many messages are kept
+		 * @param more Whether these follow messages that were sent already
+		 * @return The line sent ahead of the kept messages
+		 */
+		private OutboundFrame mailboxHeading(int fitting, int kept, boolean more)
+		{
+			String heading = "SVR: " + kept + (more ? " more message(s) were left for you" : " message(s) were left for you while you were away");
+			if (fitting == kept)
+			{
+				return OutboundFrame.encode(heading + ":");
+			}
+			return OutboundFrame.encode(heading + ". Here are the " + (more ? "next " : "first ") + fitting
+					+ "; the other " + (kept - fitting) + " will follow once you've read these:");
+		}
+		
+		/**
+		 * Called by this session's writer each time it has written everything queued. Sends
+		 * the rest of the kept messages that didn't fit last time, if there are any.
+		 */
+		void onOutboundDrained()
+		{
+			String name = mailboxToFinish.getAndSet(null);
+			if (name != null)
+			{
+				deliverMailbox(name, true);
+			}
+		}
+		
+		/**
+		 * The handler for the GET_HISTORY ("GET HISTORY=") control message. The messages are read
+		 * by the history thread, which queues them for the client once it has them. Only messages
+		 * relayed since the client took its name are read: the history is kept by name, and anything
+		 * earlier belongs to whoever had the name before, even if that was this same client.
+		 * @param historyArg Every character following the "=" sign in the control message: a peer's name,
+		 * 		  optionally preceded by a count and a comma (ex: "50,BEN") or by a time range, a comma,
+		 * 		  a page number and a comma (ex: "2024-01-31T09:00:00Z..2024-01-31T17:00:00Z,1,BEN")
+		 */
+		void getHistoryControlMsgHandler(CharSequence historyArg)
+		{
+			if (history == null)
+			{
+				sendMessageToClient("SVR: This server doesn't keep a history of conversations.");
+				return;
+			}
+			
+			// The peer's name comes last, since it may itself contain commas
+			String request = historyArg.toString();
+			int commaIndex = request.indexOf(',');
+			String firstPart = (commaIndex < 0) ? "" : request.substring(0, commaIndex).trim();
+			String myName = client.getName();
+			long since = client.getNameTakenMillis();
+			
+			if (firstPart.contains(".."))
+			{
+				int pageCommaIndex = request.indexOf(',', commaIndex + 1);
+				if (pageCommaIndex < 0)
+				{
+					sendMessageToClient("SVR: A history time range has the form <from>..<to>,<page number>,<peer name>");
+					return;
+				}
+				String pageNumberText = request.substring(commaIndex + 1, pageCommaIndex);
+				String peerName = request.substring(pageCommaIndex + 1);
+				String[] range = firstPart.split("\\.\\.", 2);
+				Instant from;
+				Instant to;
+				int pageNumber;
+				try
+				{
+					from = Instant.parse(range[0].trim());
+					to = Instant.parse(range[1].trim());
+				}
+				catch (DateTimeParseException err)
+				{
+					sendMessageToClient("SVR: \"" + firstPart + "\" is not a valid time range. Times are written like 2024-01-31T09:00:00Z.");
+					return;
+				}
+				try
+				{
+					pageNumber = Integer.parseInt(pageNumberText.trim());
+				}
+				catch (NumberFormatException err)
+				{
+					sendMessageToClient("SVR: \"" + pageNumberText + "\" is not a valid page number");
+					return;
+				}
+				if (pageNumber < 1)
+				{
+					sendMessageToClient("SVR: Page numbers start at 1.");
+					return;
+				}
+				history.readRange(myName, peerName, Math.max(from.toEpochMilli(), since), to.toEpochMilli(), pageNumber, (lines, more) -> sendHistory(lines,
+						"SVR: Page " + pageNumber + " of your messages with \"" + peerName + "\" between " + firstPart + ":",
+						"SVR: There are no more messages with \"" + peerName + "\" between " + firstPart + ".",
+						more ? "SVR: There are more; ask for page " + (pageNumber + 1) + "." : null, myName));
+				return;
+			}
+			
+			int count = DEFAULT_HISTORY_COUNT;
+			String peerName = request;
+			if (!firstPart.isEmpty() && firstPart.chars().allMatch(Character::isDigit))
+			{
+				try
+				{
+					count = Integer.parseInt(firstPart);
+				}
+				catch (NumberFormatException err)
+				{
+					count = Integer.MAX_VALUE;
+				}
+				peerName = request.substring(commaIndex + 1);
+			}
+			if (count < 1 || count > HistoryStore.MAX_MESSAGES_PER_READ)
+			{
+				sendMessageToClient("SVR: Between 1 and " + HistoryStore.MAX_MESSAGES_PER_READ + " messages may be asked for at once.");
+				return;
+			}
+			String otherName = peerName;
+			int requested = count;
+			history.readLast(myName, otherName, since, requested, (lines, more) -> sendHistory(lines,
+					"SVR: Your last " + lines.size() + " message(s) with \"" + otherName + "\":",
+					"SVR: You have no messages with \"" + otherName + "\".",
+					more ? "SVR: There are earlier messages; ask for a time range to read them." : null, myName));
+		}
+		
+		/**
+		 * Queue messages read from the history for the client, in one batch. Called on the history thread.
+		 * Nothing is sent if the client has left or taken another name since asking.
+		 * @param lines The messages, oldest first
+		 * @param header Sent before the messages
+		 * @param none Sent instead if there are no messages
+		 * @param footer Sent after the messages, or null
+		 * @param askedAs The client's name when it asked
+		 */
+		private void sendHistory(List<HistoryStore.Line> lines, String header, String none, String footer, String askedAs)
+		{
+			if (client.hasLeft() || !askedAs.equals(client.getName()))
+			{
+				return;
+			}
+			List<OutboundFrame> frames = new ArrayList<>(lines.size() + 2);
+			frames.add(OutboundFrame.encode(lines.isEmpty() ? none : header));
+			for (HistoryStore.Line line : lines)
+			{
+				frames.add(OutboundFrame.encode("[History " + Instant.ofEpochMilli(line.getTime()).truncatedTo(ChronoUnit.SECONDS) + "] "
+						+ line.getSender() + ": " + line.getText()));
+			}
+			if (footer != null && !lines.isEmpty())
+			{
+				frames.add(OutboundFrame.encode(footer));
+			}
+			enqueueMessages(frames);
+			metrics.historyRead();
+		}
+		
+		/**
+		 * This echos a message from the client back to the client.
+		 * It is called when the client sends non-control messages to the server
+		 * as a listener
+		 * @param msgToSend The message to send
+		 */
+		void echoMessageToClient(String msgToSend)
+		{
+			sendMessageToClient("LISTENER_MODE_ECHO: " + msgToSend);	
+		}
+	}
+	
+	/**
+	 * The session used by the thread-per-client engines. The client is read from with a blocking
+	 * BufferedReader, and a second thread writes the outbound queue to a BufferedMessageWriter on its
+	 * socket. runReadLoop() is handed to the server's ConnectionExecutor, which decides what kind of
+	 * thread runs it and the writer.
+	 */
+	private class StreamClientSession extends ClientSession
+	{
+		/**
+		 * The most queued messages written to the socket in one write.
+		 */
+		private static final int MAX_MESSAGES_PER_WRITE = 64;
+		
+		/**
+		 * A BufferedReader which the client writes into and this process (the server)
+		 * reads from.
+		 */
+		private BufferedReader inFromClient;
+		
+		/**
+		 * A BufferedMessageWriter which this process (the server) writes into
+		 * in order to send the client data. Only used while holding writeLock.
+		 * Null until runReadLoop() has started, so nothing is written before then.
+		 */
+		private volatile BufferedMessageWriter outToClient;
+		
+		/**
+		 * The thread running runReadLoop(). It writes what it queues itself, since
+		 * waiting on this client's socket only holds up this client.
+		 */
+		private volatile Thread readThread;
+		
+		/**
+		 * Held by the one thread writing queued messages to the client, so they can never interleave.
+		 */
+		private final ReentrantLock writeLock = new ReentrantLock();
+		
+		/**
+		 * Whether a write has been handed to the shared writer threads and hasn't finished yet,
+		 * so a burst of messages from other threads hands over only one.
+		 */
+		private final AtomicBoolean writeHandedOff = new AtomicBoolean();
+		
+		/**
+		 * Set when a channel this client subscribes to may have messages that haven't been written yet.
+		 */
+		private volatile boolean broadcastsWaiting;
+		
+		/**
+		 * Set once the last messages have been written and the socket closed.
+		 */
+		private volatile boolean finished;
+		
+		/**
+		 * The messages being written. Only used while holding writeLock.
+		 */
+		private final List<OutboundFrame> batch = new ArrayList<>(MAX_MESSAGES_PER_WRITE);
+		
+		/**
+		 * Constructs a new StreamClientSession
+		 * @param client The client corresponding to this connection
+		 */
+		StreamClientSession(ChatParticipant client)
+		{
+			super(client);
+		}
+		
+		/**
+		 * Initializes the inFromClient and outToClient variables.
+		 */
+		void initializeStreamAndReader()
+		{
+			inFromClient = ServerClientCommon.getSocketBufferedReader(client.getSocket(), null);
+			outToClient =  ServerClientCommon.getSocketMessageWriter(client.getSocket(), null);
+		}
+		
+		/**
+		 * Talks to the client until it leaves, blocking on each read. This
+		 * occupies the calling thread for the lifetime of the connection, which
+		 * is cheap when that thread is a virtual thread.
+		 */
+		void runReadLoop()
+		{
+			// Initialize inFromClient and outToClient, then write anything queued for the client before now
+			readThread = Thread.currentThread();
+			initializeStreamAndReader();
+			writeQueued();
+			
+			// In a cluster the client is named here rather than on the acceptor, since the claim waits
+			// for the name's home node, and an acceptor waiting on another node isn't accepting
+			if (cluster != null)
+			{
+				try
+				{
+					assignClusterDefaultName(client).join();
+				}
+				catch (CompletionException err)
+				{
+					// The client was never registered, so there's nothing to undo but the connection
+					log.notice(ServerLogger.Level.ERROR, "Unable to give a default name to a client of the cluster: " + err.getCause());
+					outboundQueue.clear();
+					closeConnection();
+					return;
+				}
+			}
+			clientConnectionInitialization();
+			
+			// Loop until the client wants to exit
+			boolean shouldContinue = true;
+			while(shouldContinue)
+			{
+				// Block on a new message from the client
+				String newMessage = ServerClientCommon.readFromSocket(inFromClient, null);
+
+				// If the message is null, cease the connection to this client.
+				if (newMessage == null)
+				{
+					shouldContinue = false;
+					continue;
+				}
+				
+				shouldContinue = processLineFromClient(newMessage, LineFrameDecoder.encodedLength(newMessage));
+				
+				// A client over its rate limit waits for its next line to be read, so it's held back by TCP
+				long pauseNanos = readsPausedUntilNanos - System.nanoTime();
+				if (shouldContinue && pauseNanos > 0)
+				{
+					try
+					{
+						TimeUnit.NANOSECONDS.sleep(pauseNanos);
+					}
+					catch (InterruptedException err)
+					{
+						shouldContinue = false;
+					}
+				}
+			}
+			
+			clientDisconnectProcess();
+		}
+		
+		/**
+		 * Write what's queued for the client, or have it written without waiting. The read loop's
+		 * thread writes it itself. Any other thread (ex: the peer's, relaying a message) mustn't be
+		 * held up by this client's socket, so it hands the write to a shared writer thread, which
+		 * only exists while there's something to write. Either way there's no thread per client
+		 * waiting for messages.
+		 */
+		private void writeOrHandOff()
+		{
+			if (Thread.currentThread() == readThread)
+			{
+				writeQueued();
+			}
+			else if (hasUnwritten() && writeHandedOff.compareAndSet(false, true))
+			{
+				connectionExecutor.executeShared(this::runHandedOffWrite);
+			}
+		}
+		
+		/**
+		 * A shared writer thread's turn at this client. Checking again after clearing
+		 * writeHandedOff catches messages queued by threads that saw it still set.
+		 */
+		private void runHandedOffWrite()
+		{
+			do
+			{
+				writeQueued();
+				writeHandedOff.set(false);
+			}
+			while (hasUnwritten() && writeHandedOff.compareAndSet(false, true));
+		}
+		
+		/**
+		 * @return true if there are messages to write, or the queue has been closed and the socket
+		 * 		   still needs closing
+		 */
+		private boolean hasUnwritten()
+		{
+			return outToClient != null && !finished && (broadcastsWaiting || !outboundQueue.isEmpty() || outboundQueue.isClosed());
+		}
+		
+		/**
+		 * Write everything queued, in batches, unless another thread is already writing, in which
+		 * case that thread writes it along with its own, the way BufferedMessageWriter.sendMessage()
+		 * combines writes. Checking again after unlocking catches messages queued by threads which
+		 * failed to get the lock just before it was released.
+		 */
+		private void writeQueued()
+		{
+			while (hasUnwritten() && writeLock.tryLock())
+			{
+				try
+				{
+					writeBatches();
+				}
+				finally
+				{
+					writeLock.unlock();
+				}
+			}
+		}
+		
+		/**
+		 * Write batches until nothing is left, then close the socket if the queue has been closed.
+		 * If the client can't be written to, the socket is closed early, which also ends runReadLoop().
+		 * Must hold writeLock.
+		 */
+		private void writeBatches()
+		{
+			try
+			{
+				while (!finished)
+				{
+					broadcastsWaiting = false;
+					outboundQueue.pollBatch(batch, MAX_MESSAGES_PER_WRITE);
+					if (pollSubscriptions(batch, MAX_MESSAGES_PER_WRITE))
+					{
+						// More broadcast messages are waiting, so come straight back for them
+						broadcastsWaiting = true;
+					}
+					if (batch.isEmpty())
+					{
+						if (outboundQueue.isClosed() && outboundQueue.isEmpty())
+						{
+							finish();
+						}
+						else
+						{
+							onOutboundDrained();
+						}
+						return;
+					}
+					compressForClient(batch);
+					metrics.addBytesOut(outToClient.writeFrames(batch));
+					batch.clear();
+				}
+			}
+			catch (IOException err)
+			{
+				// A client that vanished or was closed is routine, so one line says so, without a stack trace
+				log.log(ServerLogger.Level.INFO, ServerLogger.Category.CONNECTION, ServerLogger.Message.WRITE_FAILED,
+						clientIpAndSocket, client.getName(), err.getMessage(), 0);
+				batch.clear();
+				outboundQueue.close();
+				outboundQueue.clear();
+				finish();
+			}
+		}
+		
+		/**
+		 * Close the socket once nothing more will be written. Must hold writeLock.
+		 */
+		private void finish()
+		{
+			finished = true;
+			endOutboundCompression();
+			ServerClientCommon.closeSocket(client.getSocket(), null);
+		}
+		
+		/**
+		 * Write the message now, or have it written.
+		 */
+		void onMessageQueued()
+		{
+			writeOrHandOff();
+		}
+		
+		/**
+		 * Have the channel's new messages written along with anything queued.
+		 */
+		void onBroadcastPublished()
+		{
+			broadcastsWaiting = true;
+			writeOrHandOff();
+		}
+		
+		/**
+		 * Closing the queue lets what's queued be written, after which the socket is closed.
+		 */
+		void closeConnection()
+		{
+			outboundQueue.close();
+			writeOrHandOff();
+		}
+		
+		/**
+		 * Shutting down the socket's input ends runReadLoop() as if the client had closed the connection.
+		 */
+		void disconnectClient()
+		{
+			try
+			{
+				client.getSocket().shutdownInput();
+			}
+			catch (IOException err)
+			{
+				ServerClientCommon.closeSocket(client.getSocket(), null);
+			}
+		}
+		
+		/**
+		 * Closing the socket ends the read loop, and any write waiting on the client.
+		 */
+		void forceClose()
+		{
+			ServerClientCommon.closeSocket(client.getSocket(), null);
+		}
+		
+		/**
+		 * The read loop's thread serves only this client, so it simply waits for the answer.
+		 */
+		<T> void continueAfter(CompletableFuture<T> answer, Consumer<T> continuation)
+		{
+			continuation.accept(answer.join());
+		}
+	}
+	
+	/**
+	 * The SELECTOR engine's session. All reads, writes and the final close happen on the
+	 * event loop this session is registered with, which makes the loop this session's single
+	 * writer. Other threads (ex: a peer's loop relaying a message) only queue outgoing
+	 * messages and ask the loop to flush them.
+	 */
+	private class SelectorClientSession extends ClientSession implements SelectorEventLoop.ChannelHandler
+	{
+		/**
+		 * The size of the buffer that each read from the channel goes into.
+		 */
+		private static final int READ_BUFFER_SIZE = 4096;
+		
+		/**
+		 * The most queued messages handed to the channel in one gathering write.
+		 */
+		private static final int MAX_MESSAGES_PER_WRITE = 64;
+		
+		/**
+		 * The non-blocking channel connected to the client.
+		 */
+		private final SocketChannel channel;
+		
+		/**
+		 * The event loop that owns this session's channel.
+		 */
+		private final SelectorEventLoop loop;
+		
+		/**
+		 * This session's registration with the loop's selector. Set on the loop's thread.
+		 */
+		private SelectionKey key;
+		
+		/**
+		 * Channel reads land here before being split into lines.
+		 */
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		
+		/**
+		 * Turns the bytes read from the channel into lines.
+		 */
+		private final LineFrameDecoder lineDecoder = new LineFrameDecoder();
+		
+		/**
+		 * Messages taken off the outbound queue and encoded, but not yet completely
+		 * written to the channel. Only used on the loop's thread.
+		 */
+		private final ArrayDeque<ByteBuffer> encodedMessages = new ArrayDeque<>();
+		
+		/**
+		 * Receives messages taken off the outbound queue. Only used on the loop's thread.
+		 */
+		private final List<OutboundFrame> dequeuedMessages = new ArrayList<>(MAX_MESSAGES_PER_WRITE);
+		
+		/**
+		 * Holds the encoded messages being handed to one gathering write. Only used on the loop's thread.
+		 */
+		private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_MESSAGES_PER_WRITE];
+		
+		/**
+		 * True while a flush has been handed to the loop but hasn't run yet, so that
+		 * a burst of messages only wakes the loop once.
+		 */
+		private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+		
+		/**
+		 * Set once the client is leaving. The channel is closed when the outbound queue drains.
+		 */
+		private boolean closeRequested = false;
+		
+		/**
+		 * Set once clientDisconnectProcess() has run, so that it only runs once.
+		 */
+		private boolean disconnected = false;
+		
+		/**
+		 * Set while a line is waiting for another node of the cluster to answer. Nothing more is
+		 * read from the client until the answer has been handled. Only used on the loop's thread.
+		 */
+		private boolean awaitingAnswer = false;
+		
+		/**
+		 * Constructs a new SelectorClientSession
+		 * @param client The client corresponding to this connection
+		 * @param channel The channel connected to the client
+		 * @param loop The loop that this session will be registered with
+		 */
+		SelectorClientSession(ChatParticipant client, SocketChannel channel, SelectorEventLoop loop)
+		{
+			super(client);
+			this.channel = channel;
+			this.loop = loop;
+		}
+		
+		/**
+		 * The channel is now registered, so greet the client.
+		 * @param key This session's selection key
+		 */
+		public void onRegistered(SelectionKey key)
+		{
+			this.key = key;
+			clientConnectionInitialization();
+		}
+		
+		/**
+		 * Read everything available and handle each complete line.
+		 */
+		public void onReadable()
+		{
+			if (closeRequested)
+			{
+				return;
+			}
+			
+			int bytesRead;
+			try
+			{
+				bytesRead = channel.read(readBuffer);
+			}
+			catch (IOException err)
+			{
+				// Treat a broken connection the same as the blocking engine does: the client is gone.
+				bytesRead = -1;
+			}
+			
+			// The client closed its end of the connection
+			if (bytesRead == -1)
+			{
+				disconnect();
+				return;
+			}
+			
+			handleBufferedLines();
+		}
+		
+		/**
+		 * Handle each complete line in the read buffer. If the client goes over its rate limit, stop
+		 * there: the rest stays in the buffer, and the client isn't read from until it's back within
+		 * the limit, so it's held back by TCP, the same as the blocking engine holds it back.
+		 */
+		private void handleBufferedLines()
+		{
+			readBuffer.flip();
+			boolean stoppedEarly = !lineDecoder.decode(readBuffer, this::handleLine);
+			readBuffer.compact();
+			
+			if (stoppedEarly && !disconnected)
+			{
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				// A line waiting on another node resumes reading once it's answered
+				if (!awaitingAnswer)
+				{
+					resumeReadingWhenAllowed();
+				}
+			}
+		}
 		
 		/**
-		 * Constructs a new ConnectedClientThread
-		 * @param client The client corresponding to this connection
+		 * Resume reading once the client is back within its rate limits: straight away if it already is.
 		 */
-		ConnectedClientThread(ChatParticipant client)
+		private void resumeReadingWhenAllowed()
 		{
-			this.client = client;
+			long pauseNanos = readsPausedUntilNanos - System.nanoTime();
+			if (pauseNanos <= 0)
+			{
+				resumeReading();
+				return;
+			}
+			reaper.schedule(nowNanos -> {
+				loop.execute(this::resumeReading);
+				return -1;
+			}, pauseNanos);
 		}
 		
 		/**
-		 * Initializes the inFromClient and outToClient variables.
+		 * Handle one line from the client.
+		 * @param line The line
+		 * @param lineBytes The bytes the line took on the wire
+		 * @return Whether to go on to the next line: false once the client is gone, over its rate limit
+		 * 		   or waiting on another node
 		 */
-		void initializeStreamAndReader()
+		private boolean handleLine(String line, int lineBytes)
 		{
-			inFromClient = ServerClientCommon.getSocketBufferedReader(client.getSocket(), null);
-			outToClient =  ServerClientCommon.getSocketDataOutputStream(client.getSocket(), null);
+			if (!processLineFromClient(line, lineBytes))
+			{
+				disconnect();
+				return false;
+			}
+			return !awaitingAnswer && readsPausedUntilNanos - System.nanoTime() <= 0;
 		}
 		
 		/**
-		 * This function is executed when the thread is started. It handles talking to the client,
-		 * which includes reading from it and writing to it.
+		 * Once a rate limit pause or a call to another node is over, handle the lines left in the
+		 * read buffer, then read from the client again.
 		 */
-		public void run()
+		private void resumeReading()
 		{
-			// Has the form <IP>:<Port>
-			String clientIpAndSocket = client.getSocket().getRemoteSocketAddress().toString().substring(1);
-			
-			clientConnectionInitialization(clientIpAndSocket);
+			if (closeRequested || disconnected || awaitingAnswer || !key.isValid())
+			{
+				return;
+			}
 			
-			// Loop until the client wants to exit
-			boolean shouldContinue = true;
-			while(shouldContinue)
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			handleBufferedLines();
+		}
+		
+		/**
+		 * The loop never waits for another node. If the answer isn't in yet, reading from the client
+		 * stops after the current line; once the answer comes, the loop runs the continuation, sends
+		 * what it produced and goes on with the lines left in the read buffer.
+		 */
+		<T> void continueAfter(CompletableFuture<T> answer, Consumer<T> continuation)
+		{
+			if (answer.isDone())
 			{
-				// Block on a new message from the client
-				String newMessage = ServerClientCommon.readFromSocket(inFromClient, null);
-
-				// If the message is null, cease the connection to this client.
-				if (newMessage == null)
+				continuation.accept(answer.join());
+				return;
+			}
+			awaitingAnswer = true;
+			answer.whenComplete((result, err) -> loop.execute(() -> {
+				awaitingAnswer = false;
+				if (err != null)
 				{
-					shouldContinue = false;
-					continue;
+					log.notice(ServerLogger.Level.WARN, clientIpAndSocket + "(" + client.getName() + ") got an answer from the cluster that"
+							+ " couldn't be handled: " + err);
+					disconnect();
+					return;
 				}
-				
-				// Now that we're sure the message isn't null, have the server log it
-				System.out.println("SVR LOG :" + clientIpAndSocket + "(" + client.getName() + "): " + newMessage);
-				
-				// An exit control message will result in handleControlMessage() returning false,
-				// which will result in disconnect.
-				if (isControlMessage(newMessage))
+				try
 				{
-					shouldContinue = handleControlMessage(newMessage);
-					continue;
+					continuation.accept(result);
 				}
-				// If the client is in listen mode, echo received messages.
-				// If it's not in listen mode (and therefore is connected 
-				// to another client), pass the message to the other client.
-				else if (!client.isInListenMode())
+				finally
 				{
-					sendMessageToThisClientsPeer(newMessage, false);						
+					deliverNotifications();
 				}
-				else
+				if (!disconnected && key.isValid())
 				{
-					echoMessageToClient(newMessage);
+					resumeReadingWhenAllowed();
 				}
-			}
-			
-			clientDisconnectProcess(clientIpAndSocket);
+			}));
 		}
 		
 		/**
-		 * Handles run()'s actions post-loop. Specifically, this terminates the connection to the client
-		 * and its peer (if necessary), removes this client's data from the hash tables, closes the socket
-		 * to the client, and logs that the client has left
-		 * @param clientIpAndSocket The IP and Port of the client's socket in the form IP:Socket
+		 * The channel has room again, so continue writing queued messages.
 		 */
-		private void clientDisconnectProcess(String clientIpAndSocket)
+		public void onWritable()
 		{
-			// If the client was in the middle of chatting when they decided to leave,
-			// let their partner know
-			if (!client.isInListenMode())
-			{
-				terminateConnectionBetweenThisClientAndItsPeer();
-			}
-			
-			criticalServerDataLock.lock();
-			try
+			flushOutboundMessages();
+		}
+		
+		/**
+		 * Make sure the loop will write the newly queued message.
+		 */
+		void onMessageQueued()
+		{
+			if (loop.inEventLoop())
 			{
-				// At this point, the server is disconnecting from the client.
-				// Remove its name/instance combination from the nameToParticipant hashtable
-				nameToParticipant.remove(client.getName());
-				
-				// Remove the client and its thread from the participantToThread hash table
-				participantToThread.remove(client);
+				flushOutboundMessages();
 			}
-			finally
+			else if (flushScheduled.compareAndSet(false, true))
 			{
-				criticalServerDataLock.unlock();
+				loop.execute(() -> {
+					flushScheduled.set(false);
+					flushOutboundMessages();
+				});
 			}
-			
-			// Close the socket that connects the server and client
-			// The server will always be the one to initiate a close
-			// (provided the client didn't exit abnormally)
-			ServerClientCommon.closeSocket(client.getSocket(), null);
-			
-			// Log that the client and server are disconnected
-			System.out.println("SVR LOG: " + clientIpAndSocket + "(" + client.getName() + ") has left");
 		}
 		
+		/**
+		 * Make sure the loop will read the channels and write what's new.
+		 */
+		void onBroadcastPublished()
+		{
+			onMessageQueued();
+		}
 		
 		/**
-		 * When run() is called, this function is called to setup the client
-		 * connection. It logs a a client has been connected, adds this ChatParticipant
-		 * and this thread to the participantToThread HashTable, and initializes 
-		 * inFromClient and outToClient.
-		 * @param clientIpAndSocket The client's IP and port in the form IP:Port
+		 * Stop reading from the client and close the channel once everything
+		 * queued for it has been written. Must be called on the loop's thread.
 		 */
-		private void clientConnectionInitialization(String clientIpAndSocket)
-		{		
-			// Print to the server's console indicating that a new client has connected
-			System.out.println("SVR LOG: New client thread started with IP Address:Port=" + clientIpAndSocket);
-			
-			// Lock table access
-			criticalServerDataLock.lock();
-			try
-			{
-				// Add this client and thread to the participantToThread Hashtable
-				participantToThread.put(client, this);	
-			}
-			finally
-			{
-				criticalServerDataLock.unlock();
-			}
-			
-			// Initialize inFromClient and outToClient
-			initializeStreamAndReader();
-			
-			// Introduce yourself to the client
-			sendMessageToClient("SVR: Welcome from " + serverIpAddr + "/" + serverHostname + ":" + serverPortNumber);
-			sendMessageToClient("SVR: You've been given the default name: " + client.getName());
-			
+		void closeConnection()
+		{
+			closeRequested = true;
+			outboundQueue.close();
+			flushOutboundMessages();
 		}
 		
 		/**
-		 * Forwards a message from this client to its peer
-		 * @param msgToSend The message
-		 * @param isServerMsg true if the message is a server administrative msg. False if it's a passed client message.
-		 * 		  Server messages already have "SVR" prepended. Furthermore, server messages are only one line.
+		 * Have the loop disconnect the client, as if it had closed the connection.
 		 */
-		void sendMessageToThisClientsPeer(String msgToSend, boolean isServerMsg)
+		void disconnectClient()
 		{
-			// Get the DataOutputStream for the peer
-			DataOutputStream peerDataOutStream = participantToThread.get(client.getPeer()).outToClient;
-
-			// Pass msgToSend to the peer (write to its DataOutputStream)
-			String output = isServerMsg ? msgToSend : client.getName() + ": " + msgToSend;
-			ServerClientCommon.sendMessageToDataOutputStream(output, peerDataOutStream, null);	
+			loop.execute(this::disconnect);
 		}
 		
 		/**
-		 * Determine if the parameter is a control message. A control message
-		 * starts with the CONTROL_MESSAGE_SPECIFIER string ("C0NTR0L:")
-		 * @param msgLine The string in question
-		 * @return true if the message is a control message, false otherwise
+		 * Have the loop close the channel, which drops whatever is still queued for it.
 		 */
-		boolean isControlMessage(String msgLine)
+		void forceClose()
 		{
-			return msgLine.startsWith(ServerClientCommon.CONTROL_MESSAGE_SPECIFIER);
+			loop.execute(() -> {
+				ServerClientCommon.closeChannel(channel);
+				flushOutboundMessages();
+			});
 		}
 		
 		/**
-		 * Performs actions based on control messages
-		 * @param controlMsgLine The line containing the control message
-		 * @return Whether or not the client should continue; true = continue
-		 * 		   interacting with the client, false = close connection
+		 * Runs the common disconnect process once. Must be called on the loop's thread.
 		 */
-		boolean handleControlMessage(String controlMsgLine)
+		private void disconnect()
 		{
-			// When the client wants to end the connection to the server
-			if (controlMsgLine.contains(ServerClientCommon.DISCONNECT_FROM_SERVER))
+			if (!disconnected)
 			{
-				sendMessageToClient("SVR: CLOSING CONNECTION. SEE YOU LATER, " + client.getName());
-				return false;
+				disconnected = true;
+				clientDisconnectProcess();
 			}
-			// When the client wants to set their username
-			else if (controlMsgLine.contains(ServerClientCommon.SET_USERNAME))
+		}
+		
+		/**
+		 * Write as much of the queued output as the channel will take, handing a burst of
+		 * queued messages to the channel in one gathering write. If the channel fills up,
+		 * wait for it to become writable again. Must be called on the loop's thread.
+		 */
+		private void flushOutboundMessages()
+		{
+			if (!channel.isOpen())
 			{
-				updateNameControlMsgHandler(controlMsgLine);
+				outboundQueue.clear();
+				encodedMessages.clear();
+				endOutboundCompression();
+				return;
 			}
-			// When the client wants to connect to another client
-			else if (controlMsgLine.contains(ServerClientCommon.SET_PEER_NAME))
+			
+			try
 			{
-				setPeerControlMsgHandler(controlMsgLine);
+				while (refillEncodedMessages())
+				{
+					// Gather up the front of the encoded messages
+					int gatherCount = 0;
+					for (ByteBuffer encodedMessage : encodedMessages)
+					{
+						gatherBuffers[gatherCount++] = encodedMessage;
+						if (gatherCount == MAX_MESSAGES_PER_WRITE)
+						{
+							break;
+						}
+					}
+					
+					metrics.addBytesOut(channel.write(gatherBuffers, 0, gatherCount));
+					
+					// Drop the messages which were completely written
+					int written = 0;
+					while (written < gatherCount && !gatherBuffers[written].hasRemaining())
+					{
+						encodedMessages.poll();
+						++written;
+					}
+					Arrays.fill(gatherBuffers, 0, gatherCount, null);
+					
+					if (written < gatherCount)
+					{
+						// The socket's send buffer is full; resume when it drains
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
 			}
-			// When the client wants the server to send it the list of connected client names
-			else if (controlMsgLine.contains(ServerClientCommon.GET_LIST_OF_CONNECTED_CLIENTS))
+			catch (IOException err)
 			{
-				getListOfConnectedClientsControlMsgHandler();
+				// The client is unreachable. Drop its output and let the disconnect process clean up.
+				outboundQueue.clear();
+				encodedMessages.clear();
+				if (!closeRequested)
+				{
+					disconnect();
+				}
+				ServerClientCommon.closeChannel(channel);
+				endOutboundCompression();
+				return;
 			}
-			// When the client wants to know its own name
-			else if (controlMsgLine.contains(ServerClientCommon.GET_MY_NAME))
+			
+			// Everything has been written
+			if (key != null && key.isValid())
 			{
-				sendMessageToClient("SVR: Your name is: \"" + client.getName() + "\"");
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
 			}
-			// When the client wants to know the name of its peer
-			else if (controlMsgLine.contains(ServerClientCommon.GET_MY_PEERS_NAME))
+			if (closeRequested)
 			{
-				getMyPeersNameControlMsgHandler();
+				ServerClientCommon.closeChannel(channel);
+				endOutboundCompression();
 			}
-			// If none of the control messages above match the message that the client
-			// passed (that started with "C0NTR0L:"), tell them that the message was invalid.
 			else
 			{
-				sendMessageToClient("SVR: \"" + controlMsgLine + "\" is not a valid control message");
+				onOutboundDrained();
 			}
-			
-			// Return true, indicating that the client and server are to stay connected
-			return true;
 		}
 		
 		/**
-		 * When the user requests their peer's name with a
-		 * GET_MY_PEERS_NAME message, send them the desired info.
+		 * If every encoded message has been written, take the next batch off the outbound queue,
+		 * topped up with unread messages from the broadcast channels the client subscribes to.
+		 * @return true if there are encoded messages waiting to be written
 		 */
-		private void getMyPeersNameControlMsgHandler()
+		private boolean refillEncodedMessages()
 		{
-			criticalServerDataLock.lock();
-			try
+			if (encodedMessages.isEmpty())
 			{
-				if (client.isInListenMode())
+				outboundQueue.pollBatch(dequeuedMessages, MAX_MESSAGES_PER_WRITE);
+				// Unread broadcast messages that don't fit are taken by the next refill
+				pollSubscriptions(dequeuedMessages, MAX_MESSAGES_PER_WRITE);
+				compressForClient(dequeuedMessages);
+				// Each frame may be queued for many clients, so each write gets its own view of it
+				for (OutboundFrame frame : dequeuedMessages)
 				{
-					sendMessageToClient("SVR: Your are not connected to another user; your peer's name is: " + ServerClientCommon.LISTENER_SPECIFIER);
-				}
-				else
-				{
-					sendMessageToClient("SVR: Your peer's name is: " + client.getPeer().getName());
+					encodedMessages.add(frame.newReadBuffer());
 				}
+				dequeuedMessages.clear();
 			}
-			finally
+			return !encodedMessages.isEmpty();
+		}
+	}
+
+	/**
+	 * How the replication log reads this server's clients. Called on the log's thread.
+	 */
+	private class ReplicatedClients implements ReplicationLog.Clients
+	{
+		@Override
+		public List<Long> connectedIds()
+		{
+			List<Long> ids = new ArrayList<>();
+			for (ClientSession session : registry.getSessions())
 			{
-				criticalServerDataLock.unlock();
+				ids.add(session.client.getId());
 			}
+			return ids;
 		}
 		
-		/**
-		 * Generate a comma separated list of names of clients connected to this server.
-		 * Then, send that list to the requesting client.
-		 */
-		void getListOfConnectedClientsControlMsgHandler()
+		@Override
+		public ReplicationLog.ReplicatedClient describe(long id)
 		{
-			String commaSeparatedClientNames = "SVR: Clients connected to the server: ";
-			// Don't synchronize this; it's not really a big deal if one client's
-			// name isn't sent because of a concurrent read/write. With many clients,
-			// locking on this iteration would hurt performance.
-			for (String clientName : nameToParticipant.keySet())
+			ChatParticipant participant = registry.getParticipantById(id);
+			ClientSession session = (participant == null) ? null : registry.getSession(participant);
+			if (session == null || participant.hasLeft())
 			{
-				commaSeparatedClientNames += clientName + ", ";
+				return null;
 			}
-			// Remove the trailing comma upon sending
-			sendMessageToClient(commaSeparatedClientNames.substring(0, commaSeparatedClientNames.length()-2));
+			ChatParticipant peer = participant.getPeer();
+			return new ReplicationLog.ReplicatedClient(id, session.sessionToken, participant.getName(), (peer == null) ? -1 : peer.getId());
+		}
+	}
+	
+	/**
+	 * What this server does when other nodes of the cluster ask about its clients. Called on the
+	 * cluster's link threads; like a session, it only changes pairings through ChatParticipant,
+	 * and only ever queues messages for clients.
+	 */
+	private class ClusterClients implements ClusterNode.LocalClients
+	{
+		@Override
+		public Iterable<String> names()
+		{
+			return registry.getNames();
 		}
 		
-		/**
-		 * This handles setting a new peer for the client.
-		 * There are quite a number of possible scenarios which can occur
-		 * when the client wants to connect to another client,
-		 * which are documented in the source below.
-		 * @param controlMsgLine The raw control message containing the new peer's name (ex: "C0NTR0L:CONNECT TO PEER WITH NAME=BEN")
-		 */
-		void setPeerControlMsgHandler(String controlMsgLine)
+		@Override
+		public ClusterNode.PairResult onPairRequest(int fromNode, long fromId, String fromName, String toName)
 		{
-			// Synchronize this entire thread to prevent issues with multiple threads
-			// trying to connect to the same client.
-			criticalServerDataLock.lock();
-			try
+			ChatParticipant wanted = registry.getParticipant(toName);
+			ClientSession wantedSession = (wanted == null) ? null : registry.getSession(wanted);
+			if (wantedSession == null || wanted.hasLeft() || !toName.equals(wanted.getName()))
 			{
-				// Parse the control message for the new peer's name. The name is every character following the "=" sign in the control message
-				String newPeerName = controlMsgLine.substring(controlMsgLine.indexOf(ServerClientCommon.SET_PEER_NAME) + ServerClientCommon.SET_PEER_NAME.length());
-				
-				// If the client wants to change their peer to their current peer, tell them that they're already connected
-				if (!client.isInListenMode() && newPeerName.equals(client.getPeer().getName()))
-				{
-					sendMessageToClient("SVR: You're already chatting with \"" + newPeerName + "\".");
-					return;
-				}
-				// If the client wants to disconnect from their current partner and become a listener given that they're
-				// currently connected to another client.
-				else if (newPeerName.equals(ServerClientCommon.LISTENER_SPECIFIER) && !client.isInListenMode())
-				{
-					terminateConnectionBetweenThisClientAndItsPeer();
-					sendMessageToClient("SVR: Disconnected with \"" + client.getName() + "\". You are now in listen mode.");
-					return;
-				}
-				// If the client wants to disconnect from their current partner and become a listener given that they're NOT
-				// currently connected to another client.
-				else if(newPeerName.equals(ServerClientCommon.LISTENER_SPECIFIER) && client.isInListenMode())
-				{
-					sendMessageToClient("SVR: You are now in listen mode.");
-					return;
-				}
-				
-				// If the desired peer isn't currently connected to the server AND the calling client
-				// currently is chatting with another user.
-				// In this case, tell the client that they can't connect to the desired user
-				// and then disconnect them from their current chat.
-				if (!nameToParticipant.containsKey(newPeerName) && !client.isInListenMode())
-				{
-					sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is not connected to the server. Try again later." +
-							"You are now being disconnected from \"" + client.getPeer().getName() + "\"");
-					terminateConnectionBetweenThisClientAndItsPeer();
-					return;
-				}
-				// If the desired peer doesn't exist and the client currently isn't connected to anyone
-				else if (!nameToParticipant.containsKey(newPeerName) && client.isInListenMode())
-				{
-					sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is not connected to the server. Try again later.");
-					return;
-				}
-				
-				// Given the above checks, there must be a ChatParticipant corresponding
-				// to newPeerName connected to the server.
-				ChatParticipant desiredPeer = nameToParticipant.get(newPeerName);
-
-				// If the both the desired peer and the caller are connected to other clients, alert the caller and have the caller disconnect
-				// from its current peer.
-				if (!desiredPeer.isInListenMode() && !client.isInListenMode())
-				{
-					sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is chatting with the user \"" +
-											desiredPeer.getPeer().getName() + "\". Try again later." +
-											"You are now being disconnected from: \"" + client.getPeer().getName() + "\"");
-					terminateConnectionBetweenThisClientAndItsPeer();
-				}
-				// If the desired peer is connected to someone but the caller is not. The caller will not be able to connect to the desired peer.
-				else if (!desiredPeer.isInListenMode() && client.isInListenMode())
-				{
-					sendMessageToClient("SVR: The desired client, \"" + newPeerName + "\" is chatting with the user \"" + desiredPeer.getPeer().getName() + "\". Try again later.");
-				}
-				// If the caller is connected to another client, but the desired peer is not, the caller will have to end its chat
-				// with its current client and then connect to the new desired client.
-				else if (desiredPeer.isInListenMode() && !client.isInListenMode())
-				{
-					sendMessageToClient("SVR: You are now being disconnected from: \"" + client.getPeer().getName() + "\"");
-					terminateConnectionBetweenThisClientAndItsPeer();
-					connectToOtherClient(desiredPeer);
-				}
-				// Neither the caller nor the desired peer are currently connected, so connect the two.
-				else
-				{
-					connectToOtherClient(desiredPeer);
-				}	
+				return ClusterNode.PairResult.gone();
 			}
-			finally
+			if (!ChatParticipant.pair(wanted, new ChatParticipant(fromName, fromNode, fromId)))
 			{
-				criticalServerDataLock.unlock();
+				// Chatting with someone else, or it's just left
+				ChatParticipant wantedPeer = wanted.getPeer();
+				return (wantedPeer != null) ? ClusterNode.PairResult.busy(wantedPeer.getName()) : ClusterNode.PairResult.gone();
 			}
+			wantedSession.enqueueFrame(OutboundFrame.encode("SVR: You are now connected with \"" + fromName + "\""));
+			return ClusterNode.PairResult.accepted(wanted.getId());
 		}
 		
-		/**
-		 * Connects this client to the client specified by the parameter
-		 * @param newPeer The client to connect the caller to
-		 */
-		void connectToOtherClient(ChatParticipant newPeer)
+		@Override
+		public void onRelay(int fromNode, long fromId, long toId, String line)
 		{
-			criticalServerDataLock.lock();
-			try
+			ChatParticipant recipient = registry.getParticipantById(toId);
+			ClientSession recipientSession = (recipient == null) ? null : registry.getSession(recipient);
+			if (recipientSession != null && isChattingWith(recipient, fromNode, fromId) != null)
 			{
-				// Update this client's references to the new peer
-				// and inform them that they have been connected
-				client.setPeer(newPeer);
-				client.setIsInListenMode(false);
-				sendMessageToClient("SVR: You are now connected with \"" + newPeer.getName() + "\"");
-
-				// Update the new peer's references to the client
-				// and inform them that they have been connected
-				newPeer.setPeer(client);
-				newPeer.setIsInListenMode(false);
-				sendMessageToThisClientsPeer("SVR: You are now connected with \"" + client.getName() + "\"", true);
-			}
-			finally
-			{
-				criticalServerDataLock.unlock();
+				recipientSession.enqueueFrame(OutboundFrame.encode(line));
 			}
 		}
 		
-		/**
-		 * Called in the event that this thread's client is ending communication
-		 * with its current peer.
-		 */
-		void terminateConnectionBetweenThisClientAndItsPeer()
+		@Override
+		public void onUnpair(int fromNode, long fromId, long toId, String notice)
 		{
-			criticalServerDataLock.lock();
-			try
-			{
-				// Alert the client's peer of the termination
-				sendMessageToThisClientsPeer("SVR: User \"" + client.getName() + "\" has exited the chat. You are now in listen mode.", true);
-				
-				// Physically break the connection by nulling this client's peer's peer member
-				// Also, put the peer into listening mode
-				client.getPeer().setIsInListenMode(true);
-				client.getPeer().setPeer(null);
-				
-				// Now, have the calling client disconnect by nulling its peer
-				// Also, put the caller into listening mode
-				client.setIsInListenMode(true);
-				client.setPeer(null);
-			}
-			finally
+			ChatParticipant recipient = registry.getParticipantById(toId);
+			ChatParticipant standIn = (recipient == null) ? null : isChattingWith(recipient, fromNode, fromId);
+			ClientSession recipientSession = (standIn == null) ? null : registry.getSession(recipient);
+			if (recipientSession != null && recipient.endPairingWith(standIn) != null)
 			{
-				criticalServerDataLock.unlock();
+				recipientSession.enqueueFrame(OutboundFrame.encode(notice));
 			}
 		}
 		
-		/**
-		 * The handler for the SET_USERNAME ("SET MY NAME=") control message.
-		 * This function reserves and sets the new name if it isn't currently held, and then
-		 * un-reserves the client's current name. It then informs the client of the change.
-		 * If the name is already in use, tell the client they can't reserve it.
-		 * Note that if this client is talking to another client, the connection
-		 * will not be broken, but rather the peer will be informed of the change.
-		 * Whitespace only names are not allowed, and whitespace of a name is removed
-		 * from the beginning and end of the string. In otherwords " Ben " = "Ben"
-		 * @param controlMsgLine The raw input message which contains the control strings
-		 */
-		void updateNameControlMsgHandler(String controlMsgLine)
+		@Override
+		public void onPeerRenamed(int fromNode, long fromId, long toId, String newName)
 		{
-			// Parse the control message for the new name. The name is every character following the "=" sign in the control message
-			// Use .trim() to remove leading or trailing whitespace
-			String newName = controlMsgLine.substring(controlMsgLine.indexOf(ServerClientCommon.SET_USERNAME) + ServerClientCommon.SET_USERNAME.length()).trim();
-			
-			// If the client is trying to set its new name to its current name, inform them.
-			if (newName.equals(client.getName()))
-			{
-				sendMessageToClient("SVR: The username \"" + newName + "\" is your current username.");
-				return;
-			}
-			// If their desired name is reserved
-			if (Arrays.asList(ServerClientCommon.RESERVED_NAMES).contains(newName))
-			{
-				sendMessageToClient("SVR: The username \"" + newName + "\" is reserved. Pick another");
-				return;
-			}
-			// If the desired name is all whitespace, tell the client that it's a no-go
-			if (newName.equals(""))
+			ChatParticipant recipient = registry.getParticipantById(toId);
+			ChatParticipant standIn = (recipient == null) ? null : isChattingWith(recipient, fromNode, fromId);
+			if (standIn != null)
 			{
-				sendMessageToClient("SVR: Whitespace-only usernames are not permitted. Pick another");
-				return;
+				standIn.setName(newName);
 			}
-			
-			criticalServerDataLock.lock();
-			try
+		}
+		
+		@Override
+		public void onNodeLost(int node)
+		{
+			for (ClientSession session : registry.getSessions())
 			{
-				// If the desired name isn't currently reserved, then allow the client to reserve it.
-				if (!nameToParticipant.containsKey(newName))
-				{
-					// Remove their current name and ChatParticipant from the namesToParticipant hash table
-					nameToParticipant.remove(client.getName());
-					
-					// Update their corresponding ChatParticipant with the new name
-					client.setName(newName);
-					
-					// Update the nameToParticipant table to have an entry for the new name
-					// that corresponds to this client's ChatParticipant
-					nameToParticipant.put(newName, client);
-					
-					// Tell them that the new name has been set
-					sendMessageToClient("SVR: Your username has been set to \"" + newName + "\"");
-					
-					// If the client is chatting with someone else, let them know of the name change,
-					// but don't disconnect from them
-					if (!client.isInListenMode())
-					{
-						sendMessageToThisClientsPeer("SVR: Your peer has changed their name to: \"" + client.getName() + "\".", true);
-					}
-				}
-				// If the name is current in use by someone else, tell the client they can't change take it.
-				else
+				ChatParticipant peer = session.client.getPeer();
+				if (peer != null && peer.isRemote() && peer.getNodeId() == node && session.client.endPairingWith(peer) != null)
 				{
-					sendMessageToClient("SVR: The username \"" + newName + "\" is already in use. Choose another.");
+					session.enqueueFrame(OutboundFrame.encode("SVR: The server \"" + peer.getName() + "\" is on can't be reached, so your chat has ended."
+							+ " You are now in listen mode."));
 				}
 			}
-			finally
-			{
-				criticalServerDataLock.unlock();
-			}
 		}
 		
 		/**
-		 * Send a message to the client directly whom this thread corresponds to.
-		 * @param msgToSend The message to send
-		 */
-		void sendMessageToClient(String msgToSend)
-		{
-			ServerClientCommon.sendMessageToDataOutputStream(msgToSend, outToClient, null);
-		}
-
-		/**
-		 * This echos a message from the client back to the client.
-		 * It is called when the client sends non-control messages to the server
-		 * as a listener
-		 * @param msgToSend The message to send
+		 * @param recipient A client of this server
+		 * @param node A node of the cluster
+		 * @param id The id of a client of that node
+		 * @return The recipient's peer, if it's the stand-in for that client, otherwise null
 		 */
-		void echoMessageToClient(String msgToSend)
+		private ChatParticipant isChattingWith(ChatParticipant recipient, int node, long id)
 		{
-			ServerClientCommon.sendMessageToDataOutputStream("LISTENER_MODE_ECHO: " + msgToSend, outToClient, null);	
+			ChatParticipant peer = recipient.getPeer();
+			return (peer != null && peer.standsInFor(node, id)) ? peer : null;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,861 @@
+/**
+ * Holds the startup options for a ChatServer. chatd fills one of these
+ * in from its command line and passes it to the server.
+ * @author Bennett Sherman, bms113
+ */
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ChatServerConfig {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The ways the server can serve its clients.
+	 * THREAD_PER_CLIENT - the original engine; each client gets its own thread
+	 * 		which blocks reading from that client's socket.
+	 * VIRTUAL_THREAD_PER_CLIENT - the same as THREAD_PER_CLIENT, but each client's
+	 * 		thread is a virtual thread. Requires Java 21 or later.
+	 * SELECTOR - a fixed number of event-loop threads serve every client
+	 * 		through non-blocking channels.
+	 */
+	enum ServerEngine { THREAD_PER_CLIENT, VIRTUAL_THREAD_PER_CLIENT, SELECTOR };
+
+	/**
+	 * The port number the server listens on.
+	 */
+	private int portNumber = ServerClientCommon.DEFAULT_SERVER_PORT;
+
+	/**
+	 * Which engine the server uses to serve clients.
+	 */
+	private ServerEngine engine = ServerEngine.THREAD_PER_CLIENT;
+
+	/**
+	 * The number of event-loop threads used by the SELECTOR engine.
+	 * Defaults to one per available core.
+	 */
+	private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The number of threads accepting new connections. Each has its own listening socket
+	 * where the OS allows several on one port (SO_REUSEPORT); otherwise they share one.
+	 */
+	private int acceptorCount = 1;
+
+	/**
+	 * The most messages that may wait to be written to one client before
+	 * further messages to it are dropped.
+	 */
+	private int outboundQueueCapacity = 1024;
+
+	/**
+	 * The most messages each broadcast channel keeps for its subscribers. A subscriber that
+	 * falls further behind than this misses messages.
+	 */
+	private int broadcastRingCapacity = 4096;
+
+	/**
+	 * The most bytes that may wait to be written to one client before it's falling behind. 0 for no limit.
+	 */
+	private int slowConsumerBytes = 1024 * 1024;
+
+	/**
+	 * How long, in milliseconds, a client may have more than slowConsumerBytes waiting before it's a slow consumer.
+	 */
+	private int slowConsumerGraceMillis = 5000;
+
+	/**
+	 * What's done about a slow consumer.
+	 */
+	private OutboundQueue.SlowConsumerPolicy slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.DISCONNECT;
+
+	/**
+	 * The most chat messages each client may send per second. 0 for no limit.
+	 */
+	private int messageRateLimit = 100;
+
+	/**
+	 * The most bytes each client may send per second. 0 for no limit.
+	 */
+	private int byteRateLimit = 64 * 1024;
+
+	/**
+	 * The most control messages each client may send per second. 0 for no limit.
+	 */
+	private int controlRateLimit = 20;
+
+	/**
+	 * Once a client has agreed to compress, lines to it at least this many bytes long are
+	 * compressed. 0 means clients that ask to compress are refused.
+	 */
+	private int compressionThreshold = LineCompression.DEFAULT_THRESHOLD;
+
+	/**
+	 * A client that hasn't sent a line for this many seconds is disconnected. 0 never disconnects idle clients.
+	 * Off unless asked for, since clients that don't answer heartbeats (ex: telnet, older builds) would be dropped.
+	 */
+	private int idleTimeoutSeconds = 0;
+
+	/**
+	 * A client that hasn't sent a line for this many seconds is sent a heartbeat, and sent another
+	 * each time this many more seconds pass without a line. 0 sends no heartbeats. Off unless asked
+	 * for, since clients that don't know the heartbeat line would show it.
+	 */
+	private int heartbeatIntervalSeconds = 0;
+
+	/**
+	 * Log lines below this level aren't logged.
+	 */
+	private ServerLogger.Level logLevel = ServerLogger.Level.INFO;
+
+	/**
+	 * Only one in this many chat messages from clients is logged. 1 logs every message.
+	 */
+	private int chatLogSampleEvery = 1;
+
+	/**
+	 * The most log lines that can wait to be written before further lines are dropped.
+	 */
+	private int logBufferCapacity = 8192;
+
+	/**
+	 * The name a client must have to be sent the server's statistics, or null if no client may.
+	 */
+	private String adminName = null;
+
+	/**
+	 * The secret a client must send with the admin name to take it, or null if only a client connected
+	 * from this machine may take it.
+	 */
+	private String adminSecret = null;
+
+	/**
+	 * The file the server's statistics are periodically written to, or null to not write them.
+	 */
+	private String statsFile = null;
+
+	/**
+	 * How often, in seconds, the statistics file is rewritten.
+	 */
+	private int statsIntervalSeconds = 10;
+
+	/**
+	 * The directory where messages for clients who aren't connected are kept, or null to not keep them.
+	 */
+	private String mailboxDirectory = null;
+
+	/**
+	 * The size, in bytes, of each of the mailbox's segment files.
+	 */
+	private int mailboxSegmentSize = 8 * 1024 * 1024;
+
+	/**
+	 * The directory where the messages relayed between peers are kept, or null to not keep them.
+	 */
+	private String historyDirectory = null;
+
+	/**
+	 * The size, in bytes, past which a conversation's history starts a new segment file.
+	 */
+	private int historySegmentSize = 16 * 1024 * 1024;
+
+	/**
+	 * The address each node of the cluster listens for the other nodes on, in node order,
+	 * or null if this server isn't part of a cluster.
+	 */
+	private List<InetSocketAddress> clusterNodes = null;
+
+	/**
+	 * This server's place in clusterNodes.
+	 */
+	private int nodeId = 0;
+
+	/**
+	 * The port this server listens for a standby on, or 0 if it has none.
+	 */
+	private int replicationPort = 0;
+
+	/**
+	 * The address this server listens for a standby on. Loopback unless another is given,
+	 * since the standby is sent every client's session token.
+	 */
+	private InetAddress replicationBindAddress = InetAddress.getLoopbackAddress();
+
+	/**
+	 * The secret a standby must prove it knows before the primary sends it anything, or null if none was given.
+	 */
+	private String replicationSecret = null;
+
+	/**
+	 * Where the primary this server stands by for listens for it, or null if this server isn't a standby.
+	 */
+	private InetSocketAddress standbyOf = null;
+
+	/**
+	 * How long, after a standby takes over, the primary's clients have to resume their sessions.
+	 */
+	private int resumeGraceSeconds = 60;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * @param portNumber The port number the server will listen on
+	 */
+	void setPortNumber(int portNumber)
+	{
+		this.portNumber = portNumber;
+	}
+
+	/**
+	 * @return The port number the server will listen on
+	 */
+	int getPortNumber()
+	{
+		return portNumber;
+	}
+
+	/**
+	 * @param engine The engine the server will use to serve clients
+	 */
+	void setEngine(ServerEngine engine)
+	{
+		this.engine = engine;
+	}
+
+	/**
+	 * @return The engine the server will use to serve clients
+	 */
+	ServerEngine getEngine()
+	{
+		return engine;
+	}
+
+	/**
+	 * @param eventLoopCount The number of event-loop threads for the SELECTOR engine. Must be at least 1.
+	 */
+	void setEventLoopCount(int eventLoopCount)
+	{
+		if (eventLoopCount < 1)
+		{
+			throw new IllegalArgumentException("The event loop count must be at least 1");
+		}
+		this.eventLoopCount = eventLoopCount;
+	}
+
+	/**
+	 * @return The number of event-loop threads for the SELECTOR engine
+	 */
+	int getEventLoopCount()
+	{
+		return eventLoopCount;
+	}
+
+	/**
+	 * @param acceptorCount The number of threads accepting new connections. Must be at least 1.
+	 */
+	void setAcceptorCount(int acceptorCount)
+	{
+		if (acceptorCount < 1)
+		{
+			throw new IllegalArgumentException("The acceptor count must be at least 1");
+		}
+		this.acceptorCount = acceptorCount;
+	}
+
+	/**
+	 * @return The number of threads accepting new connections
+	 */
+	int getAcceptorCount()
+	{
+		return acceptorCount;
+	}
+
+	/**
+	 * @param outboundQueueCapacity The most messages that may wait to be written to one client. Must be at least 1.
+	 */
+	void setOutboundQueueCapacity(int outboundQueueCapacity)
+	{
+		if (outboundQueueCapacity < 1)
+		{
+			throw new IllegalArgumentException("The outbound queue capacity must be at least 1");
+		}
+		this.outboundQueueCapacity = outboundQueueCapacity;
+	}
+
+	/**
+	 * @return The most messages that may wait to be written to one client
+	 */
+	int getOutboundQueueCapacity()
+	{
+		return outboundQueueCapacity;
+	}
+
+	/**
+	 * @param broadcastRingCapacity The most messages each broadcast channel keeps for its subscribers. Must be at least 1.
+	 */
+	void setBroadcastRingCapacity(int broadcastRingCapacity)
+	{
+		if (broadcastRingCapacity < 1)
+		{
+			throw new IllegalArgumentException("The broadcast ring capacity must be at least 1");
+		}
+		this.broadcastRingCapacity = broadcastRingCapacity;
+	}
+
+	/**
+	 * @return The most messages each broadcast channel keeps for its subscribers
+	 */
+	int getBroadcastRingCapacity()
+	{
+		return broadcastRingCapacity;
+	}
+
+	/**
+	 * @param slowConsumerBytes The most bytes that may wait to be written to one client before it's falling behind.
+	 * 		  0 for no limit. Must not be negative.
+	 */
+	void setSlowConsumerBytes(int slowConsumerBytes)
+	{
+		if (slowConsumerBytes < 0)
+		{
+			throw new IllegalArgumentException("The slow consumer byte limit can't be negative");
+		}
+		this.slowConsumerBytes = slowConsumerBytes;
+	}
+
+	/**
+	 * @return The most bytes that may wait to be written to one client before it's falling behind, 0 for no limit
+	 */
+	int getSlowConsumerBytes()
+	{
+		return slowConsumerBytes;
+	}
+
+	/**
+	 * @param slowConsumerGraceMillis How long a client may be over the byte limit before it's a slow consumer. Must not be negative.
+	 */
+	void setSlowConsumerGraceMillis(int slowConsumerGraceMillis)
+	{
+		if (slowConsumerGraceMillis < 0)
+		{
+			throw new IllegalArgumentException("The slow consumer grace period can't be negative");
+		}
+		this.slowConsumerGraceMillis = slowConsumerGraceMillis;
+	}
+
+	/**
+	 * @return How long, in milliseconds, a client may be over the byte limit before it's a slow consumer
+	 */
+	int getSlowConsumerGraceMillis()
+	{
+		return slowConsumerGraceMillis;
+	}
+
+	/**
+	 * @param slowConsumerPolicy What's done about a slow consumer
+	 */
+	void setSlowConsumerPolicy(OutboundQueue.SlowConsumerPolicy slowConsumerPolicy)
+	{
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	/**
+	 * @return What's done about a slow consumer
+	 */
+	OutboundQueue.SlowConsumerPolicy getSlowConsumerPolicy()
+	{
+		return slowConsumerPolicy;
+	}
+
+	/**
+	 * @param messageRateLimit The most chat messages each client may send per second. 0 for no limit. Must not be negative.
+	 */
+	void setMessageRateLimit(int messageRateLimit)
+	{
+		if (messageRateLimit < 0)
+		{
+			throw new IllegalArgumentException("The message rate limit can't be negative");
+		}
+		this.messageRateLimit = messageRateLimit;
+	}
+
+	/**
+	 * @return The most chat messages each client may send per second, 0 for no limit
+	 */
+	int getMessageRateLimit()
+	{
+		return messageRateLimit;
+	}
+
+	/**
+	 * @param byteRateLimit The most bytes each client may send per second. 0 for no limit. Must not be negative.
+	 */
+	void setByteRateLimit(int byteRateLimit)
+	{
+		if (byteRateLimit < 0)
+		{
+			throw new IllegalArgumentException("The byte rate limit can't be negative");
+		}
+		this.byteRateLimit = byteRateLimit;
+	}
+
+	/**
+	 * @return The most bytes each client may send per second, 0 for no limit
+	 */
+	int getByteRateLimit()
+	{
+		return byteRateLimit;
+	}
+
+	/**
+	 * @param controlRateLimit The most control messages each client may send per second. 0 for no limit. Must not be negative.
+	 */
+	void setControlRateLimit(int controlRateLimit)
+	{
+		if (controlRateLimit < 0)
+		{
+			throw new IllegalArgumentException("The control message rate limit can't be negative");
+		}
+		this.controlRateLimit = controlRateLimit;
+	}
+
+	/**
+	 * @return The most control messages each client may send per second, 0 for no limit
+	 */
+	int getControlRateLimit()
+	{
+		return controlRateLimit;
+	}
+
+	/**
+	 * @param compressionThreshold Lines to clients that agreed to compress are compressed if
+	 * 		  at least this many bytes long. 0 refuses to compress. Must not be negative.
+	 */
+	void setCompressionThreshold(int compressionThreshold)
+	{
+		if (compressionThreshold < 0)
+		{
+			throw new IllegalArgumentException("The compression threshold can't be negative");
+		}
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * @return The length, in bytes, from which lines to clients that agreed to compress are compressed. 0 if compression is refused.
+	 */
+	int getCompressionThreshold()
+	{
+		return compressionThreshold;
+	}
+
+	/**
+	 * @param idleTimeoutSeconds Clients that don't send a line for this many seconds are disconnected.
+	 * 		  0 never disconnects them. Must not be negative.
+	 */
+	void setIdleTimeoutSeconds(int idleTimeoutSeconds)
+	{
+		if (idleTimeoutSeconds < 0)
+		{
+			throw new IllegalArgumentException("The idle timeout can't be negative");
+		}
+		this.idleTimeoutSeconds = idleTimeoutSeconds;
+	}
+
+	/**
+	 * @return The seconds without a line after which a client is disconnected, 0 if never
+	 */
+	int getIdleTimeoutSeconds()
+	{
+		return idleTimeoutSeconds;
+	}
+
+	/**
+	 * @param heartbeatIntervalSeconds Clients that don't send a line for this many seconds are sent a heartbeat.
+	 * 		  0 sends none. Should be well under the idle timeout, so clients have time to answer. Must not be negative.
+	 */
+	void setHeartbeatIntervalSeconds(int heartbeatIntervalSeconds)
+	{
+		if (heartbeatIntervalSeconds < 0)
+		{
+			throw new IllegalArgumentException("The heartbeat interval can't be negative");
+		}
+		this.heartbeatIntervalSeconds = heartbeatIntervalSeconds;
+	}
+
+	/**
+	 * @return The seconds without a line after which a client is sent a heartbeat, 0 if none are sent
+	 */
+	int getHeartbeatIntervalSeconds()
+	{
+		return heartbeatIntervalSeconds;
+	}
+
+	/**
+	 * @param logLevel Log lines below this level won't be logged
+	 */
+	void setLogLevel(ServerLogger.Level logLevel)
+	{
+		this.logLevel = logLevel;
+	}
+
+	/**
+	 * @return Log lines below this level won't be logged
+	 */
+	ServerLogger.Level getLogLevel()
+	{
+		return logLevel;
+	}
+
+	/**
+	 * @param chatLogSampleEvery Log one in this many chat messages from clients. Must be at least 1.
+	 */
+	void setChatLogSampleEvery(int chatLogSampleEvery)
+	{
+		if (chatLogSampleEvery < 1)
+		{
+			throw new IllegalArgumentException("The chat log sampling must be at least 1");
+		}
+		this.chatLogSampleEvery = chatLogSampleEvery;
+	}
+
+	/**
+	 * @return One in this many chat messages from clients is logged
+	 */
+	int getChatLogSampleEvery()
+	{
+		return chatLogSampleEvery;
+	}
+
+	/**
+	 * @param logBufferCapacity The most log lines that can wait to be written. Must be at least 1.
+	 */
+	void setLogBufferCapacity(int logBufferCapacity)
+	{
+		if (logBufferCapacity < 1)
+		{
+			throw new IllegalArgumentException("The log buffer capacity must be at least 1");
+		}
+		this.logBufferCapacity = logBufferCapacity;
+	}
+
+	/**
+	 * @return The most log lines that can wait to be written
+	 */
+	int getLogBufferCapacity()
+	{
+		return logBufferCapacity;
+	}
+
+	/**
+	 * @param adminName The name a client must have to be sent the server's statistics
+	 */
+	void setAdminName(String adminName)
+	{
+		this.adminName = adminName;
+	}
+
+	/**
+	 * @return The name a client must have to be sent the server's statistics, or null if no client may
+	 */
+	String getAdminName()
+	{
+		return adminName;
+	}
+
+	/**
+	 * @param adminSecret The secret a client must send with the admin name to take it
+	 * @throws IllegalArgumentException If the secret is empty
+	 */
+	void setAdminSecret(String adminSecret)
+	{
+		if (adminSecret.isEmpty())
+		{
+			throw new IllegalArgumentException("the admin secret can't be empty");
+		}
+		this.adminSecret = adminSecret;
+	}
+
+	/**
+	 * @return The secret a client must send with the admin name to take it, or null if only a client
+	 * 		   connected from this machine may take it
+	 */
+	String getAdminSecret()
+	{
+		return adminSecret;
+	}
+
+	/**
+	 * @param statsFile The file to periodically write the server's statistics to
+	 */
+	void setStatsFile(String statsFile)
+	{
+		this.statsFile = statsFile;
+	}
+
+	/**
+	 * @return The file to periodically write the server's statistics to, or null to not write them
+	 */
+	String getStatsFile()
+	{
+		return statsFile;
+	}
+
+	/**
+	 * @param statsIntervalSeconds How often, in seconds, to rewrite the statistics file. Must be at least 1.
+	 */
+	void setStatsIntervalSeconds(int statsIntervalSeconds)
+	{
+		if (statsIntervalSeconds < 1)
+		{
+			throw new IllegalArgumentException("The statistics interval must be at least 1 second");
+		}
+		this.statsIntervalSeconds = statsIntervalSeconds;
+	}
+
+	/**
+	 * @return How often, in seconds, the statistics file is rewritten
+	 */
+	int getStatsIntervalSeconds()
+	{
+		return statsIntervalSeconds;
+	}
+
+	/**
+	 * @param mailboxDirectory The directory to keep messages for clients who aren't connected in
+	 */
+	void setMailboxDirectory(String mailboxDirectory)
+	{
+		this.mailboxDirectory = mailboxDirectory;
+	}
+
+	/**
+	 * @return The directory where messages for clients who aren't connected are kept, or null to not keep them
+	 */
+	String getMailboxDirectory()
+	{
+		return mailboxDirectory;
+	}
+
+	/**
+	 * @param mailboxSegmentSize The size, in bytes, of each of the mailbox's segment files. Must be at least 4096.
+	 */
+	void setMailboxSegmentSize(int mailboxSegmentSize)
+	{
+		if (mailboxSegmentSize < 4096)
+		{
+			throw new IllegalArgumentException("The mailbox segment size must be at least 4096 bytes");
+		}
+		this.mailboxSegmentSize = mailboxSegmentSize;
+	}
+
+	/**
+	 * @return The size, in bytes, of each of the mailbox's segment files
+	 */
+	int getMailboxSegmentSize()
+	{
+		return mailboxSegmentSize;
+	}
+
+	/**
+	 * @param historyDirectory The directory to keep the messages relayed between peers in
+	 */
+	void setHistoryDirectory(String historyDirectory)
+	{
+		this.historyDirectory = historyDirectory;
+	}
+
+	/**
+	 * @return The directory where the messages relayed between peers are kept, or null to not keep them
+	 */
+	String getHistoryDirectory()
+	{
+		return historyDirectory;
+	}
+
+	/**
+	 * @param historySegmentSize The size, in bytes, past which a conversation's history starts a new segment file.
+	 * 		  Must be at least 4096.
+	 */
+	void setHistorySegmentSize(int historySegmentSize)
+	{
+		if (historySegmentSize < 4096)
+		{
+			throw new IllegalArgumentException("The history segment size must be at least 4096 bytes");
+		}
+		this.historySegmentSize = historySegmentSize;
+	}
+
+	/**
+	 * @return The size, in bytes, past which a conversation's history starts a new segment file
+	 */
+	int getHistorySegmentSize()
+	{
+		return historySegmentSize;
+	}
+
+	/**
+	 * @param clusterNodes The address each node of the cluster listens for the other nodes on, in node order,
+	 * 		  as comma separated host:port pairs (ex: "localhost:7001,localhost:7002"). Must name at least two nodes.
+	 */
+	void setClusterNodes(String clusterNodes)
+	{
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		for (String hostAndPort : clusterNodes.split(","))
+		{
+			int colonIndex = hostAndPort.lastIndexOf(':');
+			if (colonIndex <= 0)
+			{
+				throw new IllegalArgumentException("each cluster node must be given as host:port");
+			}
+			addresses.add(new InetSocketAddress(hostAndPort.substring(0, colonIndex).trim(),
+					Integer.parseInt(hostAndPort.substring(colonIndex + 1).trim())));
+		}
+		if (addresses.size() < 2)
+		{
+			throw new IllegalArgumentException("a cluster needs at least two nodes");
+		}
+		this.clusterNodes = addresses;
+	}
+
+	/**
+	 * @return The address each node of the cluster listens for the other nodes on, in node order,
+	 * 		   or null if this server isn't part of a cluster
+	 */
+	List<InetSocketAddress> getClusterNodes()
+	{
+		return clusterNodes;
+	}
+
+	/**
+	 * @param nodeId This server's place in the list of cluster nodes, starting from 0. Must not be negative.
+	 */
+	void setNodeId(int nodeId)
+	{
+		if (nodeId < 0)
+		{
+			throw new IllegalArgumentException("The node id can't be negative");
+		}
+		this.nodeId = nodeId;
+	}
+
+	/**
+	 * @return This server's place in the list of cluster nodes
+	 */
+	int getNodeId()
+	{
+		return nodeId;
+	}
+
+	/**
+	 * @param replicationPort The port this server listens for a standby on, or 0 for none
+	 */
+	void setReplicationPort(int replicationPort)
+	{
+		if (replicationPort < 0 || replicationPort > 65535)
+		{
+			throw new IllegalArgumentException("The replication port must be from 0 to 65535");
+		}
+		this.replicationPort = replicationPort;
+	}
+
+	/**
+	 * @return The port this server listens for a standby on, or 0 if it has none
+	 */
+	int getReplicationPort()
+	{
+		return replicationPort;
+	}
+
+	/**
+	 * @param replicationBindAddress The address this server listens for a standby on, as a host name or IP address
+	 */
+	void setReplicationBindAddress(String replicationBindAddress)
+	{
+		try
+		{
+			this.replicationBindAddress = InetAddress.getByName(replicationBindAddress);
+		}
+		catch (UnknownHostException err)
+		{
+			throw new IllegalArgumentException("the address can't be resolved");
+		}
+	}
+
+	/**
+	 * @return The address this server listens for a standby on
+	 */
+	InetAddress getReplicationBindAddress()
+	{
+		return replicationBindAddress;
+	}
+
+	/**
+	 * @param replicationSecret The secret a standby must prove it knows. The primary and its standby must be given the same one.
+	 */
+	void setReplicationSecret(String replicationSecret)
+	{
+		if (replicationSecret.isEmpty())
+		{
+			throw new IllegalArgumentException("the secret can't be empty");
+		}
+		this.replicationSecret = replicationSecret;
+	}
+
+	/**
+	 * @return The secret a standby must prove it knows, or null if none was given
+	 */
+	String getReplicationSecret()
+	{
+		return replicationSecret;
+	}
+
+	/**
+	 * @param standbyOf Where the primary this server stands by for listens for it, as host:port
+	 */
+	void setStandbyOf(String standbyOf)
+	{
+		int colonIndex = standbyOf.lastIndexOf(':');
+		if (colonIndex <= 0)
+		{
+			throw new IllegalArgumentException("the primary must be given as host:port");
+		}
+		this.standbyOf = new InetSocketAddress(standbyOf.substring(0, colonIndex).trim(), Integer.parseInt(standbyOf.substring(colonIndex + 1).trim()));
+	}
+
+	/**
+	 * @return Where the primary this server stands by for listens for it, or null if this server isn't a standby
+	 */
+	InetSocketAddress getStandbyOf()
+	{
+		return standbyOf;
+	}
+
+	/**
+	 * @param resumeGraceSeconds How long, after a standby takes over, the primary's clients have to resume
+	 * 		  their sessions. Must be at least 1.
+	 */
+	void setResumeGraceSeconds(int resumeGraceSeconds)
+	{
+		if (resumeGraceSeconds < 1)
+		{
+			throw new IllegalArgumentException("The resume grace period must be at least 1 second");
+		}
+		this.resumeGraceSeconds = resumeGraceSeconds;
+	}
+
+	/**
+	 * @return How long, after a standby takes over, the primary's clients have to resume their sessions
+	 */
+	int getResumeGraceSeconds()
+	{
+		return resumeGraceSeconds;
+	}
+}
@@ -0,0 +1,954 @@
+/**
+ * One node of a chatd cluster: several servers behind one address, each with its own
+ * clients, sharing one set of names and letting a client chat with a client of another
+ * node. Every node is given the same list of nodes (see chatd's -cluster option) and is
+ * known by its place in it.
+ * Names are partitioned between the nodes: each name has a home node, picked by its hash,
+ * which keeps the directory of which node that name's client is on. Claiming a name asks
+ * its home node, so two clients on different nodes can never both get it, and giving one
+ * up tells the home node. Each node still keeps its own clients in its ParticipantRegistry,
+ * just as a single server does.
+ * Each node connects to every other node once and only sends over that connection; what
+ * the other node sends comes back over the connection it made. Everything for one node
+ * waits in one OutboundQueue and is written by that link's thread in batches, so a burst
+ * of relayed messages costs one write per batch rather than one per message. The links
+ * speak in lines, like the clients do. Names are URL encoded so that they never contain
+ * a space, and the free text that ends some lines is sent as it is:
+ * HELLO node - the first line over a new connection: which node made it
+ * SYNC, OWN name, SYNCED - the names of the sender's clients that are homed on the receiver
+ * CLAIM call name, RELEASE name - take or give up a name homed on the receiver
+ * LOOKUP call name - which node the client with a name homed on the receiver is on
+ * PAIR call fromId fromName toName - ask the receiver's client toName to chat with the sender's client
+ * UNPAIR toId fromId notice - the sender's client has ended its chat with the receiver's
+ * RENAMED toId fromId name - the sender's client, chatting with the receiver's, has a new name
+ * RELAY toId fromId line - a line for the receiver's client from its peer on the sender
+ * REPLY call answer - the answer to a CLAIM, LOOKUP or PAIR
+ * Whenever a link comes up, the node sends its clients' names homed on the other node, and
+ * the other node forgets any names it was keeping for the node that aren't among them. So a
+ * home node that restarted learns its names again, and the names of a node that restarted are
+ * freed. A node that goes down keeps its names until it's back. Chats with its clients end.
+ * A CLAIM, LOOKUP or PAIR never waits: it returns a future, completed on the link's thread
+ * with the answer, or with null once CALL_TIMEOUT_MILLIS pass without one, so an event loop
+ * can hand off the call and go on serving its other clients.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+class ClusterNode {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * What the node does for the other nodes with its own clients. Called on the links' threads,
+	 * so nothing here may wait on a client or call another node.
+	 */
+	interface LocalClients
+	{
+		/**
+		 * @return The names this node's clients have right now
+		 */
+		Iterable<String> names();
+
+		/**
+		 * Another node's client wants to chat with one of this node's.
+		 * @param fromNode The node the asking client is on
+		 * @param fromId The asking client's id on that node
+		 * @param fromName The asking client's name
+		 * @param toName The name of the client it wants to chat with
+		 * @return Whether the two are now chatting, and if not, why not
+		 */
+		PairResult onPairRequest(int fromNode, long fromId, String fromName, String toName);
+
+		/**
+		 * A line for one of this node's clients from its peer on another node.
+		 * @param fromNode The node the peer is on
+		 * @param fromId The peer's id on that node
+		 * @param toId The id of this node's client
+		 * @param line The line, exactly as the client should receive it
+		 */
+		void onRelay(int fromNode, long fromId, long toId, String line);
+
+		/**
+		 * A client of another node has ended its chat with one of this node's.
+		 * @param fromNode The node the peer is on
+		 * @param fromId The peer's id on that node
+		 * @param toId The id of this node's client
+		 * @param notice What to tell this node's client, if it was still chatting with that peer
+		 */
+		void onUnpair(int fromNode, long fromId, long toId, String notice);
+
+		/**
+		 * A client of another node, chatting with one of this node's, has a new name.
+		 * @param fromNode The node the peer is on
+		 * @param fromId The peer's id on that node
+		 * @param toId The id of this node's client
+		 * @param newName The peer's new name
+		 */
+		void onPeerRenamed(int fromNode, long fromId, long toId, String newName);
+
+		/**
+		 * The link with another node went down, so chats with its clients can't go on.
+		 * May be called more than once for the same loss.
+		 * @param node The node
+		 */
+		void onNodeLost(int node);
+	}
+
+	/**
+	 * The answer to a request for a client of one node to chat with a client of another.
+	 */
+	static final class PairResult
+	{
+		/**
+		 * ACCEPTED - the two are now chatting
+		 * BUSY - the wanted client is chatting with someone else
+		 * GONE - nobody with the wanted name is on the node any more
+		 */
+		enum Outcome { ACCEPTED, BUSY, GONE };
+
+		/**
+		 * What happened.
+		 */
+		final Outcome outcome;
+
+		/**
+		 * If ACCEPTED, the wanted client's id on its node.
+		 */
+		final long peerId;
+
+		/**
+		 * If BUSY, the name of who the wanted client is chatting with.
+		 */
+		final String busyWith;
+
+		/**
+		 * Constructor.
+		 * @param outcome What happened
+		 * @param peerId If ACCEPTED, the wanted client's id on its node
+		 * @param busyWith If BUSY, the name of who the wanted client is chatting with
+		 */
+		private PairResult(Outcome outcome, long peerId, String busyWith)
+		{
+			this.outcome = outcome;
+			this.peerId = peerId;
+			this.busyWith = busyWith;
+		}
+
+		/**
+		 * @param peerId The wanted client's id on its node
+		 * @return The answer that the two are now chatting
+		 */
+		static PairResult accepted(long peerId)
+		{
+			return new PairResult(Outcome.ACCEPTED, peerId, null);
+		}
+
+		/**
+		 * @param busyWith The name of who the wanted client is chatting with
+		 * @return The answer that the wanted client is chatting with someone else
+		 */
+		static PairResult busy(String busyWith)
+		{
+			return new PairResult(Outcome.BUSY, -1, busyWith);
+		}
+
+		/**
+		 * @return The answer that nobody with the wanted name is on the node any more
+		 */
+		static PairResult gone()
+		{
+			return new PairResult(Outcome.GONE, -1, null);
+		}
+	}
+
+	/**
+	 * The answers to claiming a name.
+	 * CLAIMED - the name is this node's until it's released
+	 * TAKEN - a client of some node already has it
+	 * UNREACHABLE - the name's home node couldn't be asked
+	 */
+	enum ClaimResult { CLAIMED, TAKEN, UNREACHABLE };
+
+	/**
+	 * Returned by lookup() when no client of any node has the name.
+	 */
+	static final int NO_NODE = -1;
+
+	/**
+	 * Returned by lookup() when the name's home node couldn't be asked.
+	 */
+	static final int UNREACHABLE_NODE = -2;
+
+	/**
+	 * The longest a call to another node waits for its answer.
+	 */
+	private static final long CALL_TIMEOUT_MILLIS = 2000;
+
+	/**
+	 * Gives up on calls that weren't answered in time.
+	 */
+	private static final Executor CALL_TIMEOUTS = CompletableFuture.delayedExecutor(CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+	/**
+	 * How long a link waits before trying again to connect to a node that isn't up.
+	 */
+	private static final long RECONNECT_MILLIS = 1000;
+
+	/**
+	 * The most lines that may wait to be sent to one node. More are dropped.
+	 */
+	private static final int LINK_QUEUE_CAPACITY = 64 * 1024;
+
+	/**
+	 * The most lines a link writes at once.
+	 */
+	private static final int MAX_LINES_PER_WRITE = 512;
+
+	/**
+	 * Sent to a client whose node accepted a request to chat after the asking node had given up waiting.
+	 */
+	private static final String LATE_ACCEPT_NOTICE = "SVR: The user who asked to chat with you gave up waiting. You are now in listen mode.";
+
+	/**
+	 * A call to another node, waiting for its answer. Whichever thread removes it from
+	 * pendingCalls completes it: the link's thread with the answer, or with null if the
+	 * link went down or the call timed out.
+	 */
+	private static final class PendingCall extends CompletableFuture<String>
+	{
+		/**
+		 * The node that was called.
+		 */
+		final int nodeId;
+
+		/**
+		 * Run on the link's thread with the answer, before anything the node sent after it is read. May be null.
+		 */
+		private final Consumer<String> onAnswer;
+
+		/**
+		 * Constructor.
+		 * @param nodeId The node being called
+		 * @param onAnswer Run on the link's thread with the answer, before anything the node sent after it is read. May be null.
+		 */
+		PendingCall(int nodeId, Consumer<String> onAnswer)
+		{
+			this.nodeId = nodeId;
+			this.onAnswer = onAnswer;
+		}
+
+		/**
+		 * Act on the answer, then hand it to the caller.
+		 * @param answer The answer
+		 */
+		void answer(String answer)
+		{
+			try
+			{
+				if (onAnswer != null)
+				{
+					onAnswer.accept(answer);
+				}
+			}
+			finally
+			{
+				complete(answer);
+			}
+		}
+	}
+
+	/**
+	 * This node's place in the list of nodes.
+	 */
+	private final int nodeId;
+
+	/**
+	 * The address each node listens for the other nodes on, in node order.
+	 */
+	private final List<InetSocketAddress> nodeAddresses;
+
+	/**
+	 * The link to each other node, by node id. Null at this node's own id.
+	 */
+	private final Link[] links;
+
+	/**
+	 * For every name homed on this node that a client of some node has, the node it's on.
+	 */
+	private final ConcurrentHashMap<String, Integer> directory = new ConcurrentHashMap<>();
+
+	/**
+	 * The calls to other nodes still waiting for their answer, by call id.
+	 */
+	private final ConcurrentHashMap<Long, PendingCall> pendingCalls = new ConcurrentHashMap<>();
+
+	/**
+	 * Hands out call ids.
+	 */
+	private final AtomicLong nextCallId = new AtomicLong();
+
+	/**
+	 * The server's log.
+	 */
+	private final ServerLogger log;
+
+	/**
+	 * The server's metrics.
+	 */
+	private final ServerMetrics metrics;
+
+	/**
+	 * What the node does for the other nodes with its own clients. Set by start().
+	 */
+	private volatile LocalClients clients;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param nodeId This node's place in the list of nodes
+	 * @param nodeAddresses The address each node listens for the other nodes on, in node order
+	 * @param log The server's log
+	 * @param metrics The server's metrics
+	 */
+	ClusterNode(int nodeId, List<InetSocketAddress> nodeAddresses, ServerLogger log, ServerMetrics metrics)
+	{
+		this.nodeId = nodeId;
+		this.nodeAddresses = nodeAddresses;
+		this.log = log;
+		this.metrics = metrics;
+		this.links = new Link[nodeAddresses.size()];
+		for (int i = 0; i < links.length; ++i)
+		{
+			if (i != nodeId)
+			{
+				links[i] = new Link(i);
+			}
+		}
+	}
+
+	/**
+	 * Start listening for the other nodes, and start connecting to them. Nodes that aren't
+	 * up yet are tried again every RECONNECT_MILLIS, so the nodes may be started in any order.
+	 * @param clients What the node does for the other nodes with its own clients
+	 * @throws IOException If this node's address can't be listened on
+	 */
+	void start(LocalClients clients) throws IOException
+	{
+		this.clients = clients;
+		ServerSocket linkSocket = new ServerSocket(nodeAddresses.get(nodeId).getPort());
+		startDaemon("chatd-cluster-accept", () -> acceptLinks(linkSocket));
+		for (Link link : links)
+		{
+			if (link != null)
+			{
+				startDaemon("chatd-cluster-to-" + link.remoteNodeId, link);
+			}
+		}
+	}
+
+	/**
+	 * @param name The thread's name
+	 * @param task What the thread runs
+	 */
+	private static void startDaemon(String name, Runnable task)
+	{
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return This node's place in the list of nodes
+	 */
+	int getNodeId()
+	{
+		return nodeId;
+	}
+
+	/**
+	 * @return The number of nodes in the cluster
+	 */
+	int getNodeCount()
+	{
+		return nodeAddresses.size();
+	}
+
+	/**
+	 * @param name A name
+	 * @return The node that keeps track of who has the name
+	 */
+	int homeOf(String name)
+	{
+		return Math.floorMod(name.hashCode(), nodeAddresses.size());
+	}
+
+	/**
+	 * Take a name for one of this node's clients, if no client of any node has it.
+	 * Never waits; if the name's home node is another node, the result comes once it answers.
+	 * @param name The name
+	 * @return Whether the name is now this node's, already complete if this node is its home
+	 */
+	CompletableFuture<ClaimResult> claim(String name)
+	{
+		int home = homeOf(name);
+		if (home == nodeId)
+		{
+			return CompletableFuture.completedFuture((directory.putIfAbsent(name, nodeId) == null) ? ClaimResult.CLAIMED : ClaimResult.TAKEN);
+		}
+		return call(home, "CLAIM", escape(name), null).thenApply(answer -> {
+			if (answer == null)
+			{
+				return ClaimResult.UNREACHABLE;
+			}
+			return answer.equals("CLAIMED") ? ClaimResult.CLAIMED : ClaimResult.TAKEN;
+		});
+	}
+
+	/**
+	 * Give up a name claimed for one of this node's clients. Never waits.
+	 * @param name The name
+	 */
+	void release(String name)
+	{
+		int home = homeOf(name);
+		if (home == nodeId)
+		{
+			directory.remove(name, nodeId);
+		}
+		else
+		{
+			// If the link is down, the home node forgets the name once it's back up
+			links[home].send("RELEASE " + escape(name));
+		}
+	}
+
+	/**
+	 * Find out which node the client with a name is on. Never waits; if the name's home node is
+	 * another node, the result comes once it answers.
+	 * @param name The name
+	 * @return The node, NO_NODE if no client has the name, or UNREACHABLE_NODE if the home node couldn't be asked
+	 */
+	CompletableFuture<Integer> lookup(String name)
+	{
+		int home = homeOf(name);
+		if (home == nodeId)
+		{
+			return CompletableFuture.completedFuture(directory.getOrDefault(name, NO_NODE));
+		}
+		return call(home, "LOOKUP", escape(name), null).thenApply(answer -> (answer == null) ? UNREACHABLE_NODE : Integer.parseInt(answer));
+	}
+
+	/**
+	 * Ask another node's client to chat with one of this node's. Never waits for the answer.
+	 * If it's ACCEPTED, the other node's client is already chatting with a stand-in for this one.
+	 * @param node The node the wanted client is on
+	 * @param fromId The asking client's id
+	 * @param fromName The asking client's name
+	 * @param toName The wanted client's name
+	 * @param onAccepted Given the wanted client's id if it accepts. Run on the link's thread before
+	 * 		  anything the wanted client sends can be read, so that nothing it sends is missed.
+	 * @return The answer, or null if the node couldn't be asked, once the node has answered
+	 */
+	CompletableFuture<PairResult> requestPair(int node, long fromId, String fromName, String toName, LongConsumer onAccepted)
+	{
+		return call(node, "PAIR", fromId + " " + escape(fromName) + " " + escape(toName), accepted -> {
+			if (accepted.startsWith("ACCEPTED "))
+			{
+				onAccepted.accept(Long.parseLong(accepted.split(" ")[1]));
+			}
+		}).thenApply(answer -> {
+			if (answer == null)
+			{
+				return null;
+			}
+			String[] fields = answer.split(" ", 2);
+			switch (fields[0])
+			{
+				case "ACCEPTED":
+					return PairResult.accepted(Long.parseLong(fields[1].split(" ")[0]));
+				case "BUSY":
+					return PairResult.busy(unescape(fields[1]));
+				default:
+					return PairResult.gone();
+			}
+		});
+	}
+
+	/**
+	 * Send a line to another node's client from its peer on this node. Never waits.
+	 * @param node The node the client is on
+	 * @param toId The client's id on that node
+	 * @param fromId The peer's id
+	 * @param frame The line, encoded, exactly as the client should receive it
+	 * @return false if the line couldn't be sent, because the link is down or backed up
+	 */
+	boolean relay(int node, long toId, long fromId, OutboundFrame frame)
+	{
+		return links[node].send(frame.withPrefix("RELAY " + toId + " " + fromId + " "));
+	}
+
+	/**
+	 * Tell another node that one of this node's clients has ended its chat with one of its clients. Never waits.
+	 * @param node The node the former peer is on
+	 * @param toId The former peer's id on that node
+	 * @param fromId The id of this node's client
+	 * @param notice What to tell the former peer
+	 */
+	void unpair(int node, long toId, long fromId, String notice)
+	{
+		links[node].send("UNPAIR " + toId + " " + fromId + " " + notice);
+	}
+
+	/**
+	 * Tell another node that one of this node's clients, chatting with one of its clients, has a new name. Never waits.
+	 * @param node The node the peer is on
+	 * @param toId The peer's id on that node
+	 * @param fromId The id of this node's client
+	 * @param newName The new name
+	 */
+	void renamed(int node, long toId, long fromId, String newName)
+	{
+		links[node].send("RENAMED " + toId + " " + fromId + " " + escape(newName));
+	}
+
+	/**
+	 * Send a request to another node. Never waits for its answer.
+	 * @param node The node
+	 * @param request The kind of request
+	 * @param arguments Everything after the call id
+	 * @param onAnswer Run on the link's thread with the answer, before anything the node sent after it is read. May be null.
+	 * @return The answer, or null if the link is down or no answer came in time. Completed on the
+	 * 		   link's thread, or on a timer's thread if the call times out, so whatever follows it must not wait.
+	 */
+	private CompletableFuture<String> call(int node, String request, String arguments, Consumer<String> onAnswer)
+	{
+		long callId = nextCallId.incrementAndGet();
+		PendingCall pending = new PendingCall(node, onAnswer);
+		pendingCalls.put(callId, pending);
+		if (!links[node].send(request + " " + callId + " " + arguments))
+		{
+			pendingCalls.remove(callId);
+			metrics.clusterCallFailed();
+			return CompletableFuture.completedFuture(null);
+		}
+		CALL_TIMEOUTS.execute(() -> {
+			// If the answer came in time, the link's thread has already removed the call
+			if (pendingCalls.remove(callId, pending))
+			{
+				metrics.clusterCallFailed();
+				pending.complete(null);
+			}
+		});
+		return pending;
+	}
+
+	/**
+	 * @param name A name
+	 * @return The name with nothing in it that could be taken for the end of a field or line
+	 */
+	private static String escape(String name)
+	{
+		return URLEncoder.encode(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param escaped A name as escape() returned it
+	 * @return The name
+	 */
+	private static String unescape(String escaped)
+	{
+		return URLDecoder.decode(escaped, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The link with another node is down: start connecting to it again, stop waiting for its
+	 * answers and end the chats with its clients.
+	 * @param node The node
+	 */
+	private void linkLost(int node)
+	{
+		links[node].reset();
+		for (Map.Entry<Long, PendingCall> entry : pendingCalls.entrySet())
+		{
+			if (entry.getValue().nodeId == node && pendingCalls.remove(entry.getKey(), entry.getValue()))
+			{
+				metrics.clusterCallFailed();
+				entry.getValue().complete(null);
+			}
+		}
+		clients.onNodeLost(node);
+	}
+
+	/**
+	 * Accept the connections the other nodes make to this one, reading each on its own thread.
+	 * @param linkSocket The socket the other nodes connect to
+	 */
+	private void acceptLinks(ServerSocket linkSocket)
+	{
+		while (true)
+		{
+			try
+			{
+				Socket socket = linkSocket.accept();
+				socket.setTcpNoDelay(true);
+				startDaemon("chatd-cluster-from-" + socket.getRemoteSocketAddress(), () -> readLink(socket));
+			}
+			catch (IOException err)
+			{
+				ServerClientCommon.printExceptionMsgToConsole("Error accepting a connection from another node of the cluster.", err);
+			}
+		}
+	}
+
+	/**
+	 * Read and act on everything another node sends over the connection it made, until it closes.
+	 * @param socket The connection
+	 */
+	private void readLink(Socket socket)
+	{
+		int fromNode = -1;
+		try
+		{
+			// The writer sends the low eight bits of each character, so that's how the lines are read back
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			String hello = reader.readLine();
+			if (hello == null || !hello.startsWith("HELLO "))
+			{
+				return;
+			}
+			fromNode = Integer.parseInt(hello.substring("HELLO ".length()));
+			if (fromNode < 0 || fromNode >= links.length || fromNode == nodeId)
+			{
+				log.notice(ServerLogger.Level.WARN, "A cluster link from " + socket.getRemoteSocketAddress() + " claimed to be node " + fromNode);
+				fromNode = -1;
+				return;
+			}
+			log.notice(ServerLogger.Level.INFO, "Cluster node " + fromNode + " linked from " + socket.getRemoteSocketAddress());
+
+			// The names the other node says it has while it's telling this node which they are
+			Set<String> syncedNames = null;
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				if (line.equals("SYNC"))
+				{
+					syncedNames = new HashSet<>();
+				}
+				else if (line.startsWith("OWN ") && syncedNames != null)
+				{
+					String name = unescape(line.substring("OWN ".length()));
+					syncedNames.add(name);
+					Integer owner = directory.putIfAbsent(name, fromNode);
+					if (owner != null && owner != fromNode)
+					{
+						log.notice(ServerLogger.Level.WARN, "Nodes " + owner + " and " + fromNode + " both have a client named \"" + name
+								+ "\", which was taken while they couldn't reach each other");
+					}
+				}
+				else if (line.equals("SYNCED") && syncedNames != null)
+				{
+					Set<String> ownedNames = syncedNames;
+					int owner = fromNode;
+					directory.entrySet().removeIf(entry -> entry.getValue() == owner && !ownedNames.contains(entry.getKey()));
+					syncedNames = null;
+				}
+				else
+				{
+					handleLine(fromNode, line);
+				}
+			}
+		}
+		catch (IOException | RuntimeException err)
+		{
+			log.notice(ServerLogger.Level.WARN, "The cluster link from node " + fromNode + " failed: " + err);
+		}
+		finally
+		{
+			ServerClientCommon.closeSocket(socket, null);
+			if (fromNode >= 0)
+			{
+				log.notice(ServerLogger.Level.WARN, "Lost the link from cluster node " + fromNode);
+				linkLost(fromNode);
+			}
+		}
+	}
+
+	/**
+	 * Act on one line from another node.
+	 * @param fromNode The node
+	 * @param line The line
+	 */
+	private void handleLine(int fromNode, String line)
+	{
+		int kindEnd = line.indexOf(' ');
+		String kind = (kindEnd < 0) ? line : line.substring(0, kindEnd);
+		String[] fields;
+		switch (kind)
+		{
+			case "RELAY":
+				fields = line.split(" ", 4);
+				clients.onRelay(fromNode, Long.parseLong(fields[2]), Long.parseLong(fields[1]), fields[3]);
+				break;
+			case "REPLY":
+				fields = line.split(" ", 3);
+				PendingCall pending = pendingCalls.remove(Long.parseLong(fields[1]));
+				if (pending != null)
+				{
+					pending.answer(fields[2]);
+				}
+				else if (fields[2].startsWith("ACCEPTED "))
+				{
+					// The asking client was told its request failed, so the other node's client mustn't be left chatting with it
+					String[] ids = fields[2].split(" ");
+					links[fromNode].send("UNPAIR " + ids[1] + " " + ids[2] + " " + LATE_ACCEPT_NOTICE);
+				}
+				break;
+			case "CLAIM":
+				fields = line.split(" ", 3);
+				boolean claimed = directory.putIfAbsent(unescape(fields[2]), fromNode) == null;
+				reply(fromNode, fields[1], claimed ? "CLAIMED" : "TAKEN");
+				break;
+			case "RELEASE":
+				directory.remove(unescape(line.substring(kindEnd + 1)), fromNode);
+				break;
+			case "LOOKUP":
+				fields = line.split(" ", 3);
+				reply(fromNode, fields[1], Integer.toString(directory.getOrDefault(unescape(fields[2]), NO_NODE)));
+				break;
+			case "PAIR":
+				fields = line.split(" ", 5);
+				PairResult result = clients.onPairRequest(fromNode, Long.parseLong(fields[2]), unescape(fields[3]), unescape(fields[4]));
+				switch (result.outcome)
+				{
+					case ACCEPTED:
+						// The asker's id is sent back too, in case it has given up waiting and the chat must be undone
+						reply(fromNode, fields[1], "ACCEPTED " + result.peerId + " " + fields[2]);
+						break;
+					case BUSY:
+						reply(fromNode, fields[1], "BUSY " + escape(result.busyWith));
+						break;
+					default:
+						reply(fromNode, fields[1], "GONE");
+						break;
+				}
+				break;
+			case "UNPAIR":
+				fields = line.split(" ", 4);
+				clients.onUnpair(fromNode, Long.parseLong(fields[2]), Long.parseLong(fields[1]), fields[3]);
+				break;
+			case "RENAMED":
+				fields = line.split(" ", 4);
+				clients.onPeerRenamed(fromNode, Long.parseLong(fields[2]), Long.parseLong(fields[1]), unescape(fields[3]));
+				break;
+			default:
+				log.notice(ServerLogger.Level.WARN, "Cluster node " + fromNode + " sent a line that isn't understood: " + line);
+				break;
+		}
+	}
+
+	/**
+	 * Answer another node's call.
+	 * @param node The node
+	 * @param callId The call's id, as the node sent it
+	 * @param answer The answer
+	 */
+	private void reply(int node, String callId, String answer)
+	{
+		links[node].send("REPLY " + callId + " " + answer);
+	}
+
+	/**
+	 * The connection this node makes to another node, and the one thread that writes to it.
+	 * It connects, says which node this is and which of this node's names are homed on the
+	 * other node, then writes whatever is queued in batches until the connection fails, and
+	 * starts over. Nothing is queued while it's down; sending then fails at once.
+	 */
+	private final class Link implements Runnable, OutboundQueue.WatermarkListener
+	{
+		/**
+		 * The node at the other end.
+		 */
+		final int remoteNodeId;
+
+		/**
+		 * The lines waiting to be written to the other node.
+		 */
+		private final OutboundQueue queue = new OutboundQueue(LINK_QUEUE_CAPACITY, this);
+
+		/**
+		 * The connection while it's up, or null.
+		 */
+		private volatile Socket socket = null;
+
+		/**
+		 * Whether lines may be queued, ie: the connection is up and this node's names have been sent.
+		 */
+		private volatile boolean up = false;
+
+		/**
+		 * Constructor.
+		 * @param remoteNodeId The node at the other end
+		 */
+		Link(int remoteNodeId)
+		{
+			this.remoteNodeId = remoteNodeId;
+		}
+
+		/**
+		 * @param line A line for the other node
+		 * @return false if the link is down or backed up, so the line wasn't queued
+		 */
+		boolean send(String line)
+		{
+			return send(OutboundFrame.encode(line));
+		}
+
+		/**
+		 * @param frame An encoded line for the other node
+		 * @return false if the link is down or backed up, so the line wasn't queued
+		 */
+		boolean send(OutboundFrame frame)
+		{
+			return up && queue.offer(frame);
+		}
+
+		/**
+		 * Drop the connection, if there is one, so the link connects again. May be called from any thread.
+		 */
+		void reset()
+		{
+			up = false;
+			Socket current = socket;
+			if (current != null)
+			{
+				ServerClientCommon.closeSocket(current, null);
+			}
+			queue.wake();
+		}
+
+		/**
+		 * The link's thread: connect, write until the connection fails, and start over.
+		 */
+		public void run()
+		{
+			InetSocketAddress address = nodeAddresses.get(remoteNodeId);
+			List<OutboundFrame> batch = new ArrayList<>(MAX_LINES_PER_WRITE);
+			while (true)
+			{
+				Socket current = new Socket();
+				try
+				{
+					current.connect(new InetSocketAddress(address.getHostString(), address.getPort()), (int) CALL_TIMEOUT_MILLIS);
+					current.setTcpNoDelay(true);
+					socket = current;
+					BufferedMessageWriter writer = new BufferedMessageWriter(current.getOutputStream());
+
+					// Say which node this is, and which of this node's names the other node keeps track of
+					batch.add(OutboundFrame.encode("HELLO " + nodeId));
+					batch.add(OutboundFrame.encode("SYNC"));
+					for (String name : clients.names())
+					{
+						if (homeOf(name) == remoteNodeId)
+						{
+							batch.add(OutboundFrame.encode("OWN " + escape(name)));
+						}
+					}
+					batch.add(OutboundFrame.encode("SYNCED"));
+					writer.writeFrames(batch);
+					batch.clear();
+					up = true;
+					log.notice(ServerLogger.Level.INFO, "Linked to cluster node " + remoteNodeId + " at " + address);
+
+					while (queue.awaitBatch(batch, MAX_LINES_PER_WRITE))
+					{
+						if (current.isClosed())
+						{
+							throw new IOException("the link was reset");
+						}
+						if (!batch.isEmpty())
+						{
+							writer.writeFrames(batch);
+							metrics.clusterBatchWritten(batch.size());
+							batch.clear();
+						}
+					}
+					return;
+				}
+				catch (IOException err)
+				{
+					if (up)
+					{
+						log.notice(ServerLogger.Level.WARN, "Lost the link to cluster node " + remoteNodeId + ": " + err.getMessage());
+						linkLost(remoteNodeId);
+					}
+				}
+				catch (InterruptedException err)
+				{
+					return;
+				}
+				finally
+				{
+					up = false;
+					socket = null;
+					ServerClientCommon.closeSocket(current, null);
+					queue.clear();
+					batch.clear();
+				}
+
+				try
+				{
+					Thread.sleep(RECONNECT_MILLIS);
+				}
+				catch (InterruptedException err)
+				{
+					return;
+				}
+			}
+		}
+
+		public void onHighWatermark(int depth)
+		{
+			log.notice(ServerLogger.Level.WARN, depth + " lines are waiting to be sent to cluster node " + remoteNodeId);
+		}
+
+		public void onLowWatermark(int depth)
+		{
+			log.notice(ServerLogger.Level.INFO, "The link to cluster node " + remoteNodeId + " has caught up");
+		}
+
+		public void onSlowConsumer(long pendingBytes)
+		{
+			// The link's queue has no byte limit
+		}
+
+		public void onMessagesDropped(OutboundQueue.SlowConsumerPolicy policy, int count)
+		{
+			metrics.addClusterLinesDropped(count);
+		}
+	}
+}
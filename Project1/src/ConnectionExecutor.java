@@ -0,0 +1,127 @@
+/**
+ * Runs the blocking work of each client connection (its read loop and
+ * the control handling done from it) on a thread of its own. The server
+ * hands tasks to one of these instead of subclassing Thread, so the kind
+ * of thread behind each connection can be chosen when chatd starts.
+ * Short tasks that belong to no connection's thread, such as writing out
+ * messages another client's thread queued, run on a shared pool of the
+ * same kind of thread, which only keeps threads while there's work.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ConnectionExecutor {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * Creates the thread that each task runs on.
+	 */
+	private final ThreadFactory threadFactory;
+
+	/**
+	 * Describes the kind of threads this executor creates, for the server's log.
+	 */
+	private final String description;
+
+	/**
+	 * Runs the tasks given to executeShared(). Idle threads are let go after a minute.
+	 */
+	private final ExecutorService sharedThreads;
+
+	/**
+	 * Numbers the shared pool's threads, for their names.
+	 */
+	private final AtomicInteger sharedThreadCount = new AtomicInteger();
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param threadFactory Creates the thread that each task runs on
+	 * @param description Describes the kind of threads created, for the server's log
+	 */
+	private ConnectionExecutor(ThreadFactory threadFactory, String description)
+	{
+		this.threadFactory = threadFactory;
+		this.description = description;
+		this.sharedThreads = Executors.newCachedThreadPool(task -> {
+			Thread thread = threadFactory.newThread(task);
+			thread.setName("chatd-writer-" + sharedThreadCount.incrementAndGet());
+			// An idle pooled thread mustn't keep the server running (virtual threads always are daemons)
+			if (!thread.isDaemon())
+			{
+				thread.setDaemon(true);
+			}
+			return thread;
+		});
+	}
+
+	/**
+	 * @return An executor which runs each task on a new platform (OS) thread.
+	 * 		   This is how the server has always served its clients.
+	 */
+	static ConnectionExecutor platformThreads()
+	{
+		return new ConnectionExecutor(Thread::new, "platform threads");
+	}
+
+	/**
+	 * Virtual threads only exist on Java 21 and later. They're looked up reflectively,
+	 * once, so that the server still compiles and runs on older JVMs in the other modes.
+	 * @return An executor which runs each task on a new virtual thread.
+	 * @throws UnsupportedOperationException If this JVM has no virtual threads
+	 */
+	static ConnectionExecutor virtualThreads()
+	{
+		try
+		{
+			// Equivalent to Thread.ofVirtual().factory()
+			Object virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderInterface = Class.forName("java.lang.Thread$Builder");
+			ThreadFactory factory = (ThreadFactory) builderInterface.getMethod("factory").invoke(virtualThreadBuilder);
+			return new ConnectionExecutor(factory, "virtual threads");
+		}
+		catch (ReflectiveOperationException err)
+		{
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later; this JVM is Java "
+					+ System.getProperty("java.specification.version"), err);
+		}
+	}
+
+	/**
+	 * Start a task on a new thread.
+	 * @param taskName The name given to the task's thread
+	 * @param task The work to run, typically a connection's read loop
+	 */
+	void execute(String taskName, Runnable task)
+	{
+		Thread thread = threadFactory.newThread(task);
+		thread.setName(taskName);
+		thread.start();
+	}
+
+	/**
+	 * Run a short task on a thread of the shared pool, without waiting for it to start.
+	 * @param task The work to run, ex: writing messages queued for a client by another client's thread
+	 */
+	void executeShared(Runnable task)
+	{
+		sharedThreads.execute(task);
+	}
+
+	/**
+	 * @return A description of the kind of threads created, ex: "virtual threads"
+	 */
+	public String toString()
+	{
+		return description;
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Works out which control command a control message is and runs its handler,
+ * in a single pass over the message. The registered command strings (ex: "SET MY NAME=")
+ * are kept in a trie, so the characters following CONTROL_MESSAGE_SPECIFIER are walked
+ * once and the longest registered command they start with is the one that runs.
+ * Whatever follows the command is handed to the handler as its argument, as a view
+ * of the message rather than a copy. Because only the start of the message picks the
+ * command, an argument can never change which command runs (ex: a username
+ * containing "GET MY NAME").
+ * All commands must be registered before the parser is shared between threads;
+ * after that it is only read, so any number of sessions can use it at once.
+ * @param <S> The type of session that handlers act on behalf of
+ * @author Bennett Sherman, bms113
+ */
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+class ControlMessageParser<S> {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * Runs one control command.
+	 * @param <S> The type of session that the command is run for
+	 */
+	interface CommandHandler<S>
+	{
+		/**
+		 * @param session The session whose client sent the command
+		 * @param argument Everything after the command, ex: the name following "SET MY NAME=".
+		 * 		  A view of the message; call toString() on it to keep it.
+		 * @return Whether or not the client should continue; true = continue
+		 * 		   interacting with the client, false = close connection
+		 */
+		boolean handle(S session, CharSequence argument);
+	}
+
+	/**
+	 * One character position in the trie. Commands are short and share few prefixes,
+	 * so each node only has a handful of children and they're searched in order.
+	 * @param <S> The type of session that handlers act on behalf of
+	 */
+	private static final class TrieNode<S>
+	{
+		/**
+		 * The character leading to each child.
+		 */
+		private char[] labels = new char[0];
+
+		/**
+		 * The children, in the same order as labels.
+		 */
+		@SuppressWarnings("unchecked")
+		private TrieNode<S>[] children = (TrieNode<S>[]) new TrieNode<?>[0];
+
+		/**
+		 * The handler of the command that ends at this node, or null if none does.
+		 */
+		private CommandHandler<S> handler;
+
+		/**
+		 * @param label A character
+		 * @return The child reached by that character, or null
+		 */
+		private TrieNode<S> child(char label)
+		{
+			for (int i = 0; i < labels.length; ++i)
+			{
+				if (labels[i] == label)
+				{
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @param label A character
+		 * @return The child reached by that character, created if it didn't exist
+		 */
+		private TrieNode<S> childOrNew(char label)
+		{
+			TrieNode<S> existing = child(label);
+			if (existing != null)
+			{
+				return existing;
+			}
+			TrieNode<S> created = new TrieNode<>();
+			labels = Arrays.copyOf(labels, labels.length + 1);
+			children = Arrays.copyOf(children, children.length + 1);
+			labels[labels.length - 1] = label;
+			children[children.length - 1] = created;
+			return created;
+		}
+	}
+
+	/**
+	 * The root of the trie, before any character of a command.
+	 */
+	private final TrieNode<S> root = new TrieNode<>();
+
+	/**
+	 * Run for control messages that don't start with any registered command.
+	 */
+	private final CommandHandler<S> unknownCommandHandler;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param unknownCommandHandler Run for control messages that don't start with any registered command.
+	 * 		  Its argument is the whole control message, including CONTROL_MESSAGE_SPECIFIER.
+	 */
+	ControlMessageParser(CommandHandler<S> unknownCommandHandler)
+	{
+		this.unknownCommandHandler = unknownCommandHandler;
+	}
+
+	/**
+	 * Add a command. Commands that take an argument should end with "=", as the ones in
+	 * ServerClientCommon do; commands that don't are handed whatever trails them.
+	 * @param command The command, without CONTROL_MESSAGE_SPECIFIER (ex: ServerClientCommon.GET_MY_NAME)
+	 * @param handler Runs the command
+	 * @throws IllegalArgumentException If the command is empty or already registered
+	 */
+	void register(String command, CommandHandler<S> handler)
+	{
+		if (command.isEmpty())
+		{
+			throw new IllegalArgumentException("A control command can't be empty");
+		}
+		TrieNode<S> node = root;
+		for (int i = 0; i < command.length(); ++i)
+		{
+			node = node.childOrNew(command.charAt(i));
+		}
+		if (node.handler != null)
+		{
+			throw new IllegalArgumentException("The control command \"" + command + "\" is already registered");
+		}
+		node.handler = handler;
+	}
+
+	/**
+	 * Run the command that a control message starts with.
+	 * @param session The session whose client sent the message
+	 * @param controlMsgLine The whole control message, starting with CONTROL_MESSAGE_SPECIFIER
+	 * @return The handler's result: true = continue interacting with the client, false = close connection
+	 */
+	boolean dispatch(S session, String controlMsgLine)
+	{
+		int length = controlMsgLine.length();
+		TrieNode<S> node = root;
+		CommandHandler<S> matchedHandler = null;
+		int argumentStart = 0;
+
+		// Walk the trie as far as the message allows, remembering the longest command passed through
+		for (int i = ServerClientCommon.CONTROL_MESSAGE_SPECIFIER.length(); i < length; ++i)
+		{
+			node = node.child(controlMsgLine.charAt(i));
+			if (node == null)
+			{
+				break;
+			}
+			if (node.handler != null)
+			{
+				matchedHandler = node.handler;
+				argumentStart = i + 1;
+			}
+		}
+
+		if (matchedHandler == null)
+		{
+			return unknownCommandHandler.handle(session, controlMsgLine);
+		}
+		return matchedHandler.handle(session, CharBuffer.wrap(controlMsgLine, argumentStart, length));
+	}
+}
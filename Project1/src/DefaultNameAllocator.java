@@ -0,0 +1,62 @@
+/**
+ * Hands out the numbers used in default names ("DefaultName_<number>") in constant time.
+ * A number is either fresh, from a counter that only goes up, or one given back by a
+ * client that no longer uses its default name, so the numbers stay about as small as
+ * the number of clients connected. Neither taking nor giving back a number locks.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class DefaultNameAllocator {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * What every default name starts with.
+	 */
+	static final String DEFAULT_NAME_PREFIX = "DefaultName_";
+
+	/**
+	 * The next number that has never been handed out.
+	 */
+	private final AtomicInteger nextFreshNumber = new AtomicInteger();
+
+	/**
+	 * Numbers that were handed out and then given back, oldest first.
+	 */
+	private final ConcurrentLinkedQueue<Integer> releasedNumbers = new ConcurrentLinkedQueue<>();
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * @return A number that nobody else has been given, unless it was given back with release()
+	 */
+	int acquire()
+	{
+		Integer released = releasedNumbers.poll();
+		return (released != null) ? released : nextFreshNumber.getAndIncrement();
+	}
+
+	/**
+	 * Give back a number once its default name is free again, so the next client can have it.
+	 * @param number A number from acquire()
+	 */
+	void release(int number)
+	{
+		releasedNumbers.offer(number);
+	}
+
+	/**
+	 * @param number A number from acquire()
+	 * @return The default name with that number
+	 */
+	static String nameFor(int number)
+	{
+		return DEFAULT_NAME_PREFIX + number;
+	}
+}
@@ -0,0 +1,1073 @@
+/**
+ * Keeps every message relayed between two peers, so either of them can read their
+ * conversation back later with GET HISTORY.
+ * Each pair of names has its own conversation: a series of append-only segment files
+ * holding the messages in the order they were relayed, and an index file with an entry
+ * for every INDEX_INTERVAL-th message (and the first message of each segment) giving its
+ * time, its number within the conversation and where it is. A read looks up the index
+ * entry nearest to what it wants, maps only the segment it points into and reads
+ * forward from there, so it never reads more than INDEX_INTERVAL messages it doesn't need.
+ * Nothing here is done on the threads handling clients. They hand the history thread a
+ * task, and it writes the messages of each batch of tasks with one write per conversation,
+ * so recording a message never delays relaying it.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+class HistoryStore implements Runnable {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * One message of a conversation, as read back.
+	 */
+	static final class Line
+	{
+		/**
+		 * When the message was relayed, in milliseconds since the epoch.
+		 */
+		private final long time;
+
+		/**
+		 * The name of the client who sent the message.
+		 */
+		private final String sender;
+
+		/**
+		 * The message.
+		 */
+		private final String text;
+
+		/**
+		 * Constructor.
+		 * @param time When the message was relayed, in milliseconds since the epoch
+		 * @param sender The name of the client who sent the message
+		 * @param text The message
+		 */
+		Line(long time, String sender, String text)
+		{
+			this.time = time;
+			this.sender = sender;
+			this.text = text;
+		}
+
+		/**
+		 * @return When the message was relayed, in milliseconds since the epoch
+		 */
+		long getTime()
+		{
+			return time;
+		}
+
+		/**
+		 * @return The name of the client who sent the message
+		 */
+		String getSender()
+		{
+			return sender;
+		}
+
+		/**
+		 * @return The message
+		 */
+		String getText()
+		{
+			return text;
+		}
+	}
+
+	/**
+	 * Hands a reader the messages it asked for. Called on the history thread.
+	 */
+	interface Reply
+	{
+		/**
+		 * @param lines The messages, oldest first. Empty if there are none.
+		 * @param more true if there are more messages before (for the last messages) or after (for a time range) these
+		 */
+		void send(List<Line> lines, boolean more);
+	}
+
+	/**
+	 * The number of messages in each page of a time range.
+	 */
+	static final int PAGE_SIZE = 50;
+
+	/**
+	 * The most messages that may be asked for at once.
+	 */
+	static final int MAX_MESSAGES_PER_READ = 200;
+
+	/**
+	 * The index has an entry for every message whose number within its conversation is a multiple of this.
+	 */
+	private static final int INDEX_INTERVAL = 32;
+
+	/**
+	 * Each index entry is the message's time (long), its number (long), its segment (int) and where it starts (int).
+	 */
+	private static final int INDEX_ENTRY_SIZE = 24;
+
+	/**
+	 * Each record starts with the length of its body and a CRC32 of the body. The body is
+	 * the time (long), which of the pair sent it (byte), then the message in UTF-8.
+	 */
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	/**
+	 * The length of a record's body before the message.
+	 */
+	private static final int RECORD_FIXED_BODY_SIZE = 9;
+
+	/**
+	 * The most conversations whose files are kept open. The least recently used is closed past this.
+	 */
+	private static final int MAX_OPEN_CONVERSATIONS = 64;
+
+	/**
+	 * The most tasks run before what they wrote is handed to the files.
+	 */
+	private static final int MAX_TASKS_PER_WRITE = 256;
+
+	/**
+	 * The end of every index file's name.
+	 */
+	private static final String INDEX_SUFFIX = ".idx";
+
+	/**
+	 * The end of every segment file's name.
+	 */
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * One entry of a conversation's index.
+	 */
+	private static final class IndexEntry
+	{
+		/**
+		 * When the message was relayed.
+		 */
+		private final long time;
+
+		/**
+		 * The message's number within the conversation, starting from 0.
+		 */
+		private final long number;
+
+		/**
+		 * The segment the message is in.
+		 */
+		private final int segment;
+
+		/**
+		 * Where the message's record starts in the segment.
+		 */
+		private final int offset;
+
+		/**
+		 * Constructor.
+		 * @param time When the message was relayed
+		 * @param number The message's number within the conversation
+		 * @param segment The segment the message is in
+		 * @param offset Where the message's record starts
+		 */
+		private IndexEntry(long time, long number, int segment, int offset)
+		{
+			this.time = time;
+			this.number = number;
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * The open files of one pair's conversation. Only used on the history thread.
+	 */
+	private final class Conversation
+	{
+		/**
+		 * The names of the pair, in order. Records say which of them sent a message by its position here.
+		 */
+		private final String[] names;
+
+		/**
+		 * The start of the name of every one of this conversation's files.
+		 */
+		private final String fileKey;
+
+		/**
+		 * The index file, open for appending.
+		 */
+		private final FileChannel index;
+
+		/**
+		 * The number of the segment being written.
+		 */
+		private int segment;
+
+		/**
+		 * The segment being written, open for appending.
+		 */
+		private FileChannel segmentFile;
+
+		/**
+		 * The length of the segment being written, including what's waiting to be written.
+		 */
+		private int segmentLength;
+
+		/**
+		 * The number of messages in the conversation, including those waiting to be written.
+		 */
+		private long messageCount;
+
+		/**
+		 * The time of the last message, so times never go backwards within a conversation.
+		 */
+		private long lastTime;
+
+		/**
+		 * Records waiting to be written to the segment.
+		 */
+		private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+
+		/**
+		 * Index entries waiting to be written to the index.
+		 */
+		private final ByteArrayOutputStream pendingIndex = new ByteArrayOutputStream();
+
+		/**
+		 * Open a conversation's files, creating them if the pair has never spoken. If the server
+		 * stopped partway through a write, the incomplete record is cut off, and any messages
+		 * written without their index entries are indexed.
+		 * @param names The names of the pair, in order
+		 * @param fileKey The start of the name of every one of the conversation's files
+		 * @throws IOException If the files can't be read or written
+		 */
+		private Conversation(String[] names, String fileKey) throws IOException
+		{
+			this.names = names;
+			this.fileKey = fileKey;
+			index = FileChannel.open(directory.resolve(fileKey + INDEX_SUFFIX),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			index.truncate(index.size() - index.size() % INDEX_ENTRY_SIZE);
+
+			// Drop index entries for messages that never made it to their segment
+			IndexEntry last = null;
+			while (index.size() > 0)
+			{
+				last = readIndexEntry(index, index.size() / INDEX_ENTRY_SIZE - 1);
+				Path lastSegmentPath = segmentPath(last.segment);
+				if (Files.exists(lastSegmentPath) && Files.size(lastSegmentPath) > last.offset)
+				{
+					break;
+				}
+				index.truncate(index.size() - INDEX_ENTRY_SIZE);
+				last = null;
+			}
+
+			// Read forward from the last index entry to find the end of the conversation
+			segment = (last == null) ? 0 : last.segment;
+			messageCount = (last == null) ? 0 : last.number;
+			lastTime = Long.MIN_VALUE;
+			int offset = (last == null) ? 0 : last.offset;
+			index.position(index.size());
+			while (true)
+			{
+				Path path = segmentPath(segment);
+				if (!Files.exists(path))
+				{
+					break;
+				}
+				try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE))
+				{
+					ByteBuffer records = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+					int end = offset;
+					while (true)
+					{
+						int length = validRecordLength(records, end);
+						if (length < 0)
+						{
+							break;
+						}
+						long time = records.getLong(end + RECORD_HEADER_SIZE);
+						if ((messageCount % INDEX_INTERVAL == 0 || end == 0) && (last == null || messageCount > last.number))
+						{
+							index.write(encodeIndexEntry(time, messageCount, segment, end));
+						}
+						lastTime = time;
+						++messageCount;
+						end += length;
+					}
+					if (end < records.limit())
+					{
+						// An incomplete or damaged record; nothing after it can be trusted
+						log.notice(ServerLogger.Level.WARN, "Cut the history in " + path + " short at byte " + end + " of " + records.limit());
+						file.truncate(end);
+						deleteSegmentsFrom(segment + 1);
+						segmentLength = end;
+						break;
+					}
+					segmentLength = end;
+				}
+				if (!Files.exists(segmentPath(segment + 1)))
+				{
+					break;
+				}
+				++segment;
+				offset = 0;
+			}
+			segmentFile = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+
+		/**
+		 * @param number A segment's number
+		 * @return The segment's file
+		 */
+		private Path segmentPath(int number)
+		{
+			return directory.resolve(fileKey + "-" + number + SEGMENT_SUFFIX);
+		}
+
+		/**
+		 * Delete every segment from a number on.
+		 * @param number The first segment to delete
+		 * @throws IOException If a segment can't be deleted
+		 */
+		private void deleteSegmentsFrom(int number) throws IOException
+		{
+			while (Files.deleteIfExists(segmentPath(number)))
+			{
+				++number;
+			}
+		}
+
+		/**
+		 * Add a message, to be written at the end of the batch.
+		 * @param time When the message was relayed
+		 * @param senderPosition The sender's position in names
+		 * @param text The message
+		 * @throws IOException If a full segment can't be written or a new one started
+		 */
+		private void append(long time, int senderPosition, String text) throws IOException
+		{
+			byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+			int bodyLength = RECORD_FIXED_BODY_SIZE + textBytes.length;
+			if (segmentLength > 0 && segmentLength + RECORD_HEADER_SIZE + bodyLength > segmentSize)
+			{
+				flush();
+				segmentFile.close();
+				++segment;
+				segmentFile = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				segmentLength = 0;
+			}
+
+			lastTime = Math.max(lastTime, time);
+			if (messageCount % INDEX_INTERVAL == 0 || segmentLength == 0)
+			{
+				ByteBuffer entry = encodeIndexEntry(lastTime, messageCount, segment, segmentLength);
+				pendingIndex.write(entry.array(), 0, INDEX_ENTRY_SIZE);
+			}
+
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodyLength);
+			record.putInt(bodyLength).putInt(0).putLong(lastTime).put((byte) senderPosition).put(textBytes);
+			crc.reset();
+			crc.update(record.array(), RECORD_HEADER_SIZE, bodyLength);
+			record.putInt(4, (int) crc.getValue());
+			pendingRecords.write(record.array(), 0, record.capacity());
+			segmentLength += record.capacity();
+			++messageCount;
+		}
+
+		/**
+		 * Write the waiting records, then their index entries, so an index entry never points past the end of a segment.
+		 * @throws IOException If the files can't be written
+		 */
+		private void flush() throws IOException
+		{
+			writeFully(segmentFile, pendingRecords);
+			writeFully(index, pendingIndex);
+		}
+
+		/**
+		 * Close the conversation's files, writing what's waiting first.
+		 * @throws IOException If the files can't be written
+		 */
+		private void close() throws IOException
+		{
+			try
+			{
+				flush();
+			}
+			finally
+			{
+				segmentFile.close();
+				index.close();
+			}
+		}
+
+		/**
+		 * The last index entry at or before a message, by number. The conversation must have been flushed.
+		 * @param number A message's number, less than messageCount
+		 * @return The entry
+		 * @throws IOException If the index can't be read
+		 */
+		private IndexEntry indexEntryAtOrBefore(long number) throws IOException
+		{
+			ByteBuffer entries = index.map(FileChannel.MapMode.READ_ONLY, 0, index.size());
+			int low = 0;
+			int high = entries.limit() / INDEX_ENTRY_SIZE - 1;
+			// The first entry is always for message 0, so the answer is always at or above low
+			while (low < high)
+			{
+				int middle = (low + high + 1) >>> 1;
+				if (entries.getLong(middle * INDEX_ENTRY_SIZE + 8) <= number)
+				{
+					low = middle;
+				}
+				else
+				{
+					high = middle - 1;
+				}
+			}
+			return decodeIndexEntry(entries, low);
+		}
+
+		/**
+		 * The last index entry for a message relayed before a time. The conversation must have been flushed.
+		 * @param time A time, in milliseconds since the epoch
+		 * @return The entry, or the first entry if every message is at or after the time
+		 * @throws IOException If the index can't be read
+		 */
+		private IndexEntry indexEntryBefore(long time) throws IOException
+		{
+			ByteBuffer entries = index.map(FileChannel.MapMode.READ_ONLY, 0, index.size());
+			int low = 0;
+			int high = entries.limit() / INDEX_ENTRY_SIZE - 1;
+			while (low < high)
+			{
+				int middle = (low + high + 1) >>> 1;
+				if (entries.getLong(middle * INDEX_ENTRY_SIZE) < time)
+				{
+					low = middle;
+				}
+				else
+				{
+					high = middle - 1;
+				}
+			}
+			return decodeIndexEntry(entries, low);
+		}
+	}
+
+	/**
+	 * Reads a conversation's records forward from an index entry, mapping one segment at a time.
+	 * Only used on the history thread, on a conversation that has been flushed.
+	 */
+	private final class Cursor
+	{
+		/**
+		 * The conversation being read.
+		 */
+		private final Conversation conversation;
+
+		/**
+		 * The segment being read.
+		 */
+		private int segment;
+
+		/**
+		 * The segment being read, mapped.
+		 */
+		private MappedByteBuffer records;
+
+		/**
+		 * Where the next record starts.
+		 */
+		private int offset;
+
+		/**
+		 * The number of the next message.
+		 */
+		private long number;
+
+		/**
+		 * Constructor.
+		 * @param conversation The conversation to read
+		 * @param start The index entry to start at
+		 * @throws IOException If the segment can't be mapped
+		 */
+		private Cursor(Conversation conversation, IndexEntry start) throws IOException
+		{
+			this.conversation = conversation;
+			this.number = start.number;
+			this.offset = start.offset;
+			mapSegment(start.segment);
+		}
+
+		/**
+		 * @param number The segment to map
+		 * @throws IOException If it can't be mapped
+		 */
+		private void mapSegment(int number) throws IOException
+		{
+			segment = number;
+			try (FileChannel file = FileChannel.open(conversation.segmentPath(number), StandardOpenOption.READ))
+			{
+				records = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+			}
+		}
+
+		/**
+		 * @return true if there's another message, in which case offset is where its record starts
+		 * @throws IOException If the next segment can't be mapped
+		 */
+		private boolean hasNext() throws IOException
+		{
+			while (offset >= records.limit())
+			{
+				if (segment >= conversation.segment)
+				{
+					return false;
+				}
+				mapSegment(segment + 1);
+				offset = 0;
+			}
+			return true;
+		}
+
+		/**
+		 * @return The time of the next message. hasNext() must have returned true.
+		 */
+		private long peekTime()
+		{
+			return records.getLong(offset + RECORD_HEADER_SIZE);
+		}
+
+		/**
+		 * Move past the next message. hasNext() must have returned true.
+		 */
+		private void skip()
+		{
+			offset += RECORD_HEADER_SIZE + records.getInt(offset);
+			++number;
+		}
+
+		/**
+		 * Read the next message and move past it. hasNext() must have returned true.
+		 * @return The message
+		 */
+		private Line next()
+		{
+			int bodyLength = records.getInt(offset);
+			long time = records.getLong(offset + RECORD_HEADER_SIZE);
+			String sender = conversation.names[records.get(offset + RECORD_HEADER_SIZE + 8)];
+			byte[] text = new byte[bodyLength - RECORD_FIXED_BODY_SIZE];
+			records.get(offset + RECORD_HEADER_SIZE + RECORD_FIXED_BODY_SIZE, text);
+			skip();
+			return new Line(time, sender, new String(text, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * The directory holding the conversations' files.
+	 */
+	private final Path directory;
+
+	/**
+	 * The size past which a conversation starts a new segment.
+	 */
+	private final int segmentSize;
+
+	/**
+	 * Where failures are logged.
+	 */
+	private final ServerLogger log;
+
+	/**
+	 * The conversations whose files are open, least recently used first. Only used on the history thread.
+	 */
+	private final LinkedHashMap<String, Conversation> openConversations = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * The conversations with something waiting to be written. Only used on the history thread.
+	 */
+	private final List<Conversation> unflushed = new ArrayList<>();
+
+	/**
+	 * Work for the history thread, in the order it was asked for.
+	 */
+	private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+	/**
+	 * Computes record checksums. Only used on the history thread.
+	 */
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * The history thread, once started.
+	 */
+	private Thread historyThread;
+
+	/**
+	 * Cleared by the last task queued by close().
+	 */
+	private volatile boolean running = true;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor. A conversation's files are only opened the first time it's written to or read.
+	 * @param directory The directory holding the conversations' files. Created if it doesn't exist.
+	 * @param segmentSize The size past which a conversation starts a new segment, in bytes
+	 * @param log Where failures are logged
+	 * @throws IOException If the directory can't be created
+	 */
+	HistoryStore(Path directory, int segmentSize, ServerLogger log) throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.log = log;
+		Files.createDirectories(directory);
+	}
+
+	/**
+	 * Start the history thread. It's a daemon, and is stopped by close().
+	 */
+	void start()
+	{
+		historyThread = new Thread(this, "chatd-history");
+		historyThread.setDaemon(true);
+		historyThread.start();
+	}
+
+	/**
+	 * Keep a message relayed from one peer to the other. Never waits: the message is written by the history thread.
+	 * @param sender The name of the client who sent the message
+	 * @param recipient The name of its peer
+	 * @param text The message
+	 */
+	void record(String sender, String recipient, String text)
+	{
+		long time = System.currentTimeMillis();
+		tasks.add(() -> {
+			String[] names = pairOf(sender, recipient);
+			Conversation conversation = open(names);
+			if (conversation.pendingRecords.size() == 0)
+			{
+				unflushed.add(conversation);
+			}
+			try
+			{
+				conversation.append(time, names[0].equals(sender) ? 0 : 1, text);
+			}
+			catch (IOException err)
+			{
+				throw new UncheckedIOException(err);
+			}
+		});
+	}
+
+	/**
+	 * Read the last messages of a conversation relayed since a time.
+	 * @param reader The name of one of the pair
+	 * @param other The name of the other
+	 * @param since The time of the earliest message that may be read, in milliseconds since the epoch
+	 * @param count The number of messages to read, at most MAX_MESSAGES_PER_READ
+	 * @param reply Given the messages on the history thread
+	 */
+	void readLast(String reader, String other, long since, int count, Reply reply)
+	{
+		tasks.add(() -> {
+			try
+			{
+				Conversation conversation = openForReading(reader, other);
+				if (conversation == null || conversation.messageCount == 0)
+				{
+					reply.send(Collections.emptyList(), false);
+					return;
+				}
+				// Find the number of the first message since the time, then jump to the last ones by number
+				Cursor cursor = new Cursor(conversation, conversation.indexEntryBefore(since));
+				while (cursor.hasNext() && cursor.peekTime() < since)
+				{
+					cursor.skip();
+				}
+				long oldest = cursor.number;
+				long first = Math.max(oldest, conversation.messageCount - count);
+				if (first > oldest)
+				{
+					cursor = new Cursor(conversation, conversation.indexEntryAtOrBefore(first));
+				}
+				List<Line> lines = new ArrayList<>(count);
+				while (cursor.hasNext())
+				{
+					if (cursor.number < first)
+					{
+						cursor.skip();
+					}
+					else
+					{
+						lines.add(cursor.next());
+					}
+				}
+				reply.send(lines, first > oldest);
+			}
+			catch (IOException err)
+			{
+				throw new UncheckedIOException(err);
+			}
+		});
+	}
+
+	/**
+	 * Read one page of the messages of a conversation relayed within a time range.
+	 * @param reader The name of one of the pair
+	 * @param other The name of the other
+	 * @param from The start of the range, in milliseconds since the epoch
+	 * @param to The end of the range, inclusive
+	 * @param page The page, starting from 1, of PAGE_SIZE messages each
+	 * @param reply Given the messages on the history thread
+	 */
+	void readRange(String reader, String other, long from, long to, int page, Reply reply)
+	{
+		tasks.add(() -> {
+			try
+			{
+				Conversation conversation = openForReading(reader, other);
+				if (conversation == null || conversation.messageCount == 0)
+				{
+					reply.send(Collections.emptyList(), false);
+					return;
+				}
+
+				// Find the number of the first message in the range, then jump to the page by number
+				Cursor cursor = new Cursor(conversation, conversation.indexEntryBefore(from));
+				while (cursor.hasNext() && cursor.peekTime() < from)
+				{
+					cursor.skip();
+				}
+				long first = cursor.number + (long) (page - 1) * PAGE_SIZE;
+				if (first >= conversation.messageCount)
+				{
+					reply.send(Collections.emptyList(), false);
+					return;
+				}
+				if (first > cursor.number)
+				{
+					cursor = new Cursor(conversation, conversation.indexEntryAtOrBefore(first));
+					while (cursor.number < first)
+					{
+						cursor.skip();
+					}
+				}
+
+				List<Line> lines = new ArrayList<>(PAGE_SIZE);
+				while (lines.size() < PAGE_SIZE && cursor.hasNext() && cursor.peekTime() <= to)
+				{
+					lines.add(cursor.next());
+				}
+				reply.send(lines, cursor.hasNext() && cursor.peekTime() <= to);
+			}
+			catch (IOException err)
+			{
+				throw new UncheckedIOException(err);
+			}
+		});
+	}
+
+	/**
+	 * Stop the history thread once it has finished every task already asked for, and write and close every conversation.
+	 */
+	void close()
+	{
+		tasks.add(() -> running = false);
+		if (historyThread != null)
+		{
+			try
+			{
+				historyThread.join();
+			}
+			catch (InterruptedException err)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The history thread: run tasks in batches, writing what each batch recorded once it's done.
+	 */
+	public void run()
+	{
+		while (running)
+		{
+			try
+			{
+				Runnable task = tasks.take();
+				int taskCount = 0;
+				while (task != null)
+				{
+					runTask(task);
+					task = (++taskCount < MAX_TASKS_PER_WRITE) ? tasks.poll() : null;
+				}
+				flushAll();
+			}
+			catch (InterruptedException err)
+			{
+				break;
+			}
+		}
+
+		for (Conversation conversation : openConversations.values())
+		{
+			try
+			{
+				conversation.close();
+			}
+			catch (IOException err)
+			{
+				log.notice(ServerLogger.Level.ERROR, "The history of " + conversation.fileKey + " could not be written: " + err);
+			}
+		}
+		openConversations.clear();
+	}
+
+	/**
+	 * Run one task, logging rather than dying if it fails.
+	 * @param task The task
+	 */
+	private void runTask(Runnable task)
+	{
+		try
+		{
+			task.run();
+		}
+		catch (RuntimeException err)
+		{
+			log.notice(ServerLogger.Level.ERROR, "A history task failed: " + err);
+		}
+	}
+
+	/**
+	 * Write everything waiting to be written.
+	 */
+	private void flushAll()
+	{
+		for (Conversation conversation : unflushed)
+		{
+			try
+			{
+				conversation.flush();
+			}
+			catch (IOException err)
+			{
+				log.notice(ServerLogger.Level.ERROR, "The history of " + conversation.fileKey + " could not be written: " + err);
+			}
+		}
+		unflushed.clear();
+	}
+
+	/**
+	 * Open a conversation for reading, writing what's waiting first.
+	 * @param reader The name of one of the pair
+	 * @param other The name of the other
+	 * @return The conversation, or null if the pair have never spoken
+	 * @throws IOException If the conversation's files can't be read or written
+	 */
+	private Conversation openForReading(String reader, String other) throws IOException
+	{
+		String[] names = pairOf(reader, other);
+		if (!openConversations.containsKey(fileKeyOf(names)) && !Files.exists(directory.resolve(fileKeyOf(names) + INDEX_SUFFIX)))
+		{
+			return null;
+		}
+		Conversation conversation = open(names);
+		conversation.flush();
+		return conversation;
+	}
+
+	/**
+	 * Get a conversation's open files, opening them if need be and closing the least recently used conversation's if too many are open.
+	 * @param names The names of the pair, in order
+	 * @return The conversation
+	 */
+	private Conversation open(String[] names)
+	{
+		String fileKey = fileKeyOf(names);
+		Conversation conversation = openConversations.get(fileKey);
+		if (conversation != null)
+		{
+			return conversation;
+		}
+		try
+		{
+			conversation = new Conversation(names, fileKey);
+			openConversations.put(fileKey, conversation);
+			if (openConversations.size() > MAX_OPEN_CONVERSATIONS)
+			{
+				Iterator<Conversation> leastRecentlyUsed = openConversations.values().iterator();
+				Conversation closing = leastRecentlyUsed.next();
+				leastRecentlyUsed.remove();
+				unflushed.remove(closing);
+				closing.close();
+			}
+			return conversation;
+		}
+		catch (IOException err)
+		{
+			throw new UncheckedIOException(err);
+		}
+	}
+
+	/**
+	 * @param oneName The name of one of a pair
+	 * @param otherName The name of the other
+	 * @return Both names, in the same order whichever way round they were given
+	 */
+	private static String[] pairOf(String oneName, String otherName)
+	{
+		return (oneName.compareTo(otherName) <= 0) ? new String[] {oneName, otherName} : new String[] {otherName, oneName};
+	}
+
+	/**
+	 * Names can hold any character, so the files are named after a digest of the pair's names.
+	 * @param names The names of the pair, in order
+	 * @return The start of the name of every one of the conversation's files
+	 */
+	private static String fileKeyOf(String[] names)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(names[0].getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(names[1].getBytes(StandardCharsets.UTF_8));
+			StringBuilder key = new StringBuilder("conversation-");
+			byte[] hash = digest.digest();
+			for (int i = 0; i < 16; ++i)
+			{
+				key.append(String.format("%02x", hash[i]));
+			}
+			return key.toString();
+		}
+		catch (NoSuchAlgorithmException err)
+		{
+			// Every Java platform is required to have SHA-256
+			throw new IllegalStateException(err);
+		}
+	}
+
+	/**
+	 * @param records A segment, mapped
+	 * @param offset Where a record may start
+	 * @return The record's length, header included, or -1 if there's no complete, undamaged record there
+	 */
+	private int validRecordLength(ByteBuffer records, int offset)
+	{
+		if (records.limit() - offset < RECORD_HEADER_SIZE)
+		{
+			return -1;
+		}
+		int bodyLength = records.getInt(offset);
+		if (bodyLength < RECORD_FIXED_BODY_SIZE || bodyLength > records.limit() - offset - RECORD_HEADER_SIZE)
+		{
+			return -1;
+		}
+		byte[] body = new byte[bodyLength];
+		records.get(offset + RECORD_HEADER_SIZE, body);
+		crc.reset();
+		crc.update(body);
+		if ((int) crc.getValue() != records.getInt(offset + 4) || body[8] < 0 || body[8] > 1)
+		{
+			return -1;
+		}
+		return RECORD_HEADER_SIZE + bodyLength;
+	}
+
+	/**
+	 * @param time When the message was relayed
+	 * @param number The message's number within the conversation
+	 * @param segment The segment the message is in
+	 * @param offset Where the message's record starts
+	 * @return The entry, ready to be written
+	 */
+	private static ByteBuffer encodeIndexEntry(long time, long number, int segment, int offset)
+	{
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		entry.putLong(time).putLong(number).putInt(segment).putInt(offset);
+		entry.flip();
+		return entry;
+	}
+
+	/**
+	 * @param entries The index, mapped
+	 * @param position Which entry to read
+	 * @return The entry
+	 */
+	private static IndexEntry decodeIndexEntry(ByteBuffer entries, int position)
+	{
+		int start = position * INDEX_ENTRY_SIZE;
+		return new IndexEntry(entries.getLong(start), entries.getLong(start + 8), entries.getInt(start + 16), entries.getInt(start + 20));
+	}
+
+	/**
+	 * @param index An index file
+	 * @param position Which entry to read
+	 * @return The entry
+	 * @throws IOException If it can't be read
+	 */
+	private static IndexEntry readIndexEntry(FileChannel index, long position) throws IOException
+	{
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		while (entry.hasRemaining())
+		{
+			if (index.read(entry, position * INDEX_ENTRY_SIZE + entry.position()) < 0)
+			{
+				throw new IOException("The index ends partway through an entry");
+			}
+		}
+		return decodeIndexEntry(entry, 0);
+	}
+
+	/**
+	 * Write out and empty a buffer of waiting bytes.
+	 * @param file The file to write to, at its position
+	 * @param waiting The waiting bytes
+	 * @throws IOException If they can't be written
+	 */
+	private static void writeFully(FileChannel file, ByteArrayOutputStream waiting) throws IOException
+	{
+		if (waiting.size() == 0)
+		{
+			return;
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(waiting.toByteArray());
+		while (bytes.hasRemaining())
+		{
+			file.write(bytes);
+		}
+		waiting.reset();
+	}
+}
@@ -0,0 +1,221 @@
+/**
+ * Counts how long something took, in buckets that stay within 1/8 of the durations
+ * they hold: 0-15ns each get their own bucket, and every doubling after that
+ * (16-31ns, 32-63ns...) is split into 8 equal buckets. Each bucket is a LongAdder, so any number of
+ * threads can record at once without contending on one counter. Reading it takes
+ * a Snapshot, and snapshots of several histograms (ex: one per engine or per
+ * server) can be merged into one.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+class LatencyHistogram {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * Each doubling is split into 2^SUB_BUCKET_BITS buckets.
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	/**
+	 * The number of buckets in each doubling.
+	 */
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Durations below this each have a bucket of their own.
+	 */
+	private static final int EXACT_LIMIT = 2 * SUB_BUCKET_COUNT;
+
+	/**
+	 * The exact buckets, then SUB_BUCKET_COUNT buckets for every doubling up to the largest long.
+	 */
+	private static final int BUCKET_COUNT = EXACT_LIMIT + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKET_COUNT;
+
+	/**
+	 * The counts recorded up to one point in time. Not safe to share between threads while merging.
+	 */
+	static final class Snapshot
+	{
+		/**
+		 * The count of each bucket.
+		 */
+		private final long[] counts = new long[BUCKET_COUNT];
+
+		/**
+		 * The total of every recorded duration, in nanoseconds.
+		 */
+		private long totalNanos;
+
+		/**
+		 * The longest recorded duration, in nanoseconds.
+		 */
+		private long maxNanos;
+
+		/**
+		 * Add another snapshot's counts into this one.
+		 * @param other The snapshot to add
+		 * @return This snapshot
+		 */
+		Snapshot merge(Snapshot other)
+		{
+			for (int i = 0; i < BUCKET_COUNT; ++i)
+			{
+				counts[i] += other.counts[i];
+			}
+			totalNanos += other.totalNanos;
+			maxNanos = Math.max(maxNanos, other.maxNanos);
+			return this;
+		}
+
+		/**
+		 * @return The number of durations recorded
+		 */
+		long getCount()
+		{
+			long count = 0;
+			for (long bucketCount : counts)
+			{
+				count += bucketCount;
+			}
+			return count;
+		}
+
+		/**
+		 * @return The mean duration in nanoseconds, or 0 if nothing was recorded
+		 */
+		long getMeanNanos()
+		{
+			long count = getCount();
+			return (count == 0) ? 0 : totalNanos / count;
+		}
+
+		/**
+		 * @return The longest duration in nanoseconds
+		 */
+		long getMaxNanos()
+		{
+			return maxNanos;
+		}
+
+		/**
+		 * @param fraction Between 0 and 1, ex: 0.99 for the 99th percentile
+		 * @return A duration in nanoseconds that at least that fraction of the recorded
+		 * 		   durations are no longer than; accurate to within 1/8.
+		 * 		   0 if nothing was recorded.
+		 */
+		long getPercentileNanos(double fraction)
+		{
+			long count = getCount();
+			if (count == 0)
+			{
+				return 0;
+			}
+			long wanted = Math.max(1, (long) Math.ceil(fraction * count));
+			long seen = 0;
+			for (int i = 0; i < BUCKET_COUNT; ++i)
+			{
+				seen += counts[i];
+				if (seen >= wanted)
+				{
+					// The top of this bucket, but never more than the longest actually seen
+					return Math.min(bucketTop(i), maxNanos);
+				}
+			}
+			return maxNanos;
+		}
+	}
+
+	/**
+	 * The count of each bucket. bucketIndex() picks a duration's bucket.
+	 */
+	private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+
+	/**
+	 * The total of every recorded duration, in nanoseconds.
+	 */
+	private final LongAdder totalNanos = new LongAdder();
+
+	/**
+	 * The longest recorded duration, in nanoseconds.
+	 */
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 */
+	LatencyHistogram()
+	{
+		for (int i = 0; i < BUCKET_COUNT; ++i)
+		{
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos A duration in nanoseconds. Negative durations count as 0.
+	 */
+	void record(long nanos)
+	{
+		long duration = Math.max(0, nanos);
+		buckets[bucketIndex(duration)].increment();
+		totalNanos.add(duration);
+		maxNanos.accumulate(duration);
+	}
+
+	/**
+	 * @param duration A duration of 0 or more
+	 * @return The bucket it's counted in
+	 */
+	private static int bucketIndex(long duration)
+	{
+		if (duration < EXACT_LIMIT)
+		{
+			return (int) duration;
+		}
+		// The highest set bit picks the doubling, and the SUB_BUCKET_BITS below it the bucket within it
+		int highestBit = 63 - Long.numberOfLeadingZeros(duration);
+		int subBucket = (int) (duration >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+		return EXACT_LIMIT + (highestBit - (SUB_BUCKET_BITS + 1)) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/**
+	 * @param index A bucket
+	 * @return The longest duration counted in that bucket
+	 */
+	private static long bucketTop(int index)
+	{
+		if (index < EXACT_LIMIT)
+		{
+			return index;
+		}
+		int highestBit = (index - EXACT_LIMIT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS + 1;
+		int subBucket = (index - EXACT_LIMIT) % SUB_BUCKET_COUNT;
+		int width = highestBit - SUB_BUCKET_BITS;
+		long bottom = (long) (SUB_BUCKET_COUNT + subBucket) << width;
+		return bottom + (1L << width) - 1;
+	}
+
+	/**
+	 * @return The counts so far. Durations recorded while this runs may or may not be included.
+	 */
+	Snapshot snapshot()
+	{
+		Snapshot snapshot = new Snapshot();
+		for (int i = 0; i < BUCKET_COUNT; ++i)
+		{
+			snapshot.counts[i] = buckets[i].sum();
+		}
+		snapshot.totalNanos = totalNanos.sum();
+		snapshot.maxNanos = maxNanos.get();
+		return snapshot;
+	}
+}
@@ -0,0 +1,280 @@
+/**
+ * Compresses long protocol lines for a connection that has agreed to it with
+ * ENABLE_COMPRESSION (see ServerClientCommon). The protocol stays line-based: a compressed
+ * line is COMPRESSED_LINE_SPECIFIER followed by the Base64 of the line's bytes, deflated.
+ * Each direction of a connection has one Deflater, and the other end one Inflater, used
+ * for every line in order, so each line is compressed against the lines sent before it
+ * (ex: the second copy of a pasted log compresses to almost nothing). Because of that,
+ * a Compressor and its Decompressor must see exactly the same lines in the same order,
+ * so both are only ever used by one thread at a time.
+ * The Deflater and Inflater hold a few hundred kilobytes of native memory between them,
+ * so they're only created once a line long enough to compress is sent, and must be
+ * released with end() when the connection closes.
+ * @author Bennett Sherman, bms113
+ */
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class LineCompression {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The only compression offered, as named in ENABLE_COMPRESSION.
+	 */
+	static final String DEFLATE = "deflate";
+
+	/**
+	 * Lines shorter than this, in bytes, are sent as they are, since Base64 and the
+	 * deflate overhead make short lines longer, not shorter.
+	 */
+	static final int DEFAULT_THRESHOLD = 512;
+
+	/**
+	 * The Deflater's level. Level 1 gets most of the saving of level 6 on chat text for much less CPU (see CompressionBenchmark).
+	 */
+	static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+	/**
+	 * The longest line a Decompressor will produce, in bytes, so a small compressed line can't make the receiver run out of memory.
+	 */
+	static final int MAX_INFLATED_LINE_LENGTH = 4 * 1024 * 1024;
+
+	/**
+	 * The readers on both ends turn a line's bytes into characters with the platform default,
+	 * so an inflated line is decoded the same way to get exactly the line the reader would have.
+	 */
+	private static final Charset LINE_CHARSET = Charset.defaultCharset();
+
+	/**
+	 * The prefix, as it's written on the wire.
+	 */
+	private static final byte[] SPECIFIER_BYTES = ServerClientCommon.COMPRESSED_LINE_SPECIFIER.getBytes(LINE_CHARSET);
+
+	/**
+	 * Compresses one direction of a connection's lines.
+	 */
+	static final class Compressor
+	{
+		/**
+		 * Lines at least this many bytes long are compressed.
+		 */
+		private final int threshold;
+
+		/**
+		 * The deflate level.
+		 */
+		private final int level;
+
+		/**
+		 * Created for the first line compressed.
+		 */
+		private Deflater deflater;
+
+		/**
+		 * Receives the deflated bytes. Grows to fit the longest line.
+		 */
+		private byte[] deflated = new byte[1024];
+
+		/**
+		 * Constructor.
+		 * @param threshold Lines at least this many bytes long are compressed
+		 * @param level The deflate level, from 1 (fastest) to 9 (smallest)
+		 */
+		Compressor(int threshold, int level)
+		{
+			this.threshold = threshold;
+			this.level = level;
+		}
+
+		/**
+		 * @param line Holds a line's bytes, as they'd be sent, without its newline
+		 * @param offset Where the line starts
+		 * @param length The number of bytes in the line
+		 * @return true if the line should be sent compressed. Lines that would otherwise look
+		 * 		   compressed are always compressed, so the receiver is never mistaken.
+		 */
+		boolean shouldCompress(byte[] line, int offset, int length)
+		{
+			if (startsWithSpecifier(line, offset, length))
+			{
+				return true;
+			}
+			if (length < threshold)
+			{
+				return false;
+			}
+			// A line holding a line break would be read as two lines if sent as it is, so keep it that way
+			for (int i = offset; i < offset + length; ++i)
+			{
+				if (line[i] == '\n' || line[i] == '\r')
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Compress a line. Every line passed here must be decompressed by the other end, in the same order.
+		 * @param line Holds a line's bytes, as they'd be sent, without its newline
+		 * @param offset Where the line starts
+		 * @param length The number of bytes in the line
+		 * @return The compressed line, without its newline
+		 */
+		byte[] compress(byte[] line, int offset, int length)
+		{
+			if (deflater == null)
+			{
+				deflater = new Deflater(level, true);
+			}
+			deflater.setInput(line, offset, length);
+			int deflatedLength = 0;
+			while (true)
+			{
+				deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength, Deflater.SYNC_FLUSH);
+				// A flush that fills the buffer may have more to give
+				if (deflatedLength < deflated.length)
+				{
+					break;
+				}
+				deflated = Arrays.copyOf(deflated, deflated.length * 2);
+			}
+
+			byte[] encoded = Base64.getEncoder().encode(Arrays.copyOf(deflated, deflatedLength));
+			byte[] compressedLine = Arrays.copyOf(SPECIFIER_BYTES, SPECIFIER_BYTES.length + encoded.length);
+			System.arraycopy(encoded, 0, compressedLine, SPECIFIER_BYTES.length, encoded.length);
+			return compressedLine;
+		}
+
+		/**
+		 * Release the Deflater's native memory. The compressor can't be used afterwards.
+		 */
+		void end()
+		{
+			if (deflater != null)
+			{
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Decompresses the lines sent by the other end's Compressor.
+	 */
+	static final class Decompressor
+	{
+		/**
+		 * Created for the first compressed line.
+		 */
+		private Inflater inflater;
+
+		/**
+		 * Receives the inflated bytes. Grows to fit the longest line.
+		 */
+		private byte[] inflated = new byte[1024];
+
+		/**
+		 * @param line A line as it was read
+		 * @return true if it's compressed
+		 */
+		static boolean isCompressed(String line)
+		{
+			return line.startsWith(ServerClientCommon.COMPRESSED_LINE_SPECIFIER);
+		}
+
+		/**
+		 * @param line A compressed line, as it was read
+		 * @return The line as it would have been read had it not been compressed
+		 * @throws DataFormatException If the line isn't one the other end's Compressor produced, or inflates to
+		 * 		   more than MAX_INFLATED_LINE_LENGTH bytes. The connection can't be decompressed after this.
+		 */
+		String decompress(String line) throws DataFormatException
+		{
+			byte[] deflated;
+			try
+			{
+				deflated = Base64.getDecoder().decode(line.substring(ServerClientCommon.COMPRESSED_LINE_SPECIFIER.length()));
+			}
+			catch (IllegalArgumentException err)
+			{
+				throw new DataFormatException("A compressed line isn't valid Base64");
+			}
+
+			if (inflater == null)
+			{
+				inflater = new Inflater(true);
+			}
+			inflater.setInput(deflated);
+			int inflatedLength = 0;
+			while (true)
+			{
+				if (inflatedLength == inflated.length)
+				{
+					if (inflated.length >= MAX_INFLATED_LINE_LENGTH)
+					{
+						throw new DataFormatException("A compressed line inflates to more than " + MAX_INFLATED_LINE_LENGTH + " bytes");
+					}
+					inflated = Arrays.copyOf(inflated, Math.min(inflated.length * 2, MAX_INFLATED_LINE_LENGTH));
+				}
+				int count = inflater.inflate(inflated, inflatedLength, inflated.length - inflatedLength);
+				inflatedLength += count;
+				if (count == 0 && (inflater.needsInput() || inflater.finished()))
+				{
+					break;
+				}
+			}
+			return new String(inflated, 0, inflatedLength, LINE_CHARSET);
+		}
+
+		/**
+		 * Release the Inflater's native memory. The decompressor can't be used afterwards.
+		 */
+		void end()
+		{
+			if (inflater != null)
+			{
+				inflater.end();
+			}
+		}
+	}
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Private constructor, since this class only holds the compressor and decompressor.
+	 */
+	private LineCompression()
+	{
+	}
+
+	/**
+	 * @param line Holds a line's bytes
+	 * @param offset Where the line starts
+	 * @param length The number of bytes in the line
+	 * @return true if the line starts with COMPRESSED_LINE_SPECIFIER
+	 */
+	private static boolean startsWithSpecifier(byte[] line, int offset, int length)
+	{
+		if (length < SPECIFIER_BYTES.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < SPECIFIER_BYTES.length; ++i)
+		{
+			if (line[offset + i] != SPECIFIER_BYTES[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
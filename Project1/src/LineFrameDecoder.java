@@ -0,0 +1,119 @@
+/**
+ * Splits the raw bytes read from a non-blocking SocketChannel into
+ * lines, matching the behaviour of BufferedReader.readLine() which
+ * the blocking server uses. A line is terminated by "\n", "\r" or "\r\n"
+ * and the terminator is not included in the decoded line.
+ * @author Bennett Sherman, bms113
+ */
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+class LineFrameDecoder {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * Receives every complete line that this decoder produces.
+	 */
+	interface LineConsumer
+	{
+		/**
+		 * @param line A complete line, without its terminator
+		 * @param lineBytes The bytes the line took on the wire, counting one for its terminator
+		 * @return true to keep decoding, false to stop (ex: the client asked to disconnect)
+		 */
+		boolean onLine(String line, int lineBytes);
+	}
+
+	/**
+	 * The charset used to turn bytes into characters. The blocking server wraps the
+	 * socket in an InputStreamReader with the platform default, so use the same here.
+	 */
+	private static final Charset LINE_CHARSET = Charset.defaultCharset();
+
+	/**
+	 * Holds the bytes of a line that has been started but not yet terminated.
+	 */
+	private byte[] partialLine = new byte[256];
+
+	/**
+	 * The number of valid bytes in partialLine.
+	 */
+	private int partialLength = 0;
+
+	/**
+	 * True if the last byte seen was a '\r', so a directly following '\n'
+	 * belongs to the same terminator and must be skipped.
+	 */
+	private boolean skipNextLineFeed = false;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * The bytes a line took on the wire, for a reader that only hands back characters.
+	 * @param line A complete line, without its terminator
+	 * @return The line's length in the charset it was read with, counting one for its terminator
+	 */
+	static int encodedLength(String line)
+	{
+		// Every charset the platform might default to encodes ASCII one byte per character
+		for (int i = 0; i < line.length(); i++)
+		{
+			if (line.charAt(i) >= 0x80)
+			{
+				return line.getBytes(LINE_CHARSET).length + 1;
+			}
+		}
+		return line.length() + 1;
+	}
+
+	/**
+	 * Consumes all of the readable bytes in the buffer, handing each complete line to the consumer.
+	 * Bytes following the last terminator are kept until the next call.
+	 * @param buffer A buffer in read mode (flipped)
+	 * @param consumer The receiver of complete lines
+	 * @return false if the consumer asked to stop, true otherwise
+	 */
+	boolean decode(ByteBuffer buffer, LineConsumer consumer)
+	{
+		while (buffer.hasRemaining())
+		{
+			byte current = buffer.get();
+
+			if (skipNextLineFeed)
+			{
+				skipNextLineFeed = false;
+				if (current == '\n')
+				{
+					continue;
+				}
+			}
+
+			if (current == '\n' || current == '\r')
+			{
+				skipNextLineFeed = (current == '\r');
+				String line = new String(partialLine, 0, partialLength, LINE_CHARSET);
+				int lineBytes = partialLength + 1;
+				partialLength = 0;
+				if (!consumer.onLine(line, lineBytes))
+				{
+					return false;
+				}
+				continue;
+			}
+
+			// Grow the partial line if this byte won't fit
+			if (partialLength == partialLine.length)
+			{
+				partialLine = Arrays.copyOf(partialLine, partialLine.length * 2);
+			}
+			partialLine[partialLength++] = current;
+		}
+		return true;
+	}
+}
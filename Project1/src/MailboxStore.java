@@ -0,0 +1,735 @@
+/**
+ * Keeps messages for clients who aren't connected, until a client takes that name.
+ * Every message is appended to a log of memory-mapped segment files, so the messages
+ * survive the server restarting; when the server starts, the segments are read back to
+ * find the messages that haven't been delivered yet.
+ * Nothing here is done on the threads handling clients. They only hand the mailbox
+ * thread a task; it writes the records, and after each batch of tasks syncs the
+ * segment to disk once, so a burst of messages costs one sync rather than one each.
+ * When the current segment is full, a new one is started. Delivering a recipient's
+ * messages appends a record saying so; once the oldest segment holds few messages
+ * still waiting to be delivered, those are copied into the current segment and the
+ * old segment is deleted.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+class MailboxStore implements Runnable {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * One message kept for a recipient.
+	 */
+	static final class Message
+	{
+		/**
+		 * The name of the client who left the message.
+		 */
+		private final String sender;
+
+		/**
+		 * The message.
+		 */
+		private final String text;
+
+		/**
+		 * Constructor.
+		 * @param sender The name of the client who left the message
+		 * @param text The message
+		 */
+		Message(String sender, String text)
+		{
+			this.sender = sender;
+			this.text = text;
+		}
+
+		/**
+		 * @return The name of the client who left the message
+		 */
+		String getSender()
+		{
+			return sender;
+		}
+
+		/**
+		 * @return The message
+		 */
+		String getText()
+		{
+			return text;
+		}
+	}
+
+	/**
+	 * Hands a recipient its messages. Called on the mailbox thread.
+	 */
+	interface Delivery
+	{
+		/**
+		 * @param messages Every message kept for the recipient, oldest first. Never empty.
+		 * @return How many of the messages, from the oldest, were handed over and can be forgotten; 0 keeps them all
+		 */
+		int deliver(List<Message> messages);
+	}
+
+	/**
+	 * A record of one message: the sequence number, recipient, sender and text.
+	 */
+	private static final byte MESSAGE_RECORD = 1;
+
+	/**
+	 * A record that a recipient's messages, up to a sequence number, were delivered.
+	 */
+	private static final byte DELIVERED_RECORD = 2;
+
+	/**
+	 * Each record starts with the length of its body and a CRC32 of the body. A length
+	 * of 0 (the file's initial contents) marks the end of the records in a segment.
+	 */
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	/**
+	 * The most messages kept for one recipient. Past this, senders are told the mailbox is full.
+	 * Below the default outbound queue capacity, so a whole mailbox fits in one delivery.
+	 */
+	static final int MAX_MESSAGES_PER_RECIPIENT = 256;
+
+	/**
+	 * The oldest segment is compacted once fewer than 1 in this many of its bytes are messages still waiting.
+	 */
+	private static final int COMPACT_WHEN_LIVE_BELOW_ONE_IN = 4;
+
+	/**
+	 * Once there are more segments than this, the oldest segment is compacted if fewer than half of its bytes are
+	 * messages still waiting, so messages for a name nobody takes can't keep every later segment from being deleted.
+	 */
+	private static final int MAX_SEGMENTS = 8;
+
+	/**
+	 * The most tasks run before the current segment is synced to disk.
+	 */
+	private static final int MAX_TASKS_PER_SYNC = 256;
+
+	/**
+	 * Segment files are named this, then their number, then SEGMENT_SUFFIX.
+	 */
+	private static final String SEGMENT_PREFIX = "mailbox-";
+
+	/**
+	 * The end of every segment file's name.
+	 */
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/**
+	 * One segment file, mapped into memory. Only used on the mailbox thread.
+	 */
+	private static final class Segment
+	{
+		/**
+		 * Segments are numbered in the order they were started.
+		 */
+		private final long number;
+
+		/**
+		 * The segment's file.
+		 */
+		private final Path path;
+
+		/**
+		 * The whole file, mapped.
+		 */
+		private final MappedByteBuffer buffer;
+
+		/**
+		 * Where the next record goes.
+		 */
+		private int writePosition = 0;
+
+		/**
+		 * The start of the bytes written since the last sync, or -1 if there are none.
+		 */
+		private int unsyncedFrom = -1;
+
+		/**
+		 * The messages written to this segment, delivered or not.
+		 */
+		private final List<Kept> messages = new ArrayList<>();
+
+		/**
+		 * The number of bytes of messages still waiting to be delivered.
+		 */
+		private long liveBytes = 0;
+
+		/**
+		 * Constructor.
+		 * @param number The segment's number
+		 * @param path The segment's file
+		 * @param buffer The whole file, mapped
+		 */
+		private Segment(long number, Path path, MappedByteBuffer buffer)
+		{
+			this.number = number;
+			this.path = path;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * Where one message waiting to be delivered is stored. Only used on the mailbox thread.
+	 */
+	private static final class Kept
+	{
+		/**
+		 * The message's sequence number, which orders every recipient's messages.
+		 */
+		private final long sequence;
+
+		/**
+		 * The segment the message's record is in. Changes when it's compacted.
+		 */
+		private Segment segment;
+
+		/**
+		 * Where the record starts in the segment.
+		 */
+		private int offset;
+
+		/**
+		 * The length of the record, header included.
+		 */
+		private final int length;
+
+		/**
+		 * Set once the message has been delivered.
+		 */
+		private boolean delivered = false;
+
+		/**
+		 * Constructor.
+		 * @param sequence The message's sequence number
+		 * @param segment The segment the record is in
+		 * @param offset Where the record starts
+		 * @param length The length of the record, header included
+		 */
+		private Kept(long sequence, Segment segment, int offset, int length)
+		{
+			this.sequence = sequence;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * The directory holding the segment files.
+	 */
+	private final Path directory;
+
+	/**
+	 * The size of each new segment file.
+	 */
+	private final int segmentSize;
+
+	/**
+	 * Where failures are logged.
+	 */
+	private final ServerLogger log;
+
+	/**
+	 * Every segment, oldest first. The last is the one being written. Only used on the mailbox thread.
+	 */
+	private final List<Segment> segments = new ArrayList<>();
+
+	/**
+	 * The messages waiting for each recipient, oldest first. Only used on the mailbox thread.
+	 */
+	private final Map<String, List<Kept>> waitingByRecipient = new HashMap<>();
+
+	/**
+	 * The sequence number of the next message. Only used on the mailbox thread.
+	 */
+	private long nextSequence = 0;
+
+	/**
+	 * Work for the mailbox thread, in the order it was asked for.
+	 */
+	private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+	/**
+	 * Computes record checksums. Only used on the mailbox thread.
+	 */
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * The mailbox thread, once started.
+	 */
+	private Thread mailboxThread;
+
+	/**
+	 * Cleared by the last task queued by close().
+	 */
+	private volatile boolean running = true;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor. Reads back every segment in the directory to find the messages still waiting.
+	 * @param directory The directory holding the segment files. Created if it doesn't exist.
+	 * @param segmentSize The size of each new segment file, in bytes
+	 * @param log Where failures are logged
+	 * @throws IOException If the directory or a segment can't be read
+	 */
+	MailboxStore(Path directory, int segmentSize, ServerLogger log) throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.log = log;
+
+		Files.createDirectories(directory);
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+		{
+			for (Path path : files)
+			{
+				paths.add(path);
+			}
+		}
+		paths.sort(Comparator.comparingLong(MailboxStore::segmentNumber));
+		for (Path path : paths)
+		{
+			recoverSegment(path);
+		}
+		waitingByRecipient.values().removeIf(List::isEmpty);
+		for (List<Kept> waiting : waitingByRecipient.values())
+		{
+			// Compaction may have moved older messages after newer ones
+			waiting.sort(Comparator.comparingLong(kept -> kept.sequence));
+		}
+		if (segments.isEmpty())
+		{
+			startSegment(0);
+		}
+		compact();
+		sync();
+	}
+
+	/**
+	 * Start the mailbox thread. It's a daemon, and is stopped by close().
+	 */
+	void start()
+	{
+		mailboxThread = new Thread(this, "chatd-mailbox");
+		mailboxThread.setDaemon(true);
+		mailboxThread.start();
+	}
+
+	/**
+	 * Keep a message for a recipient. Never waits: the message is written by the mailbox thread.
+	 * @param sender The name of the client leaving the message
+	 * @param recipient The name the message is for
+	 * @param text The message
+	 * @param onFull Run on the mailbox thread if the recipient's mailbox is full and the message was dropped
+	 * @return false if the message is too long to keep
+	 */
+	boolean append(String sender, String recipient, String text, Runnable onFull)
+	{
+		// UTF-8 never takes more than 3 bytes per char
+		long longestRecord = RECORD_HEADER_SIZE + 1 + 8 + 12 + 3L * (sender.length() + recipient.length() + text.length());
+		if (longestRecord > segmentSize)
+		{
+			return false;
+		}
+		tasks.add(() -> {
+			List<Kept> waiting = waitingByRecipient.computeIfAbsent(recipient, name -> new ArrayList<>());
+			if (waiting.size() >= MAX_MESSAGES_PER_RECIPIENT)
+			{
+				onFull.run();
+				return;
+			}
+			long sequence = nextSequence++;
+			waiting.add(writeRecord(encodeRecord(MESSAGE_RECORD, sequence, recipient, sender, text), sequence, true));
+		});
+		return true;
+	}
+
+	/**
+	 * Hand a recipient every message kept for it, in one batch, once the mailbox thread has
+	 * written every message asked for before this. Nothing happens if there are none.
+	 * @param recipient The name whose messages to deliver
+	 * @param delivery Given the messages on the mailbox thread
+	 */
+	void deliver(String recipient, Delivery delivery)
+	{
+		tasks.add(() -> {
+			List<Kept> waiting = waitingByRecipient.get(recipient);
+			if (waiting == null || waiting.isEmpty())
+			{
+				return;
+			}
+			List<Message> messages = new ArrayList<>(waiting.size());
+			for (Kept kept : waiting)
+			{
+				messages.add(readMessage(kept));
+			}
+			int deliveredCount = delivery.deliver(messages);
+			if (deliveredCount <= 0)
+			{
+				return;
+			}
+
+			// Only the messages handed over are marked; the rest wait for the next delivery
+			List<Kept> delivered = waiting.subList(0, Math.min(deliveredCount, waiting.size()));
+			long lastSequence = delivered.get(delivered.size() - 1).sequence;
+			writeRecord(encodeRecord(DELIVERED_RECORD, lastSequence, recipient, null, null), lastSequence, false);
+			for (Kept kept : delivered)
+			{
+				kept.delivered = true;
+				kept.segment.liveBytes -= kept.length;
+			}
+			delivered.clear();
+			if (waiting.isEmpty())
+			{
+				waitingByRecipient.remove(recipient);
+			}
+		});
+	}
+
+	/**
+	 * Stop the mailbox thread once it has finished every task already asked for, and sync the last segment.
+	 */
+	void close()
+	{
+		tasks.add(() -> running = false);
+		if (mailboxThread != null)
+		{
+			try
+			{
+				mailboxThread.join();
+			}
+			catch (InterruptedException err)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The mailbox thread: run tasks in batches, syncing to disk and compacting after each batch.
+	 */
+	public void run()
+	{
+		while (running)
+		{
+			try
+			{
+				Runnable task = tasks.take();
+				int taskCount = 0;
+				while (task != null)
+				{
+					runTask(task);
+					task = (++taskCount < MAX_TASKS_PER_SYNC) ? tasks.poll() : null;
+				}
+				sync();
+				compact();
+			}
+			catch (InterruptedException err)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Run one task, logging rather than dying if it fails.
+	 * @param task The task
+	 */
+	private void runTask(Runnable task)
+	{
+		try
+		{
+			task.run();
+		}
+		catch (RuntimeException err)
+		{
+			log.notice(ServerLogger.Level.ERROR, "A mailbox task failed: " + err);
+		}
+	}
+
+	/**
+	 * @param type MESSAGE_RECORD or DELIVERED_RECORD
+	 * @param sequence The message's sequence number, or for DELIVERED_RECORD the last one delivered
+	 * @param recipient The recipient's name
+	 * @param sender The sender's name; null for DELIVERED_RECORD
+	 * @param text The message; null for DELIVERED_RECORD
+	 * @return The whole record, header included
+	 */
+	private byte[] encodeRecord(byte type, long sequence, String recipient, String sender, String text)
+	{
+		byte[] recipientBytes = recipient.getBytes(StandardCharsets.UTF_8);
+		byte[] senderBytes = (sender == null) ? new byte[0] : sender.getBytes(StandardCharsets.UTF_8);
+		byte[] textBytes = (text == null) ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+		int bodyLength = 1 + 8 + 4 + recipientBytes.length;
+		if (type == MESSAGE_RECORD)
+		{
+			bodyLength += 4 + senderBytes.length + 4 + textBytes.length;
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodyLength);
+		record.putInt(bodyLength).putInt(0);
+		record.put(type).putLong(sequence).putInt(recipientBytes.length).put(recipientBytes);
+		if (type == MESSAGE_RECORD)
+		{
+			record.putInt(senderBytes.length).put(senderBytes).putInt(textBytes.length).put(textBytes);
+		}
+		crc.reset();
+		crc.update(record.array(), RECORD_HEADER_SIZE, bodyLength);
+		record.putInt(4, (int) crc.getValue());
+		return record.array();
+	}
+
+	/**
+	 * Append a record to the current segment, starting a new segment if it doesn't fit.
+	 * @param record The whole record
+	 * @param sequence The record's sequence number
+	 * @param isMessage true for a message, which is kept track of until it's delivered
+	 * @return Where the record was written
+	 */
+	private Kept writeRecord(byte[] record, long sequence, boolean isMessage)
+	{
+		Segment current = segments.get(segments.size() - 1);
+		if (current.writePosition + record.length > current.buffer.capacity())
+		{
+			sync();
+			current = startSegment(current.number + 1);
+		}
+		current.buffer.put(current.writePosition, record);
+		Kept kept = new Kept(sequence, current, current.writePosition, record.length);
+		if (current.unsyncedFrom < 0)
+		{
+			current.unsyncedFrom = current.writePosition;
+		}
+		current.writePosition += record.length;
+		if (isMessage)
+		{
+			current.messages.add(kept);
+			current.liveBytes += record.length;
+		}
+		return kept;
+	}
+
+	/**
+	 * @param kept Where a message's record is
+	 * @return The message
+	 */
+	private Message readMessage(Kept kept)
+	{
+		ByteBuffer record = kept.segment.buffer.duplicate();
+		// Skip the header, type and sequence number, then the recipient
+		record.position(kept.offset + RECORD_HEADER_SIZE + 1 + 8);
+		skipString(record);
+		String sender = readString(record);
+		return new Message(sender, readString(record));
+	}
+
+	/**
+	 * @param record A record, positioned at a length-prefixed string
+	 * @return The string, with the record positioned after it
+	 */
+	private static String readString(ByteBuffer record)
+	{
+		byte[] bytes = new byte[record.getInt()];
+		record.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param record A record, positioned at a length-prefixed string, which is skipped
+	 */
+	private static void skipString(ByteBuffer record)
+	{
+		int length = record.getInt();
+		record.position(record.position() + length);
+	}
+
+	/**
+	 * Write the current segment's new records to disk. Earlier segments were synced when they filled.
+	 */
+	private void sync()
+	{
+		Segment current = segments.get(segments.size() - 1);
+		if (current.unsyncedFrom >= 0)
+		{
+			current.buffer.force(current.unsyncedFrom, current.writePosition - current.unsyncedFrom);
+			current.unsyncedFrom = -1;
+		}
+	}
+
+	/**
+	 * Delete the oldest segments once nothing in them is waiting to be delivered. If the oldest
+	 * segment is mostly delivered, or there are too many segments, first copy its waiting
+	 * messages into the current segment. Only the oldest segment is ever deleted, so a record
+	 * saying a recipient's messages were delivered is never deleted before those messages are.
+	 */
+	private void compact()
+	{
+		while (segments.size() > 1)
+		{
+			Segment oldest = segments.get(0);
+			// Each compaction frees at least half of the oldest segment, so this always ends
+			boolean mostlyDelivered = oldest.liveBytes * COMPACT_WHEN_LIVE_BELOW_ONE_IN < oldest.writePosition;
+			boolean tooManySegments = segments.size() > MAX_SEGMENTS && oldest.liveBytes * 2 < oldest.writePosition;
+			if (oldest.liveBytes > 0 && !mostlyDelivered && !tooManySegments)
+			{
+				return;
+			}
+			if (oldest.liveBytes > 0)
+			{
+				for (Kept kept : oldest.messages)
+				{
+					if (!kept.delivered)
+					{
+						byte[] record = new byte[kept.length];
+						oldest.buffer.get(kept.offset, record);
+						Kept moved = writeRecord(record, kept.sequence, true);
+						kept.segment = moved.segment;
+						kept.offset = moved.offset;
+						moved.segment.messages.set(moved.segment.messages.size() - 1, kept);
+					}
+				}
+				// The copies must be on disk before the originals are deleted
+				sync();
+			}
+			segments.remove(0);
+			try
+			{
+				Files.delete(oldest.path);
+			}
+			catch (IOException err)
+			{
+				log.notice(ServerLogger.Level.WARN, "The mailbox segment " + oldest.path + " could not be deleted: " + err);
+			}
+		}
+	}
+
+	/**
+	 * Create and map a new, empty segment file, which becomes the one being written.
+	 * @param number The segment's number
+	 * @return The segment
+	 */
+	private Segment startSegment(long number)
+	{
+		Path path = directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			Segment segment = new Segment(number, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+			segments.add(segment);
+			return segment;
+		}
+		catch (IOException err)
+		{
+			throw new IllegalStateException("The mailbox segment " + path + " could not be created", err);
+		}
+	}
+
+	/**
+	 * Map an existing segment and read its records, up to the first one that is missing or
+	 * was only partly written. The last segment read is the one written to next.
+	 * @param path The segment's file
+	 * @throws IOException If the file can't be mapped
+	 */
+	private void recoverSegment(Path path) throws IOException
+	{
+		Segment segment;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			segment = new Segment(segmentNumber(path), path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+		}
+		segments.add(segment);
+
+		MappedByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while (position + RECORD_HEADER_SIZE <= buffer.capacity())
+		{
+			int bodyLength = buffer.getInt(position);
+			if (bodyLength <= 0 || bodyLength > buffer.capacity() - position - RECORD_HEADER_SIZE)
+			{
+				break;
+			}
+			ByteBuffer body = buffer.duplicate();
+			body.position(position + RECORD_HEADER_SIZE).limit(position + RECORD_HEADER_SIZE + bodyLength);
+			crc.reset();
+			crc.update(body.duplicate());
+			if ((int) crc.getValue() != buffer.getInt(position + 4))
+			{
+				break;
+			}
+
+			byte type = body.get();
+			long sequence = body.getLong();
+			String recipient = readString(body);
+			int recordLength = RECORD_HEADER_SIZE + bodyLength;
+			if (type == MESSAGE_RECORD)
+			{
+				Kept kept = new Kept(sequence, segment, position, recordLength);
+				segment.messages.add(kept);
+				segment.liveBytes += recordLength;
+				waitingByRecipient.computeIfAbsent(recipient, name -> new ArrayList<>()).add(kept);
+			}
+			else if (type == DELIVERED_RECORD)
+			{
+				List<Kept> waiting = waitingByRecipient.get(recipient);
+				if (waiting != null)
+				{
+					waiting.removeIf(kept -> {
+						if (kept.sequence <= sequence)
+						{
+							kept.delivered = true;
+							kept.segment.liveBytes -= kept.length;
+							return true;
+						}
+						return false;
+					});
+				}
+			}
+			nextSequence = Math.max(nextSequence, sequence + 1);
+			position += recordLength;
+		}
+		segment.writePosition = position;
+
+		// Clear the header of a record that was only partly written, so the end of the records is found here next time
+		if (position + RECORD_HEADER_SIZE <= buffer.capacity())
+		{
+			buffer.putLong(position, 0);
+		}
+	}
+
+	/**
+	 * @param path A segment file
+	 * @return Its number
+	 */
+	private static long segmentNumber(Path path)
+	{
+		String fileName = path.getFileName().toString();
+		return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * One message to a client, already encoded into the exact bytes that go on the wire
+ * (see BufferedMessageWriter.encodeInto()), and never changed afterwards. Because it's
+ * immutable, the same frame can wait in any number of clients' outbound queues at once:
+ * a message to a whole room is formatted and encoded once, and every member's writer
+ * reads the same bytes.
+ * @author Bennett Sherman, bms113
+ */
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+final class OutboundFrame {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The encoded message, followed by its newline. Never written to after construction.
+	 */
+	private final byte[] bytes;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param bytes The encoded message and its newline
+	 */
+	private OutboundFrame(byte[] bytes)
+	{
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @param msgToSend A message, exactly as the client should receive it
+	 * @return The message encoded as a frame
+	 */
+	static OutboundFrame encode(String msgToSend)
+	{
+		byte[] encoded = new byte[msgToSend.length() + 1];
+		BufferedMessageWriter.encodeInto(msgToSend, encoded, 0);
+		return new OutboundFrame(encoded);
+	}
+
+	/**
+	 * Put text in front of the message, ex: to forward it to another node of a cluster
+	 * along with who it's for. The frame itself is never changed.
+	 * @param prefix The text to put in front
+	 * @return A new frame of the prefix followed by this frame's message
+	 */
+	OutboundFrame withPrefix(String prefix)
+	{
+		byte[] prefixed = new byte[prefix.length() + bytes.length];
+		BufferedMessageWriter.encodeInto(prefix, prefixed, 0);
+		System.arraycopy(bytes, 0, prefixed, prefix.length(), bytes.length);
+		return new OutboundFrame(prefixed);
+	}
+
+	/**
+	 * @return The number of bytes in the frame, including the newline
+	 */
+	int length()
+	{
+		return bytes.length;
+	}
+
+	/**
+	 * Copy the frame into a buffer.
+	 * @param destination Where to copy it. Must have room for length() bytes past offset.
+	 * @param offset Where in the destination to start
+	 * @return The offset just past the frame
+	 */
+	int copyTo(byte[] destination, int offset)
+	{
+		System.arraycopy(bytes, 0, destination, offset, bytes.length);
+		return offset + bytes.length;
+	}
+
+	/**
+	 * Compress the frame for one client, if it's long enough. The frame itself is never changed,
+	 * since other clients may be sent it too.
+	 * @param compressor The client's compressor. Only its writer may call this.
+	 * @return A new, compressed frame, or this frame if it's sent as it is
+	 */
+	OutboundFrame compressWith(LineCompression.Compressor compressor)
+	{
+		int lineLength = bytes.length - 1;
+		if (!compressor.shouldCompress(bytes, 0, lineLength))
+		{
+			return this;
+		}
+		byte[] compressed = compressor.compress(bytes, 0, lineLength);
+		byte[] compressedFrame = Arrays.copyOf(compressed, compressed.length + 1);
+		compressedFrame[compressed.length] = '\n';
+		return new OutboundFrame(compressedFrame);
+	}
+	
+	/**
+	 * @return A read-only buffer of the frame, for one writer to use. Every call returns
+	 * 		   a new buffer with its own position, but they all share the frame's bytes.
+	 */
+	ByteBuffer newReadBuffer()
+	{
+		return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+}
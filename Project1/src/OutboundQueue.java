@@ -0,0 +1,685 @@
+/**
+ * The bounded queue of messages waiting to be written to one client, already encoded as frames.
+ * Any thread may add to it without waiting on the client's socket (relays from
+ * the peer, server notices, echoes), while exactly one writer takes messages
+ * off of it and writes them, so messages to a client can never interleave.
+ * When the queue fills past its high watermark the client is reading slower than
+ * it's being sent to; the listener is told, and told again once the queue has
+ * drained back down to its low watermark.
+ * The queue can also limit the bytes waiting for its client. A client may go over the
+ * limit for a grace period, ex: while a burst of messages is written; once it has been
+ * over the limit for longer than that, it's a slow consumer and the queue applies its
+ * SlowConsumerPolicy to every message that doesn't fit: the oldest messages are dropped
+ * to make room, the new message is dropped, or the listener is told to disconnect it.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+class OutboundQueue {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * What a queue does with messages for a client that has been over the queue's byte limit for longer than the grace period.
+	 * DROP_OLDEST - drop the oldest queued messages until the new one fits
+	 * DROP_NEWEST - drop the new message
+	 * DISCONNECT - drop the new message and have the listener disconnect the client
+	 */
+	enum SlowConsumerPolicy { DROP_OLDEST, DROP_NEWEST, DISCONNECT };
+
+	/**
+	 * Told when a queue crosses its watermarks, and when its client becomes a slow consumer.
+	 */
+	interface WatermarkListener
+	{
+		/**
+		 * The queue has reached its high watermark: its client is falling behind.
+		 * @param depth The number of queued messages
+		 */
+		void onHighWatermark(int depth);
+
+		/**
+		 * The queue has drained to its low watermark after reaching its high watermark.
+		 * @param depth The number of queued messages
+		 */
+		void onLowWatermark(int depth);
+
+		/**
+		 * The client has been over the byte limit for longer than the grace period, so the policy now applies.
+		 * Told once each time the client falls that far behind. Called on the thread queueing a message.
+		 * @param pendingBytes The number of bytes queued
+		 */
+		void onSlowConsumer(long pendingBytes);
+
+		/**
+		 * Messages were dropped because the queue was full or its client is a slow consumer.
+		 * @param policy DROP_OLDEST if queued messages were dropped to make room, otherwise DROP_NEWEST
+		 * @param count The number of messages dropped
+		 */
+		void onMessagesDropped(SlowConsumerPolicy policy, int count);
+	}
+
+	/**
+	 * The queued messages, oldest first.
+	 */
+	private final ArrayDeque<OutboundFrame> messages = new ArrayDeque<>();
+
+	/**
+	 * The most messages that may be queued at once.
+	 */
+	private final int capacity;
+
+	/**
+	 * The most bytes that may be queued before the client is over the limit. 0 for no limit.
+	 */
+	private final long maxPendingBytes;
+
+	/**
+	 * How long the client may stay over the byte limit before the policy applies.
+	 */
+	private final long graceNanos;
+
+	/**
+	 * What's done with messages that don't fit once the client is a slow consumer.
+	 */
+	private final SlowConsumerPolicy policy;
+
+	/**
+	 * The depth at which the client is considered slow.
+	 */
+	private final int highWatermark;
+
+	/**
+	 * The depth at which a slow client is considered caught up.
+	 */
+	private final int lowWatermark;
+
+	/**
+	 * Told when the watermarks are crossed.
+	 */
+	private final WatermarkListener listener;
+
+	/**
+	 * Guards every member below and messages. Only held for queue bookkeeping, never for I/O.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when a message is added, the writer is woken or the queue is closed.
+	 */
+	private final Condition notEmpty = lock.newCondition();
+
+	/**
+	 * True between crossing the high watermark and draining to the low watermark.
+	 */
+	private boolean aboveHighWatermark = false;
+
+	/**
+	 * Once true, no more messages are accepted and the writer stops after draining the rest.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Set by wake() to have a waiting writer return even though nothing was queued.
+	 */
+	private boolean wakeRequested = false;
+
+	/**
+	 * The number of messages that didn't fit and were discarded.
+	 */
+	private long droppedCount = 0;
+
+	/**
+	 * The total length of the queued messages.
+	 */
+	private long pendingBytes = 0;
+
+	/**
+	 * True while the queued bytes are over maxPendingBytes.
+	 */
+	private boolean overByteLimit = false;
+
+	/**
+	 * When the queued bytes went over maxPendingBytes, from System.nanoTime(). Only meaningful while overByteLimit.
+	 */
+	private long overByteLimitSinceNanos;
+
+	/**
+	 * True once the listener has been told that the client is a slow consumer, until it's back under the byte limit.
+	 */
+	private boolean slowConsumer = false;
+
+	/**
+	 * The number of queued messages that offers dropped to make room, for the listener to be told once the lock is released.
+	 */
+	private int droppedOldest;
+
+	/**
+	 * The number of new messages that offers dropped because they didn't fit, for the listener to be told once the lock is released.
+	 */
+	private int droppedNewest;
+
+	/**
+	 * True if an offer made the client a slow consumer, for the listener to be told once the lock is released.
+	 */
+	private boolean becameSlowConsumer;
+
+	/**
+	 * True if an offer took the queue over its high watermark, for the listener to be told once the lock is released.
+	 */
+	private boolean crossedHighWatermark;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor for a queue with no byte limit, which drops new messages once it's full.
+	 * The watermarks are three quarters and one quarter of the capacity.
+	 * @param capacity The most messages that may be queued at once
+	 * @param listener Told when the watermarks are crossed
+	 */
+	OutboundQueue(int capacity, WatermarkListener listener)
+	{
+		this(capacity, 0, 0, SlowConsumerPolicy.DROP_NEWEST, listener);
+	}
+
+	/**
+	 * Constructor. The watermarks are three quarters and one quarter of the capacity.
+	 * @param capacity The most messages that may be queued at once. Once full, messages are dropped
+	 * 		  as the policy says (DISCONNECT drops the new message), whether or not the client is a slow consumer.
+	 * @param maxPendingBytes The most bytes that may be queued before the client is over the limit. 0 for no limit.
+	 * @param graceNanos How long the client may stay over the byte limit before it's a slow consumer
+	 * @param policy What's done with messages that don't fit once the client is a slow consumer
+	 * @param listener Told when the watermarks are crossed and when the client becomes a slow consumer
+	 */
+	OutboundQueue(int capacity, long maxPendingBytes, long graceNanos, SlowConsumerPolicy policy, WatermarkListener listener)
+	{
+		this.capacity = capacity;
+		this.maxPendingBytes = maxPendingBytes;
+		this.graceNanos = graceNanos;
+		this.policy = policy;
+		this.highWatermark = Math.max(1, capacity * 3 / 4);
+		this.lowWatermark = capacity / 4;
+		this.listener = listener;
+	}
+
+	/**
+	 * Add a message to the end of the queue without waiting. If it doesn't fit, the policy decides what's dropped.
+	 * @param frame The message to queue
+	 * @return false if the message was not queued because the queue is full or closed
+	 */
+	boolean offer(OutboundFrame frame)
+	{
+		boolean queued;
+		boolean mustTellListener;
+		int depth;
+		lock.lock();
+		try
+		{
+			if (closed)
+			{
+				return false;
+			}
+			queued = add(frame, System.nanoTime());
+			depth = messages.size();
+			mustTellListener = hasListenerEvents();
+			if (queued)
+			{
+				notEmpty.signal();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		// Tell the listener outside of the lock so that it can't hold up other senders
+		if (mustTellListener)
+		{
+			tellListener(depth);
+		}
+		return queued;
+	}
+
+	/**
+	 * Add several messages to the end of the queue, in order, taking the lock once.
+	 * If they don't all fit, the policy decides what's dropped.
+	 * @param frames The messages to queue, oldest first
+	 * @return The number of messages queued
+	 */
+	int offerAll(List<OutboundFrame> frames)
+	{
+		int queued = 0;
+		int depth;
+		boolean mustTellListener;
+		lock.lock();
+		try
+		{
+			if (closed)
+			{
+				return 0;
+			}
+			long nowNanos = System.nanoTime();
+			for (OutboundFrame frame : frames)
+			{
+				if (add(frame, nowNanos))
+				{
+					++queued;
+				}
+			}
+			depth = messages.size();
+			mustTellListener = hasListenerEvents();
+			if (queued > 0)
+			{
+				notEmpty.signal();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		if (mustTellListener)
+		{
+			tellListener(depth);
+		}
+		return queued;
+	}
+
+	/**
+	 * Add a heading and then as many messages as fit along with it, in order. Unlike offerAll(),
+	 * the policy never applies: nothing already queued is dropped, and the messages queued are
+	 * exactly those from the start of the list up to the first that doesn't fit. The heading is
+	 * made once it's known how many fit, so it can say so. Nothing is queued unless the heading
+	 * and at least one message fit.
+	 * @param heading Makes the heading, given how many of the messages fit
+	 * @param frames The messages to queue, oldest first
+	 * @return The number of messages queued after the heading, all from the start of the list
+	 */
+	int offerWhileRoom(IntFunction<OutboundFrame> heading, List<OutboundFrame> frames)
+	{
+		int queued = 0;
+		int depth;
+		boolean mustTellListener;
+		lock.lock();
+		try
+		{
+			if (closed || slowConsumer)
+			{
+				return 0;
+			}
+			// A heading for fewer messages may be longer, leaving room for fewer, so count until it settles
+			int fitting = frames.size();
+			OutboundFrame headingFrame;
+			int previousFitting;
+			do
+			{
+				previousFitting = fitting;
+				headingFrame = heading.apply(fitting);
+				fitting = Math.min(fitting, countFitting(headingFrame, frames));
+			}
+			while (fitting != previousFitting);
+			if (fitting == 0)
+			{
+				return 0;
+			}
+
+			long nowNanos = System.nanoTime();
+			add(headingFrame, nowNanos);
+			for (queued = 0; queued < fitting; ++queued)
+			{
+				add(frames.get(queued), nowNanos);
+			}
+			depth = messages.size();
+			mustTellListener = hasListenerEvents();
+			if (queued > 0)
+			{
+				notEmpty.signal();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		if (mustTellListener)
+		{
+			tellListener(depth);
+		}
+		return queued;
+	}
+
+	/**
+	 * @param headingFrame A message queued ahead of the others
+	 * @param frames The messages that would follow it, oldest first
+	 * @return How many of the messages, from the start of the list, fit after the heading without
+	 * 		   going over the capacity or the byte limit. Must hold the lock.
+	 */
+	private int countFitting(OutboundFrame headingFrame, List<OutboundFrame> frames)
+	{
+		int size = messages.size() + 1;
+		long bytes = pendingBytes + headingFrame.length();
+		if (size > capacity || (maxPendingBytes > 0 && bytes > maxPendingBytes))
+		{
+			return 0;
+		}
+		int fitting = 0;
+		for (OutboundFrame frame : frames)
+		{
+			bytes += frame.length();
+			if (++size > capacity || (maxPendingBytes > 0 && bytes > maxPendingBytes))
+			{
+				break;
+			}
+			++fitting;
+		}
+		return fitting;
+	}
+
+	/**
+	 * Add a message if it fits, otherwise apply the policy. Records what the listener must be told. Must hold the lock.
+	 * @param frame The message to queue
+	 * @param nowNanos The time, from System.nanoTime()
+	 * @return true if the message was queued
+	 */
+	private boolean add(OutboundFrame frame, long nowNanos)
+	{
+		long length = frame.length();
+		boolean overLimit = maxPendingBytes > 0 && pendingBytes + length > maxPendingBytes;
+		if (overLimit && !overByteLimit)
+		{
+			overByteLimit = true;
+			overByteLimitSinceNanos = nowNanos;
+		}
+		boolean pastGrace = overLimit && nowNanos - overByteLimitSinceNanos >= graceNanos;
+		if (pastGrace && !slowConsumer)
+		{
+			slowConsumer = true;
+			becameSlowConsumer = true;
+		}
+
+		if (messages.size() >= capacity || pastGrace)
+		{
+			if (policy != SlowConsumerPolicy.DROP_OLDEST)
+			{
+				++droppedCount;
+				++droppedNewest;
+				return false;
+			}
+			// Make room, unless the message is too big to ever fit
+			while (!messages.isEmpty() && (messages.size() >= capacity || (maxPendingBytes > 0 && pendingBytes + length > maxPendingBytes)))
+			{
+				pendingBytes -= messages.pollFirst().length();
+				++droppedCount;
+				++droppedOldest;
+			}
+		}
+
+		messages.addLast(frame);
+		pendingBytes += length;
+		if (!aboveHighWatermark && messages.size() >= highWatermark)
+		{
+			aboveHighWatermark = true;
+			crossedHighWatermark = true;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if an offer did something the listener hasn't been told about yet. Must hold the lock.
+	 */
+	private boolean hasListenerEvents()
+	{
+		return crossedHighWatermark || becameSlowConsumer || droppedOldest > 0 || droppedNewest > 0;
+	}
+
+	/**
+	 * Tell the listener what the offers did. Called after releasing the lock, so the
+	 * listener can't hold up other senders. What's told is taken under the lock first.
+	 * @param depth The number of messages queued after the offer
+	 */
+	private void tellListener(int depth)
+	{
+		int oldest;
+		int newest;
+		boolean slow;
+		boolean high;
+		long bytes;
+		lock.lock();
+		try
+		{
+			oldest = droppedOldest;
+			newest = droppedNewest;
+			slow = becameSlowConsumer;
+			high = crossedHighWatermark;
+			bytes = pendingBytes;
+			droppedOldest = 0;
+			droppedNewest = 0;
+			becameSlowConsumer = false;
+			crossedHighWatermark = false;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		if (high)
+		{
+			listener.onHighWatermark(depth);
+		}
+		if (slow)
+		{
+			listener.onSlowConsumer(bytes);
+		}
+		if (oldest > 0)
+		{
+			listener.onMessagesDropped(SlowConsumerPolicy.DROP_OLDEST, oldest);
+		}
+		if (newest > 0)
+		{
+			listener.onMessagesDropped(SlowConsumerPolicy.DROP_NEWEST, newest);
+		}
+	}
+
+	/**
+	 * Wait for at least one message or a call to wake(), then move up to maxMessages
+	 * messages into batch. For writers that have a thread of their own to block.
+	 * @param batch Receives the messages, oldest first. Left empty if the writer was only woken.
+	 * @param maxMessages The most messages to take
+	 * @return false if the queue is closed and empty, meaning the writer should stop
+	 * @throws InterruptedException If the writer was interrupted while waiting
+	 */
+	boolean awaitBatch(List<OutboundFrame> batch, int maxMessages) throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			while (messages.isEmpty() && !closed && !wakeRequested)
+			{
+				notEmpty.await();
+			}
+			wakeRequested = false;
+			if (messages.isEmpty() && closed)
+			{
+				return false;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		pollBatch(batch, maxMessages);
+		return true;
+	}
+
+	/**
+	 * Move up to maxMessages queued messages into batch without waiting.
+	 * @param batch Receives the messages, oldest first
+	 * @param maxMessages The most messages to take
+	 * @return The number of messages taken
+	 */
+	int pollBatch(List<OutboundFrame> batch, int maxMessages)
+	{
+		int taken = 0;
+		int depth;
+		boolean crossedLowWatermark = false;
+		lock.lock();
+		try
+		{
+			while (taken < maxMessages && !messages.isEmpty())
+			{
+				OutboundFrame frame = messages.pollFirst();
+				pendingBytes -= frame.length();
+				batch.add(frame);
+				++taken;
+			}
+			depth = messages.size();
+			if (overByteLimit && pendingBytes <= maxPendingBytes)
+			{
+				// Caught up, so the next time it's over the limit it gets the whole grace period again
+				overByteLimit = false;
+				slowConsumer = false;
+			}
+			if (aboveHighWatermark && depth <= lowWatermark)
+			{
+				aboveHighWatermark = false;
+				crossedLowWatermark = true;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		if (crossedLowWatermark)
+		{
+			listener.onLowWatermark(depth);
+		}
+		return taken;
+	}
+
+	/**
+	 * Make the writer's next awaitBatch() return without waiting, ex: because it has
+	 * something other than queued messages to write. May be called from any thread.
+	 */
+	void wake()
+	{
+		lock.lock();
+		try
+		{
+			wakeRequested = true;
+			notEmpty.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop accepting messages. Messages already queued are still handed to the writer.
+	 */
+	void close()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			notEmpty.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discard every queued message, ex: when the client can no longer be written to.
+	 */
+	void clear()
+	{
+		lock.lock();
+		try
+		{
+			messages.clear();
+			pendingBytes = 0;
+			overByteLimit = false;
+			slowConsumer = false;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true once close() has been called
+	 */
+	boolean isClosed()
+	{
+		lock.lock();
+		try
+		{
+			return closed;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if no messages are waiting to be written
+	 */
+	boolean isEmpty()
+	{
+		lock.lock();
+		try
+		{
+			return messages.isEmpty();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of messages currently queued
+	 */
+	int size()
+	{
+		lock.lock();
+		try
+		{
+			return messages.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of messages dropped because the queue was full
+	 */
+	long getDroppedCount()
+	{
+		lock.lock();
+		try
+		{
+			return droppedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
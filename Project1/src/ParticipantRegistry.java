@@ -0,0 +1,384 @@
+/**
+ * The server's record of who is connected: which name belongs to which
+ * ChatParticipant, and which session serves each participant.
+ * Both tables are concurrent maps, so lookups never lock. Changes that must be
+ * atomic take striped locks instead of one server-wide lock: a rename only locks
+ * the stripes of the two names involved, so unrelated clients never wait on each other.
+ * Pairing needs no lock at all; see ChatParticipant.
+ * Every change to the set of names bumps the registry's version. The roster handed to
+ * clients is a snapshot taken at one version and rebuilt at most once per version,
+ * no matter how many clients ask for it.
+ * @param <S> The type of session the server keeps for each participant
+ * @author Bennett Sherman, bms113
+ */
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+class ParticipantRegistry<S> {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * A set of stripe locks held together by one caller. Release with unlock().
+	 */
+	static final class HeldStripes
+	{
+		/**
+		 * The locks held, in the order they were acquired.
+		 */
+		private final ReentrantLock[] locks;
+
+		/**
+		 * Constructor. The locks are acquired here.
+		 * @param locks The locks to acquire, already sorted into the global acquisition order
+		 */
+		private HeldStripes(ReentrantLock[] locks)
+		{
+			this.locks = locks;
+			for (ReentrantLock lock : locks)
+			{
+				lock.lock();
+			}
+		}
+
+		/**
+		 * Releases every lock, in the reverse order of acquisition.
+		 */
+		void unlock()
+		{
+			for (int i = locks.length - 1; i >= 0; --i)
+			{
+				locks[i].unlock();
+			}
+		}
+	}
+
+	/**
+	 * Links names to chat participants.
+	 */
+	private final ConcurrentHashMap<String, ChatParticipant> nameToParticipant = new ConcurrentHashMap<>();
+
+	/**
+	 * Links participants to their session.
+	 */
+	private final ConcurrentHashMap<ChatParticipant, S> participantToSession = new ConcurrentHashMap<>();
+
+	/**
+	 * Links the ids of participants that have a session to the participants, so that
+	 * other nodes of a cluster can name a participant in a way that survives renames.
+	 */
+	private final ConcurrentHashMap<Long, ChatParticipant> idToParticipant = new ConcurrentHashMap<>();
+
+	/**
+	 * Locks guarding changes to names. A name always maps to the same stripe.
+	 */
+	private final ReentrantLock[] nameStripes;
+
+	/**
+	 * Bumped after every change to the set of names, once the change can be seen in nameToParticipant.
+	 */
+	private final AtomicLong rosterVersion = new AtomicLong();
+
+	/**
+	 * The most recently built roster. It's current if its version matches rosterVersion.
+	 */
+	private volatile RosterSnapshot roster;
+
+	/**
+	 * Held while building a new roster, so that clients asking at the same time share one build.
+	 */
+	private final ReentrantLock rosterLock = new ReentrantLock();
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor. Uses four stripes per core, rounded up to a power of two.
+	 */
+	ParticipantRegistry()
+	{
+		this(4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor.
+	 * @param stripeCount The minimum number of name locks. Rounded up to a power of two.
+	 */
+	ParticipantRegistry(int stripeCount)
+	{
+		int roundedCount = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+		nameStripes = newStripes(roundedCount);
+	}
+
+	/**
+	 * @param count The number of locks
+	 * @return An array of new locks
+	 */
+	private static ReentrantLock[] newStripes(int count)
+	{
+		ReentrantLock[] stripes = new ReentrantLock[count];
+		for (int i = 0; i < count; ++i)
+		{
+			stripes[i] = new ReentrantLock();
+		}
+		return stripes;
+	}
+
+	/**
+	 * @param hash A hash code
+	 * @return The stripe index for that hash. The bits are spread so that similar hashes use different stripes.
+	 */
+	private int stripeIndex(int hash)
+	{
+		hash ^= (hash >>> 16);
+		return hash & (nameStripes.length - 1);
+	}
+
+	/**
+	 * Lock the stripes of one or more names. The stripes are taken in index order,
+	 * so any two callers locking overlapping names can't deadlock.
+	 * @param names The names to lock
+	 * @return The held stripes, to be released with unlock()
+	 */
+	HeldStripes lockNames(String... names)
+	{
+		int[] indices = new int[names.length];
+		for (int i = 0; i < names.length; ++i)
+		{
+			indices[i] = stripeIndex(names[i].hashCode());
+		}
+		return new HeldStripes(sortedStripes(nameStripes, indices));
+	}
+
+	/**
+	 * @param stripes The stripe set to pick from
+	 * @param indices The wanted stripe indices, possibly with duplicates
+	 * @return The distinct wanted stripes, in ascending index order
+	 */
+	private static ReentrantLock[] sortedStripes(ReentrantLock[] stripes, int[] indices)
+	{
+		Arrays.sort(indices);
+		ReentrantLock[] sorted = new ReentrantLock[indices.length];
+		int count = 0;
+		for (int i = 0; i < indices.length; ++i)
+		{
+			if (i == 0 || indices[i] != indices[i - 1])
+			{
+				sorted[count++] = stripes[indices[i]];
+			}
+		}
+		return Arrays.copyOf(sorted, count);
+	}
+
+	/**
+	 * Give a participant a name, if nobody else has it.
+	 * @param name The name to claim
+	 * @param participant The participant claiming it
+	 * @return true if the participant now has the name, false if it was taken
+	 */
+	boolean claimName(String name, ChatParticipant participant)
+	{
+		HeldStripes held = lockNames(name);
+		try
+		{
+			if (nameToParticipant.putIfAbsent(name, participant) != null)
+			{
+				return false;
+			}
+			participant.setName(name);
+			rosterVersion.incrementAndGet();
+			return true;
+		}
+		finally
+		{
+			held.unlock();
+		}
+	}
+
+	/**
+	 * Atomically move a participant from its current name to a new one. Only operations
+	 * on the old or new name wait for this. A participant is only ever renamed by
+	 * its own session, so its current name can't change underneath this call.
+	 * @param participant The participant being renamed
+	 * @param newName The name it wants
+	 * @return true if the participant now has the new name, false if someone else has it
+	 */
+	boolean rename(ChatParticipant participant, String newName)
+	{
+		String oldName = participant.getName();
+		HeldStripes held = lockNames(oldName, newName);
+		try
+		{
+			if (nameToParticipant.putIfAbsent(newName, participant) != null)
+			{
+				return false;
+			}
+			nameToParticipant.remove(oldName, participant);
+			participant.setName(newName);
+			rosterVersion.incrementAndGet();
+			return true;
+		}
+		finally
+		{
+			held.unlock();
+		}
+	}
+
+	/**
+	 * Atomically move a participant from its current name to the name another participant
+	 * holds. Only operations on the two names wait for this.
+	 * @param holder The participant holding the name
+	 * @param taker The participant taking it
+	 * @return true if the taker now has the name, false if the holder no longer had it
+	 */
+	boolean takeOver(ChatParticipant holder, ChatParticipant taker)
+	{
+		String name = holder.getName();
+		String oldName = taker.getName();
+		HeldStripes held = lockNames(name, oldName);
+		try
+		{
+			if (!nameToParticipant.replace(name, holder, taker))
+			{
+				return false;
+			}
+			nameToParticipant.remove(oldName, taker);
+			taker.setName(name);
+			rosterVersion.incrementAndGet();
+			return true;
+		}
+		finally
+		{
+			held.unlock();
+		}
+	}
+
+	/**
+	 * @param name A name
+	 * @return The participant with that name, or null if nobody has it
+	 */
+	ChatParticipant getParticipant(String name)
+	{
+		return nameToParticipant.get(name);
+	}
+
+	/**
+	 * Get the roster as of now. If nothing has changed since the last roster was built,
+	 * that roster is returned; otherwise one new roster is built and shared by
+	 * everyone asking for it until the next change.
+	 * @return The names in use, as of some point during this call
+	 */
+	RosterSnapshot getRoster()
+	{
+		RosterSnapshot current = roster;
+		if (current != null && current.getVersion() == rosterVersion.get())
+		{
+			return current;
+		}
+
+		rosterLock.lock();
+		try
+		{
+			// Somebody else may have built it while this thread waited
+			long version = rosterVersion.get();
+			current = roster;
+			if (current == null || current.getVersion() != version)
+			{
+				// The version is read before the names, so the names include at least every
+				// change up to that version. Any change made while copying them bumps the
+				// version again, and the next caller rebuilds.
+				current = new RosterSnapshot(version, nameToParticipant.keySet(), ServerClientCommon.ROSTER_PAGE_SIZE);
+				roster = current;
+			}
+			return current;
+		}
+		finally
+		{
+			rosterLock.unlock();
+		}
+	}
+
+	/**
+	 * @return A live view of the names in use. Iterating it never locks and
+	 * 		   reflects some, but not necessarily all, concurrent changes.
+	 */
+	Collection<String> getNames()
+	{
+		return nameToParticipant.keySet();
+	}
+
+	/**
+	 * @return The number of names in use
+	 */
+	int size()
+	{
+		return nameToParticipant.size();
+	}
+
+	/**
+	 * Record the session that serves a participant.
+	 * @param participant The participant
+	 * @param session Its session
+	 */
+	void putSession(ChatParticipant participant, S session)
+	{
+		participantToSession.put(participant, session);
+		idToParticipant.put(participant.getId(), participant);
+	}
+
+	/**
+	 * @param id A participant's id
+	 * @return The participant with that id, or null if it has left
+	 */
+	ChatParticipant getParticipantById(long id)
+	{
+		return idToParticipant.get(id);
+	}
+
+	/**
+	 * @param participant A participant
+	 * @return The session that serves it, or null if it has left
+	 */
+	S getSession(ChatParticipant participant)
+	{
+		return participantToSession.get(participant);
+	}
+
+	/**
+	 * @return A live view of every session. Iterating it never locks and
+	 * 		   reflects some, but not necessarily all, concurrent changes.
+	 */
+	Collection<S> getSessions()
+	{
+		return participantToSession.values();
+	}
+
+	/**
+	 * Forget a participant that has left: free its name and drop its session.
+	 * @param participant The participant that has left
+	 */
+	void remove(ChatParticipant participant)
+	{
+		String name = participant.getName();
+		HeldStripes held = lockNames(name);
+		try
+		{
+			if (nameToParticipant.remove(name, participant))
+			{
+				rosterVersion.incrementAndGet();
+			}
+		}
+		finally
+		{
+			held.unlock();
+		}
+		participantToSession.remove(participant);
+		idToParticipant.remove(participant.getId(), participant);
+	}
+}
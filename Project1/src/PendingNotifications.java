@@ -0,0 +1,93 @@
+/**
+ * The messages a session produces while it handles one line from its client,
+ * held back until the handling is done. Messages are encoded into frames as they're added. State changes (renames, pairing, leaving)
+ * only record who should be told what; nothing is sent until deliverAll(), which
+ * runs after the change is complete and outside of any lock. Each recipient's
+ * messages are handed over together, in the order they were added, so what any
+ * one client sees is in the same order as if each message had been sent right away.
+ * Messages to a whole room are fanned out after every message to a single recipient,
+ * in the order they were added.
+ * Only used by the one thread handling its session's client.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class PendingNotifications {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * Hands a recipient its messages.
+	 */
+	interface Deliverer
+	{
+		/**
+		 * @param recipient The client the messages are for
+		 * @param frames Its messages, oldest first. Only valid for the duration of the call.
+		 */
+		void deliver(ChatParticipant recipient, List<OutboundFrame> frames);
+	}
+
+	/**
+	 * The waiting messages of each recipient, with recipients in the order they were first sent to.
+	 */
+	private final LinkedHashMap<ChatParticipant, ArrayList<OutboundFrame>> messagesByRecipient = new LinkedHashMap<>();
+
+	/**
+	 * Sends each message to a whole room, in the order they were added.
+	 */
+	private final ArrayList<Runnable> fanOuts = new ArrayList<>();
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Hold a message for a client until deliverAll() is called.
+	 * @param recipient The client to send it to
+	 * @param msgToSend The message, exactly as the client should receive it
+	 */
+	void add(ChatParticipant recipient, String msgToSend)
+	{
+		messagesByRecipient.computeIfAbsent(recipient, r -> new ArrayList<>()).add(OutboundFrame.encode(msgToSend));
+	}
+
+	/**
+	 * Hold a message to a whole room until deliverAll() is called.
+	 * @param fanOut Sends the message to every member. Run once, after every message to a single recipient.
+	 */
+	void addFanOut(Runnable fanOut)
+	{
+		fanOuts.add(fanOut);
+	}
+
+	/**
+	 * Hand every held message to the deliverer, one call per recipient, then run every
+	 * fan-out, and forget them all.
+	 * @param deliverer Sends each recipient's messages
+	 */
+	void deliverAll(Deliverer deliverer)
+	{
+		if (!messagesByRecipient.isEmpty())
+		{
+			for (Map.Entry<ChatParticipant, ArrayList<OutboundFrame>> entry : messagesByRecipient.entrySet())
+			{
+				deliverer.deliver(entry.getKey(), entry.getValue());
+			}
+			messagesByRecipient.clear();
+		}
+		if (!fanOuts.isEmpty())
+		{
+			for (Runnable fanOut : fanOuts)
+			{
+				fanOut.run();
+			}
+			fanOuts.clear();
+		}
+	}
+}
@@ -0,0 +1,519 @@
+/**
+ * The primary's side of a hot standby (see StandbyReplica). It listens for a standby
+ * server, and keeps it up to date with who is connected: each client's name, its peer,
+ * and the token it can resume its session with after a failover.
+ * Nothing is sent from the threads handling clients. When a client's name or peer
+ * changes, its id is only marked as changed, which costs a set insert; the log's own
+ * thread later reads the client's state as it is by then and sends that. So relaying
+ * messages never waits on the standby, a client that changes many times between two
+ * writes is sent once, and since only whole states are sent, never changes, the
+ * standby ends up right however changes made by different threads interleave.
+ * The log speaks in lines, like the clients do. Names are URL encoded so that they
+ * never contain a space:
+ * CHALLENGE nonce - the primary's first line over a new connection
+ * AUTH proof - the standby's answer, which only the holder of the shared secret can give (see prove())
+ * STATE id token name peerId - a connected client, and its peer's id (-1 in listen mode)
+ * GONE id - the client has left
+ * CAUGHT_UP count - every client connected when the standby arrived has been sent
+ * PING - nothing has changed for PING_MILLIS; tells the standby the primary is alive
+ * REPLACED - another standby has connected, and is kept up to date instead
+ * The session tokens are all a client needs to take over a name after a failover, so
+ * nothing about the clients is sent until the connection has answered the challenge, and
+ * the port is only listened on at one address, loopback unless another is configured.
+ * Connections are accepted all the time, and each is challenged on a thread of its own, so
+ * neither one that never answers nor a standby that has vanished holds up the next. When a
+ * standby connects, every connected client is sent first, in batches, then the changes.
+ * Only one standby is kept up to date at a time: the newest that has answered the challenge.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+class ReplicationLog {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * Where the log reads the server's clients from. Called on the log's thread.
+	 */
+	interface Clients
+	{
+		/**
+		 * @return The ids of every connected client
+		 */
+		Collection<Long> connectedIds();
+
+		/**
+		 * @param id A client's id
+		 * @return The client's state as of now, or null if it has left
+		 */
+		ReplicatedClient describe(long id);
+	}
+
+	/**
+	 * One connected client, as the standby knows it.
+	 */
+	static final class ReplicatedClient
+	{
+		/**
+		 * The client's id on the primary.
+		 */
+		final long id;
+
+		/**
+		 * What the client resumes its session with.
+		 */
+		final String token;
+
+		/**
+		 * The client's name.
+		 */
+		final String name;
+
+		/**
+		 * The id of the client's peer, or -1 if it's in listen mode.
+		 */
+		final long peerId;
+
+		/**
+		 * Constructor.
+		 * @param id The client's id on the primary
+		 * @param token What the client resumes its session with
+		 * @param name The client's name
+		 * @param peerId The id of the client's peer, or -1 if it's in listen mode
+		 */
+		ReplicatedClient(long id, String token, String name, long peerId)
+		{
+			this.id = id;
+			this.token = token;
+			this.name = name;
+			this.peerId = peerId;
+		}
+
+		/**
+		 * @return The client as a STATE line
+		 */
+		String encode()
+		{
+			return "STATE " + id + " " + token + " " + URLEncoder.encode(name, StandardCharsets.UTF_8) + " " + peerId;
+		}
+
+		/**
+		 * @param line A STATE line
+		 * @return The client it describes
+		 * @throws IllegalArgumentException If the line isn't a STATE line
+		 */
+		static ReplicatedClient decode(String line)
+		{
+			String[] fields = line.split(" ");
+			if (fields.length != 5 || !fields[0].equals("STATE"))
+			{
+				throw new IllegalArgumentException("Not a client state: " + line);
+			}
+			return new ReplicatedClient(Long.parseLong(fields[1]), fields[2], URLDecoder.decode(fields[3], StandardCharsets.UTF_8),
+					Long.parseLong(fields[4]));
+		}
+	}
+
+	/**
+	 * How long the log waits for a change before telling the standby it's still alive.
+	 */
+	static final long PING_MILLIS = 1000;
+
+	/**
+	 * The most client states sent in one write.
+	 */
+	private static final int MAX_UPDATES_PER_WRITE = 512;
+
+	/**
+	 * How long a new connection has to answer the challenge.
+	 */
+	private static final int AUTH_TIMEOUT_MILLIS = 3000;
+
+	/**
+	 * How long a standby that has been replaced has to be told so before its connection is closed
+	 * anyway, ex: because its host vanished and writing to it is stuck.
+	 */
+	private static final long REPLACE_GRACE_MILLIS = 3 * PING_MILLIS;
+
+	/**
+	 * Put in changedOrder to wake the log's thread when a new standby has answered the challenge. Never a client's id.
+	 */
+	private static final long NEW_STANDBY = -1;
+
+	/**
+	 * Where the challenges come from. They mustn't be guessable, or an answer could be replayed.
+	 */
+	private static final SecureRandom CHALLENGE_SOURCE = new SecureRandom();
+
+	/**
+	 * The address and port the log listens for a standby on.
+	 */
+	private final InetSocketAddress address;
+
+	/**
+	 * The secret a standby must prove it knows.
+	 */
+	private final String secret;
+
+	/**
+	 * The server's log.
+	 */
+	private final ServerLogger log;
+
+	/**
+	 * The server's statistics.
+	 */
+	private final ServerMetrics metrics;
+
+	/**
+	 * Where the clients are read from. Set by start().
+	 */
+	private Clients clients;
+
+	/**
+	 * Set while a standby is being kept up to date. Changes aren't recorded without one;
+	 * a standby that connects is sent everything anyway.
+	 */
+	private volatile boolean standbyConnected = false;
+
+	/**
+	 * The ids of clients that have changed since they were last sent.
+	 */
+	private final Set<Long> changed = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The same ids, in the order they first changed, for the log's thread to wait on.
+	 */
+	private final LinkedBlockingQueue<Long> changedOrder = new LinkedBlockingQueue<>();
+
+	/**
+	 * Standbys that have answered the challenge and are waiting to be kept up to date. Only the newest is.
+	 */
+	private final LinkedBlockingQueue<Socket> arrivals = new LinkedBlockingQueue<>();
+
+	/**
+	 * The connection of the standby being kept up to date, or null.
+	 */
+	private volatile Socket currentStandby = null;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param address The address and port to listen for a standby on
+	 * @param secret The secret a standby must prove it knows
+	 * @param log The server's log
+	 * @param metrics The server's statistics
+	 */
+	ReplicationLog(InetSocketAddress address, String secret, ServerLogger log, ServerMetrics metrics)
+	{
+		this.address = address;
+		this.secret = secret;
+		this.log = log;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Start listening for a standby, and the thread that keeps it up to date, on daemon threads.
+	 * @param clients Where the clients are read from
+	 * @throws IOException If the address can't be listened on
+	 */
+	void start(Clients clients) throws IOException
+	{
+		this.clients = clients;
+		ServerSocket standbySocket = new ServerSocket();
+		standbySocket.bind(address);
+		startDaemon("chatd-replication-accept", () -> acceptStandbys(standbySocket));
+		startDaemon("chatd-replication", this::serveStandbys);
+	}
+
+	/**
+	 * @param name The thread's name
+	 * @param task What the thread runs
+	 */
+	private static void startDaemon(String name, Runnable task)
+	{
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @param secret The secret the primary and its standby were both given
+	 * @param challenge The primary's challenge
+	 * @return The answer to the challenge, which only someone who knows the secret can give:
+	 * 		   its HMAC-SHA256 keyed with the secret, in hex
+	 */
+	static String prove(String secret, String challenge)
+	{
+		try
+		{
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+			return HexFormat.of().formatHex(mac.doFinal(challenge.getBytes(StandardCharsets.UTF_8)));
+		}
+		catch (GeneralSecurityException err)
+		{
+			// Every Java platform has HmacSHA256
+			throw new IllegalStateException(err);
+		}
+	}
+
+	/**
+	 * Record that a client's name or peer has changed, or that it has connected or left.
+	 * Safe to call from any thread, and never waits.
+	 * @param id The client's id
+	 */
+	void changed(long id)
+	{
+		if (standbyConnected && changed.add(id))
+		{
+			changedOrder.offer(id);
+		}
+	}
+
+	/**
+	 * Accept every connection to the standby port, challenging each on a thread of its own.
+	 * @param standbySocket Where standbys connect
+	 */
+	private void acceptStandbys(ServerSocket standbySocket)
+	{
+		while (true)
+		{
+			try
+			{
+				Socket socket = standbySocket.accept();
+				startDaemon("chatd-replication-from-" + socket.getRemoteSocketAddress(), () -> challenge(socket));
+			}
+			catch (IOException err)
+			{
+				log.notice(ServerLogger.Level.WARN, "Error accepting a standby: " + err.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Challenge a new connection to prove it knows the secret. If it does, it replaces the standby
+	 * being kept up to date. If that standby hasn't been let go by the end of REPLACE_GRACE_MILLIS,
+	 * its connection is closed from here.
+	 * @param socket The connection
+	 */
+	private void challenge(Socket socket)
+	{
+		try
+		{
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(AUTH_TIMEOUT_MILLIS);
+			byte[] nonce = new byte[16];
+			CHALLENGE_SOURCE.nextBytes(nonce);
+			String challenge = HexFormat.of().formatHex(nonce);
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1);
+			out.write("CHALLENGE " + challenge + "\n");
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			String answer = in.readLine();
+			byte[] expected = ("AUTH " + prove(secret, challenge)).getBytes(StandardCharsets.ISO_8859_1);
+			if (answer == null || !MessageDigest.isEqual(expected, answer.getBytes(StandardCharsets.ISO_8859_1)))
+			{
+				log.notice(ServerLogger.Level.WARN, "A connection to the standby port from " + socket.getRemoteSocketAddress()
+						+ " didn't answer the challenge with the right secret");
+				ServerClientCommon.closeSocket(socket, null);
+				return;
+			}
+			socket.setSoTimeout(0);
+		}
+		catch (IOException err)
+		{
+			log.notice(ServerLogger.Level.WARN, "A connection to the standby port from " + socket.getRemoteSocketAddress()
+					+ " didn't answer the challenge: " + err.getMessage());
+			ServerClientCommon.closeSocket(socket, null);
+			return;
+		}
+
+		log.notice(ServerLogger.Level.INFO, "Standby connected from " + socket.getRemoteSocketAddress());
+		Socket replaced = currentStandby;
+		arrivals.offer(socket);
+		changedOrder.offer(NEW_STANDBY);
+		if (replaced == null)
+		{
+			return;
+		}
+		try
+		{
+			Thread.sleep(REPLACE_GRACE_MILLIS);
+		}
+		catch (InterruptedException err)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (currentStandby == replaced)
+		{
+			log.notice(ServerLogger.Level.WARN, "The standby at " + replaced.getRemoteSocketAddress() + " couldn't be told it was replaced");
+			ServerClientCommon.closeSocket(replaced, null);
+		}
+	}
+
+	/**
+	 * The log's thread: keep one standby at a time up to date, until it goes away or is replaced.
+	 */
+	private void serveStandbys()
+	{
+		while (true)
+		{
+			Socket socket;
+			try
+			{
+				socket = arrivals.take();
+			}
+			catch (InterruptedException err)
+			{
+				return;
+			}
+			// Only the newest is kept up to date
+			Socket newer;
+			while ((newer = arrivals.poll()) != null)
+			{
+				ServerClientCommon.closeSocket(socket, null);
+				socket = newer;
+			}
+			currentStandby = socket;
+			try
+			{
+				serve(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1), 64 * 1024));
+			}
+			catch (IOException err)
+			{
+				log.notice(ServerLogger.Level.WARN, "Lost the standby: " + err.getMessage());
+			}
+			finally
+			{
+				standbyConnected = false;
+				currentStandby = null;
+				changed.clear();
+				changedOrder.clear();
+				ServerClientCommon.closeSocket(socket, null);
+			}
+		}
+	}
+
+	/**
+	 * Send a new standby every connected client, then every change, until it can't be written to
+	 * or another standby replaces it.
+	 * @param out The standby's connection
+	 * @throws IOException When the standby can't be written to
+	 */
+	private void serve(Writer out) throws IOException
+	{
+		// Changes are recorded from here on, so none made while catching up is missed.
+		// Any that were already sent as part of catching up are just sent again.
+		standbyConnected = true;
+		List<Long> batch = new ArrayList<>(clients.connectedIds());
+		int caughtUp = 0;
+		for (int start = 0; start < batch.size(); start += MAX_UPDATES_PER_WRITE)
+		{
+			caughtUp += send(out, batch.subList(start, Math.min(batch.size(), start + MAX_UPDATES_PER_WRITE)));
+		}
+		out.write("CAUGHT_UP " + caughtUp + "\n");
+		out.flush();
+		log.notice(ServerLogger.Level.INFO, "Standby caught up with " + caughtUp + " clients");
+
+		while (true)
+		{
+			Long first;
+			try
+			{
+				first = changedOrder.poll(PING_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException err)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (!arrivals.isEmpty())
+			{
+				// Tell the standby, so it doesn't take the closed connection for the primary being lost
+				out.write("REPLACED\n");
+				out.flush();
+				log.notice(ServerLogger.Level.INFO, "The standby has been replaced by one that has just connected");
+				return;
+			}
+			if (first == null)
+			{
+				out.write("PING\n");
+				out.flush();
+				continue;
+			}
+			if (first == NEW_STANDBY)
+			{
+				continue;
+			}
+			batch.clear();
+			batch.add(first);
+			changedOrder.drainTo(batch, MAX_UPDATES_PER_WRITE - 1);
+			send(out, batch);
+		}
+	}
+
+	/**
+	 * Send the current state of some clients in one write.
+	 * @param out The standby's connection
+	 * @param ids The clients
+	 * @return The number of clients that were still connected
+	 * @throws IOException If the standby can't be written to
+	 */
+	private int send(Writer out, List<Long> ids) throws IOException
+	{
+		int connected = 0;
+		for (long id : ids)
+		{
+			if (id == NEW_STANDBY)
+			{
+				continue;
+			}
+			// Unmarked before it's read, so a change from here on marks it again
+			changed.remove(id);
+			ReplicatedClient client = clients.describe(id);
+			if (client == null)
+			{
+				out.write("GONE " + id + "\n");
+			}
+			else
+			{
+				out.write(client.encode());
+				out.write('\n');
+				++connected;
+			}
+		}
+		out.flush();
+		metrics.replicationBatchWritten(ids.size());
+		return connected;
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * Every chat room on the server, by name. A room is created when its first member
+ * joins and forgotten when its last member leaves. Joining and leaving the same room
+ * are atomic with respect to each other, so a client can't join a room at the
+ * instant it's being forgotten and end up in a room nobody else can find.
+ * Safe to use from any number of threads.
+ * @param <S> The type of session that sends to each member
+ * @author Bennett Sherman, bms113
+ */
+import java.util.concurrent.ConcurrentHashMap;
+
+class RoomRegistry<S> {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * Every room with at least one member.
+	 */
+	private final ConcurrentHashMap<String, ChatRoom<S>> rooms = new ConcurrentHashMap<>();
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Add a client to a room, creating the room if nobody is in it.
+	 * @param roomName The room's name
+	 * @param participant The client joining
+	 * @param session The session used to send to it
+	 * @return The room
+	 */
+	ChatRoom<S> join(String roomName, ChatParticipant participant, S session)
+	{
+		return rooms.compute(roomName, (name, room) -> {
+			ChatRoom<S> joined = (room == null) ? new ChatRoom<>(name) : room;
+			joined.addMember(participant, session);
+			return joined;
+		});
+	}
+
+	/**
+	 * Take a client out of a room, forgetting the room if it's now empty.
+	 * @param roomName The room's name
+	 * @param participant The client leaving
+	 * @return The room, or null if there is no such room. It may have just been forgotten.
+	 */
+	ChatRoom<S> leave(String roomName, ChatParticipant participant)
+	{
+		ChatRoom<S> room = rooms.get(roomName);
+		rooms.computeIfPresent(roomName, (name, current) -> {
+			current.removeMember(participant);
+			return current.isEmpty() ? null : current;
+		});
+		return room;
+	}
+
+	/**
+	 * @param roomName A room's name
+	 * @return The room, or null if nobody is in it
+	 */
+	ChatRoom<S> getRoom(String roomName)
+	{
+		return rooms.get(roomName);
+	}
+
+	/**
+	 * @return The number of rooms with at least one member
+	 */
+	int size()
+	{
+		return rooms.size();
+	}
+}
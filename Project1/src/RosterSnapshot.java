@@ -0,0 +1,201 @@
+/**
+ * An unchanging copy of every connected client's name, taken at one version of the
+ * ParticipantRegistry. The names are sorted once when the snapshot is taken, so
+ * clients whose names start with a prefix can be found with a binary search, and
+ * the roster can be handed out a page at a time. Each page of the unfiltered roster
+ * is joined into its reply text the first time it's asked for and then reused by
+ * every client that asks for it until the roster changes.
+ * Safe to share between any number of threads.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class RosterSnapshot {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * Put between names when they're joined into one line.
+	 */
+	private static final String NAME_SEPARATOR = ", ";
+
+	/**
+	 * The version of the registry that this snapshot was taken at.
+	 */
+	private final long version;
+
+	/**
+	 * Every name, in ascending order.
+	 */
+	private final String[] sortedNames;
+
+	/**
+	 * The most names in one page.
+	 */
+	private final int pageSize;
+
+	/**
+	 * The joined names of each page of the unfiltered roster, filled in as they're asked for.
+	 * Two threads may both build the same page at once; they build the same text, so either may win.
+	 */
+	private final AtomicReferenceArray<String> unfilteredPages;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param version The version of the registry that names was read at
+	 * @param names Every connected client's name
+	 * @param pageSize The most names in one page
+	 */
+	RosterSnapshot(long version, Collection<String> names, int pageSize)
+	{
+		this.version = version;
+		this.sortedNames = names.toArray(new String[0]);
+		Arrays.sort(this.sortedNames);
+		this.pageSize = pageSize;
+		this.unfilteredPages = new AtomicReferenceArray<>(pageCount(sortedNames.length));
+	}
+
+	/**
+	 * @return The version of the registry that this snapshot was taken at
+	 */
+	long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @param prefix A prefix; "" matches every name
+	 * @return The number of names starting with prefix
+	 */
+	int countMatching(String prefix)
+	{
+		int first = firstIndexAtOrAfter(prefix);
+		return endOfPrefix(prefix, first) - first;
+	}
+
+	/**
+	 * @param prefix A prefix; "" matches every name
+	 * @return The number of pages the names starting with prefix take up; at least 1
+	 */
+	int pageCountMatching(String prefix)
+	{
+		return Math.max(1, pageCount(countMatching(prefix)));
+	}
+
+	/**
+	 * @param prefix A prefix; "" matches every name
+	 * @param pageNumber Which page, starting from 1
+	 * @return The names on that page that start with prefix, in order, separated by ", ".
+	 * 		   "" if there are no such names or there is no such page.
+	 */
+	String getPage(String prefix, int pageNumber)
+	{
+		int first = firstIndexAtOrAfter(prefix);
+		int end = endOfPrefix(prefix, first);
+		int pageIndex = pageNumber - 1;
+		if (pageIndex < 0 || pageIndex >= pageCount(end - first))
+		{
+			return "";
+		}
+
+		// Only the unfiltered pages are worth keeping; filtered ones are rarely asked for twice
+		if (prefix.isEmpty())
+		{
+			String cached = unfilteredPages.get(pageIndex);
+			if (cached == null)
+			{
+				cached = join(pageIndex * pageSize, Math.min(end, (pageIndex + 1) * pageSize));
+				unfilteredPages.set(pageIndex, cached);
+			}
+			return cached;
+		}
+		int pageStart = first + pageIndex * pageSize;
+		return join(pageStart, Math.min(end, pageStart + pageSize));
+	}
+
+	/**
+	 * @param nameCount A number of names
+	 * @return The number of pages they take up
+	 */
+	private int pageCount(int nameCount)
+	{
+		return (nameCount + pageSize - 1) / pageSize;
+	}
+
+	/**
+	 * @param prefix A prefix
+	 * @return The index of the first name that sorts at or after prefix. If any names
+	 * 		   start with prefix, this is the first of them.
+	 */
+	private int firstIndexAtOrAfter(String prefix)
+	{
+		int low = 0;
+		int high = sortedNames.length;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (sortedNames[middle].compareTo(prefix) < 0)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * The names starting with a prefix are all next to each other, so the end of
+	 * them can also be found with a binary search.
+	 * @param prefix A prefix
+	 * @param first The index of the first name at or after prefix
+	 * @return The index just past the last name starting with prefix
+	 */
+	private int endOfPrefix(String prefix, int first)
+	{
+		int low = first;
+		int high = sortedNames.length;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (sortedNames[middle].startsWith(prefix))
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @param from The index of the first name
+	 * @param to The index just past the last name
+	 * @return The names, separated by ", "
+	 */
+	private String join(int from, int to)
+	{
+		StringBuilder joined = new StringBuilder();
+		for (int i = from; i < to; ++i)
+		{
+			if (i > from)
+			{
+				joined.append(NAME_SEPARATOR);
+			}
+			joined.append(sortedNames[i]);
+		}
+		return joined.toString();
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * A single event-loop thread for the selector (non-blocking) server engine.
+ * Each loop owns one Selector and serves every SocketChannel registered with it,
+ * so a handful of these loops can serve thousands of clients instead of the
+ * server needing one thread per client.
+ * All channel reads, writes and closes for a registered channel happen on this
+ * loop's thread. Other threads hand work to the loop through execute().
+ * @author Bennett Sherman, bms113
+ */
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class SelectorEventLoop implements Runnable {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * Implemented by whatever owns a channel registered with this loop.
+	 * These callbacks are always invoked on the loop's thread.
+	 */
+	interface ChannelHandler
+	{
+		/**
+		 * Called once the channel has been registered with the loop's selector.
+		 * @param key The key representing the channel's registration
+		 */
+		void onRegistered(SelectionKey key);
+
+		/**
+		 * Called when the channel has data available to read.
+		 */
+		void onReadable();
+
+		/**
+		 * Called when the channel can accept more outgoing data.
+		 */
+		void onWritable();
+	}
+
+	/**
+	 * The selector that all of this loop's channels are registered with.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Work handed to this loop by other threads, run on the next loop iteration.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The thread running this loop, used to tell if a caller is already on it.
+	 */
+	private volatile Thread loopThread;
+
+	/**
+	 * Used to identify this loop's thread in the server's log.
+	 */
+	private final int loopIndex;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param loopIndex This loop's number, used to name its thread.
+	 * @throws IOException If the selector could not be opened
+	 */
+	SelectorEventLoop(int loopIndex) throws IOException
+	{
+		this.loopIndex = loopIndex;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Starts this loop on a new thread.
+	 */
+	void start()
+	{
+		Thread thread = new Thread(this, "chatd-event-loop-" + loopIndex);
+		loopThread = thread;
+		thread.start();
+	}
+
+	/**
+	 * @return true if the caller is running on this loop's thread
+	 */
+	boolean inEventLoop()
+	{
+		return Thread.currentThread() == loopThread;
+	}
+
+	/**
+	 * Run a task on this loop's thread. Safe to call from any thread.
+	 * @param task The task to run
+	 */
+	void execute(Runnable task)
+	{
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Registers a newly accepted channel with this loop. Safe to call from any thread.
+	 * The channel is switched to non-blocking mode and registered for reads.
+	 * @param channel The newly accepted client channel
+	 * @param handler The handler to call back for events on this channel
+	 */
+	void register(SocketChannel channel, ChannelHandler handler)
+	{
+		execute(() -> {
+			try
+			{
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ, handler);
+				handler.onRegistered(key);
+			}
+			catch (IOException err)
+			{
+				ServerClientCommon.printExceptionMsgToConsole("Unable to register a client channel with event loop " + loopIndex, err);
+				ServerClientCommon.closeChannel(channel);
+			}
+		});
+	}
+
+	/**
+	 * The loop itself: wait for channel events, then run queued tasks and dispatch
+	 * the ready channels to their handlers. This runs for the lifetime of the server.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				selector.select();
+			}
+			catch (IOException err)
+			{
+				ServerClientCommon.printExceptionMsgToConsole("Event loop " + loopIndex + " failed to select. It will retry.", err);
+				continue;
+			}
+
+			runPendingTasks();
+
+			Iterator<SelectionKey> readyKeys = selector.selectedKeys().iterator();
+			while (readyKeys.hasNext())
+			{
+				SelectionKey key = readyKeys.next();
+				readyKeys.remove();
+
+				ChannelHandler handler = (ChannelHandler) key.attachment();
+				try
+				{
+					if (key.isValid() && key.isReadable())
+					{
+						handler.onReadable();
+					}
+					if (key.isValid() && key.isWritable())
+					{
+						handler.onWritable();
+					}
+				}
+				catch (CancelledKeyException err)
+				{
+					// The handler closed its channel while handling an event; nothing left to do.
+				}
+				catch (RuntimeException err)
+				{
+					// Never let one misbehaving connection take down every client on this loop
+					ServerClientCommon.printExceptionMsgToConsole("Unexpected error handling a client on event loop " + loopIndex, err);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs every task queued through execute() at the time of calling.
+	 */
+	private void runPendingTasks()
+	{
+		Runnable task;
+		while ((task = pendingTasks.poll()) != null)
+		{
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException err)
+			{
+				ServerClientCommon.printExceptionMsgToConsole("Unexpected error running a task on event loop " + loopIndex, err);
+			}
+		}
+	}
+}
@@ -5,12 +5,12 @@
  */
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 abstract class ServerClientCommon {
 	
@@ -34,6 +34,12 @@ abstract class ServerClientCommon {
 	 */
 	static final String SET_USERNAME = "SET MY NAME=";
 	
+	/**
+	 * Separates the administrator's name from the server's admin secret when the administrator
+	 * takes its name with SET_USERNAME, ex: "SET MY NAME=admin,s3cret".
+	 */
+	static final char ADMIN_SECRET_SEPARATOR = ',';
+	
 	/**
 	 * Specify the name of the peer that a client wants to connect to.
 	 * Following this command, the server will attempt to connect this
@@ -61,6 +67,20 @@ abstract class ServerClientCommon {
 	 */
 	static final String GET_LIST_OF_CONNECTED_CLIENTS = "GET CONNECTED CLIENT NAMES";
 	
+	/**
+	 * The server will return one page of the names of clients currently attached
+	 * to this server, in alphabetical order. Data is the page number, starting from 1,
+	 * optionally followed by a comma and a prefix, in which case only names
+	 * starting with the prefix are listed (ex: "2" or "1,Ben").
+	 */
+	static final String GET_PAGE_OF_CONNECTED_CLIENTS = "GET CONNECTED CLIENT NAMES PAGE=";
+	
+	/**
+	 * The most names the server sends in reply to one GET_LIST_OF_CONNECTED_CLIENTS
+	 * or GET_PAGE_OF_CONNECTED_CLIENTS message.
+	 */
+	static final int ROSTER_PAGE_SIZE = 100;
+	
 	/**
 	 * The server will return what it thinks this client's name is.
 	 */
@@ -71,6 +91,137 @@ abstract class ServerClientCommon {
 	 */
 	static final String GET_MY_PEERS_NAME = "GET MY PEER'S NAME";
 	
+	/**
+	 * The server will return its statistics (connections, messages, bytes, latency).
+	 * Only a client whose name is the server's admin name may ask.
+	 */
+	static final String GET_SERVER_STATS = "GET SERVER STATS";
+	
+	/**
+	 * Join the room named after the "=" sign, creating it if nobody is in it.
+	 */
+	static final String JOIN_ROOM = "JOIN ROOM=";
+	
+	/**
+	 * Leave the room named after the "=" sign.
+	 */
+	static final String LEAVE_ROOM = "LEAVE ROOM=";
+	
+	/**
+	 * The server will return the names of the members of a room, a page at a time.
+	 * The data after the "=" sign is "<Room name>[,<Page number>]".
+	 */
+	static final String GET_ROOM_MEMBERS = "GET ROOM MEMBERS=";
+	
+	/**
+	 * Send a message to every other member of a room the client is in.
+	 * The data after the "=" sign is "<Room name>,<Message>".
+	 */
+	static final String SEND_TO_ROOM = "SEND TO ROOM=";
+	
+	/**
+	 * Separates a room's name from what follows it in room control messages.
+	 * Room names can't contain it.
+	 */
+	static final char ROOM_NAME_TERMINATOR = ',';
+	
+	/**
+	 * Open the broadcast channel named after the "=" sign. The client that opens a
+	 * channel is the only one that may publish to it, and the channel closes when it leaves.
+	 */
+	static final String OPEN_CHANNEL = "OPEN CHANNEL=";
+	
+	/**
+	 * Close the broadcast channel named after the "=" sign. Only its publisher may close it.
+	 */
+	static final String CLOSE_CHANNEL = "CLOSE CHANNEL=";
+	
+	/**
+	 * Receive every message published to the channel named after the "=" sign from now on.
+	 */
+	static final String SUBSCRIBE_TO_CHANNEL = "SUBSCRIBE TO CHANNEL=";
+	
+	/**
+	 * Stop receiving the channel named after the "=" sign.
+	 */
+	static final String UNSUBSCRIBE_FROM_CHANNEL = "UNSUBSCRIBE FROM CHANNEL=";
+	
+	/**
+	 * Send a message to every subscriber of a channel the client opened.
+	 * The data after the "=" sign is "<Channel name>,<Message>".
+	 */
+	static final String PUBLISH_TO_CHANNEL = "PUBLISH TO CHANNEL=";
+	
+	/**
+	 * Separates a channel's name from what follows it in channel control messages.
+	 * Channel names can't contain it.
+	 */
+	static final char CHANNEL_NAME_TERMINATOR = ',';
+	
+	/**
+	 * The server will return messages from the client's conversation with another client,
+	 * if the server keeps a history. The data after the "=" sign is one of:
+	 * "<Peer name>" for the last few messages, "<Count>,<Peer name>" for the last <Count>
+	 * messages, or "<From>..<To>,<Page number>,<Peer name>" for a page of the messages
+	 * between two times, written like 2024-01-31T09:00:00Z.
+	 */
+	static final String GET_HISTORY = "GET HISTORY=";
+	
+	/**
+	 * Ask the server to compress long lines in both directions from now on. The data after the
+	 * "=" sign is the compression wanted; only LineCompression.DEFLATE is offered. A client
+	 * sends this after the server's welcome, and only compresses once the server has replied
+	 * with COMPRESSION_ENABLED. A server that doesn't compress replies with anything else.
+	 */
+	static final String ENABLE_COMPRESSION = "ENABLE COMPRESSION=";
+	
+	/**
+	 * The server's reply to ENABLE_COMPRESSION when it agrees, followed by the compression used.
+	 * Every line the server sends after this one may be compressed.
+	 */
+	static final String COMPRESSION_ENABLED = "SVR: Compression enabled: ";
+	
+	/**
+	 * Once compression is enabled, a line starting with this is compressed (see LineCompression).
+	 */
+	static final String COMPRESSED_LINE_SPECIFIER = "C0MPRESSED:";
+	
+	/**
+	 * The server will reply with SESSION_TOKEN followed by the token this client can resume
+	 * its session with, should the server fail over to its standby (see RESUME_SESSION).
+	 * ChatClient asks for it without showing the reply.
+	 */
+	static final String GET_SESSION_TOKEN = "GET SESSION TOKEN";
+	
+	/**
+	 * The server's reply to GET_SESSION_TOKEN, followed by the token.
+	 */
+	static final String SESSION_TOKEN = "SVR: Your session token is: ";
+	
+	/**
+	 * Sent to a standby that has taken over from the server this client was connected to.
+	 * The data after the "=" sign is the client's session token. The client gets back the
+	 * name it had, and its peer once that client has resumed too.
+	 */
+	static final String RESUME_SESSION = "RESUME SESSION=";
+	
+	/**
+	 * The first line the server sends a client that has just connected starts with this.
+	 */
+	static final String WELCOME_MESSAGE = "SVR: Welcome from ";
+	
+	/**
+	 * The server sends this to a client it hasn't heard from in a while. Any line from the
+	 * client keeps the connection open; ChatClient answers with HEARTBEAT without showing it.
+	 * A client that stays silent is disconnected once the server's idle timeout passes.
+	 */
+	static final String HEARTBEAT_REQUEST = "SVR: Are you still there? Send anything to stay connected.";
+	
+	/**
+	 * The answer to HEARTBEAT_REQUEST. It does nothing but show the server that the client is there.
+	 */
+	static final String HEARTBEAT = "HEARTBEAT";
+	
 	/**
 	 * As noted above, when the command "SET MY NAME=" has this
 	 * string as the parameter, the client will disconnect from
@@ -134,6 +285,22 @@ abstract class ServerClientCommon {
 		}
 	}
 	
+	/**
+	 * Close a channel used by the selector server engine. Errors are printed to the server's console.
+	 * @param channelToClose The channel to close
+	 */
+	static void closeChannel(SocketChannel channelToClose)
+	{
+		try
+		{
+			channelToClose.close();
+		}
+		catch (IOException err)
+		{
+			printExceptionMsgToConsole("Error closing a client channel", err);
+		}
+	}
+	
 	/**
 	 * @param connectionSocket The socket to generate a BufferedReader from
 	 * @param client Null if the server is calling. Otherwise, the client param's
@@ -157,25 +324,25 @@ abstract class ServerClientCommon {
 	}
 	
 	/**
-	 * @param connectionSocket The socket whose DataOutputStream is desired.
+	 * @param connectionSocket The socket whose BufferedMessageWriter is desired.
 	 * @param client Null if the server is calling. Otherwise, the client param's
 	 * 		  exception message handler is called.
-	 * @return A DataOutputStream associated with the socket parameter
+	 * @return A BufferedMessageWriter associated with the socket parameter
 	 */
-	static DataOutputStream getSocketDataOutputStream(Socket connectionSocket, ChatClient client)
+	static BufferedMessageWriter getSocketMessageWriter(Socket connectionSocket, ChatClient client)
 	{
-		DataOutputStream outStream = null;
+		BufferedMessageWriter writer = null;
 		try
 		{
-			outStream = new DataOutputStream(connectionSocket.getOutputStream());
+			writer = new BufferedMessageWriter(connectionSocket.getOutputStream());
 		}
 		catch (IOException err)
 		{
-			String otherMsg = "Unable to create a DataOutputStream for the specified socket. This application will exit.";
+			String otherMsg = "Unable to create a BufferedMessageWriter for the specified socket. This application will exit.";
 			displayExceptionMessageForClientOrServer(otherMsg, err, client);
 			System.exit(-1);
 		} 
-		return outStream;
+		return writer;
 	}
 	
 	/**
@@ -205,25 +372,23 @@ abstract class ServerClientCommon {
 	}
 	
 	/**
-	 * Send a message to the DataOutputStream parameter.
-	 * This is how inter-socket communication works. Client A messages the server through the DataOutputStream
-	 * that the server reads, intending to message client B, and the server drops a message into Client B's DataOutputStream.
+	 * Send a message to the BufferedMessageWriter parameter.
+	 * This is how inter-socket communication works. Client A messages the server through the writer
+	 * that the server reads, intending to message client B, and the server drops a message into Client B's writer.
 	 * @param msgToSend The message to send
-	 * @param stream The stream to write into.
+	 * @param writer The writer to write into. It appends the newline.
 	 * @param client Null if the server is calling. Otherwise, the client param's
 	 * 		  exception message handler is called.
 	 */
-	static void sendMessageToDataOutputStream(String msgToSend, DataOutputStream stream, ChatClient client)
+	static void sendMessageToWriter(String msgToSend, BufferedMessageWriter writer, ChatClient client)
 	{
 		try
 		{
-			// Append a newline to each of the sent messages
-			stream.writeBytes(msgToSend + "\n");
-			stream.flush();
+			writer.sendMessage(msgToSend);
 		} 
 		catch (IOException err)
 		{
-			String otherMsg = "Error encountered when writing to the DataOutputStream";
+			String otherMsg = "Error encountered when writing to the BufferedMessageWriter";
 			displayExceptionMessageForClientOrServer(otherMsg, err, client);
 			err.printStackTrace();
 		}
@@ -0,0 +1,424 @@
+/**
+ * The server's log. Threads handling clients don't format or print anything
+ * themselves: they fill in one slot of a preallocated ring buffer with the pieces
+ * of the log line (which client, which kind of line, the client's message...) and
+ * carry on. A single background thread turns the slots into text and writes
+ * them to the console in batches, so a slow terminal or pipe only slows down
+ * the log, never the clients.
+ * If the buffer is full, new lines are dropped and counted rather than waited for;
+ * the count is written to the log once there's room again.
+ * Lines below the configured level aren't recorded at all, and the chat category
+ * (every line a client sends) can be sampled so only one in N is recorded.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+class ServerLogger implements Runnable {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * How important a log line is. A logger only records lines at or above its level;
+	 * OFF records nothing.
+	 */
+	enum Level { DEBUG, INFO, WARN, ERROR, OFF };
+
+	/**
+	 * What a log line is about. Each category can be sampled separately.
+	 * SERVER - the server itself, ex: how clients are being served
+	 * CONNECTION - clients connecting and leaving
+	 * CHAT - the chat messages clients send
+	 * CONTROL - the control messages clients send
+	 * BACKPRESSURE - clients falling behind and catching up, and clients sending too fast
+	 */
+	enum Category { SERVER, CONNECTION, CHAT, CONTROL, BACKPRESSURE };
+
+	/**
+	 * The kinds of log line, each with its own fixed wording. The wording is only
+	 * put together on the logger's thread.
+	 */
+	enum Message { NOTICE, CLIENT_CONNECTED, CLIENT_LINE, CLIENT_LEFT, TIMED_OUT, WRITE_FAILED, READING_SLOWLY, CAUGHT_UP, SLOW_CONSUMER, RATE_LIMITED };
+
+	/**
+	 * One log line, not yet formatted. The slots are created once and reused.
+	 */
+	private static final class Slot
+	{
+		/**
+		 * Which kind of line it is.
+		 */
+		private Message message;
+
+		/**
+		 * The client's IP and port, or null.
+		 */
+		private String source;
+
+		/**
+		 * The client's name at the time, or null.
+		 */
+		private String name;
+
+		/**
+		 * The message text the line is about, or null.
+		 */
+		private String detail;
+
+		/**
+		 * A count the line is about, ex: queue depth.
+		 */
+		private long number;
+	}
+
+	/**
+	 * How long the logger's thread sleeps when there's nothing to write.
+	 */
+	private static final long IDLE_PARK_NANOS = 1_000_000;
+
+	/**
+	 * The most lines formatted into one write.
+	 */
+	private static final int MAX_LINES_PER_WRITE = 256;
+
+	/**
+	 * The ring buffer. Its length is a power of two.
+	 */
+	private final Slot[] slots;
+
+	/**
+	 * slots.length - 1, to turn a position into an index.
+	 */
+	private final int mask;
+
+	/**
+	 * The state of each slot, by index. For the slot at position p: p means it's free to be
+	 * written, p + 1 means it's been written and is waiting for the logger's thread, and
+	 * p + slots.length means it's been written out and is free for the next lap around the ring.
+	 */
+	private final AtomicLongArray slotSequences;
+
+	/**
+	 * The next position to be written to by a client thread.
+	 */
+	private final AtomicLong publishPosition = new AtomicLong();
+
+	/**
+	 * The next position for the logger's thread to write out. Only touched by that thread.
+	 */
+	private long consumePosition = 0;
+
+	/**
+	 * Lines dropped because the buffer was full.
+	 */
+	private final LongAdder droppedCount = new LongAdder();
+
+	/**
+	 * The dropped count last written to the log. Only touched by the logger's thread.
+	 */
+	private long reportedDroppedCount = 0;
+
+	/**
+	 * Lines below this level aren't recorded.
+	 */
+	private final Level minimumLevel;
+
+	/**
+	 * For each category, by ordinal: record one line in this many. 1 records every line.
+	 */
+	private final int[] sampleEvery = new int[Category.values().length];
+
+	/**
+	 * Where the lines are written.
+	 */
+	private final PrintStream out;
+
+	/**
+	 * The logger's thread, once started.
+	 */
+	private Thread loggerThread;
+
+	/**
+	 * Cleared to stop the logger's thread once it has written everything recorded.
+	 */
+	private volatile boolean running = true;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor. Lines are written to System.out.
+	 * @param config Supplies the level, the chat sampling and the buffer size
+	 */
+	ServerLogger(ChatServerConfig config)
+	{
+		this(config.getLogLevel(), config.getLogBufferCapacity(), System.out);
+		sampleEvery[Category.CHAT.ordinal()] = config.getChatLogSampleEvery();
+	}
+
+	/**
+	 * Constructor.
+	 * @param minimumLevel Lines below this level aren't recorded
+	 * @param capacity The most lines that can wait to be written. Rounded up to a power of two.
+	 * @param out Where the lines are written
+	 */
+	ServerLogger(Level minimumLevel, int capacity, PrintStream out)
+	{
+		int roundedCapacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.slots = new Slot[roundedCapacity];
+		this.mask = roundedCapacity - 1;
+		this.slotSequences = new AtomicLongArray(roundedCapacity);
+		for (int i = 0; i < roundedCapacity; ++i)
+		{
+			slots[i] = new Slot();
+			slotSequences.set(i, i);
+		}
+		this.minimumLevel = minimumLevel;
+		this.out = out;
+		Arrays.fill(sampleEvery, 1);
+	}
+
+	/**
+	 * Start the logger's thread. It's a daemon, and is stopped by close().
+	 */
+	void start()
+	{
+		loggerThread = new Thread(this, "chatd-logger");
+		loggerThread.setDaemon(true);
+		loggerThread.start();
+	}
+
+	/**
+	 * @param level A level
+	 * @return true if lines at that level are recorded
+	 */
+	boolean isEnabled(Level level)
+	{
+		return level.compareTo(minimumLevel) >= 0 && level != Level.OFF;
+	}
+
+	/**
+	 * Record a server notice, ex: how clients are being served.
+	 * @param level How important it is
+	 * @param text The notice, without the "SVR LOG: " in front of it
+	 */
+	void notice(Level level, String text)
+	{
+		log(level, Category.SERVER, Message.NOTICE, null, null, text, 0);
+	}
+
+	/**
+	 * Record a log line. Never waits: if the buffer is full, the line is dropped and counted.
+	 * None of the arguments are formatted here, so there's no need to build strings to pass in.
+	 * @param level How important the line is
+	 * @param category What the line is about
+	 * @param message Which kind of line it is
+	 * @param source The client's IP and port, or null
+	 * @param name The client's name, or null
+	 * @param detail The message text the line is about, or null
+	 * @param number A count the line is about (ex: queue depth), or 0
+	 */
+	void log(Level level, Category category, Message message, String source, String name, String detail, long number)
+	{
+		if (!isEnabled(level))
+		{
+			return;
+		}
+		int sampling = sampleEvery[category.ordinal()];
+		if (sampling > 1 && ThreadLocalRandom.current().nextInt(sampling) != 0)
+		{
+			return;
+		}
+
+		// Claim a position whose slot is free. If the slot is still waiting to be
+		// written out from the last lap, the buffer is full.
+		long position = publishPosition.get();
+		while (true)
+		{
+			long sequence = slotSequences.get((int) position & mask);
+			if (sequence == position)
+			{
+				if (publishPosition.compareAndSet(position, position + 1))
+				{
+					break;
+				}
+				position = publishPosition.get();
+			}
+			else if (sequence < position)
+			{
+				droppedCount.increment();
+				return;
+			}
+			else
+			{
+				// Another thread claimed this position first
+				position = publishPosition.get();
+			}
+		}
+
+		int index = (int) position & mask;
+		Slot slot = slots[index];
+		slot.message = message;
+		slot.source = source;
+		slot.name = name;
+		slot.detail = detail;
+		slot.number = number;
+		// Publishes the slot's fields to the logger's thread
+		slotSequences.set(index, position + 1);
+	}
+
+	/**
+	 * @return The number of lines dropped because the buffer was full
+	 */
+	long getDroppedCount()
+	{
+		return droppedCount.sum();
+	}
+
+	/**
+	 * Stop the logger's thread after it has written everything already recorded.
+	 */
+	void close()
+	{
+		running = false;
+		if (loggerThread != null)
+		{
+			LockSupport.unpark(loggerThread);
+			try
+			{
+				loggerThread.join();
+			}
+			catch (InterruptedException err)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The logger's thread: write out recorded lines in batches until closed.
+	 */
+	public void run()
+	{
+		StringBuilder batch = new StringBuilder(MAX_LINES_PER_WRITE * 80);
+		while (true)
+		{
+			int lineCount = formatRecordedLines(batch);
+			reportDroppedLines(batch);
+			if (batch.length() > 0)
+			{
+				out.print(batch);
+				out.flush();
+				batch.setLength(0);
+			}
+			if (lineCount == 0)
+			{
+				if (!running)
+				{
+					return;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Format up to MAX_LINES_PER_WRITE recorded lines, freeing their slots.
+	 * @param batch Receives the text
+	 * @return The number of lines formatted
+	 */
+	private int formatRecordedLines(StringBuilder batch)
+	{
+		int lineCount = 0;
+		while (lineCount < MAX_LINES_PER_WRITE)
+		{
+			int index = (int) consumePosition & mask;
+			if (slotSequences.get(index) != consumePosition + 1)
+			{
+				break;
+			}
+			Slot slot = slots[index];
+			format(slot, batch);
+			// Don't hold on to the clients' strings
+			slot.source = null;
+			slot.name = null;
+			slot.detail = null;
+			slotSequences.set(index, consumePosition + slots.length);
+			++consumePosition;
+			++lineCount;
+		}
+		return lineCount;
+	}
+
+	/**
+	 * If more lines have been dropped since the last report, add a line saying so.
+	 * @param batch Receives the text
+	 */
+	private void reportDroppedLines(StringBuilder batch)
+	{
+		long dropped = droppedCount.sum();
+		if (dropped != reportedDroppedCount)
+		{
+			batch.append("SVR LOG: ").append(dropped - reportedDroppedCount)
+				 .append(" log lines were dropped because the log buffer was full\n");
+			reportedDroppedCount = dropped;
+		}
+	}
+
+	/**
+	 * Turn one recorded line into text, in the same wording the server has always logged with.
+	 * @param slot The recorded line
+	 * @param batch Receives the text, followed by a newline
+	 */
+	private static void format(Slot slot, StringBuilder batch)
+	{
+		switch (slot.message)
+		{
+			case CLIENT_CONNECTED:
+				batch.append("SVR LOG: New client session started with IP Address:Port=").append(slot.source);
+				break;
+			case CLIENT_LINE:
+				batch.append("SVR LOG :").append(slot.source).append('(').append(slot.name).append("): ").append(slot.detail);
+				break;
+			case CLIENT_LEFT:
+				batch.append("SVR LOG: ").append(slot.source).append('(').append(slot.name).append(") has left");
+				break;
+			case TIMED_OUT:
+				batch.append("SVR LOG: ").append(slot.source).append('(').append(slot.name).append(") sent nothing for ")
+					 .append(slot.number).append(" seconds and is being disconnected");
+				break;
+			case READING_SLOWLY:
+				batch.append("SVR LOG: ").append(slot.source).append('(').append(slot.name).append(") is reading slowly; ")
+					 .append(slot.number).append(" messages are waiting to be sent to it");
+				break;
+			case WRITE_FAILED:
+				batch.append("SVR LOG: ").append(slot.source).append('(').append(slot.name).append(") can't be written to (")
+					 .append(slot.detail).append(") and is being disconnected");
+				break;
+			case SLOW_CONSUMER:
+				batch.append("SVR LOG: ").append(slot.source).append('(').append(slot.name).append(") can't keep up; ")
+					 .append(slot.number).append(" bytes are waiting to be sent to it. ").append(slot.detail);
+				break;
+			case RATE_LIMITED:
+				batch.append("SVR LOG: ").append(slot.source).append('(').append(slot.name).append(") is sending too fast; reading from it is paused for ")
+					 .append(slot.number).append(" ms");
+				break;
+			case CAUGHT_UP:
+				batch.append("SVR LOG: ").append(slot.source).append('(').append(slot.name).append(") has caught up; ")
+					 .append(slot.number).append(" messages are waiting to be sent to it");
+				break;
+			default:
+				batch.append("SVR LOG: ").append(slot.detail);
+				break;
+		}
+		batch.append('\n');
+	}
+}
@@ -0,0 +1,779 @@
+/**
+ * Counts what the server is doing: connections, messages, bytes, queued output and
+ * how long each line from a client takes to handle. Every counter is a LongAdder,
+ * which spreads concurrent updates over separate cells, so counting costs the client
+ * threads next to nothing; the cells are only added up when the metrics are read.
+ * The metrics can be read three ways: with the GET SERVER STATS control message,
+ * over JMX as a ServerMetricsMBean, and from a file that is rewritten periodically.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+class ServerMetrics implements ServerMetricsMBean {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The name the metrics are registered under over JMX.
+	 */
+	static final String MBEAN_NAME = "chatd:type=ServerMetrics";
+
+	/**
+	 * Clients that have connected.
+	 */
+	private final LongAdder connectionsAccepted = new LongAdder();
+
+	/**
+	 * Clients connected right now.
+	 */
+	private final LongAdder connectionsActive = new LongAdder();
+
+	/**
+	 * Chat messages passed to a peer.
+	 */
+	private final LongAdder messagesRelayed = new LongAdder();
+
+	/**
+	 * Chat messages echoed to listeners.
+	 */
+	private final LongAdder messagesEchoed = new LongAdder();
+
+	/**
+	 * Chat messages sent to a room.
+	 */
+	private final LongAdder roomMessages = new LongAdder();
+
+	/**
+	 * Copies of room messages handed to room members.
+	 */
+	private final LongAdder roomDeliveries = new LongAdder();
+
+	/**
+	 * Messages published to broadcast channels.
+	 */
+	private final LongAdder broadcastMessages = new LongAdder();
+
+	/**
+	 * Broadcast messages that subscribers missed because they fell too far behind.
+	 */
+	private final LongAdder broadcastMessagesMissed = new LongAdder();
+
+	/**
+	 * Messages left for clients who weren't connected.
+	 */
+	private final LongAdder mailboxMessagesLeft = new LongAdder();
+
+	/**
+	 * Messages not kept because the recipient's mailbox was full.
+	 */
+	private final LongAdder mailboxMessagesRefused = new LongAdder();
+
+	/**
+	 * Kept messages delivered to their recipients.
+	 */
+	private final LongAdder mailboxMessagesDelivered = new LongAdder();
+
+	/**
+	 * Messages relayed between peers that were kept in their history.
+	 */
+	private final LongAdder historyMessagesRecorded = new LongAdder();
+
+	/**
+	 * Connections that agreed to compress long lines.
+	 */
+	private final LongAdder connectionsCompressed = new LongAdder();
+
+	/**
+	 * Bytes not sent or received because lines were compressed.
+	 */
+	private final LongAdder compressionBytesSaved = new LongAdder();
+
+	/**
+	 * Heartbeats sent to clients that had gone quiet.
+	 */
+	private final LongAdder heartbeatsSent = new LongAdder();
+
+	/**
+	 * Connections closed because nothing was heard from the client for the idle timeout.
+	 */
+	private final LongAdder idleConnectionsClosed = new LongAdder();
+
+	/**
+	 * GET HISTORY requests answered.
+	 */
+	private final LongAdder historyReads = new LongAdder();
+
+	/**
+	 * Control messages handled.
+	 */
+	private final LongAdder controlMessages = new LongAdder();
+
+	/**
+	 * Bytes read from clients, counted as the characters of each line plus one for its terminator.
+	 */
+	private final LongAdder bytesIn = new LongAdder();
+
+	/**
+	 * Bytes written to clients.
+	 */
+	private final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Messages dropped because a client's outbound queue was full.
+	 */
+	private final LongAdder outboundMessagesDropped = new LongAdder();
+
+	/**
+	 * Of outboundMessagesDropped, those that were already queued and were dropped to make room for newer ones.
+	 */
+	private final LongAdder outboundMessagesDroppedOldest = new LongAdder();
+
+	/**
+	 * Clients that were over their queue's byte limit for longer than the grace period.
+	 */
+	private final LongAdder slowConsumers = new LongAdder();
+
+	/**
+	 * Slow consumers that were disconnected.
+	 */
+	private final LongAdder slowConsumersDisconnected = new LongAdder();
+
+	/**
+	 * Lines from clients that put them over a rate limit, so reading from them was slowed down.
+	 */
+	private final LongAdder linesOverRateLimit = new LongAdder();
+
+	/**
+	 * Times a client was told it's sending too fast.
+	 */
+	private final LongAdder rateLimitNotices = new LongAdder();
+
+	/**
+	 * Lines written to the other nodes of a cluster.
+	 */
+	private final LongAdder clusterLinesSent = new LongAdder();
+
+	/**
+	 * Writes to the other nodes of a cluster. Each carries a batch of lines.
+	 */
+	private final LongAdder clusterBatchesWritten = new LongAdder();
+
+	/**
+	 * Lines for other nodes of a cluster dropped because the link was backed up.
+	 */
+	private final LongAdder clusterLinesDropped = new LongAdder();
+
+	/**
+	 * Calls to other nodes of a cluster that weren't answered, ex: because the link was down.
+	 */
+	private final LongAdder clusterCallsFailed = new LongAdder();
+
+	/**
+	 * Client states sent to a standby server.
+	 */
+	private final LongAdder replicationUpdatesSent = new LongAdder();
+
+	/**
+	 * Writes to a standby server. Each carries a batch of client states.
+	 */
+	private final LongAdder replicationBatchesWritten = new LongAdder();
+
+	/**
+	 * Clients that resumed their sessions on this server after it took over from its primary.
+	 */
+	private final LongAdder sessionsResumed = new LongAdder();
+
+	/**
+	 * How long each line from a client took to handle.
+	 */
+	private final LatencyHistogram handlerLatency = new LatencyHistogram();
+
+	/**
+	 * Adds up the messages waiting in every client's outbound queue. Only called when the metrics are read.
+	 */
+	private volatile LongSupplier outboundQueuedCounter = () -> 0;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * A client has connected.
+	 */
+	void connectionAccepted()
+	{
+		connectionsAccepted.increment();
+		connectionsActive.increment();
+	}
+
+	/**
+	 * A client has disconnected.
+	 */
+	void connectionClosed()
+	{
+		connectionsActive.decrement();
+	}
+
+	/**
+	 * A chat message was passed to a peer.
+	 */
+	void messageRelayed()
+	{
+		messagesRelayed.increment();
+	}
+
+	/**
+	 * A chat message was echoed to a listener.
+	 */
+	void messageEchoed()
+	{
+		messagesEchoed.increment();
+	}
+
+	/**
+	 * A chat message was sent to a room.
+	 */
+	void roomMessageSent()
+	{
+		roomMessages.increment();
+	}
+
+	/**
+	 * @param count The number of room members a room message was handed to
+	 */
+	void addRoomDeliveries(long count)
+	{
+		roomDeliveries.add(count);
+	}
+
+	/**
+	 * A message was published to a broadcast channel.
+	 */
+	void broadcastMessagePublished()
+	{
+		broadcastMessages.increment();
+	}
+
+	/**
+	 * @param count The number of broadcast messages a subscriber missed
+	 */
+	void addBroadcastMessagesMissed(long count)
+	{
+		broadcastMessagesMissed.add(count);
+	}
+
+	/**
+	 * A message was left for a client who wasn't connected.
+	 */
+	void mailboxMessageLeft()
+	{
+		mailboxMessagesLeft.increment();
+	}
+
+	/**
+	 * A message wasn't kept because the recipient's mailbox was full.
+	 */
+	void mailboxMessageRefused()
+	{
+		mailboxMessagesRefused.increment();
+	}
+
+	/**
+	 * @param count The number of kept messages delivered to a recipient
+	 */
+	void addMailboxMessagesDelivered(long count)
+	{
+		mailboxMessagesDelivered.add(count);
+	}
+
+	/**
+	 * A message relayed between peers was kept in their history.
+	 */
+	void historyMessageRecorded()
+	{
+		historyMessagesRecorded.increment();
+	}
+
+	/**
+	 * A connection agreed to compress long lines.
+	 */
+	void connectionCompressed()
+	{
+		connectionsCompressed.increment();
+	}
+
+	/**
+	 * @param count The bytes saved by compressing a line. Negative if it grew.
+	 */
+	void addCompressionBytesSaved(long count)
+	{
+		compressionBytesSaved.add(count);
+	}
+
+	/**
+	 * A heartbeat was sent to a client that had gone quiet.
+	 */
+	void heartbeatSent()
+	{
+		heartbeatsSent.increment();
+	}
+
+	/**
+	 * A connection was closed because nothing was heard from the client for the idle timeout.
+	 */
+	void idleConnectionClosed()
+	{
+		idleConnectionsClosed.increment();
+	}
+
+	/**
+	 * A GET HISTORY request was answered.
+	 */
+	void historyRead()
+	{
+		historyReads.increment();
+	}
+
+	/**
+	 * A control message was handled.
+	 */
+	void controlMessageHandled()
+	{
+		controlMessages.increment();
+	}
+
+	/**
+	 * @param count The number of bytes read from a client
+	 */
+	void addBytesIn(long count)
+	{
+		bytesIn.add(count);
+	}
+
+	/**
+	 * @param count The number of bytes written to a client
+	 */
+	void addBytesOut(long count)
+	{
+		bytesOut.add(count);
+	}
+
+	/**
+	 * @param count The number of messages dropped because a client's outbound queue was full
+	 */
+	void addOutboundMessagesDropped(long count)
+	{
+		outboundMessagesDropped.add(count);
+	}
+
+	/**
+	 * @param count The number of queued messages dropped to make room for newer ones. Also counted as dropped.
+	 */
+	void addOutboundMessagesDroppedOldest(long count)
+	{
+		outboundMessagesDropped.add(count);
+		outboundMessagesDroppedOldest.add(count);
+	}
+
+	/**
+	 * A client was over its queue's byte limit for longer than the grace period.
+	 */
+	void slowConsumer()
+	{
+		slowConsumers.increment();
+	}
+
+	/**
+	 * A slow consumer was disconnected.
+	 */
+	void slowConsumerDisconnected()
+	{
+		slowConsumersDisconnected.increment();
+	}
+
+	/**
+	 * A line from a client put it over a rate limit.
+	 */
+	void lineOverRateLimit()
+	{
+		linesOverRateLimit.increment();
+	}
+
+	/**
+	 * A client was told it's sending too fast.
+	 */
+	void rateLimitNoticeSent()
+	{
+		rateLimitNotices.increment();
+	}
+
+	/**
+	 * @param lines The number of lines in a batch just written to another node of the cluster
+	 */
+	void clusterBatchWritten(int lines)
+	{
+		clusterBatchesWritten.increment();
+		clusterLinesSent.add(lines);
+	}
+
+	/**
+	 * @param count The number of lines for another node of the cluster dropped because the link was backed up
+	 */
+	void addClusterLinesDropped(int count)
+	{
+		clusterLinesDropped.add(count);
+	}
+
+	/**
+	 * A call to another node of the cluster wasn't answered.
+	 */
+	void clusterCallFailed()
+	{
+		clusterCallsFailed.increment();
+	}
+
+	/**
+	 * @param updates The number of client states in a batch just written to the standby
+	 */
+	void replicationBatchWritten(int updates)
+	{
+		replicationBatchesWritten.increment();
+		replicationUpdatesSent.add(updates);
+	}
+
+	/**
+	 * A client resumed its session from before a failover.
+	 */
+	void sessionResumed()
+	{
+		sessionsResumed.increment();
+	}
+
+	/**
+	 * @param nanos How long one line from a client took to handle
+	 */
+	void recordHandlerLatency(long nanos)
+	{
+		handlerLatency.record(nanos);
+	}
+
+	/**
+	 * @param counter Adds up the messages waiting in every client's outbound queue
+	 */
+	void setOutboundQueuedCounter(LongSupplier counter)
+	{
+		this.outboundQueuedCounter = counter;
+	}
+
+	public long getConnectionsAccepted()
+	{
+		return connectionsAccepted.sum();
+	}
+
+	public long getConnectionsActive()
+	{
+		return connectionsActive.sum();
+	}
+
+	public long getMessagesRelayed()
+	{
+		return messagesRelayed.sum();
+	}
+
+	public long getMessagesEchoed()
+	{
+		return messagesEchoed.sum();
+	}
+
+	public long getRoomMessages()
+	{
+		return roomMessages.sum();
+	}
+
+	public long getRoomDeliveries()
+	{
+		return roomDeliveries.sum();
+	}
+
+	public long getBroadcastMessages()
+	{
+		return broadcastMessages.sum();
+	}
+
+	public long getBroadcastMessagesMissed()
+	{
+		return broadcastMessagesMissed.sum();
+	}
+
+	public long getMailboxMessagesLeft()
+	{
+		return mailboxMessagesLeft.sum();
+	}
+
+	public long getMailboxMessagesRefused()
+	{
+		return mailboxMessagesRefused.sum();
+	}
+
+	public long getMailboxMessagesDelivered()
+	{
+		return mailboxMessagesDelivered.sum();
+	}
+
+	public long getHistoryMessagesRecorded()
+	{
+		return historyMessagesRecorded.sum();
+	}
+
+	public long getHistoryReads()
+	{
+		return historyReads.sum();
+	}
+
+	public long getConnectionsCompressed()
+	{
+		return connectionsCompressed.sum();
+	}
+
+	public long getCompressionBytesSaved()
+	{
+		return compressionBytesSaved.sum();
+	}
+
+	public long getHeartbeatsSent()
+	{
+		return heartbeatsSent.sum();
+	}
+
+	public long getIdleConnectionsClosed()
+	{
+		return idleConnectionsClosed.sum();
+	}
+
+	public long getControlMessages()
+	{
+		return controlMessages.sum();
+	}
+
+	public long getBytesIn()
+	{
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut()
+	{
+		return bytesOut.sum();
+	}
+
+	public long getOutboundMessagesQueued()
+	{
+		return outboundQueuedCounter.getAsLong();
+	}
+
+	public long getOutboundMessagesDropped()
+	{
+		return outboundMessagesDropped.sum();
+	}
+
+	public long getOutboundMessagesDroppedOldest()
+	{
+		return outboundMessagesDroppedOldest.sum();
+	}
+
+	public long getSlowConsumers()
+	{
+		return slowConsumers.sum();
+	}
+
+	public long getSlowConsumersDisconnected()
+	{
+		return slowConsumersDisconnected.sum();
+	}
+
+	public long getLinesOverRateLimit()
+	{
+		return linesOverRateLimit.sum();
+	}
+
+	public long getRateLimitNotices()
+	{
+		return rateLimitNotices.sum();
+	}
+
+	public long getClusterLinesSent()
+	{
+		return clusterLinesSent.sum();
+	}
+
+	public long getClusterBatchesWritten()
+	{
+		return clusterBatchesWritten.sum();
+	}
+
+	public long getClusterLinesDropped()
+	{
+		return clusterLinesDropped.sum();
+	}
+
+	public long getClusterCallsFailed()
+	{
+		return clusterCallsFailed.sum();
+	}
+
+	public long getReplicationUpdatesSent()
+	{
+		return replicationUpdatesSent.sum();
+	}
+
+	public long getReplicationBatchesWritten()
+	{
+		return replicationBatchesWritten.sum();
+	}
+
+	public long getSessionsResumed()
+	{
+		return sessionsResumed.sum();
+	}
+
+	public long getHandlerCount()
+	{
+		return handlerLatency.snapshot().getCount();
+	}
+
+	public double getHandlerLatencyP50Micros()
+	{
+		return handlerLatency.snapshot().getPercentileNanos(0.5) / 1000.0;
+	}
+
+	public double getHandlerLatencyP99Micros()
+	{
+		return handlerLatency.snapshot().getPercentileNanos(0.99) / 1000.0;
+	}
+
+	public double getHandlerLatencyMaxMicros()
+	{
+		return handlerLatency.snapshot().getMaxNanos() / 1000.0;
+	}
+
+	/**
+	 * @param separator Put between each metric, ex: "; " for one line or "\n" for one per line
+	 * @return Every metric, as "name=value" pairs
+	 */
+	String format(String separator)
+	{
+		LatencyHistogram.Snapshot latency = handlerLatency.snapshot();
+		return "connections accepted=" + getConnectionsAccepted() + separator
+				+ "connections active=" + getConnectionsActive() + separator
+				+ "messages relayed=" + getMessagesRelayed() + separator
+				+ "messages echoed=" + getMessagesEchoed() + separator
+				+ "room messages=" + getRoomMessages() + separator
+				+ "room deliveries=" + getRoomDeliveries() + separator
+				+ "broadcast messages=" + getBroadcastMessages() + separator
+				+ "broadcast messages missed=" + getBroadcastMessagesMissed() + separator
+				+ "mailbox messages left/refused/delivered=" + getMailboxMessagesLeft() + "/" + getMailboxMessagesRefused() + "/"
+				+ getMailboxMessagesDelivered() + separator
+				+ "history messages recorded=" + getHistoryMessagesRecorded() + separator
+				+ "history reads=" + getHistoryReads() + separator
+				+ "connections compressed=" + getConnectionsCompressed() + separator
+				+ "compression bytes saved=" + getCompressionBytesSaved() + separator
+				+ "heartbeats sent=" + getHeartbeatsSent() + separator
+				+ "idle connections closed=" + getIdleConnectionsClosed() + separator
+				+ "control messages=" + getControlMessages() + separator
+				+ "bytes in=" + getBytesIn() + separator
+				+ "bytes out=" + getBytesOut() + separator
+				+ "outbound messages queued=" + getOutboundMessagesQueued() + separator
+				+ "outbound messages dropped=" + getOutboundMessagesDropped() + separator
+				+ "outbound messages dropped oldest first=" + getOutboundMessagesDroppedOldest() + separator
+				+ "slow consumers=" + getSlowConsumers() + separator
+				+ "slow consumers disconnected=" + getSlowConsumersDisconnected() + separator
+				+ "lines over rate limit=" + getLinesOverRateLimit() + separator
+				+ "rate limit notices=" + getRateLimitNotices() + separator
+				+ "cluster lines sent=" + getClusterLinesSent() + separator
+				+ "cluster batches written=" + getClusterBatchesWritten() + separator
+				+ "cluster lines dropped=" + getClusterLinesDropped() + separator
+				+ "cluster calls failed=" + getClusterCallsFailed() + separator
+				+ "replication updates sent=" + getReplicationUpdatesSent() + separator
+				+ "replication batches written=" + getReplicationBatchesWritten() + separator
+				+ "sessions resumed=" + getSessionsResumed() + separator
+				+ "lines handled=" + latency.getCount() + separator
+				+ "handler latency us mean/p50/p99/max=" + latency.getMeanNanos() / 1000 + "/"
+				+ latency.getPercentileNanos(0.5) / 1000 + "/" + latency.getPercentileNanos(0.99) / 1000 + "/"
+				+ latency.getMaxNanos() / 1000;
+	}
+
+	/**
+	 * Make the metrics readable over JMX, under MBEAN_NAME. If that fails, the server carries on without it.
+	 * @param log Where to log a failure
+	 */
+	void registerMBean(ServerLogger log)
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(MBEAN_NAME));
+		}
+		catch (JMException err)
+		{
+			log.notice(ServerLogger.Level.WARN, "The metrics could not be registered over JMX: " + err);
+		}
+	}
+
+	/**
+	 * Rewrite a file with the metrics every so often, from a background thread. The file is
+	 * replaced in one step, so a reader never sees it half written.
+	 * @param file The file to write
+	 * @param intervalSeconds How often to write it
+	 * @param log Where to log failures to write
+	 */
+	void startPeriodicDump(Path file, long intervalSeconds, ServerLogger log)
+	{
+		ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "chatd-metrics-dump");
+			thread.setDaemon(true);
+			return thread;
+		});
+		dumper.scheduleAtFixedRate(() -> dumpTo(file, log), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Write the metrics, one per line, to a file.
+	 * @param file The file to replace
+	 * @param log Where to log a failure
+	 */
+	private void dumpTo(Path file, ServerLogger log)
+	{
+		Path absoluteFile = file.toAbsolutePath();
+		Path temporaryFile = absoluteFile.resolveSibling(absoluteFile.getFileName() + ".tmp");
+		String contents = "time millis=" + System.currentTimeMillis() + "\n" + format("\n") + "\n";
+		try
+		{
+			Files.write(temporaryFile, contents.getBytes(StandardCharsets.US_ASCII));
+			try
+			{
+				Files.move(temporaryFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException err)
+			{
+				Files.move(temporaryFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException err)
+		{
+			log.notice(ServerLogger.Level.WARN, "The metrics could not be written to " + absoluteFile + ": " + err);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * What the server's metrics look like over JMX (ex: in jconsole, under "chatd").
+ * JMX requires this interface to be public and named after ServerMetrics.
+ * @author Bennett Sherman, bms113
+ */
+public interface ServerMetricsMBean {
+
+	/**
+	 * @return The number of clients that have connected since the server started
+	 */
+	long getConnectionsAccepted();
+
+	/**
+	 * @return The number of clients connected right now
+	 */
+	long getConnectionsActive();
+
+	/**
+	 * @return The number of chat messages passed from one client to its peer
+	 */
+	long getMessagesRelayed();
+
+	/**
+	 * @return The number of chat messages echoed back to listeners
+	 */
+	long getMessagesEchoed();
+
+	/**
+	 * @return The number of chat messages sent to rooms
+	 */
+	long getRoomMessages();
+
+	/**
+	 * @return The number of copies of room messages handed to room members
+	 */
+	long getRoomDeliveries();
+
+	/**
+	 * @return The number of messages published to broadcast channels
+	 */
+	long getBroadcastMessages();
+
+	/**
+	 * @return The number of broadcast messages subscribers missed because they fell too far behind
+	 */
+	long getBroadcastMessagesMissed();
+
+	/**
+	 * @return The number of messages left for clients who weren't connected
+	 */
+	long getMailboxMessagesLeft();
+
+	/**
+	 * @return The number of messages not kept because the recipient's mailbox was full
+	 */
+	long getMailboxMessagesRefused();
+
+	/**
+	 * @return The number of kept messages delivered to their recipients
+	 */
+	long getMailboxMessagesDelivered();
+
+	/**
+	 * @return The number of messages relayed between peers that were kept in their history
+	 */
+	long getHistoryMessagesRecorded();
+
+	/**
+	 * @return The number of GET HISTORY requests answered
+	 */
+	long getHistoryReads();
+
+	/**
+	 * @return The number of connections that agreed to compress long lines
+	 */
+	long getConnectionsCompressed();
+
+	/**
+	 * @return The number of bytes not sent or received because lines were compressed
+	 */
+	long getCompressionBytesSaved();
+
+	/**
+	 * @return The number of heartbeats sent to clients that had gone quiet
+	 */
+	long getHeartbeatsSent();
+
+	/**
+	 * @return The number of connections closed because nothing was heard from the client for the idle timeout
+	 */
+	long getIdleConnectionsClosed();
+
+	/**
+	 * @return The number of control messages handled
+	 */
+	long getControlMessages();
+
+	/**
+	 * @return The number of bytes read from clients
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return The number of bytes written to clients
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return The number of messages waiting in every client's outbound queue, right now
+	 */
+	long getOutboundMessagesQueued();
+
+	/**
+	 * @return The number of messages dropped because a client's outbound queue was full
+	 */
+	long getOutboundMessagesDropped();
+
+	/**
+	 * @return The number of the dropped messages that were already queued, and were dropped to make room for newer ones
+	 */
+	long getOutboundMessagesDroppedOldest();
+
+	/**
+	 * @return The number of clients that were over their queue's byte limit for longer than the grace period
+	 */
+	long getSlowConsumers();
+
+	/**
+	 * @return The number of slow consumers that were disconnected
+	 */
+	long getSlowConsumersDisconnected();
+
+	/**
+	 * @return The number of lines from clients that put them over a rate limit, so reading from them was slowed down
+	 */
+	long getLinesOverRateLimit();
+
+	/**
+	 * @return The number of times a client was told it's sending too fast
+	 */
+	long getRateLimitNotices();
+
+	/**
+	 * @return The number of lines written to the other nodes of a cluster
+	 */
+	long getClusterLinesSent();
+
+	/**
+	 * @return The number of writes to the other nodes of a cluster, each carrying a batch of lines
+	 */
+	long getClusterBatchesWritten();
+
+	/**
+	 * @return The number of lines for other nodes of a cluster dropped because the link was backed up
+	 */
+	long getClusterLinesDropped();
+
+	/**
+	 * @return The number of calls to other nodes of a cluster that weren't answered
+	 */
+	long getClusterCallsFailed();
+
+	/**
+	 * @return The number of client states sent to a standby server
+	 */
+	long getReplicationUpdatesSent();
+
+	/**
+	 * @return The number of writes to a standby server, each carrying a batch of client states
+	 */
+	long getReplicationBatchesWritten();
+
+	/**
+	 * @return The number of clients that resumed their sessions after this server took over from its primary
+	 */
+	long getSessionsResumed();
+
+	/**
+	 * @return The number of lines from clients whose handling was timed
+	 */
+	long getHandlerCount();
+
+	/**
+	 * @return The median time to handle a line from a client, in microseconds
+	 */
+	double getHandlerLatencyP50Micros();
+
+	/**
+	 * @return The 99th percentile time to handle a line from a client, in microseconds
+	 */
+	double getHandlerLatencyP99Micros();
+
+	/**
+	 * @return The longest time to handle a line from a client, in microseconds
+	 */
+	double getHandlerLatencyMaxMicros();
+}
@@ -0,0 +1,186 @@
+/**
+ * The standby's side of a hot standby (see ReplicationLog). A server started as a standby
+ * serves no clients. It connects to its primary and keeps a copy of the primary's clients:
+ * their names, their peers, and the tokens they resume their sessions with. Once the
+ * primary is lost, because its connection closed or it went silent for PRIMARY_TIMEOUT_MILLIS,
+ * the standby takes over: it opens its own port, and holds each of those names for a while
+ * so the primary's clients can reconnect to it and resume where they were.
+ * The standby proves it was given the primary's secret before it's sent anything. Until it
+ * has caught up with every one of the primary's clients, losing the primary only means trying
+ * again, since it hasn't got a full copy to take over with; so a standby can be started before
+ * its primary, and one whose connection the primary hasn't got to yet never takes over. If the
+ * primary replaces it with another standby, it stops standing by. Note that once caught up,
+ * the standby can't tell a primary that died from one it can't reach, so a network split
+ * leaves two servers that both serve clients.
+ * @author Bennett Sherman, bms113
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+class StandbyReplica {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * The primary is lost if nothing comes from it for this long. It's sent something at
+	 * least every ReplicationLog.PING_MILLIS.
+	 */
+	private static final int PRIMARY_TIMEOUT_MILLIS = (int) (3 * ReplicationLog.PING_MILLIS);
+
+	/**
+	 * How long to wait between attempts to reach the primary.
+	 */
+	private static final long RECONNECT_MILLIS = 1000;
+
+	/**
+	 * Where the primary listens for its standby.
+	 */
+	private final InetSocketAddress primary;
+
+	/**
+	 * The secret the primary challenges its standby to prove it knows.
+	 */
+	private final String secret;
+
+	/**
+	 * The server's log.
+	 */
+	private final ServerLogger log;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param primary Where the primary listens for its standby
+	 * @param secret The secret the primary challenges its standby to prove it knows
+	 * @param log The server's log
+	 */
+	StandbyReplica(InetSocketAddress primary, String secret, ServerLogger log)
+	{
+		this.primary = primary;
+		this.secret = secret;
+		this.log = log;
+	}
+
+	/**
+	 * Keep up with the primary until it's lost.
+	 * @return The primary's clients when it was lost, by their ids on the primary, or null if
+	 * 		   the primary replaced this standby with another
+	 */
+	Map<Long, ReplicationLog.ReplicatedClient> awaitFailover()
+	{
+		while (true)
+		{
+			Socket socket = new Socket();
+			try
+			{
+				socket.connect(primary, PRIMARY_TIMEOUT_MILLIS);
+			}
+			catch (IOException err)
+			{
+				// Not up yet
+				ServerClientCommon.closeSocket(socket, null);
+				sleep(RECONNECT_MILLIS);
+				continue;
+			}
+
+			log.notice(ServerLogger.Level.INFO, "Standing by for the primary at " + primary);
+			// The primary sends every client again over each new connection
+			Map<Long, ReplicationLog.ReplicatedClient> clients = new HashMap<>();
+			boolean caughtUp = false;
+			try
+			{
+				socket.setSoTimeout(PRIMARY_TIMEOUT_MILLIS);
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1), 64 * 1024);
+				String challenge = in.readLine();
+				if (challenge == null || !challenge.startsWith("CHALLENGE "))
+				{
+					throw new IOException("it didn't challenge this standby");
+				}
+				Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1);
+				out.write("AUTH " + ReplicationLog.prove(secret, challenge.substring("CHALLENGE ".length())) + "\n");
+				out.flush();
+
+				String line;
+				while ((line = in.readLine()) != null)
+				{
+					if (line.equals("REPLACED"))
+					{
+						log.notice(ServerLogger.Level.WARN, "The primary is keeping another standby up to date instead of this one");
+						return null;
+					}
+					caughtUp |= line.startsWith("CAUGHT_UP ");
+					apply(line, clients);
+				}
+				log.notice(ServerLogger.Level.WARN, "The primary closed its connection");
+			}
+			catch (IOException err)
+			{
+				log.notice(ServerLogger.Level.WARN, "Lost the primary: " + err.getMessage());
+			}
+			finally
+			{
+				ServerClientCommon.closeSocket(socket, null);
+			}
+			if (!caughtUp)
+			{
+				// Refused, or lost before this standby had all of the primary's clients; either way, there's nothing to take over with
+				log.notice(ServerLogger.Level.WARN, "Not caught up with the primary yet, so trying again rather than taking over");
+				sleep(RECONNECT_MILLIS);
+				continue;
+			}
+			log.notice(ServerLogger.Level.WARN, "Taking over from the primary, with " + clients.size() + " clients to resume");
+			return clients;
+		}
+	}
+
+	/**
+	 * Apply one line from the primary to the copy of its clients.
+	 * @param line The line
+	 * @param clients The copy
+	 */
+	private void apply(String line, Map<Long, ReplicationLog.ReplicatedClient> clients)
+	{
+		if (line.startsWith("STATE "))
+		{
+			ReplicationLog.ReplicatedClient client = ReplicationLog.ReplicatedClient.decode(line);
+			clients.put(client.id, client);
+		}
+		else if (line.startsWith("GONE "))
+		{
+			clients.remove(Long.parseLong(line.substring("GONE ".length())));
+		}
+		else if (line.startsWith("CAUGHT_UP "))
+		{
+			log.notice(ServerLogger.Level.INFO, "Caught up with the primary's " + clients.size() + " clients");
+		}
+		// Anything else is a PING
+	}
+
+	/**
+	 * @param millis How long to sleep
+	 */
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException err)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
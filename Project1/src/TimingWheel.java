@@ -0,0 +1,242 @@
+/**
+ * A hashed timing wheel: runs tasks at roughly their deadlines without a timer or a
+ * scheduled future per task. The wheel is a ring of slots, each covering one tick; a
+ * task is put in the slot its deadline falls in, along with the number of whole turns
+ * of the wheel still to go. One thread advances the wheel a tick at a time and only
+ * looks at the tasks in the slot it reaches, so 100,000 tasks cost nothing until
+ * they're due, and adding one is a queue insert. A task that's run can ask to be run
+ * again, which reuses its place in the wheel instead of scheduling anew; that's how the
+ * server's idle sessions are checked (see ChatServer.ClientSession.checkIdle()).
+ * Deadlines are only kept to the nearest tick, and a task may run up to a tick late.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+class TimingWheel implements Runnable {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * Something to run once its deadline has passed.
+	 */
+	interface Task
+	{
+		/**
+		 * Called on the wheel's thread once the task's deadline has passed. Must not block.
+		 * @param nowNanos The time, from System.nanoTime()
+		 * @return The nanoseconds until the task should be run again, or a negative number to not run it again
+		 */
+		long onDeadline(long nowNanos);
+	}
+
+	/**
+	 * A task's place in the wheel. Only touched by the wheel's thread once it has been added.
+	 */
+	private static final class Entry
+	{
+		/**
+		 * The task to run.
+		 */
+		final Task task;
+
+		/**
+		 * When the task should run, from System.nanoTime().
+		 */
+		long deadlineNanos;
+
+		/**
+		 * The number of times the wheel must pass the entry's slot before the task is due.
+		 */
+		long remainingRounds;
+
+		/**
+		 * The next entry in the same slot.
+		 */
+		Entry next;
+
+		/**
+		 * Constructor.
+		 * @param task The task to run
+		 * @param deadlineNanos When the task should run, from System.nanoTime()
+		 */
+		Entry(Task task, long deadlineNanos)
+		{
+			this.task = task;
+			this.deadlineNanos = deadlineNanos;
+		}
+	}
+
+	/**
+	 * The first entry in each slot. Only touched by the wheel's thread.
+	 */
+	private final Entry[] slots;
+
+	/**
+	 * slots.length - 1, which picks a tick's slot since the number of slots is a power of two.
+	 */
+	private final int slotMask;
+
+	/**
+	 * The length of one tick.
+	 */
+	private final long tickNanos;
+
+	/**
+	 * Entries added by schedule() and not yet put in their slot by the wheel's thread.
+	 */
+	private final ConcurrentLinkedQueue<Entry> added = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The time the wheel started, from System.nanoTime(). Tick n ends at startNanos + (n + 1) * tickNanos.
+	 */
+	private long startNanos;
+
+	/**
+	 * The next tick to be run. Only touched by the wheel's thread.
+	 */
+	private long currentTick = 0;
+
+	/**
+	 * Names the wheel's thread.
+	 */
+	private final String threadName;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor.
+	 * @param threadName The name of the wheel's thread
+	 * @param tickMillis The length of one tick. Deadlines are kept to the nearest tick. Must be at least 1.
+	 * @param slotCount The number of slots. Rounded up to a power of two. Deadlines further away than a turn of the
+	 * 		  wheel (slotCount ticks) cost nothing extra, they're just passed over that many more times.
+	 */
+	TimingWheel(String threadName, long tickMillis, int slotCount)
+	{
+		if (tickMillis < 1 || slotCount < 1)
+		{
+			throw new IllegalArgumentException("A timing wheel needs at least one slot, and a tick of at least 1 ms");
+		}
+		this.threadName = threadName;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int powerOfTwo = Integer.highestOneBit(slotCount);
+		this.slots = new Entry[(powerOfTwo == slotCount) ? slotCount : powerOfTwo << 1];
+		this.slotMask = slots.length - 1;
+	}
+
+	/**
+	 * Start the wheel's thread. It's a daemon, and runs for the lifetime of the server.
+	 */
+	void start()
+	{
+		startNanos = System.nanoTime();
+		Thread thread = new Thread(this, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Have a task run once a delay has passed. Safe to call from any thread, and never waits.
+	 * @param task The task
+	 * @param delayNanos How long from now the task should run
+	 */
+	void schedule(Task task, long delayNanos)
+	{
+		added.add(new Entry(task, System.nanoTime() + delayNanos));
+	}
+
+	/**
+	 * The wheel's thread: wait for each tick to end, then run the tasks whose deadlines it covers.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			long tickEndNanos = startNanos + (currentTick + 1) * tickNanos;
+			long waitNanos = tickEndNanos - System.nanoTime();
+			if (waitNanos > 0)
+			{
+				try
+				{
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+				}
+				catch (InterruptedException err)
+				{
+					return;
+				}
+				continue;
+			}
+
+			Entry entry;
+			while ((entry = added.poll()) != null)
+			{
+				place(entry, currentTick);
+			}
+			runTick(System.nanoTime());
+			++currentTick;
+		}
+	}
+
+	/**
+	 * Run the tasks due in the current tick's slot, and pass over the rest.
+	 * @param nowNanos The time, from System.nanoTime()
+	 */
+	private void runTick(long nowNanos)
+	{
+		int slot = (int) (currentTick & slotMask);
+		Entry entry = slots[slot];
+		slots[slot] = null;
+		while (entry != null)
+		{
+			Entry next = entry.next;
+			entry.next = null;
+			if (entry.remainingRounds > 0)
+			{
+				--entry.remainingRounds;
+				entry.next = slots[slot];
+				slots[slot] = entry;
+			}
+			else
+			{
+				long delayNanos = -1;
+				try
+				{
+					delayNanos = entry.task.onDeadline(nowNanos);
+				}
+				catch (RuntimeException err)
+				{
+					// One broken task mustn't stop every other one from running
+					ServerClientCommon.printExceptionMsgToConsole("Unexpected error running a task on " + threadName, err);
+				}
+				if (delayNanos >= 0)
+				{
+					entry.deadlineNanos = nowNanos + delayNanos;
+					// Never back into the slot being run
+					place(entry, currentTick + 1);
+				}
+			}
+			entry = next;
+		}
+	}
+
+	/**
+	 * Put an entry in the slot its deadline falls in.
+	 * @param entry The entry
+	 * @param earliestTick The earliest tick the entry may run in
+	 */
+	private void place(Entry entry, long earliestTick)
+	{
+		long elapsedNanos = entry.deadlineNanos - startNanos;
+		// The tick during which the deadline passes, or the earliest tick if it already has
+		long tick = Math.max(earliestTick, (elapsedNanos <= 0) ? 0 : elapsedNanos / tickNanos);
+		// The slot is next reached at earliestTick or later, and once more each turn after that
+		entry.remainingRounds = (tick - earliestTick) / slots.length;
+		int slot = (int) (tick & slotMask);
+		entry.next = slots[slot];
+		slots[slot] = entry;
+	}
+}
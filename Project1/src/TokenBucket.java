@@ -0,0 +1,85 @@
+/**
+ * A rate limit: a bucket that refills at a fixed number of tokens per second, up to a
+ * second's worth. Rather than counting tokens, the bucket keeps one number, the time at
+ * which it would be full again, in an AtomicLong. Taking tokens pushes that time later,
+ * so charging the bucket is a read and a compare-and-set, with no lock and nothing to
+ * refill on a timer; it costs next to nothing on the path every chat line takes.
+ * Tokens are always taken, even past what the bucket holds. The caller is told how long
+ * it must wait before it's within the limit again, which is how the server slows down
+ * reading from a client that sends too fast instead of dropping what it sent.
+ * @author Bennett Sherman, bms113
+ */
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class TokenBucket {
+
+	///////////////////
+	// CLASS MEMBERS //
+	///////////////////
+
+	/**
+	 * How long it takes the bucket to regain one token. 0 for a bucket with no limit.
+	 */
+	private final long nanosPerToken;
+
+	/**
+	 * How long it takes an empty bucket to fill, which is how far the full time may be
+	 * ahead of now before the bucket's over its limit.
+	 */
+	private final long capacityNanos;
+
+	/**
+	 * The time, from System.nanoTime(), at which the bucket would be full again.
+	 * Any time in the past means it's full now.
+	 */
+	private final AtomicLong fullAtNanos;
+
+	/////////////////////
+	// CLASS FUNCTIONS //
+	/////////////////////
+
+	/**
+	 * Constructor. The bucket starts full.
+	 * @param tokensPerSecond How many tokens the bucket regains each second, and the most it holds.
+	 * 		  0 for no limit. Must not be negative.
+	 */
+	TokenBucket(long tokensPerSecond)
+	{
+		if (tokensPerSecond < 0)
+		{
+			throw new IllegalArgumentException("A rate limit can't be negative");
+		}
+		// Past a billion a second a token would take under a nanosecond, which is as good as no limit
+		this.nanosPerToken = (tokensPerSecond == 0) ? 0 : Math.max(1, TimeUnit.SECONDS.toNanos(1) / tokensPerSecond);
+		this.capacityNanos = TimeUnit.SECONDS.toNanos(1);
+		this.fullAtNanos = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Take tokens from the bucket, whether or not it has them. Safe to call from any thread, and never waits.
+	 * @param tokens The number of tokens to take
+	 * @param nowNanos The time, from System.nanoTime()
+	 * @return 0 if the bucket had the tokens, otherwise the nanoseconds until it's back within its limit
+	 */
+	long charge(long tokens, long nowNanos)
+	{
+		if (nanosPerToken == 0)
+		{
+			return 0;
+		}
+
+		long costNanos = tokens * nanosPerToken;
+		long fullAt;
+		long newFullAt;
+		do
+		{
+			fullAt = fullAtNanos.get();
+			// A bucket that's been full since some time ago is only as full as now
+			newFullAt = ((fullAt - nowNanos > 0) ? fullAt : nowNanos) + costNanos;
+		} while (!fullAtNanos.compareAndSet(fullAt, newFullAt));
+
+		long overNanos = newFullAt - nowNanos - capacityNanos;
+		return (overNanos > 0) ? overNanos : 0;
+	}
+}
@@ -1,37 +1,264 @@
 /**
  * This class is used to start the server as per the requirements.
  * To start the server, execute "java chatd port <port num>"
+ * Optional settings may follow the port number as "-option value" pairs:
+ * -engine thread|virtual|selector	Serve clients with one platform thread each (the default),
+ * 							one virtual thread each (Java 21+) or with event loops
+ * -loops <count>			The number of event loops used by the selector engine
+ * -acceptors <count>		The number of threads accepting new connections
+ * -outqueue <count>		The most messages that may wait to be written to one client
+ * -broadcastring <count>	The most messages each broadcast channel keeps for subscribers that fall behind
+ * -slowbytes <bytes>		The most bytes that may wait to be written to one client before it's falling behind; 0 for no limit
+ * -slowgrace <milliseconds>	How long a client may be over -slowbytes before it's a slow consumer
+ * -slowpolicy dropoldest|dropnewest|disconnect	What's done about a slow consumer
+ * -msgrate <count>			The most chat messages each client may send per second; 0 for no limit
+ * -byterate <bytes>		The most bytes each client may send per second; 0 for no limit
+ * -controlrate <count>		The most control messages each client may send per second; 0 for no limit
+ * -loglevel debug|info|warn|error|off	Log lines below this level aren't logged
+ * -logsample <n>			Log only one in n chat messages from clients
+ * -logbuffer <count>		The most log lines that may wait to be written before lines are dropped
+ * -admin <name>			The client with this name may request the server's statistics
+ * -adminsecret <secret>	The secret a client must send with the admin name to take it; otherwise only local clients may
+ * -statsfile <path>		Periodically write the server's statistics to this file
+ * -statsinterval <seconds>	How often to write the statistics file
+ * -mailbox <directory>		Keep messages for clients who aren't connected in this directory
+ * -mailboxsegment <bytes>	The size of each of the mailbox's files
+ * -compressthreshold <bytes>	Compress lines at least this long to clients that ask; 0 refuses
+ * -idletimeout <seconds>	Disconnect clients that send nothing for this long; 0, the default, never does
+ * -heartbeat <seconds>		Send a heartbeat to clients that send nothing for this long; 0, the default, sends none
+ * -history <directory>		Keep the messages relayed between peers in this directory
+ * -historysegment <bytes>	The size past which a conversation's history starts a new file
+ * -cluster <host:port,...>	Run as one node of a cluster; the address each node listens for the others on, in node order
+ * -node <id>				This server's place in the -cluster list, starting from 0
+ * -replicateport <port>	Listen for a hot standby on this port, and keep it up to date with the clients
+ * -replicatebind <address>	The address to listen for a hot standby on; loopback unless given
+ * -replicatesecret <secret>	The secret a hot standby must prove it knows; needed by the primary and its standby
+ * -standbyof <host:port>	Run as a hot standby of the primary whose -replicateport this is, taking over if it's lost
+ * -resumegrace <seconds>	How long the primary's clients have to resume their sessions after a standby takes over
  */
 public class chatd {
 
+	/**
+	 * Printed when the command line can't be understood.
+	 */
+	private static final String USAGE = "The program can only be started with \"java chatd -port <port num, 50048 for me>\""
+			+ " optionally followed by \"-engine thread|virtual|selector\", \"-loops <count>\", \"-acceptors <count>\", \"-outqueue <count>\","
+			+ " \"-broadcastring <count>\", \"-slowbytes <bytes>\", \"-slowgrace <milliseconds>\","
+			+ " \"-slowpolicy dropoldest|dropnewest|disconnect\", \"-msgrate <count>\", \"-byterate <bytes>\", \"-controlrate <count>\","
+			+ " \"-compressthreshold <bytes>\", \"-idletimeout <seconds>\", \"-heartbeat <seconds>\","
+			+ " \"-loglevel debug|info|warn|error|off\", \"-logsample <n>\", \"-logbuffer <count>\", \"-admin <name>\", \"-adminsecret <secret>\","
+			+ " \"-statsfile <path>\", \"-statsinterval <seconds>\", \"-mailbox <directory>\", \"-mailboxsegment <bytes>\","
+			+ " \"-history <directory>\", \"-historysegment <bytes>\", \"-cluster <host:port,...>\", \"-node <id>\","
+			+ " \"-replicateport <port>\", \"-replicatebind <address>\", \"-replicatesecret <secret>\", \"-standbyof <host:port>\""
+			+ " and \"-resumegrace <seconds>\"";
+
 	public static void main(String[] args) {
 		// args[0] is the string "-port"
 		// args[1] is the port number
-		
-		if (args.length != 2)
+		// Any further arguments are "-option value" pairs
+
+		if (args.length < 2 || args.length % 2 != 0)
 		{
-			System.err.println("Invalid arguments specified. The program can only be started with \"java chatd -port <port num, 50048 for me>\"");
+			System.err.println("Invalid arguments specified. " + USAGE);
 			System.exit(-1);
 		}
-		// The port number
-		int portNum = ServerClientCommon.DEFAULT_SERVER_PORT;
-		
+
+		ChatServerConfig config = new ChatServerConfig();
+
 		// Try to parse the port number. If it's bad,
 		// tell the user to try again.
 		try
 		{
-			portNum = Integer.parseInt(args[1]);	
-		}		
+			config.setPortNumber(Integer.parseInt(args[1]));
+		}
 		catch (NumberFormatException err)
 		{
 			System.err.println("The input is invalid. The port number could not be parsed. Restart the program and try again.");
 			System.exit(-1);
 		}
-		
-		// Create a ChatServer instance with the port number in arg[1]
-		ChatServer chatServer = new ChatServer(portNum);
-		
+
+		// Parse the optional settings
+		for (int i = 2; i < args.length; i += 2)
+		{
+			try
+			{
+				applyOption(config, args[i], args[i + 1]);
+			}
+			catch (IllegalArgumentException err)
+			{
+				System.err.println("The option \"" + args[i] + " " + args[i + 1] + "\" is invalid: " + err.getMessage() + "\n" + USAGE);
+				System.exit(-1);
+			}
+		}
+
+		// The node id can only be checked once every option is known
+		if (config.getClusterNodes() != null && config.getNodeId() >= config.getClusterNodes().size())
+		{
+			System.err.println("The node id " + config.getNodeId() + " isn't in the -cluster list, which has "
+					+ config.getClusterNodes().size() + " nodes.\n" + USAGE);
+			System.exit(-1);
+		}
+		// Only single servers can be replicated so far; a cluster node's clients are partly kept by other nodes
+		if (config.getClusterNodes() != null && (config.getStandbyOf() != null || config.getReplicationPort() != 0))
+		{
+			System.err.println("A node of a cluster can't have a standby, or be one.\n" + USAGE);
+			System.exit(-1);
+		}
+		// The standby is sent every client's session token, so it has to prove it's the one meant to have them
+		if ((config.getStandbyOf() != null || config.getReplicationPort() != 0) && config.getReplicationSecret() == null)
+		{
+			System.err.println("A primary and its standby must both be given the same -replicatesecret.\n" + USAGE);
+			System.exit(-1);
+		}
+
+		// Create a ChatServer instance with the parsed settings
+		ChatServer chatServer = new ChatServer(config);
+
 		// Start the server
 		chatServer.startServer();
 	}
+
+	/**
+	 * Apply one "-option value" pair from the command line to the config.
+	 * @param config The config to update
+	 * @param option The option's name, including the leading "-"
+	 * @param value The option's value
+	 * @throws IllegalArgumentException If the option or its value is invalid
+	 */
+	private static void applyOption(ChatServerConfig config, String option, String value)
+	{
+		switch (option)
+		{
+			case "-engine":
+				if (value.equals("thread"))
+				{
+					config.setEngine(ChatServerConfig.ServerEngine.THREAD_PER_CLIENT);
+				}
+				else if (value.equals("virtual"))
+				{
+					config.setEngine(ChatServerConfig.ServerEngine.VIRTUAL_THREAD_PER_CLIENT);
+				}
+				else if (value.equals("selector"))
+				{
+					config.setEngine(ChatServerConfig.ServerEngine.SELECTOR);
+				}
+				else
+				{
+					throw new IllegalArgumentException("the engine must be \"thread\", \"virtual\" or \"selector\"");
+				}
+				break;
+			case "-loops":
+				// NumberFormatException is an IllegalArgumentException
+				config.setEventLoopCount(Integer.parseInt(value));
+				break;
+			case "-acceptors":
+				config.setAcceptorCount(Integer.parseInt(value));
+				break;
+			case "-outqueue":
+				config.setOutboundQueueCapacity(Integer.parseInt(value));
+				break;
+			case "-broadcastring":
+				config.setBroadcastRingCapacity(Integer.parseInt(value));
+				break;
+			case "-loglevel":
+				// valueOf() throws an IllegalArgumentException for unknown levels
+				config.setLogLevel(ServerLogger.Level.valueOf(value.toUpperCase()));
+				break;
+			case "-logsample":
+				config.setChatLogSampleEvery(Integer.parseInt(value));
+				break;
+			case "-logbuffer":
+				config.setLogBufferCapacity(Integer.parseInt(value));
+				break;
+			case "-admin":
+				config.setAdminName(value);
+				break;
+			case "-adminsecret":
+				config.setAdminSecret(value);
+				break;
+			case "-statsfile":
+				config.setStatsFile(value);
+				break;
+			case "-statsinterval":
+				config.setStatsIntervalSeconds(Integer.parseInt(value));
+				break;
+			case "-mailbox":
+				config.setMailboxDirectory(value);
+				break;
+			case "-mailboxsegment":
+				config.setMailboxSegmentSize(Integer.parseInt(value));
+				break;
+			case "-compressthreshold":
+				config.setCompressionThreshold(Integer.parseInt(value));
+				break;
+			case "-slowbytes":
+				config.setSlowConsumerBytes(Integer.parseInt(value));
+				break;
+			case "-slowgrace":
+				config.setSlowConsumerGraceMillis(Integer.parseInt(value));
+				break;
+			case "-slowpolicy":
+				if (value.equals("dropoldest"))
+				{
+					config.setSlowConsumerPolicy(OutboundQueue.SlowConsumerPolicy.DROP_OLDEST);
+				}
+				else if (value.equals("dropnewest"))
+				{
+					config.setSlowConsumerPolicy(OutboundQueue.SlowConsumerPolicy.DROP_NEWEST);
+				}
+				else if (value.equals("disconnect"))
+				{
+					config.setSlowConsumerPolicy(OutboundQueue.SlowConsumerPolicy.DISCONNECT);
+				}
+				else
+				{
+					throw new IllegalArgumentException("the slow consumer policy must be \"dropoldest\", \"dropnewest\" or \"disconnect\"");
+				}
+				break;
+			case "-msgrate":
+				config.setMessageRateLimit(Integer.parseInt(value));
+				break;
+			case "-byterate":
+				config.setByteRateLimit(Integer.parseInt(value));
+				break;
+			case "-controlrate":
+				config.setControlRateLimit(Integer.parseInt(value));
+				break;
+			case "-idletimeout":
+				config.setIdleTimeoutSeconds(Integer.parseInt(value));
+				break;
+			case "-heartbeat":
+				config.setHeartbeatIntervalSeconds(Integer.parseInt(value));
+				break;
+			case "-history":
+				config.setHistoryDirectory(value);
+				break;
+			case "-historysegment":
+				config.setHistorySegmentSize(Integer.parseInt(value));
+				break;
+			case "-cluster":
+				config.setClusterNodes(value);
+				break;
+			case "-node":
+				config.setNodeId(Integer.parseInt(value));
+				break;
+			case "-replicateport":
+				config.setReplicationPort(Integer.parseInt(value));
+				break;
+			case "-replicatebind":
+				config.setReplicationBindAddress(value);
+				break;
+			case "-replicatesecret":
+				config.setReplicationSecret(value);
+				break;
+			case "-standbyof":
+				config.setStandbyOf(value);
+				break;
+			case "-resumegrace":
+				config.setResumeGraceSeconds(Integer.parseInt(value));
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option");
+		}
+	}
 }
@@ -0,0 +1,154 @@
+/**
+ * Unit tests for ControlMessageParser: which command a control message runs, and what its handler is given.
+ * @author Bennett Sherman, bms113
+ */
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ControlMessageParserTest {
+
+	/**
+	 * Each handler run, as "<command>|<argument>", in the order they ran.
+	 */
+	private final List<String> handled = new ArrayList<>();
+
+	/**
+	 * A parser with commands that share prefixes, as the server's do.
+	 */
+	private final ControlMessageParser<String> parser = new ControlMessageParser<>(recording("UNKNOWN"));
+
+	/**
+	 * Constructor. Registers the commands every test uses.
+	 */
+	ControlMessageParserTest()
+	{
+		parser.register("GET", recording("GET"));
+		parser.register("GET MY NAME", recording("GET MY NAME"));
+		parser.register("GET HISTORY=", recording("GET HISTORY="));
+		parser.register("SET MY NAME=", recording("SET MY NAME="));
+		parser.register("QUIT", (session, argument) -> false);
+	}
+
+	/**
+	 * @param command The command a handler is registered for
+	 * @return A handler that records that it ran, and with what argument
+	 */
+	private ControlMessageParser.CommandHandler<String> recording(String command)
+	{
+		return (session, argument) -> {
+			handled.add(command + "|" + argument);
+			return true;
+		};
+	}
+
+	/**
+	 * @param command A control message, without CONTROL_MESSAGE_SPECIFIER
+	 * @return What dispatching it returned
+	 */
+	private boolean dispatch(String command)
+	{
+		return parser.dispatch("session", ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + command);
+	}
+
+	/**
+	 * A command with an argument is handed everything after it.
+	 */
+	@Test
+	void handsTheArgumentToTheCommand()
+	{
+		assertTrue(dispatch("GET HISTORY=50,BEN"));
+		assertEquals(List.of("GET HISTORY=|50,BEN"), handled);
+	}
+
+	/**
+	 * A command without an argument is handed an empty one.
+	 */
+	@Test
+	void handsAnEmptyArgumentToACommandWithoutOne()
+	{
+		dispatch("GET MY NAME");
+		assertEquals(List.of("GET MY NAME|"), handled);
+	}
+
+	/**
+	 * Of the commands a message starts with, the longest runs.
+	 */
+	@Test
+	void runsTheLongestMatchingCommand()
+	{
+		dispatch("GET MY NAME");
+		dispatch("GET SERVER STATS");
+		assertEquals(List.of("GET MY NAME|", "GET| SERVER STATS"), handled);
+	}
+
+	/**
+	 * A message that follows a longer command part of the way falls back to the last command it passed through.
+	 */
+	@Test
+	void fallsBackToTheLastCommandPassedThrough()
+	{
+		dispatch("GET MY NAM");
+		dispatch("GET HISTORY");
+		assertEquals(List.of("GET| MY NAM", "GET| HISTORY"), handled);
+	}
+
+	/**
+	 * The argument never changes which command runs, even if it contains another command.
+	 */
+	@Test
+	void argumentNeverPicksTheCommand()
+	{
+		dispatch("SET MY NAME=GET MY NAME");
+		assertEquals(List.of("SET MY NAME=|GET MY NAME"), handled);
+	}
+
+	/**
+	 * A message that doesn't start with any command, or only with part of one, is handed whole to the unknown command handler.
+	 */
+	@Test
+	void runsTheUnknownCommandHandlerWithTheWholeMessage()
+	{
+		dispatch("SET MY");
+		dispatch("NOPE");
+		dispatch("");
+		String specifier = ServerClientCommon.CONTROL_MESSAGE_SPECIFIER;
+		assertEquals(List.of("UNKNOWN|" + specifier + "SET MY", "UNKNOWN|" + specifier + "NOPE", "UNKNOWN|" + specifier), handled);
+	}
+
+	/**
+	 * Commands are matched exactly, case included.
+	 */
+	@Test
+	void matchesCase()
+	{
+		dispatch("get my name");
+		assertEquals(List.of("UNKNOWN|" + ServerClientCommon.CONTROL_MESSAGE_SPECIFIER + "get my name"), handled);
+	}
+
+	/**
+	 * What the handler returns is what dispatch returns.
+	 */
+	@Test
+	void returnsTheHandlersResult()
+	{
+		assertFalse(dispatch("QUIT"));
+		assertTrue(dispatch("GET MY NAME"));
+	}
+
+	/**
+	 * An empty command, or one registered twice, is refused.
+	 */
+	@Test
+	void refusesEmptyAndDuplicateCommands()
+	{
+		assertThrows(IllegalArgumentException.class, () -> parser.register("", recording("")));
+		assertThrows(IllegalArgumentException.class, () -> parser.register("GET MY NAME", recording("again")));
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Unit tests for LatencyHistogram: which bucket a duration is counted in, how far a percentile
+ * may be from the durations recorded, and merging snapshots.
+ * @author Bennett Sherman, bms113
+ */
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+	/**
+	 * @param duration A duration in nanoseconds
+	 * @return The longest duration counted in the same bucket
+	 */
+	private static long bucketTopOf(long duration)
+	{
+		// The median of the duration and a longer one is the top of the duration's bucket
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(duration);
+		histogram.record(Long.MAX_VALUE);
+		return histogram.snapshot().getPercentileNanos(0.5);
+	}
+
+	/**
+	 * Durations up to 15ns each have a bucket of their own.
+	 */
+	@Test
+	void countsShortDurationsExactly()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long nanos = 0; nanos < 16; ++nanos)
+		{
+			histogram.record(nanos);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		for (int i = 0; i < 16; ++i)
+		{
+			assertEquals(i, snapshot.getPercentileNanos((i + 1) / 16.0));
+		}
+	}
+
+	/**
+	 * From 16ns, each doubling is split into 8 equal buckets.
+	 */
+	@Test
+	void splitsEachDoublingIntoEightBuckets()
+	{
+		// 16-31ns are in buckets 2ns wide, 32-63ns in buckets 4ns wide
+		assertEquals(17, bucketTopOf(16));
+		assertEquals(17, bucketTopOf(17));
+		assertEquals(19, bucketTopOf(18));
+		assertEquals(31, bucketTopOf(31));
+		assertEquals(35, bucketTopOf(32));
+		assertEquals(63, bucketTopOf(60));
+		assertEquals(71, bucketTopOf(64));
+	}
+
+	/**
+	 * Every duration's bucket starts at or below it and ends within 1/8 above it, up to the longest a long can hold.
+	 */
+	@Test
+	void keepsEveryBucketWithinAnEighth()
+	{
+		long[] durations = { 16, 100, 999, 1_000, 65_535, 65_536, 1_234_567, 1L << 40, (1L << 40) - 1, Long.MAX_VALUE / 3, Long.MAX_VALUE - 1 };
+		for (long duration : durations)
+		{
+			long top = bucketTopOf(duration);
+			assertTrue(top >= duration, duration + " is counted in a bucket ending at " + top);
+			assertTrue(top - duration <= duration / 8, duration + " is counted in a bucket ending at " + top);
+		}
+	}
+
+	/**
+	 * A percentile is never more than the longest duration recorded.
+	 */
+	@Test
+	void neverReportsMoreThanTheLongestDuration()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(100);
+		histogram.record(Long.MAX_VALUE);
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(Long.MAX_VALUE, snapshot.getPercentileNanos(1.0));
+		assertEquals(Long.MAX_VALUE, snapshot.getMaxNanos());
+
+		LatencyHistogram single = new LatencyHistogram();
+		single.record(100);
+		assertEquals(100, single.snapshot().getPercentileNanos(0.99));
+	}
+
+	/**
+	 * Negative durations count as 0, and an empty histogram reports 0 for everything.
+	 */
+	@Test
+	void countsNegativeDurationsAsZero()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.snapshot().getCount());
+		assertEquals(0, histogram.snapshot().getPercentileNanos(0.5));
+		assertEquals(0, histogram.snapshot().getMeanNanos());
+
+		histogram.record(-5);
+		assertEquals(1, histogram.snapshot().getCount());
+		assertEquals(0, histogram.snapshot().getMaxNanos());
+	}
+
+	/**
+	 * Merging snapshots adds their counts and totals, and keeps the longer of their longest durations.
+	 */
+	@Test
+	void mergesSnapshots()
+	{
+		LatencyHistogram first = new LatencyHistogram();
+		first.record(10);
+		first.record(20);
+		LatencyHistogram second = new LatencyHistogram();
+		second.record(90);
+
+		LatencyHistogram.Snapshot merged = first.snapshot().merge(second.snapshot());
+		assertEquals(3, merged.getCount());
+		assertEquals(40, merged.getMeanNanos());
+		assertEquals(90, merged.getMaxNanos());
+		assertEquals(10, merged.getPercentileNanos(0.3));
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * Unit tests for MailboxStore: the messages still waiting when the store is closed are exactly the ones
+ * found when it's reopened, whether they're spread over several segments, were moved by compaction, or
+ * were followed by a record that was only partly written.
+ * Each test closes the store before looking at what was delivered, since close() waits for every task asked for.
+ * @author Bennett Sherman, bms113
+ */
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MailboxStoreTest {
+
+	/**
+	 * A segment size small enough for a few dozen messages to need several segments.
+	 */
+	private static final int SMALL_SEGMENT_SIZE = 1024;
+
+	/**
+	 * Holds the segment files.
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * Where the stores log failures. Never started, so nothing is printed.
+	 */
+	private final ServerLogger log = new ServerLogger(ServerLogger.Level.WARN, 64, System.out);
+
+	/**
+	 * @param segmentSize The size of each segment file
+	 * @return A started store over the test's directory, with whatever it recovered from it
+	 * @throws IOException If the directory can't be read
+	 */
+	private MailboxStore open(int segmentSize) throws IOException
+	{
+		MailboxStore store = new MailboxStore(directory, segmentSize, log);
+		store.start();
+		return store;
+	}
+
+	/**
+	 * Ask for a recipient's messages, keeping what's delivered.
+	 * @param store A started store
+	 * @param recipient The name whose messages to deliver
+	 * @param take How many of them to hand over; the rest stay in the store
+	 * @param delivered Receives "<sender>: <message>" for each message handed over, once the store has got to it
+	 */
+	private static void deliver(MailboxStore store, String recipient, int take, List<String> delivered)
+	{
+		store.deliver(recipient, messages -> {
+			int handedOver = Math.min(take, messages.size());
+			for (MailboxStore.Message message : messages.subList(0, handedOver))
+			{
+				delivered.add(message.getSender() + ": " + message.getText());
+			}
+			return handedOver;
+		});
+	}
+
+	/**
+	 * @param first The number of the first message
+	 * @param last The number of the last message
+	 * @return "ALICE: message <n>" for each message from first to last, as deliver() reports them
+	 */
+	private static List<String> numberedFromAlice(int first, int last)
+	{
+		List<String> messages = new ArrayList<>();
+		for (int i = first; i <= last; ++i)
+		{
+			messages.add("ALICE: message " + i);
+		}
+		return messages;
+	}
+
+	/**
+	 * @param store A started store
+	 * @param first The number of the first message to leave for BOB
+	 * @param last The number of the last
+	 */
+	private static void appendNumberedFromAlice(MailboxStore store, int first, int last)
+	{
+		for (int i = first; i <= last; ++i)
+		{
+			assertTrue(store.append("ALICE", "BOB", "message " + i, () -> {}));
+		}
+	}
+
+	/**
+	 * Messages not yet delivered are still there after a reopen, and the ones delivered aren't.
+	 */
+	@Test
+	void keepsUndeliveredMessagesAcrossReopen() throws IOException
+	{
+		MailboxStore store = open(SMALL_SEGMENT_SIZE * 64);
+		appendNumberedFromAlice(store, 1, 3);
+		assertTrue(store.append("BOB", "CAROL", "hello", () -> {}));
+		List<String> delivered = new ArrayList<>();
+		deliver(store, "BOB", 2, delivered);
+		store.close();
+		assertEquals(numberedFromAlice(1, 2), delivered);
+
+		MailboxStore reopened = open(SMALL_SEGMENT_SIZE * 64);
+		List<String> forBob = new ArrayList<>();
+		List<String> forCarol = new ArrayList<>();
+		deliver(reopened, "BOB", Integer.MAX_VALUE, forBob);
+		deliver(reopened, "CAROL", Integer.MAX_VALUE, forCarol);
+		reopened.close();
+		assertEquals(numberedFromAlice(3, 3), forBob);
+		assertEquals(List.of("BOB: hello"), forCarol);
+
+		// Everything was delivered, so nothing is found the next time
+		MailboxStore emptied = open(SMALL_SEGMENT_SIZE * 64);
+		List<String> again = new ArrayList<>();
+		deliver(emptied, "BOB", Integer.MAX_VALUE, again);
+		deliver(emptied, "CAROL", Integer.MAX_VALUE, again);
+		emptied.close();
+		assertEquals(List.of(), again);
+	}
+
+	/**
+	 * Messages spread over several segments, some moved forward by compaction, come back in the order they were left,
+	 * and messages left after a reopen follow them.
+	 */
+	@Test
+	void recoversMessagesAcrossSegmentsAndCompaction() throws IOException
+	{
+		MailboxStore store = open(SMALL_SEGMENT_SIZE);
+		appendNumberedFromAlice(store, 1, 100);
+		List<String> delivered = new ArrayList<>();
+		deliver(store, "BOB", 80, delivered);
+		store.close();
+		assertEquals(numberedFromAlice(1, 80), delivered);
+
+		MailboxStore reopened = open(SMALL_SEGMENT_SIZE);
+		appendNumberedFromAlice(reopened, 101, 110);
+		List<String> recovered = new ArrayList<>();
+		deliver(reopened, "BOB", Integer.MAX_VALUE, recovered);
+		reopened.close();
+		assertEquals(numberedFromAlice(81, 110), recovered);
+	}
+
+	/**
+	 * A record that was only partly written, ex: because the server died while writing it, is ignored along with
+	 * everything after it, and the next message is written in its place.
+	 */
+	@Test
+	void ignoresAPartlyWrittenRecord() throws IOException
+	{
+		MailboxStore store = open(SMALL_SEGMENT_SIZE * 64);
+		appendNumberedFromAlice(store, 1, 3);
+		store.close();
+		corruptLastRecord("message 3");
+
+		MailboxStore reopened = open(SMALL_SEGMENT_SIZE * 64);
+		appendNumberedFromAlice(reopened, 4, 4);
+		reopened.close();
+
+		MailboxStore recovered = open(SMALL_SEGMENT_SIZE * 64);
+		List<String> delivered = new ArrayList<>();
+		deliver(recovered, "BOB", Integer.MAX_VALUE, delivered);
+		recovered.close();
+		assertEquals(List.of("ALICE: message 1", "ALICE: message 2", "ALICE: message 4"), delivered);
+	}
+
+	/**
+	 * Change one byte of a message's text on disk, so its record no longer matches its checksum.
+	 * @param text The message's text, which must be in only one segment file
+	 * @throws IOException If a segment file can't be read or written
+	 */
+	private void corruptLastRecord(String text) throws IOException
+	{
+		byte[] wanted = text.getBytes(StandardCharsets.UTF_8);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+		{
+			for (Path path : files)
+			{
+				byte[] contents = Files.readAllBytes(path);
+				int at = indexOf(contents, wanted);
+				if (at >= 0)
+				{
+					try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE))
+					{
+						channel.write(ByteBuffer.wrap(new byte[] { (byte) ~contents[at] }), at);
+					}
+					return;
+				}
+			}
+		}
+		throw new AssertionError("No segment holds \"" + text + "\"");
+	}
+
+	/**
+	 * @param contents The bytes to search
+	 * @param wanted The bytes to find
+	 * @return Where they first start, or -1
+	 */
+	private static int indexOf(byte[] contents, byte[] wanted)
+	{
+		for (int start = 0; start + wanted.length <= contents.length; ++start)
+		{
+			int matched = 0;
+			while (matched < wanted.length && contents[start + matched] == wanted[matched])
+			{
+				++matched;
+			}
+			if (matched == wanted.length)
+			{
+				return start;
+			}
+		}
+		return -1;
+	}
+}
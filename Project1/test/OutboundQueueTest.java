@@ -0,0 +1,266 @@
+/**
+ * Unit tests for OutboundQueue: what each slow consumer policy drops, when a client becomes
+ * a slow consumer, and what the listener is told.
+ * @author Bennett Sherman, bms113
+ */
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest {
+
+	/**
+	 * Records what a queue tells its listener, as "<event> <number>", in the order it's told.
+	 */
+	private static final class RecordingListener implements OutboundQueue.WatermarkListener
+	{
+		/**
+		 * Everything the listener was told.
+		 */
+		private final List<String> events = new ArrayList<>();
+
+		@Override
+		public void onHighWatermark(int depth)
+		{
+			events.add("high " + depth);
+		}
+
+		@Override
+		public void onLowWatermark(int depth)
+		{
+			events.add("low " + depth);
+		}
+
+		@Override
+		public void onSlowConsumer(long pendingBytes)
+		{
+			events.add("slow " + pendingBytes);
+		}
+
+		@Override
+		public void onMessagesDropped(OutboundQueue.SlowConsumerPolicy policy, int count)
+		{
+			events.add("dropped " + policy + " " + count);
+		}
+	}
+
+	/**
+	 * The length of every message(), newline included.
+	 */
+	private static final int MESSAGE_BYTES = message(0).length();
+
+	/**
+	 * Told what the queue under test does.
+	 */
+	private final RecordingListener listener = new RecordingListener();
+
+	/**
+	 * @param number Which message
+	 * @return A message of MESSAGE_BYTES bytes, newline included, that says which it is
+	 */
+	private static OutboundFrame message(int number)
+	{
+		return OutboundFrame.encode(String.format("message %03d", number));
+	}
+
+	/**
+	 * @param frame A queued message
+	 * @return The message, without its newline
+	 */
+	private static String text(OutboundFrame frame)
+	{
+		ByteBuffer bytes = frame.newReadBuffer();
+		byte[] line = new byte[bytes.remaining() - 1];
+		bytes.get(line);
+		return new String(line, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @param queue A queue
+	 * @return Every message queued, oldest first, taken off of the queue
+	 */
+	private static List<String> drain(OutboundQueue queue)
+	{
+		List<OutboundFrame> batch = new ArrayList<>();
+		queue.pollBatch(batch, Integer.MAX_VALUE);
+		List<String> texts = new ArrayList<>();
+		for (OutboundFrame frame : batch)
+		{
+			texts.add(text(frame));
+		}
+		return texts;
+	}
+
+	/**
+	 * @param queue A queue
+	 * @param count How many messages to offer, numbered from 1
+	 * @return How many were queued
+	 */
+	private static int offerNumbered(OutboundQueue queue, int count)
+	{
+		int queued = 0;
+		for (int i = 1; i <= count; ++i)
+		{
+			if (queue.offer(message(i)))
+			{
+				++queued;
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * Once full, a queue with no byte limit drops the new messages and keeps what's already queued.
+	 */
+	@Test
+	void dropsNewestWhenFull()
+	{
+		OutboundQueue queue = new OutboundQueue(4, listener);
+		assertEquals(4, offerNumbered(queue, 6));
+		assertEquals(2, queue.getDroppedCount());
+		assertEquals(List.of("message 001", "message 002", "message 003", "message 004"), drain(queue));
+		assertTrue(listener.events.contains("dropped DROP_NEWEST 1"));
+	}
+
+	/**
+	 * Once full, DROP_OLDEST drops the oldest messages to make room, so the newest are always kept.
+	 */
+	@Test
+	void dropsOldestWhenFull()
+	{
+		OutboundQueue queue = new OutboundQueue(4, 0, 0, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST, listener);
+		assertEquals(6, offerNumbered(queue, 6));
+		assertEquals(2, queue.getDroppedCount());
+		assertEquals(List.of("message 003", "message 004", "message 005", "message 006"), drain(queue));
+		assertTrue(listener.events.contains("dropped DROP_OLDEST 1"));
+	}
+
+	/**
+	 * A client over the byte limit for longer than the grace period is a slow consumer: the listener is
+	 * told once, and every message that doesn't fit is dropped until the client catches up.
+	 */
+	@Test
+	void becomesSlowConsumerPastTheGracePeriod()
+	{
+		OutboundQueue queue = new OutboundQueue(100, 3 * MESSAGE_BYTES, 0, OutboundQueue.SlowConsumerPolicy.DROP_NEWEST, listener);
+		assertEquals(3, offerNumbered(queue, 5));
+		assertEquals(List.of("slow " + 3 * MESSAGE_BYTES, "dropped DROP_NEWEST 1", "dropped DROP_NEWEST 1"), listener.events);
+
+		// Caught up, so the client is no longer a slow consumer
+		assertEquals(3, drain(queue).size());
+		assertTrue(queue.offer(message(6)));
+		assertEquals(List.of("message 006"), drain(queue));
+	}
+
+	/**
+	 * Within the grace period, a client over the byte limit still has every message queued.
+	 */
+	@Test
+	void queuesOverTheByteLimitWithinTheGracePeriod()
+	{
+		OutboundQueue queue = new OutboundQueue(100, 3 * MESSAGE_BYTES, TimeUnit.HOURS.toNanos(1), OutboundQueue.SlowConsumerPolicy.DROP_NEWEST,
+				listener);
+		assertEquals(10, offerNumbered(queue, 10));
+		assertEquals(0, queue.getDroppedCount());
+		assertTrue(listener.events.stream().noneMatch(event -> event.startsWith("slow")));
+	}
+
+	/**
+	 * A slow consumer under DROP_OLDEST keeps the newest messages that fit within the byte limit.
+	 */
+	@Test
+	void slowConsumerUnderDropOldestKeepsTheNewest()
+	{
+		OutboundQueue queue = new OutboundQueue(100, 3 * MESSAGE_BYTES, 0, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST, listener);
+		assertEquals(5, offerNumbered(queue, 5));
+		assertEquals(List.of("message 003", "message 004", "message 005"), drain(queue));
+		assertEquals(2, queue.getDroppedCount());
+	}
+
+	/**
+	 * Under DISCONNECT, the listener is told the client is a slow consumer, so it can disconnect it,
+	 * and what doesn't fit meanwhile is dropped rather than queued.
+	 */
+	@Test
+	void slowConsumerUnderDisconnectTellsTheListener()
+	{
+		OutboundQueue queue = new OutboundQueue(100, 2 * MESSAGE_BYTES, 0, OutboundQueue.SlowConsumerPolicy.DISCONNECT, listener);
+		assertEquals(2, offerNumbered(queue, 3));
+		assertEquals(List.of("slow " + 2 * MESSAGE_BYTES, "dropped DROP_NEWEST 1"), listener.events);
+		assertEquals(List.of("message 001", "message 002"), drain(queue));
+	}
+
+	/**
+	 * The listener is told once when the queue reaches its high watermark, and once when it drains to its low watermark.
+	 */
+	@Test
+	void tellsTheListenerAboutWatermarks()
+	{
+		OutboundQueue queue = new OutboundQueue(8, listener);
+		offerNumbered(queue, 7);
+		assertEquals(List.of("high 6"), listener.events);
+
+		List<OutboundFrame> batch = new ArrayList<>();
+		queue.pollBatch(batch, 4);
+		assertEquals(List.of("high 6"), listener.events);
+		queue.pollBatch(batch, 1);
+		assertEquals(List.of("high 6", "low 2"), listener.events);
+	}
+
+	/**
+	 * A closed queue refuses new messages, but the writer still gets the ones already queued before it's told to stop.
+	 */
+	@Test
+	void closedQueueHandsOverWhatWasQueued() throws InterruptedException
+	{
+		OutboundQueue queue = new OutboundQueue(8, listener);
+		offerNumbered(queue, 2);
+		queue.close();
+		assertFalse(queue.offer(message(3)));
+
+		List<OutboundFrame> batch = new ArrayList<>();
+		assertTrue(queue.awaitBatch(batch, 8));
+		assertEquals(2, batch.size());
+		assertFalse(queue.awaitBatch(batch, 8));
+	}
+
+	/**
+	 * offerWhileRoom() queues a heading and as many messages as fit after it, tells the heading how many,
+	 * and never drops anything already queued.
+	 */
+	@Test
+	void offerWhileRoomQueuesOnlyWhatFits()
+	{
+		OutboundQueue queue = new OutboundQueue(5, 0, 0, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST, listener);
+		queue.offer(message(0));
+		List<OutboundFrame> frames = new ArrayList<>();
+		for (int i = 1; i <= 6; ++i)
+		{
+			frames.add(message(i));
+		}
+
+		assertEquals(3, queue.offerWhileRoom(fitting -> OutboundFrame.encode("heading " + fitting), frames));
+		assertEquals(0, queue.getDroppedCount());
+		assertEquals(List.of("message 000", "heading 3", "message 001", "message 002", "message 003"), drain(queue));
+	}
+
+	/**
+	 * offerWhileRoom() queues nothing at all, not even the heading, if no message fits after it.
+	 */
+	@Test
+	void offerWhileRoomQueuesNothingIfNoMessageFits()
+	{
+		OutboundQueue queue = new OutboundQueue(4, listener);
+		offerNumbered(queue, 3);
+		assertEquals(0, queue.offerWhileRoom(fitting -> OutboundFrame.encode("heading " + fitting), List.of(message(4))));
+		assertEquals(3, queue.size());
+	}
+}
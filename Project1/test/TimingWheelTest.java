@@ -0,0 +1,165 @@
+/**
+ * Unit tests for TimingWheel: tasks run once their deadlines pass and never before, run again for as
+ * long as they ask to, and stop once they return a negative delay, which is how a task is cancelled.
+ * Each test runs a wheel of its own with 1 ms ticks.
+ * @author Bennett Sherman, bms113
+ */
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+	/**
+	 * The longest any test waits for a task that should run.
+	 */
+	private static final long TIMEOUT_SECONDS = 5;
+
+	/**
+	 * @param slotCount The number of slots
+	 * @return A started wheel with 1 ms ticks
+	 */
+	private static TimingWheel startedWheel(int slotCount)
+	{
+		TimingWheel wheel = new TimingWheel("test-wheel", 1, slotCount);
+		wheel.start();
+		return wheel;
+	}
+
+	/**
+	 * A task runs once its deadline has passed, and not before.
+	 */
+	@Test
+	void runsTaskOnceItsDeadlinePasses() throws InterruptedException
+	{
+		TimingWheel wheel = startedWheel(64);
+		CountDownLatch ran = new CountDownLatch(1);
+		long delayNanos = TimeUnit.MILLISECONDS.toNanos(30);
+		long scheduledNanos = System.nanoTime();
+		long[] ranAfterNanos = new long[1];
+		wheel.schedule(nowNanos -> {
+			ranAfterNanos[0] = System.nanoTime() - scheduledNanos;
+			ran.countDown();
+			return -1;
+		}, delayNanos);
+
+		assertTrue(ran.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertTrue(ranAfterNanos[0] >= delayNanos, "ran after " + ranAfterNanos[0] + " ns");
+	}
+
+	/**
+	 * A deadline several turns of the wheel away is passed over until its last turn.
+	 */
+	@Test
+	void runsTaskDueAfterSeveralTurns() throws InterruptedException
+	{
+		TimingWheel wheel = startedWheel(8);
+		CountDownLatch ran = new CountDownLatch(1);
+		long delayNanos = TimeUnit.MILLISECONDS.toNanos(50);
+		long scheduledNanos = System.nanoTime();
+		long[] ranAfterNanos = new long[1];
+		wheel.schedule(nowNanos -> {
+			ranAfterNanos[0] = System.nanoTime() - scheduledNanos;
+			ran.countDown();
+			return -1;
+		}, delayNanos);
+
+		assertTrue(ran.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertTrue(ranAfterNanos[0] >= delayNanos, "ran after " + ranAfterNanos[0] + " ns");
+	}
+
+	/**
+	 * Tasks sharing a wheel each run at their own deadline, in deadline order.
+	 */
+	@Test
+	void runsTasksInDeadlineOrder() throws InterruptedException
+	{
+		TimingWheel wheel = startedWheel(16);
+		List<Integer> order = new CopyOnWriteArrayList<>();
+		CountDownLatch ran = new CountDownLatch(3);
+		for (int delayMillis : new int[] { 60, 20, 40 })
+		{
+			wheel.schedule(nowNanos -> {
+				order.add(delayMillis);
+				ran.countDown();
+				return -1;
+			}, TimeUnit.MILLISECONDS.toNanos(delayMillis));
+		}
+
+		assertTrue(ran.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertEquals(List.of(20, 40, 60), order);
+	}
+
+	/**
+	 * A task that returns a delay is run again after it, for as long as it keeps asking.
+	 */
+	@Test
+	void runsTaskAgainWhenItAsks() throws InterruptedException
+	{
+		TimingWheel wheel = startedWheel(64);
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch ranFourTimes = new CountDownLatch(4);
+		long intervalNanos = TimeUnit.MILLISECONDS.toNanos(10);
+		long scheduledNanos = System.nanoTime();
+		wheel.schedule(nowNanos -> {
+			ranFourTimes.countDown();
+			return (runs.incrementAndGet() < 4) ? intervalNanos : -1;
+		}, intervalNanos);
+
+		assertTrue(ranFourTimes.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - scheduledNanos >= 4 * intervalNanos);
+		// It stopped asking, so it's never run again
+		Thread.sleep(50);
+		assertEquals(4, runs.get());
+	}
+
+	/**
+	 * A repeating task cancelled by returning a negative delay runs at most once more after being cancelled.
+	 */
+	@Test
+	void stopsRunningCancelledTask() throws InterruptedException
+	{
+		TimingWheel wheel = startedWheel(64);
+		AtomicBoolean cancelled = new AtomicBoolean(false);
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch ranTwice = new CountDownLatch(2);
+		wheel.schedule(nowNanos -> {
+			runs.incrementAndGet();
+			ranTwice.countDown();
+			return cancelled.get() ? -1 : TimeUnit.MILLISECONDS.toNanos(2);
+		}, TimeUnit.MILLISECONDS.toNanos(2));
+
+		assertTrue(ranTwice.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		cancelled.set(true);
+		int runsWhenCancelled = runs.get();
+		Thread.sleep(50);
+		assertTrue(runs.get() <= runsWhenCancelled + 1, "ran " + (runs.get() - runsWhenCancelled) + " times after being cancelled");
+	}
+
+	/**
+	 * A task that throws is dropped, and the tasks after it still run.
+	 */
+	@Test
+	void keepsRunningAfterATaskThrows() throws InterruptedException
+	{
+		TimingWheel wheel = startedWheel(64);
+		CountDownLatch ran = new CountDownLatch(1);
+		wheel.schedule(nowNanos -> {
+			throw new IllegalStateException("thrown on purpose by TimingWheelTest");
+		}, TimeUnit.MILLISECONDS.toNanos(5));
+		wheel.schedule(nowNanos -> {
+			ran.countDown();
+			return -1;
+		}, TimeUnit.MILLISECONDS.toNanos(5));
+
+		assertTrue(ran.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+	}
+}
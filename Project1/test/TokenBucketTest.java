@@ -0,0 +1,94 @@
+/**
+ * Unit tests for TokenBucket: how it refills, and how long a client over its limit is told to wait.
+ * The bucket is handed the time, so nothing here sleeps.
+ * @author Bennett Sherman, bms113
+ */
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class TokenBucketTest {
+
+	/**
+	 * One tenth of a second, how long a bucket of 10 tokens a second takes to regain one.
+	 */
+	private static final long TENTH_OF_A_SECOND = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * A new bucket holds a second's worth of tokens, and the first token past that costs one token's wait.
+	 */
+	@Test
+	void startsFull()
+	{
+		TokenBucket bucket = new TokenBucket(10);
+		long now = System.nanoTime();
+		assertEquals(0, bucket.charge(10, now));
+		assertEquals(TENTH_OF_A_SECOND, bucket.charge(1, now));
+	}
+
+	/**
+	 * An empty bucket regains one token per 1/rate of a second.
+	 */
+	@Test
+	void refillsAtItsRate()
+	{
+		TokenBucket bucket = new TokenBucket(10);
+		long now = System.nanoTime();
+		bucket.charge(10, now);
+		assertEquals(0, bucket.charge(1, now + TENTH_OF_A_SECOND));
+		assertEquals(TENTH_OF_A_SECOND, bucket.charge(1, now + TENTH_OF_A_SECOND));
+		assertEquals(0, bucket.charge(5, now + TimeUnit.SECONDS.toNanos(1)));
+	}
+
+	/**
+	 * A bucket left alone never holds more than a second's worth.
+	 */
+	@Test
+	void neverHoldsMoreThanASecondsWorth()
+	{
+		TokenBucket bucket = new TokenBucket(10);
+		long later = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+		assertEquals(0, bucket.charge(10, later));
+		assertEquals(TENTH_OF_A_SECOND, bucket.charge(1, later));
+	}
+
+	/**
+	 * Tokens are taken even past what the bucket holds, so each charge over the limit waits longer.
+	 */
+	@Test
+	void waitGrowsWithEveryChargeOverTheLimit()
+	{
+		TokenBucket bucket = new TokenBucket(10);
+		long now = System.nanoTime();
+		assertEquals(TimeUnit.SECONDS.toNanos(2), bucket.charge(30, now));
+		assertEquals(TimeUnit.SECONDS.toNanos(2) + TENTH_OF_A_SECOND, bucket.charge(1, now));
+		// Waiting as long as it was told brings the client back within its limit, and no further
+		long waited = now + TimeUnit.SECONDS.toNanos(2) + TENTH_OF_A_SECOND;
+		assertEquals(0, bucket.charge(0, waited));
+		assertEquals(TENTH_OF_A_SECOND, bucket.charge(1, waited));
+	}
+
+	/**
+	 * A rate of 0 is no limit at all.
+	 */
+	@Test
+	void zeroRateNeverLimits()
+	{
+		TokenBucket bucket = new TokenBucket(0);
+		long now = System.nanoTime();
+		assertEquals(0, bucket.charge(Integer.MAX_VALUE, now));
+		assertEquals(0, bucket.charge(Integer.MAX_VALUE, now));
+	}
+
+	/**
+	 * A negative rate is refused.
+	 */
+	@Test
+	void refusesANegativeRate()
+	{
+		assertThrows(IllegalArgumentException.class, () -> new TokenBucket(-1));
+	}
+}